@@ -0,0 +1,130 @@
+package quanto.util.json
+
+import scala.collection.immutable.{AbstractMap, HashMap}
+
+/**
+  * The fields of a small JSON object, held as parallel arrays of keys and values rather than as a tree of entries.
+  *
+  * Keys are interned, so the many objects with the same fields share their key strings. A "coord" field holding a pair
+  * of doubles is kept as just the two doubles, and only made back into a JsonArray when it is read. Adding a field
+  * past MaxSize gives an ordinary immutable map instead.
+  *
+  * Fields iterate, and so are written, in the order of the immutable Map this replaces, so files are written exactly
+  * as before: in the order they were added while there are at most four (as Map1 to Map4), and in the order of an
+  * immutable.HashMap once there have been more (which, like a HashMap, is kept as fields are removed).
+  *
+  * @param hashed true if the fields are in HashMap order, rather than the order they were added
+  */
+private[json] final class CompactJsonMap private(keys: Array[String], values: Array[AnyRef], hashed: Boolean)
+  extends AbstractMap[String, Json] {
+
+  import CompactJsonMap._
+
+  private def indexOf(key: String): Int = {
+    var i = 0
+    while (i < keys.length && keys(i) != key) i += 1
+    if (i == keys.length) -1 else i
+  }
+
+  private def value(i: Int): Json = unpack(values(i))
+
+  override def size: Int = keys.length
+
+  override def isEmpty: Boolean = keys.length == 0
+
+  override def get(key: String): Option[Json] = {
+    val i = indexOf(key)
+    if (i == -1) None else Some(value(i))
+  }
+
+  override def contains(key: String): Boolean = indexOf(key) != -1
+
+  override def iterator: Iterator[(String, Json)] = keys.indices.iterator.map(i => (keys(i), value(i)))
+
+  override def foreach[U](f: ((String, Json)) => U): Unit = {
+    var i = 0
+    while (i < keys.length) {
+      f((keys(i), value(i)))
+      i += 1
+    }
+  }
+
+  override def +[V1 >: Json](kv: (String, V1)): Map[String, V1] = kv._2 match {
+    case json: Json =>
+      val i = indexOf(kv._1)
+      if (i != -1) {
+        val values1 = values.clone()
+        values1(i) = pack(keys(i), json)
+        new CompactJsonMap(keys, values1, hashed)
+      } else if (keys.length < MaxSize) {
+        val k = kv._1.intern
+        val keys1 = keys :+ k
+        val values1 = values :+ pack(k, json)
+        if (!hashed && keys1.length <= MaxOrderedSize) new CompactJsonMap(keys1, values1, hashed = false)
+        else {
+          val order = hashOrder(keys1)
+          new CompactJsonMap(order.map(keys1), order.map(values1), hashed = true)
+        }
+      } else {
+        HashMap[String, V1](toSeq: _*) + kv
+      }
+    case _ => HashMap[String, V1](toSeq: _*) + kv
+  }
+
+  override def -(key: String): Map[String, Json] = {
+    val i = indexOf(key)
+    if (i == -1) this
+    else new CompactJsonMap(keys.patch(i, Nil, 1), values.patch(i, Nil, 1), hashed)
+  }
+
+  // as for a HashMap, the fields which are kept stay in the same order
+  override def filter(p: ((String, Json)) => Boolean): Map[String, Json] = {
+    val kept = keys.indices.filter { i => p((keys(i), value(i))) }
+    if (kept.length == keys.length) this
+    else new CompactJsonMap(kept.map(keys).toArray, kept.map(values).toArray, hashed)
+  }
+
+  override def filterNot(p: ((String, Json)) => Boolean): Map[String, Json] = filter(!p(_))
+}
+
+private[json] object CompactJsonMap {
+  val MaxSize = 8
+
+  // the largest immutable Map which iterates in the order its fields were added
+  private val MaxOrderedSize = 4
+
+  val empty = new CompactJsonMap(Array(), Array(), hashed = false)
+
+  // the positions of the given keys, in the order an immutable.HashMap holding them iterates
+  private def hashOrder(keys: Array[String]): Array[Int] =
+    HashMap(keys.indices.map { i => keys(i) -> i }: _*).valuesIterator.toArray
+
+  // the value of a "coord" field that is a pair of doubles
+  private final class Coord(val x: Double, val y: Double)
+
+  private def pack(key: String, json: Json): AnyRef = json match {
+    case JsonArray(Vector(JsonDouble(x), JsonDouble(y))) if key == "coord" => new Coord(x, y)
+    case _ => json
+  }
+
+  private def unpack(v: AnyRef): Json = v match {
+    case c: Coord => JsonArray(Vector(JsonDouble(c.x), JsonDouble(c.y)))
+    case json => json.asInstanceOf[Json]
+  }
+
+  /** The given map, as a CompactJsonMap if it is small enough */
+  def apply(m: Map[String, Json]): Map[String, Json] = m match {
+    case _: CompactJsonMap => m
+    case _ if m.size > MaxSize => m
+    case _ =>
+      val keys = new Array[String](m.size)
+      val values = new Array[AnyRef](m.size)
+      var i = 0
+      for ((k, v) <- m) {
+        keys(i) = k.intern
+        values(i) = pack(keys(i), v)
+        i += 1
+      }
+      new CompactJsonMap(keys, values, m.isInstanceOf[HashMap[_, _]] || m.size > MaxOrderedSize)
+  }
+}
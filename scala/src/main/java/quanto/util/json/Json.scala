@@ -3,6 +3,8 @@ package quanto.util.json
 import com.fasterxml.jackson
 import jackson.core.{JsonParser,JsonGenerator,JsonFactory,JsonEncoding,JsonToken}
 import jackson.core.{JsonParseException => JacksonParseException}
+import java.lang.ref.{ReferenceQueue, WeakReference}
+import java.util.concurrent.ConcurrentHashMap
 
 abstract class JsonException(message: String, cause: Throwable = null)
   extends Exception(message, cause)
@@ -162,7 +164,68 @@ with Iterable[(String,Json)]
   def asObjectOrKeyArray = if (forall(_._2.isEmpty)) this.asArray else this
 }
 
-object JsonObject { def apply(kv: (String,Json)*): JsonObject = JsonObject(Map(kv: _*)) }
+object JsonObject {
+  private val Empty = new JsonObject(CompactJsonMap.empty)
+
+  // small objects with only plain values, such as vertex data like {"type": "Z", "value": ""}, are hash-consed, in a
+  // table keyed by their fields which can be read from many threads without locking. The objects are held weakly, and
+  // an entry is dropped once its object has been collected.
+  private val MaxSharedSize = 4
+  private val sharedQueue = new ReferenceQueue[JsonObject]()
+  private val shared = new ConcurrentHashMap[Fields, SharedRef]()
+
+  private class SharedRef(val key: Fields, obj: JsonObject) extends WeakReference[JsonObject](obj, sharedQueue)
+
+  // equal objects are only shared if they also write their fields in the same order
+  private final class Fields(val v: Map[String,Json]) {
+    override def hashCode: Int = v.hashCode
+    override def equals(that: Any): Boolean = that match {
+      case f: Fields => v.size == f.v.size && v.iterator.sameElements(f.v.iterator)
+      case _ => false
+    }
+  }
+
+  private def isShareable(v: Map[String,Json]): Boolean =
+    v.size <= MaxSharedSize && v.forall {
+      case (_, JsonString(s)) => s.length <= 32
+      case (_, _: JsonInt | _: JsonBool | _: JsonDouble | JsonNull) => true
+      case _ => false
+    }
+
+  private def share(obj: JsonObject): JsonObject = {
+    val key = new Fields(obj.v)
+    val ref = shared.get(key)
+    val existing = if (ref == null) null else ref.get
+    if (existing != null) existing
+    else {
+      var r = sharedQueue.poll()
+      while (r != null) {
+        val dead = r.asInstanceOf[SharedRef]
+        shared.remove(dead.key, dead)
+        r = sharedQueue.poll()
+      }
+      // another thread may be sharing an equal object, so the check is repeated atomically
+      var result = obj
+      shared.compute(key, { (_: Fields, old: SharedRef) =>
+        val x = if (old == null) null else old.get
+        if (x != null) {
+          result = x
+          old
+        } else new SharedRef(key, obj)
+      })
+      result
+    }
+  }
+
+  def apply(v: Map[String,Json]): JsonObject =
+    if (v.isEmpty) Empty
+    else {
+      val obj = new JsonObject(CompactJsonMap(v))
+      if (isShareable(v)) share(obj) else obj
+    }
+
+  def apply(kv: (String,Json)*): JsonObject = JsonObject(kv.foldLeft(CompactJsonMap.empty: Map[String,Json]) { _ + _ })
+}
 
 case class JsonArray(v: Vector[Json] = Vector[Json]()) extends Json
 with Iterable[Json]
@@ -209,6 +272,11 @@ case class JsonString(v: String) extends Json {
   def isEmpty = false
 }
 
+object JsonString {
+  private val Empty = new JsonString("")
+  def apply(v: String): JsonString = if (v.isEmpty) Empty else new JsonString(v)
+}
+
 case class JsonInt(v: Int) extends Json {
   override def intValue = v
   // note that integers are treated as a sub-type of doubles. This is the expected behaviour 99% of the time.
@@ -217,18 +285,44 @@ case class JsonInt(v: Int) extends Json {
   def isEmpty = false
 }
 
+object JsonInt {
+  // small integers are shared
+  private val MinCached = -128
+  private val cache = Array.tabulate(1024 - MinCached)(i => new JsonInt(i + MinCached))
+  def apply(v: Int): JsonInt = if (v >= MinCached && v < 1024) cache(v - MinCached) else new JsonInt(v)
+}
+
 case class JsonDouble(v: Double) extends Json {
   override def doubleValue = v
   def writeTo(out: Json.Output) { out.g.writeNumber(v.toString) }
   def isEmpty = false
 }
 
+object JsonDouble {
+  // multiples of 1/4 up to 64 either way, which covers most coordinates, are shared. Negative zero is not, so that it
+  // is written back out as it was read.
+  private val Steps = 4
+  private val Range = 64
+  private val cache = Array.tabulate(2 * Range * Steps + 1)(i => new JsonDouble((i - Range * Steps).toDouble / Steps))
+  def apply(v: Double): JsonDouble = {
+    val i = v * Steps
+    if (i.isWhole && math.abs(i) <= Range * Steps && !(v == 0.0 && 1 / v < 0)) cache(i.toInt + Range * Steps)
+    else new JsonDouble(v)
+  }
+}
+
 case class JsonBool(v: Boolean) extends Json {
   override def boolValue = v
   def writeTo(out: Json.Output) { out.g.writeBoolean(v) }
   def isEmpty = false
 }
 
+object JsonBool {
+  private val True = new JsonBool(true)
+  private val False = new JsonBool(false)
+  def apply(v: Boolean): JsonBool = if (v) True else False
+}
+
 
 
 trait JsonEnumConversions { self: Enumeration =>
@@ -295,49 +389,50 @@ object Json {
   def parse(f: java.io.File): Json = parse(new Input(f))
 
   def parse(jsonInput: Input): Json = {
-    val p = jsonInput.p
-    val stack = collection.mutable.Stack[(Json,Option[String])]()
+    val tok = try { jsonInput.p.nextToken } catch {
+      case e: JacksonParseException =>
+        throw new JsonParseException("Error while parsing", e)
+    }
 
-    p.nextToken match {
-      case JsonToken.START_ARRAY => stack.push((JsonArray(), None))
-      case JsonToken.START_OBJECT => stack.push((JsonObject(), None))
-      case tok => throw new JsonParseException("First token must open array or object, got: " + tok)
+    tok match {
+      case JsonToken.START_ARRAY | JsonToken.START_OBJECT => readValue(jsonInput)
+      case _ => throw new JsonParseException("First token must open array or object, got: " + tok)
     }
+  }
 
-    var nextJson: Option[Json] = None
-    while (stack.nonEmpty) {
-      try {
-        nextJson = p.nextToken() match {
-          case JsonToken.START_ARRAY => stack.push((JsonArray(),None)); None
-          case JsonToken.START_OBJECT => stack.push((JsonObject(),None)); None
-          case JsonToken.FIELD_NAME => stack.push((stack.pop()._1, Some(p.getText))); None
-          case JsonToken.NOT_AVAILABLE => throw new JsonParseException("Next token not available")
-          case JsonToken.VALUE_EMBEDDED_OBJECT => throw new JsonParseException("Embedded objects not supported")
-          case JsonToken.END_ARRAY => Some(stack.pop()._1)
-          case JsonToken.END_OBJECT => Some(stack.pop()._1)
-          case JsonToken.VALUE_FALSE => Some(JsonBool(false))
-          case JsonToken.VALUE_TRUE => Some(JsonBool(true))
-          case JsonToken.VALUE_NULL => Some(JsonNull)
-          case JsonToken.VALUE_NUMBER_FLOAT => Some(JsonDouble(p.getValueAsDouble))
-          case JsonToken.VALUE_NUMBER_INT => Some(JsonInt(p.getValueAsInt))
-          case JsonToken.VALUE_STRING => Some(JsonString(p.getText))
-        }
-      } catch {
-        case e: JacksonParseException =>
-          throw new JsonParseException("Error while parsing", e)
+  // read the value starting at the parser's current token, leaving the parser on the last token of that value. This
+  // lets streaming readers build trees for small parts of a document only.
+  def readValue(jsonInput: Input): Json = {
+    val p = jsonInput.p
+    try {
+      p.getCurrentToken match {
+        case JsonToken.START_ARRAY =>
+          var arr = Vector[Json]()
+          while (p.nextToken() != JsonToken.END_ARRAY) arr :+= readValue(jsonInput)
+          JsonArray(arr)
+        case JsonToken.START_OBJECT =>
+          var obj: Map[String,Json] = CompactJsonMap.empty
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val field = p.getCurrentName
+            p.nextToken()
+            obj += field -> readValue(jsonInput)
+          }
+          if (p.getCurrentToken != JsonToken.END_OBJECT)
+            throw new JsonParseException("Expected end of object, got: " + p.getCurrentToken)
+          JsonObject(obj)
+        case JsonToken.VALUE_FALSE => JsonBool(false)
+        case JsonToken.VALUE_TRUE => JsonBool(true)
+        case JsonToken.VALUE_NULL => JsonNull
+        case JsonToken.VALUE_NUMBER_FLOAT => JsonDouble(p.getValueAsDouble)
+        case JsonToken.VALUE_NUMBER_INT => JsonInt(p.getValueAsInt)
+        case JsonToken.VALUE_STRING => JsonString(p.getText)
+        case null => throw new JsonParseException("Unexpected end of input")
+        case tok => throw new JsonParseException("Unexpected token: " + tok)
       }
-
-
-      nextJson.map(item => {
-        if (stack.nonEmpty) stack.push(stack.pop() match {
-          case (JsonObject(obj), Some(field)) => (JsonObject(obj + (field -> item)), None)
-          case (JsonArray(arr), _) => (JsonArray(arr :+ item), None)
-          case x => x
-        })
-      })
+    } catch {
+      case e: JacksonParseException =>
+        throw new JsonParseException("Error while parsing", e)
     }
-
-    nextJson.get
   }
 
   // implicit conversions to simplify working with JSON trees
@@ -6,11 +6,12 @@ import java.util.Calendar
 import quanto.cosy.Interpreter.{ZXAngleData, interpretZXSpider}
 import quanto.data.Theory.{ValueType, VertexDesc}
 import quanto.data._
-import quanto.rewrite.{Match, Matcher}
+import quanto.rewrite.{Match, RuleIndex}
 import quanto.util.FileHelper._
 import quanto.util.json.{Json, JsonObject}
 import quanto.util.{FileHelper, Rational, UserAlerts}
 
+import scala.collection.mutable
 import scala.concurrent.duration.Duration
 import scala.util.matching.Regex
 
@@ -26,8 +27,20 @@ abstract class CoSyRun[S, T](
 
   val Generator: Iterator[S]
   var reductionRules: List[Rule] = List()
+
+  // an index of reductionRules, rebuilt whenever the list changes
+  private var _reductionIndex: RuleIndex = new RuleIndex(reductionRules)
+
+  private def reductionIndex: RuleIndex = {
+    if (_reductionIndex.rules ne reductionRules) _reductionIndex = new RuleIndex(reductionRules)
+    _reductionIndex
+  }
+
   var equivClasses: Map[T, Graph] = Map()
 
+  // hashes of the certificates of all the graphs generated so far, if checking for isomorphisms (see certificateHash)
+  private val seenGraphs = mutable.HashSet[String]()
+
   // Turn your generator into a graph
   def makeGraph(gen: S): Graph
 
@@ -37,6 +50,10 @@ abstract class CoSyRun[S, T](
   // If you want to check for isomorphisms specify a regex to match the boundaries here
   val matchBorders: Option[Regex]
 
+  // The hash of the certificate of a graph with its boundaries fixed, as checkIsomorphic does. This is computed
+  // once per graph, and used both to skip duplicate graphs and to check for isomorphisms.
+  def certificateHash(graph: Graph): String = GraphAnalysis.certificateHash(graph, Some(matchBorders.getOrElse("".r)))
+
   def checkIsomorphic(graph1: Graph, graph2: Graph): Boolean =
     GraphAnalysis.checkIsomorphic(theory, Some(matchBorders.getOrElse("".r)))(graph1,graph2)
 
@@ -78,10 +95,13 @@ abstract class CoSyRun[S, T](
       }
 */
 
-      val matchesReductionRule = reductionRules.exists(rule => Matcher.findMatches(rule.lhs, nextGraph).nonEmpty)
+      // When checking for isomorphisms, skip graphs isomorphic to one already seen, with the boundaries fixed
+      val isDuplicate = matchBorders.nonEmpty && !seenGraphs.add(certificateHash(nextGraph))
+
+      val matchesReductionRule = !isDuplicate && reductionIndex.matchesAny(nextGraph)
 
       // Check if it can be reduced by known rules
-      if (!matchesReductionRule) {
+      if (!isDuplicate && !matchesReductionRule) {
         val interpretation = makeTensor(next)
         val nearbyClasses = findClassesCloseTo(interpretation)
 
@@ -327,7 +347,7 @@ object CoSyRuns {
 
     override def compareGraph(left: Graph, right: Graph) : Int = GraphAnalysis.zxGraphCompare(left, right)
 
-    private def angleMap = (x: Int) => PhaseExpression(new Rational(2 * x, numAngles), ValueType.AngleExpr)
+    private def angleMap = (x: Int) => PhaseExpression(Rational(2 * x, numAngles), ValueType.AngleExpr)
 
 
   }
@@ -384,7 +404,7 @@ object CoSyRuns {
           if (angle(1).constant == Rational(1, 1)) {
             ZXAngleData(isGreen, angle(0))
           } else {
-            ZXAngleData(isGreen, PhaseExpression(new Rational(0, 1), ValueType.AngleExpr))
+            ZXAngleData(isGreen, PhaseExpression(Rational(0, 1), ValueType.AngleExpr))
           }
         }
 
@@ -409,14 +429,14 @@ object CoSyRuns {
       if (x < numAngles) {
         CompositeExpression(Vector(ValueType.AngleExpr, ValueType.Boolean),
 
-          Vector(PhaseExpression(new Rational(2 * x, numAngles), ValueType.AngleExpr),
-            PhaseExpression(new Rational(1, 1), ValueType.Boolean)))
+          Vector(PhaseExpression(Rational(2 * x, numAngles), ValueType.AngleExpr),
+            PhaseExpression(Rational(1, 1), ValueType.Boolean)))
 
       } else {
         CompositeExpression(Vector(ValueType.AngleExpr, ValueType.Boolean),
 
-          Vector(PhaseExpression(new Rational(2 * (x-numAngles), numAngles), ValueType.AngleExpr),
-            PhaseExpression(new Rational(0, 1), ValueType.Boolean)))
+          Vector(PhaseExpression(Rational(2 * (x-numAngles), numAngles), ValueType.AngleExpr),
+            PhaseExpression(Rational(0, 1), ValueType.Boolean)))
 
       }
 
@@ -364,7 +364,7 @@ object EquivClassRunAdjMat {
             theory: Theory,
             rulesList: List[Rule]): EquivClassRunAdjMat = {
     def angleMap(x: Int): Rational = {
-      new Rational(x, numAngles)
+      Rational(x, numAngles)
     }
 
     val gdata = (for (i <- 0 until numAngles) yield {
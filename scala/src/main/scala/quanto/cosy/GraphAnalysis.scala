@@ -1,10 +1,8 @@
 package quanto.cosy
 
-import quanto.data.Theory.{ValueType, VertexDesc}
+import quanto.data.Theory.ValueType
 import quanto.data._
-import quanto.rewrite.Matcher
-import quanto.util.Rational
-import quanto.util.json.{Json, JsonObject}
+import quanto.util.{Rational, WeakIdentityMap}
 
 import scala.util.matching.Regex
 import scala.util.parsing.combinator.RegexParsers
@@ -437,95 +435,32 @@ object GraphAnalysis {
     }
   }
 
-  def checkIsomorphic(theory: Theory = Theory.DefaultTheory, boundaryByRegex: Option[Regex] = None)
-                     (g1: Graph, g2: Graph): Boolean = {
-    // Check whether graphs are isomorphic, after constraining their boundaries
-
-    if(g1.verts.size != g2.verts.size) return false
-
-    // Currently the .isBoundary on wires is set by JSON, not programmatically, and as such I don't trust it.
-    def borderNodes(g: Graph): Set[VName] = boundariesFromRegex(g, boundaryByRegex)
-
-    val overlappingNodes = borderNodes(g1).intersect(borderNodes(g2))
-
-    //First check they have the same number of boundaries, and the same names between them.
-
-    if(overlappingNodes != borderNodes(g1) || overlappingNodes != borderNodes(g2)){
-      return false
+  // the last regex each graph was certified with, and the hash of its certificate
+  private val certificateHashes = new WeakIdentityMap[Graph, (Option[String], String)]
+
+  /**
+    * The hash of the certificate of a graph, with its boundaries (as given by boundariesFromRegex) fixed by name.
+    * Graphs have the same hash exactly when checkIsomorphic holds for them. The hash is remembered for each graph,
+    * so deduplicating graphs by it and comparing them with checkIsomorphic only certifies each graph once.
+    */
+  def certificateHash(graph: Graph, boundaryByRegex: Option[Regex] = None): String = {
+    val key = boundaryByRegex.map(_.regex)
+    certificateHashes.get(graph) match {
+      case Some((k, hash)) if k == key => hash
+      case _ =>
+        // the boundaries are found on the normal form, which Canonical certifies anyway
+        val normal = graph.normalise
+        val hash = Canonical.certificate(normal, boundariesFromRegex(normal, boundaryByRegex)).hash
+        certificateHashes.put(graph, (key, hash))
+        hash
     }
+  }
 
-    val dummyVertexDesc = VertexDesc.fromJson(
-      Json.parse("""{
-                   |            "value": {
-                   |                "type": "empty",
-                   |                "latex_constants": true,
-                   |                "validate_with_core": false
-                   |            },
-                   |            "style": {
-                   |                "label": {
-                   |                    "position": "center",
-                   |                    "fg_color": [
-                   |                        0.0,
-                   |                        0.0,
-                   |                        0.0
-                   |                    ]
-                   |                },
-                   |                "stroke_color": [
-                   |                    0.0,
-                   |                    0.0,
-                   |                    0.0
-                   |                ],
-                   |                "fill_color": [
-                   |                    0.0,
-                   |                    1.0,
-                   |                    1.0
-                   |                ],
-                   |                "shape": "rectangle"
-                   |            },
-                   |            "default_data": {
-                   |                "type": "dummyBoundary",
-                   |                "value": ""
-                   |            }
-                   |        } """.stripMargin))
-
-    def enforceUnique(s: String) : String = if(theory.vertexTypes.keys.exists(_ == s)){
-      enforceUnique(s + "1")
-    } else {
-      s
-    }
-    val dummyVertexName: String = enforceUnique("dummyBoundary")
-    val dummyTheory = theory.mixin(newVertexTypes = Map(dummyVertexName -> dummyVertexDesc))
-    val boundaryData = NodeV(JsonObject(
-      "type" -> dummyVertexName,
-      "value" -> ""
-    ),
-      JsonObject(),
-      dummyTheory)
-
-    def makeSolidBoundaries(graph: Graph): Graph = {
-      overlappingNodes.foldLeft(graph.copy(data = graph.data.copy(theory = dummyTheory))) { (g, vn) =>
-          g.updateVData(vn) { _ => boundaryData }
-        }
-    }
-
-    val solid1 = makeSolidBoundaries(g1)
-    val solid2 = makeSolidBoundaries(g2)
-
-    // The graphs are isomorphic if there are matches in both directions that are the identity on boundaries
-
-    val matches12 = Matcher.findMatches(solid1, solid2).filter(
-      m => overlappingNodes.forall(
-        vn => m.map.v.dom.toList.contains(vn) && m.map.v.domf(vn).contains(vn)
-      )
-    )
-
-    val matches21 = Matcher.findMatches(solid2, solid1).filter(
-      m => overlappingNodes.forall(
-        vn => m.map.v.dom.toList.contains(vn) && m.map.v.domf(vn).contains(vn)
-      )
-    )
-
-    matches21.nonEmpty && matches12.nonEmpty
+  def checkIsomorphic(theory: Theory = Theory.DefaultTheory, boundaryByRegex: Option[Regex] = None)
+                     (g1: Graph, g2: Graph): Boolean = {
+    // Check whether graphs are isomorphic, after constraining their boundaries. Fixed vertices are coloured by their
+    // names, so graphs with different boundary names have different certificates.
+    g1.verts.size == g2.verts.size && certificateHash(g1, boundaryByRegex) == certificateHash(g2, boundaryByRegex)
   }
 
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import quanto.rewrite._
 import quanto.util.json.{Json, JsonObject}
 
 import scala.annotation.tailrec
+import scala.collection.mutable
 import scala.util.Random
 import scala.util.matching.Regex
 import quanto.data.Names._
@@ -46,7 +47,7 @@ object RuleSynthesis {
     // If you want to include the other direction as well, then pass a list of rule.inverse
     val irreducibleMembers = equivalenceClass.members.filter(
       m =>
-        reductionRules.forall(r => Matcher.findMatches(r.lhs, makeGraph(m)).nonEmpty)
+        reductionRules.forall(r => Matcher.hasMatch(r, makeGraph(m)))
     )
 
     if (irreducibleMembers.nonEmpty) {
@@ -115,9 +116,15 @@ object RuleSynthesis {
     boundaries.foldLeft(withBBoxes)(removeBoundaryIfSuperfluous)
   }
 
+  // Remove the rules whose sides are isomorphic, and any rule which is isomorphic to an earlier one (with the
+  // boundaries fixed), comparing the hashes of the certificates of the graphs
   def removeIsomorphisms(theory: Theory, boundaryRegex: Option[Regex], rules: List[Rule]) : List[Rule] = {
-    def isIso(rule: Rule) : Boolean = GraphAnalysis.checkIsomorphic(theory, boundaryRegex)(rule.lhs, rule.rhs)
-    rules.filter(!isIso(_))
+    def hash(g: Graph) : String = GraphAnalysis.certificateHash(g, boundaryRegex)
+    val seen = mutable.HashSet[(String, String)]()
+    rules.filter { rule =>
+      val sides = (hash(rule.lhs), hash(rule.rhs))
+      sides._1 != sides._2 && seen.add(sides)
+    }
   }
 
   def greedyReduceRules(comparison: GraphComparison, throwOutIsos : Option[(Theory, Option[Regex])] = None)
@@ -264,8 +271,8 @@ object AutoReduce {
                    rules: List[Rule],
                    remainingRules: List[Rule]): DerivationWithHead = {
     remainingRules match {
-      case r :: tailRules => Matcher.findMatches(r.lhs, derivationHeadPair) match {
-        case ruleMatch #:: _ =>
+      case r :: tailRules => Matcher.firstMatch(r, derivationHeadPair) match {
+        case Some(ruleMatch) =>
           val reducedGraph = Rewriter.rewrite(ruleMatch, r.rhs)._1.minimise
           val stepName = quanto.data.Names.mapToNameMap(derivationHeadPair._1.steps).
             freshWithSuggestion(DSName(r.description.name))
@@ -276,7 +283,7 @@ object AutoReduce {
             ), Some(stepName)),
             rules,
             rules)
-        case Stream.Empty =>
+        case None =>
           greedyReduce(comparison, derivationHeadPair, rules, tailRules)
       }
       case Nil => derivationHeadPair
@@ -320,14 +327,14 @@ object AutoReduce {
                         mustIncludeOneOf: Option[Set[VName]],
                         blockedVertices: Option[Set[VName]]): DerivationWithHead = {
     val matches = restrictToVertices match {
-      case Some(vertexSet) => Matcher.findMatches(rule.lhs, derivationWithHead, vertexSet)
-      case None => Matcher.findMatches(rule.lhs, derivationWithHead)
+      case Some(vertexSet) => Matcher.matchIterator(rule, derivationWithHead, vertexSet)
+      case None => Matcher.matchIterator(rule, derivationWithHead)
     }
 
-    // If no restrictions then random from stream, otherwise calculates all options first
+    // Walk the matches lazily, stopping at a random one which satisfies the restrictions
 
     val chosenMatch: Option[Match] = if (mustIncludeOneOf.nonEmpty || blockedVertices.nonEmpty) {
-      matches.toList.filter(m =>
+      matches.filter(m =>
         (blockedVertices.isEmpty || !m.map.v.exists(vv => blockedVertices.get.contains(vv._2))) &&
           (mustIncludeOneOf.isEmpty || m.map.v.exists(vv => mustIncludeOneOf.get.contains(vv._2)))
       ).find(_ => seed.nextBoolean())
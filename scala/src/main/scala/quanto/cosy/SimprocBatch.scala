@@ -5,9 +5,9 @@ import java.util.Calendar
 import quanto.data.Names._
 import quanto.data._
 import quanto.gui.{BatchDerivationCreatorPanel, QuantoDerive}
-import quanto.rewrite.Simproc
+import quanto.rewrite.{Instrumentation, NormalFormCache, Simproc}
 import quanto.util.UserAlerts.{Elevation, alert}
-import quanto.util.json.{Json, JsonArray, JsonObject}
+import quanto.util.json.{Json, JsonArray, JsonObject, JsonString}
 import quanto.util.{FileHelper, UserOptions}
 
 import scala.concurrent.ExecutionContext.Implicits.global
@@ -18,12 +18,16 @@ import scala.util.{Failure, Success}
 
 
 // Each simproc, graph pair generates a SimprocSingleRun result
-// The result holds the name of the simproc, the generated derivation, and the timings for each step
-case class SimprocSingleRun(simprocName: String, derivation: Derivation, derivationTimings: List[(String, Double)])
+// The result holds the name of the simproc, the generated derivation, the timings for each step, and why the simproc
+// stopped early, if it did (see Simproc.Halt)
+case class SimprocSingleRun(simprocName: String,
+                            derivation: Derivation,
+                            derivationTimings: List[(String, Double)],
+                            halted: Option[String] = None)
 
 object SimprocSingleRun {
   def toJson(ssr: SimprocSingleRun): Json = {
-    JsonObject(
+    val obj = JsonObject(
       "simproc" -> ssr.simprocName,
       "derivation" -> Derivation.toJson(ssr.derivation),
       "timings" -> JsonArray(
@@ -35,6 +39,11 @@ object SimprocSingleRun {
         )
       )
     )
+
+    ssr.halted match {
+      case Some(reason) => obj + ("halted" -> JsonString(reason))
+      case None => obj
+    }
   }
 
   def fromJson(json: Json): SimprocSingleRun = {
@@ -43,18 +52,21 @@ object SimprocSingleRun {
     val timings: List[(String, Double)] = (json / "timings").asArray.map(j => (
       (j / "step").stringValue,
       (j / "time").doubleValue)).toList
-    SimprocSingleRun(name, derivation, timings)
+    val halted: Option[String] = json.get("halted").map(_.stringValue)
+    SimprocSingleRun(name, derivation, timings, halted)
   }
 }
 
 // Collect the single runs and the simproc definitions in one place
+// along with the counters collected over the whole batch, per rule and per simproc (see Instrumentation)
 case class SimprocBatchResult(selectedSimprocs: List[String],
                               allSimprocs: Map[String, String],
                               singleResults: List[SimprocSingleRun],
-                              notes: String) {
+                              notes: String,
+                              instrumentation: JsonObject = JsonObject()) {
 
   lazy val toJson: JsonObject = {
-    JsonObject(
+    val obj = JsonObject(
       "python" -> JsonArray(
         allSimprocs.map(
           ss => JsonObject(
@@ -68,6 +80,9 @@ case class SimprocBatchResult(selectedSimprocs: List[String],
       ),
       "notes" -> notes
     )
+
+    if (instrumentation.isEmpty) obj
+    else obj + ("instrumentation" -> instrumentation)
   }
 }
 
@@ -78,8 +93,8 @@ case class SimprocLazyBatchResult(notes: String, selectedSimprocs: List[String],
 object SimprocBatchResult {
   def collate(SBResult: SimprocBatchResult): Map[String, List[(Derivation, List[(String, Double)])]] = {
     SBResult.singleResults.
-      groupBy { case SimprocSingleRun(a, _, _) => a }.
-      mapValues(_.map { case SimprocSingleRun(_, b, c) => (b, c) })
+      groupBy { case SimprocSingleRun(a, _, _, _) => a }.
+      mapValues(_.map { case SimprocSingleRun(_, b, c, _) => (b, c) })
   }
 
   // Import everything into memory
@@ -88,7 +103,8 @@ object SimprocBatchResult {
     val selectedSimprocs: List[String] = (json / "selected_simprocs").asArray.map(a => a.stringValue).toList
     val allSimprocs: Map[String, String] = (json / "python").asArray.flatMap(j => j.asObject.v.map(sj => sj._1 -> sj._2.stringValue)).toMap
     val results: List[SimprocSingleRun] = (json / "results").asArray.map(j => SimprocSingleRun.fromJson(j.asObject)).toList
-    SimprocBatchResult(selectedSimprocs, allSimprocs, results, notes)
+    val instrumentation: JsonObject = (json ? "instrumentation").asObject
+    SimprocBatchResult(selectedSimprocs, allSimprocs, results, notes, instrumentation)
   }
 
   // Just import the metadata into memory
@@ -109,11 +125,12 @@ case class SimprocBatch(selectedSimprocs: List[String], selectedGraphs: List[Gra
     alert(s"Beginning simproc batch run on ${selectedGraphs.length} graphs, " +
       s"with simprocs\n${selectedSimprocs.mkString("\n")}")
 
+    val session = new Instrumentation.Session
     val simprocGraphPairs = for (simprocName <- selectedSimprocs; graph <- selectedGraphs) yield (simprocName, graph)
     val listFutureResults = simprocGraphPairs.map(sg => {
       Future {
-        val derivationData = SimprocBatch.runSimprocGetTimings(sg._1, sg._2)
-        SimprocSingleRun(sg._1, derivationData._1, derivationData._2)
+        val derivationData = SimprocBatch.runSimprocGetTimings(sg._1, sg._2, session)
+        SimprocSingleRun(sg._1, derivationData._1, derivationData._2, derivationData._3)
       }
     })
     val futureListResults = Future.sequence(listFutureResults)
@@ -123,7 +140,8 @@ case class SimprocBatch(selectedSimprocs: List[String], selectedGraphs: List[Gra
         val result = SimprocBatchResult(selectedSimprocs,
           SimprocBatch.loadedSimprocs.map(ss => (ss._1, ss._2.sourceCode)),
           list,
-          notes)
+          notes,
+          session.toJson)
         SimprocBatch.publish(SimprocBatchRunComplete(result))
       case Failure(e) =>
         alert("Simproc batch run failed!", Elevation.ERROR)
@@ -142,8 +160,10 @@ object SimprocBatch extends Publisher {
 
   // CONCURRENTLY run a simproc on a graph
   // Makes its own derivation with timing data
-  // Runs until completion or timeout
-  def runSimprocGetTimings(simprocName: String, graph: Graph): (Derivation, List[(String, Double)]) = {
+  // Runs until completion or timeout, and says why the simproc stopped early, if it did
+  // Counts matching, rewriting and layout in the given session
+  def runSimprocGetTimings(simprocName: String, graph: Graph,
+                           session: Instrumentation.Session): (Derivation, List[(String, Double)], Option[String]) = {
     val simproc = simprocFromName(simprocName)
     val startTime: Long = now
     val jobIDAtStart = BatchDerivationCreatorPanel.jobID
@@ -153,15 +173,18 @@ object SimprocBatch extends Publisher {
     var timings: List[(String, Double)] = List()
     var derivation = new Derivation(graph)
     var parentOpt: Option[DSName] = None
-    for ((graph, rule) <- simproc.simp(graph)) {
+    var previous = graph
+    val steps = session.steps(simprocName, simproc.simp(graph))
+    for ((graph, rule) <- steps) {
       // Stop if taking too long
       // Stop if the user has incremented the jobID (indicating they want the job to halt)
       if (timeElapsed < timeout || BatchDerivationCreatorPanel.jobID > jobIDAtStart) {
         val suggest = rule.name.replaceFirst("^.*\\/", "") + "-0"
-        val step = DStep(
-          name = derivation.steps.freshWithSuggestion(DSName(suggest)),
-          rule = rule,
-          graph = graph.minimise) // layout is already done by simproc now
+        val graph1 = graph.minimise
+        // laid out when the results are saved
+        val step = DStep.deferred(derivation.steps.freshWithSuggestion(DSName(suggest)), rule, previous, graph1,
+          session.layoutTimer)
+        previous = graph1
 
         derivation = derivation.addStep(parentOpt, step)
         timings = (step.name.toString, timeElapsed.toDouble) :: timings
@@ -169,13 +192,14 @@ object SimprocBatch extends Publisher {
       }
     }
 
-    (derivation, timings)
+    (derivation, timings, Simproc.haltOf(steps).map(_.message))
   }
 
   listenTo(this)
   reactions += {
     case SimprocBatchRunComplete(result) =>
       alert("Simproc Batch completed")
+      NormalFormCache.global.foreach(cache => alert(cache.stats))
       val fileName = UserOptions.preferredDateTimeFormat.format(Calendar.getInstance().getTime)
       .replace(":","-").replace(".","--") + ".qsbr"
       val projectRoot = QuantoDerive.CurrentProject.map(p => p.rootFolder + "/").getOrElse("")
@@ -0,0 +1,432 @@
+package quanto.data
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.StandardOpenOption
+
+import quanto.gui.StepState
+import quanto.util.json._
+
+import scala.collection.{SortedSet, mutable}
+
+/**
+  * A compact binary file format for graphs, rules and derivations, for loading the same large files many times over.
+  *
+  * A file is a header, a table of strings, then the body. Every name, vertex type, vertex value and (non-empty) data
+  * or annotation object is written once in the string table, the objects as compact JSON, and is referred to in the
+  * body by its index. The body is a sequence of big-endian ints: vertices, edges and !-boxes are fixed-size records
+  * (!-boxes followed by their contents), and edges and !-boxes refer to vertices by their index in the graph.
+  *
+  * Files are read through a MappedByteBuffer. Strings are decoded from the buffer the first time they are used, and
+  * the data of each vertex the first time it is looked up, so a graph can be loaded and matched against without
+  * decoding the data of every vertex in it.
+  *
+  * A derivation is written with its root in full and its steps as deltas (see GraphDelta), parents before children,
+  * in which vertices and edges refer to each other by name.
+  */
+object BinaryFormat {
+  val Magic: Int = 0x5142494e // "QBIN"
+  val Version = 1
+
+  private val GraphKind: Byte = 1
+  private val RuleKind: Byte = 2
+  private val DerivationKind: Byte = 3
+
+  private val WireKind = 0
+  private val NodeKind = 1
+
+  // ints in a vertex record
+  private val VertexRecord = 6
+
+  def writeGraph(graph: Graph, f: File) {
+    write(f, GraphKind) { _.graph(graph) }
+  }
+
+  def writeRule(rule: Rule, f: File) {
+    write(f, RuleKind) { _.rule(rule) }
+  }
+
+  def writeDerivation(derive: Derivation, f: File) {
+    write(f, DerivationKind) { _.derivation(derive) }
+  }
+
+  def readGraph(f: File, thy: Theory = Theory.DefaultTheory): Graph = try {
+    reader(map(f), GraphKind, thy).graph()
+  } catch {
+    case e: GraphLoadException => throw e
+    case e: Exception => throw new GraphLoadException("Error reading binary graph: " + e.getMessage, e)
+  }
+
+  def readRule(f: File, thy: Theory = Theory.DefaultTheory, description: Option[RuleDesc] = None): Rule = try {
+    val rule = reader(map(f), RuleKind, thy).rule()
+    description match {
+      case Some(desc) => rule.copy(description = desc)
+      case None => rule
+    }
+  } catch {
+    case e: GraphLoadException => throw RuleLoadException("Graph: " + e.getMessage, e)
+    case e: Exception => throw RuleLoadException("Error reading binary rule: " + e.getMessage, e)
+  }
+
+  def readDerivation(f: File, thy: Theory = Theory.DefaultTheory): Derivation = try {
+    reader(map(f), DerivationKind, thy).derivation()
+  } catch {
+    case e: DerivationLoadException => throw e
+    case e: GraphLoadException => throw DerivationLoadException("Graph: " + e.getMessage, e)
+    case e: Exception => throw DerivationLoadException("Error reading binary derivation: " + e.getMessage, e)
+  }
+
+  /** Map a whole file into memory. The mapping stays valid after the channel is closed. */
+  def map(f: File): ByteBuffer = {
+    val channel = FileChannel.open(f.toPath, StandardOpenOption.READ)
+    try {
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+    } finally {
+      channel.close()
+    }
+  }
+
+  // the body is written first, since the string table is only complete once it has been
+  private def write(f: File, kind: Byte)(body: Writer => Unit) {
+    val writer = new Writer
+    body(writer)
+    writer.out.flush()
+
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))
+    try {
+      out.writeInt(Magic)
+      out.writeInt(Version)
+      out.writeByte(kind)
+
+      val bytes = writer.strings.map(_.getBytes(StandardCharsets.UTF_8))
+      out.writeInt(bytes.length)
+      bytes.foldLeft(0) { (offset, b) => out.writeInt(offset); offset + b.length }
+      out.writeInt(bytes.foldLeft(0)(_ + _.length))
+      bytes.foreach(out.write(_))
+
+      writer.body.writeTo(out)
+    } finally {
+      out.close()
+    }
+  }
+
+  private def reader(buf: ByteBuffer, kind: Byte, thy: Theory): Reader = {
+    if (buf.getInt() != Magic) throw new IOException("Not a binary quantomatic file")
+    val version = buf.getInt()
+    if (version != Version) throw new IOException("Unsupported version: " + version)
+    val k = buf.get()
+    if (k != kind) throw new IOException("Expected file kind " + kind + ", found " + k)
+    new Reader(buf, thy)
+  }
+
+  private class Writer {
+    val strings = mutable.ArrayBuffer[String]()
+    private val index = mutable.HashMap[String, Int]()
+    val body = new ByteArrayOutputStream
+    val out = new DataOutputStream(body)
+
+    def str(s: String): Int = index.getOrElseUpdate(s, { strings += s; strings.size - 1 })
+
+    def obj(json: JsonObject): Int = if (json.isEmpty) -1 else str(json.toString)
+
+    def optStr(s: Option[String]): Int = s.map(str).getOrElse(-1)
+
+    def vertices(vs: Iterable[(VName, VData)]) {
+      out.writeInt(vs.size)
+      for ((v, d) <- vs) {
+        out.writeInt(str(v.toString))
+        d match {
+          case n: NodeV =>
+            // the data of most nodes is just their type and value, which are kept as separate strings
+            val plain = n.data == JsonObject("type" -> n.typ, "value" -> n.value)
+            out.writeInt(NodeKind)
+            out.writeInt(str(n.typ))
+            out.writeInt(str(n.value))
+            out.writeInt(if (plain) -1 else obj(n.data))
+            out.writeInt(obj(n.annotation))
+          case w: WireV =>
+            out.writeInt(WireKind)
+            out.writeInt(-1)
+            out.writeInt(-1)
+            out.writeInt(obj(w.data))
+            out.writeInt(obj(w.annotation))
+        }
+      }
+    }
+
+    def edges(es: Iterable[(EName, EData, VName, VName)], endpoint: VName => Int) {
+      out.writeInt(es.size)
+      for ((e, d, s, t) <- es) {
+        out.writeInt(str(e.toString))
+        out.writeInt(if (d.isDirected) 1 else 0)
+        out.writeInt(endpoint(s))
+        out.writeInt(endpoint(t))
+        out.writeInt(obj(d.data))
+        out.writeInt(obj(d.annotation))
+      }
+    }
+
+    def bboxes(bbdata: Map[BBName, BBData], inBBox: BinRel[VName, BBName], bboxParent: PFun[BBName, BBName],
+               endpoint: VName => Int) {
+      val bbs = bbdata.keys.toVector
+      val bbIndex = bbs.zipWithIndex.toMap
+      out.writeInt(bbs.size)
+      for (bb <- bbs) {
+        out.writeInt(str(bb.toString))
+        out.writeInt(obj(bbdata(bb).data))
+        out.writeInt(obj(bbdata(bb).annotation))
+        out.writeInt(bboxParent.get(bb).map(bbIndex).getOrElse(-1))
+        val contents = inBBox.codf(bb)
+        out.writeInt(contents.size)
+        contents.foreach { v => out.writeInt(endpoint(v)) }
+      }
+    }
+
+    def graph(g: Graph) {
+      out.writeInt(obj(g.data.data))
+      out.writeInt(obj(g.data.annotation))
+      val vs = g.vdata.toVector
+      val vIndex = vs.iterator.map(_._1).zipWithIndex.toMap
+      vertices(vs)
+      edges(g.edata.toVector.map { case (e, d) => (e, d, g.source(e), g.target(e)) }, vIndex)
+      bboxes(g.bbdata, g.inBBox, g.bboxParent, vIndex)
+    }
+
+    def delta(d: GraphDelta) {
+      val name = (v: VName) => str(v.toString)
+      out.writeInt(d.deletedVerts.size)
+      d.deletedVerts.foreach { v => out.writeInt(name(v)) }
+      out.writeInt(d.deletedEdges.size)
+      d.deletedEdges.foreach { e => out.writeInt(str(e.toString)) }
+      vertices(d.vdata)
+      edges(d.edges.map { case (e, (ed, s, t)) => (e, ed, s, t) }, name)
+      d.bboxes match {
+        case Some((bbd, inBB, bbp)) =>
+          out.writeByte(1)
+          bboxes(bbd, inBB, bbp, name)
+        case None => out.writeByte(0)
+      }
+      d.data match {
+        case Some(gd) =>
+          out.writeByte(1)
+          out.writeInt(obj(gd.data))
+          out.writeInt(obj(gd.annotation))
+        case None => out.writeByte(0)
+      }
+    }
+
+    // the graphs of a rule are written as given, before any inversion
+    def rule(r: Rule) {
+      val inverse = r.description.inverse
+      graph(if (inverse) r.rhs else r.lhs)
+      graph(if (inverse) r.lhs else r.rhs)
+      out.writeInt(optStr(r.derivation))
+      out.writeInt(str(r.description.name))
+      out.writeByte(if (inverse) 1 else 0)
+    }
+
+    def derivation(d: Derivation) {
+      graph(d.root)
+      val steps = d.toSeq.collect { case StepState(s) => s }
+      out.writeInt(steps.size)
+      for (s <- steps) {
+        val step = d.steps(s)
+        out.writeInt(str(s.toString))
+        out.writeInt(optStr(d.parentMap.get(s).map(_.toString)))
+        out.writeInt(str(step.ruleName))
+        rule(step.rule)
+        delta(d.deltaAt(s))
+      }
+      out.writeInt(d.heads.size)
+      d.heads.foreach { h => out.writeInt(str(h.toString)) }
+    }
+  }
+
+  private class Reader(buf: ByteBuffer, thy: Theory) {
+    private val stringCount = buf.getInt()
+    private val offsetsAt = buf.position()
+    private val bytesAt = offsetsAt + 4 * (stringCount + 1)
+    private val strings = new Array[String](stringCount)
+    buf.position(bytesAt + buf.getInt(offsetsAt + 4 * stringCount))
+
+    // strings are decoded on first use, possibly from another thread when vertex data is decoded lazily
+    def str(i: Int): String = strings.synchronized {
+      if (strings(i) == null) {
+        val start = buf.getInt(offsetsAt + 4 * i)
+        val bytes = new Array[Byte](buf.getInt(offsetsAt + 4 * (i + 1)) - start)
+        val b = buf.duplicate()
+        b.position(bytesAt + start)
+        b.get(bytes)
+        strings(i) = new String(bytes, StandardCharsets.UTF_8)
+      }
+      strings(i)
+    }
+
+    def obj(i: Int): JsonObject = if (i == -1) JsonObject() else Json.parse(str(i)).asObject
+
+    def optStr(i: Int): Option[String] = if (i == -1) None else Some(str(i))
+
+    private def int(): Int = buf.getInt()
+
+    private def flag(): Boolean = buf.get() != 0
+
+    // vertex data is decoded straight from its record, so each record is skipped over here and read when needed
+    def vertices(): LazyVDataMap = {
+      val count = int()
+      val at = buf.position()
+      buf.position(at + 4 * VertexRecord * count)
+      val record = (i: Int, field: Int) => buf.getInt(at + 4 * (VertexRecord * i + field))
+
+      val checked = mutable.Set[Int]()
+      for (i <- 0 until count if record(i, 1) == NodeKind && checked.add(record(i, 2))) {
+        val typ = str(record(i, 2))
+        if (!thy.vertexTypes.contains(typ)) throw new GraphLoadException("Unrecognized vertex type: " + typ)
+      }
+
+      new LazyVDataMap(Array.tabulate(count)(i => VName(str(record(i, 0)))), { i =>
+        if (record(i, 1) == NodeKind) {
+          val data =
+            if (record(i, 4) != -1) obj(record(i, 4))
+            else JsonObject("type" -> str(record(i, 2)), "value" -> str(record(i, 3)))
+          NodeV(data, obj(record(i, 5)), thy)
+        } else {
+          WireV(obj(record(i, 4)), obj(record(i, 5)), thy)
+        }
+      })
+    }
+
+    // most edges share a handful of distinct data, so each is decoded once
+    def edges(endpoint: Int => VName): Vector[(EName, EData, VName, VName)] = {
+      val decoded = mutable.HashMap[(Int, Int, Int), EData]()
+      Vector.fill(int()) {
+        val e = EName(str(int()))
+        val directed = int()
+        val s = endpoint(int())
+        val t = endpoint(int())
+        val data = int()
+        val annotation = int()
+        val d = decoded.getOrElseUpdate((directed, data, annotation),
+          if (directed == 1) DirEdge(obj(data), obj(annotation), thy)
+          else UndirEdge(obj(data), obj(annotation), thy))
+        (e, d, s, t)
+      }
+    }
+
+    def bboxes(endpoint: Int => VName): (Map[BBName, BBData], BinRel[VName, BBName], PFun[BBName, BBName]) = {
+      val records = Vector.fill(int()) {
+        val bb = BBName(str(int()))
+        val data = BBData(obj(int()), obj(int()))
+        val parent = int()
+        val contents = Vector.fill(int())(endpoint(int()))
+        (bb, data, parent, contents)
+      }
+      val names = records.map(_._1)
+      (records.map { case (bb, d, _, _) => bb -> d }.toMap,
+        BinRel(records.flatMap { case (bb, _, _, vs) => vs.map(_ -> bb) }: _*),
+        PFun(records.collect { case (bb, _, p, _) if p != -1 => bb -> names(p) }: _*))
+    }
+
+    def graph(): Graph = {
+      val data = GData(obj(int()), obj(int()), thy)
+      val vdata = vertices()
+      val es = edges(vdata.name)
+      val edata = es.foldLeft(Map[EName, EData]()) { case (m, (e, d, _, _)) =>
+        if (m.contains(e)) throw new DuplicateEdgeNameException(e)
+        m + (e -> d)
+      }
+      val (bbdata, inBBox, bboxParent) = bboxes(vdata.name)
+
+      Graph(
+        data = data,
+        vdata = vdata,
+        edata = edata,
+        source = PFun(es.map { case (e, _, s, _) => e -> s }: _*),
+        target = PFun(es.map { case (e, _, _, t) => e -> t }: _*),
+        bbdata = bbdata,
+        inBBox = inBBox,
+        bboxParent = bboxParent)
+    }
+
+    def delta(): GraphDelta = {
+      val name = (i: Int) => VName(str(i))
+      val deletedVerts = Vector.fill(int())(name(int())).toSet
+      val deletedEdges = Vector.fill(int())(EName(str(int()))).toSet
+      val vdata = vertices()
+      val edges = this.edges(name).map { case (e, d, s, t) => e -> (d, s, t) }.toMap
+      val bboxes = if (flag()) Some(this.bboxes(name)) else None
+      val data = if (flag()) Some(GData(obj(int()), obj(int()), thy)) else None
+      GraphDelta(deletedVerts, deletedEdges, vdata, edges, bboxes, data)
+    }
+
+    def rule(): Rule = {
+      val lhs = graph()
+      val rhs = graph()
+      val derivation = optStr(int())
+      val name = str(int())
+      Rule(lhs, rhs, derivation, RuleDesc(name, flag()))
+    }
+
+    def derivation(): Derivation = {
+      val root = graph()
+      val rootStored = new StepGraph.Full(root)
+      val steps = mutable.LinkedHashMap[DSName, DStep]()
+      var parentMap = PFun[DSName, DSName]()
+
+      for (_ <- 0 until int()) {
+        val s = DSName(str(int()))
+        val parent = optStr(int()).map(DSName(_))
+        val ruleName = str(int())
+        val rule = this.rule()
+        val parentStored = parent match {
+          case Some(p) => steps.getOrElse(p,
+            throw DerivationLoadException("Step '" + s + "' comes before its parent '" + p + "'")).stored
+          case None => rootStored
+        }
+        steps(s) = DStep(s, ruleName, rule, StepGraph.applied(parentStored, delta()))
+        parent.foreach { p => parentMap += (s -> p) }
+      }
+
+      val heads = Vector.fill(int())(DSName(str(int())))
+      Derivation(root, steps.toMap, SortedSet(heads: _*), parentMap)
+    }
+  }
+}
+
+/**
+  * The vertex data of a graph read by BinaryFormat. Names are known up front, while the data of each vertex is
+  * decoded the first time it is looked up. Adding or removing a vertex gives an ordinary map, decoding everything.
+  */
+private[data] class LazyVDataMap(names: Array[VName], decode: Int => VData) extends Map[VName, VData] {
+  private val index: Map[VName, Int] = names.iterator.zipWithIndex.foldLeft(Map[VName, Int]()) {
+    case (m, (v, i)) =>
+      if (m.contains(v)) throw new DuplicateVertexNameException(v)
+      m + (v -> i)
+  }
+  private val decoded = new Array[VData](names.length)
+
+  private def at(i: Int): VData = {
+    if (decoded(i) == null) decoded(i) = decode(i)
+    decoded(i)
+  }
+
+  /** The name of the vertex at the given index in the record it was read from */
+  def name(i: Int): VName = names(i)
+
+  def get(v: VName): Option[VData] = index.get(v).map(at)
+
+  def iterator: Iterator[(VName, VData)] = names.indices.iterator.map(i => names(i) -> at(i))
+
+  def +[V1 >: VData](kv: (VName, V1)): Map[VName, V1] = iterator.foldLeft(Map[VName, V1]())(_ + _) + kv
+
+  def -(v: VName): Map[VName, VData] = iterator.filter(_._1 != v).foldLeft(Map[VName, VData]())(_ + _)
+
+  override def contains(v: VName): Boolean = index.contains(v)
+
+  override def size: Int = names.length
+
+  override def keySet: Set[VName] = index.keySet
+
+  override def keysIterator: Iterator[VName] = names.iterator
+}
@@ -0,0 +1,188 @@
+package quanto.data
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+import scala.annotation.tailrec
+import scala.collection.mutable.ArrayBuffer
+import scala.util.hashing.MurmurHash3
+
+/**
+  * A canonical form of a graph: two graphs have equal certificates if and only if their normal forms are isomorphic
+  * via an isomorphism preserving vertex types, phases, edge types and directions, !-boxes and the names of the given
+  * fixed vertices.
+  *
+  * @param certificate a canonical encoding of the graph
+  */
+case class GraphCertificate(certificate: String) {
+  /** A stable (across runs) hash of the certificate, as a hex string */
+  lazy val hash: String =
+    MessageDigest.getInstance("SHA-256").digest(certificate.getBytes(StandardCharsets.UTF_8))
+      .map("%02x".format(_)).mkString
+}
+
+/**
+  * Canonical labelling of graphs by partition refinement, with individualisation and backtracking where refinement
+  * alone does not give a discrete partition (c.f. nauty). Search branches which are images of each other under
+  * an automorphism already found are pruned.
+  */
+object Canonical {
+
+  /**
+    * Compute the certificate of a graph
+    *
+    * @param graph the graph, which is normalised first
+    * @param fixed vertices (typically boundaries) which are only allowed to map to vertices of the same name
+    */
+  def certificate(graph: Graph, fixed: Set[VName] = Set()): GraphCertificate =
+    new CanonicalSearch(graph.normalise, fixed).certificate
+
+  /** Check if two graphs are isomorphic, fixing the named vertices */
+  def isomorphic(g1: Graph, g2: Graph, fixed: Set[VName] = Set()): Boolean =
+    certificate(g1, fixed) == certificate(g2, fixed)
+
+  /**
+    * A canonical order on the vertices of the (normalised) graph
+    */
+  def labelling(graph: Graph, fixed: Set[VName] = Set()): Seq[VName] =
+    new CanonicalSearch(graph.normalise, fixed).labelling
+
+  /**
+    * A cheap invariant of the (normalised) graph, from the labels and arities of its vertices. Isomorphic graphs have
+    * the same invariant, so graphs with different invariants are not isomorphic, but graphs with the same one need
+    * not be.
+    */
+  def invariant(graph: Graph): Int = {
+    val g = graph.normalise
+    val labels = g.verts.toSeq.map { v => vertexColour(g, v, Set()) + "/" + g.arity(v) }.sorted
+    MurmurHash3.orderedHash(labels :+ g.edges.size.toString :+ g.bboxes.size.toString)
+  }
+
+  // the label of a vertex, as far as isomorphism is concerned
+  private def vertexColour(g: Graph, v: VName, fixed: Set[VName]): String =
+    if (fixed.contains(v)) "fixed:" + v
+    else g.vdata(v) match {
+      case d: NodeV => "node:" + d.typ + ":" + (if (d.hasValue) d.phaseData.toString else d.value)
+      case _ => "wire"
+    }
+
+  private class CanonicalSearch(g: Graph, fixed: Set[VName]) {
+    // vertices and bboxes are both "points" of the graph being labelled. bboxes come last.
+    private val vNames: Vector[VName] = g.verts.toVector.sorted
+    private val bbNames: Vector[BBName] = g.bboxes.toVector.sorted
+    private val n: Int = vNames.size + bbNames.size
+    private val vIndex: Map[VName, Int] = vNames.zipWithIndex.toMap
+    private val bbIndex: Map[BBName, Int] = bbNames.zipWithIndex.map { case (bb, i) => bb -> (i + vNames.size) }.toMap
+
+    private val colourNames: Vector[String] =
+      (vNames.map(vertexColour(g, _, fixed)) ++ bbNames.map(_ => "bbox")).distinct.sorted
+    private val initialColour: Array[Int] = {
+      val idx = colourNames.zipWithIndex.toMap
+      (vNames.map { v => idx(vertexColour(g, v, fixed)) } ++ bbNames.map(_ => idx("bbox"))).toArray
+    }
+
+    // (source, target, type) of each arc. Undirected edges, bbox membership and bbox parents give an arc each way.
+    private val (arcTypeNames, arcs) = {
+      val raw = g.edges.toSeq.flatMap { e =>
+        val s = vIndex(g.source(e))
+        val t = vIndex(g.target(e))
+        val d = g.edata(e)
+        if (d.isDirected) Seq((s, t, "out:" + d.typ), (t, s, "in:" + d.typ))
+        else Seq((s, t, "undir:" + d.typ), (t, s, "undir:" + d.typ))
+      } ++ g.inBBox.iterator.toSeq.flatMap { case (v, bb) =>
+        Seq((vIndex(v), bbIndex(bb), "in-bbox"), (bbIndex(bb), vIndex(v), "has-member"))
+      } ++ g.bboxParent.iterator.toSeq.flatMap { case (bb, p) =>
+        Seq((bbIndex(bb), bbIndex(p), "in-parent"), (bbIndex(p), bbIndex(bb), "has-child"))
+      }
+      val names = raw.map(_._3).distinct.sorted.toVector
+      val idx = names.zipWithIndex.toMap
+      (names, raw.map { case (s, t, ty) => (s, t, idx(ty)) })
+    }
+
+    private val adjacency: Array[Array[(Int, Int)]] = {
+      val adj = Array.fill(n)(ArrayBuffer[(Int, Int)]())
+      for ((s, t, ty) <- arcs) adj(s) += ((ty, t))
+      adj.map(_.toArray)
+    }
+
+    private implicit val intSeqOrdering: Ordering[Vector[Int]] = Ordering.Implicits.seqDerivedOrdering[Vector, Int]
+
+    // replace each colour by its rank among the distinct signatures
+    private def rank(sigs: Array[Vector[Int]]): Array[Int] = {
+      val idx = sigs.distinct.sorted.zipWithIndex.toMap
+      sigs.map(idx)
+    }
+
+    // refine a colouring until it is equitable
+    @tailrec
+    private def refine(colours: Array[Int]): Array[Int] = {
+      val sigs = Array.tabulate(n) { i =>
+        colours(i) +: adjacency(i).map { case (ty, j) => ty * n + colours(j) }.sorted.toVector
+      }
+      val refined = rank(sigs)
+      if (refined.distinct.length == colours.distinct.length) refined
+      else refine(refined)
+    }
+
+    // individualise point v, in the colour class of v
+    private def individualise(colours: Array[Int], v: Int): Array[Int] =
+      refine(rank(Array.tabulate(n) { i => Vector(colours(i), if (i == v) 0 else 1) }))
+
+    // encode the graph with point i relabelled as colours(i), for a discrete colouring
+    private def encode(colours: Array[Int]): Vector[Int] = {
+      val order = Array.ofDim[Int](n)
+      for (i <- 0 until n) order(colours(i)) = i
+      val vs = order.toVector.map(initialColour)
+      val es = arcs.map { case (s, t, ty) => Vector(colours(s), colours(t), ty) }.sorted.flatten
+      Vector(n, arcs.size) ++ vs ++ es
+    }
+
+    private var best: Option[(Vector[Int], Array[Int])] = None
+    private val automorphisms = ArrayBuffer[Array[Int]]()
+
+    private def search(colours: Array[Int], prefix: List[Int]): Unit = {
+      val cells = (0 until n).groupBy(colours(_))
+      val nonSingleton = cells.filter(_._2.size > 1)
+      if (nonSingleton.isEmpty) {
+        val enc = encode(colours)
+        best match {
+          case None => best = Some((enc, colours))
+          case Some((bestEnc, bestColours)) =>
+            val c = intSeqOrdering.compare(enc, bestEnc)
+            if (c < 0) best = Some((enc, colours))
+            else if (c == 0) {
+              // the map sending each point to the point with the same label in the best leaf is an automorphism
+              val inverse = Array.ofDim[Int](n)
+              for (i <- 0 until n) inverse(bestColours(i)) = i
+              automorphisms += Array.tabulate(n) { i => inverse(colours(i)) }
+            }
+        }
+      } else {
+        val cell = nonSingleton.minBy(_._1)._2.sorted
+        val tried = ArrayBuffer[Int]()
+        for (v <- cell) {
+          val redundant = automorphisms.exists { a =>
+            prefix.forall { p => a(p) == p } && tried.exists { u => a(u) == v }
+          }
+          if (!redundant) {
+            search(individualise(colours, v), v :: prefix)
+            tried += v
+          }
+        }
+      }
+    }
+
+    private lazy val result: (Vector[Int], Array[Int]) = {
+      search(refine(initialColour.clone()), Nil)
+      best.get
+    }
+
+    lazy val labelling: Seq[VName] = {
+      val colours = result._2
+      vNames.indices.sortBy(colours(_)).map(vNames)
+    }
+
+    lazy val certificate: GraphCertificate = GraphCertificate(
+      colourNames.mkString("[", "|", "]") + arcTypeNames.mkString("[", "|", "]") + result._1.mkString(","))
+  }
+}
@@ -0,0 +1,199 @@
+package quanto.data
+
+import quanto.util.{ChunkedArray, IntChunkedArray}
+
+import scala.collection.mutable
+
+/**
+  * A compact, persistent representation of a graph, for holding many large graphs at once (e.g. the steps of a
+  * derivation).
+  *
+  * Graph keeps each incidence twice, in maps keyed by names, and builds new sets on every call to inEdges or
+  * adjacentVerts. Here, each vertex and edge name is mapped once to a dense int. Data, endpoints and adjacency are
+  * then kept in chunked persistent arrays indexed by those ints, so a graph obtained by a small update shares nearly
+  * all of its storage with the original. The slots of deleted vertices and edges are reused by later additions.
+  * Equal vertex and edge data is shared between entries. !-boxes, which are few, are kept as in Graph.
+  *
+  * Derivations keep their keyframes in this form (see StepGraph).
+  *
+  * The query methods have the same names and meaning as those of Graph. Use toGraph for everything else.
+  */
+final class CompactGraph private(
+                                  val data: GData,
+                                  private val vIndex: Map[VName, Int],
+                                  private val vNames: ChunkedArray[VName], // null for a deleted vertex
+                                  private val vData: ChunkedArray[VData],
+                                  private val inAdj: ChunkedArray[Array[Int]], // edges into each vertex
+                                  private val outAdj: ChunkedArray[Array[Int]], // edges out of each vertex
+                                  private val freeVerts: List[Int], // slots of deleted vertices, to reuse
+                                  private val eIndex: Map[EName, Int],
+                                  private val eNames: ChunkedArray[EName], // null for a deleted edge
+                                  private val eData: ChunkedArray[EData],
+                                  private val src: IntChunkedArray,
+                                  private val tgt: IntChunkedArray,
+                                  private val freeEdges: List[Int], // slots of deleted edges, to reuse
+                                  val bbdata: Map[BBName, BBData],
+                                  val inBBox: BinRel[VName, BBName],
+                                  val bboxParent: PFun[BBName, BBName]) {
+
+  import CompactGraph._
+
+  def verts: Set[VName] = vIndex.keySet
+
+  def edges: Set[EName] = eIndex.keySet
+
+  def bboxes: Set[BBName] = bbdata.keySet
+
+  def vdata(v: VName): VData = vData(vertexIndex(v))
+
+  def edata(e: EName): EData = eData(edgeIndex(e))
+
+  def source(e: EName): VName = vNames(src(edgeIndex(e)))
+
+  def target(e: EName): VName = vNames(tgt(edgeIndex(e)))
+
+  def inEdges(v: VName): Set[EName] = inAdj(vertexIndex(v)).iterator.map(eNames(_)).toSet
+
+  def outEdges(v: VName): Set[EName] = outAdj(vertexIndex(v)).iterator.map(eNames(_)).toSet
+
+  def adjacentEdges(v: VName): Set[EName] = inEdges(v) union outEdges(v)
+
+  def predVerts(v: VName): Set[VName] = inAdj(vertexIndex(v)).iterator.map { e => vNames(src(e)) }.toSet
+
+  def succVerts(v: VName): Set[VName] = outAdj(vertexIndex(v)).iterator.map { e => vNames(tgt(e)) }.toSet
+
+  def adjacentVerts(v: VName): Set[VName] = predVerts(v) union succVerts(v)
+
+  /** The number of adjacent edges, counting self-loops once. Unlike Graph.arity, this does not build any sets. */
+  def arity(v: VName): Int = {
+    val i = vertexIndex(v)
+    val out = outAdj(i)
+    inAdj(i).length + out.length - out.count(tgt(_) == i)
+  }
+
+  def contents(bb: BBName): Set[VName] = inBBox.codf(bb)
+
+  def bboxesContaining(v: VName): Set[BBName] = inBBox.domf(v)
+
+  def vertexIndex(v: VName): Int = vIndex.getOrElse(v, throw new GraphException("No such vertex: " + v))
+
+  def edgeIndex(e: EName): Int = eIndex.getOrElse(e, throw new GraphException("No such edge: " + e))
+
+  private def copy(vIndex: Map[VName, Int] = vIndex,
+                   vNames: ChunkedArray[VName] = vNames,
+                   vData: ChunkedArray[VData] = vData,
+                   inAdj: ChunkedArray[Array[Int]] = inAdj,
+                   outAdj: ChunkedArray[Array[Int]] = outAdj,
+                   freeVerts: List[Int] = freeVerts,
+                   eIndex: Map[EName, Int] = eIndex,
+                   eNames: ChunkedArray[EName] = eNames,
+                   eData: ChunkedArray[EData] = eData,
+                   src: IntChunkedArray = src,
+                   tgt: IntChunkedArray = tgt,
+                   freeEdges: List[Int] = freeEdges,
+                   inBBox: BinRel[VName, BBName] = inBBox): CompactGraph =
+    new CompactGraph(data, vIndex, vNames, vData, inAdj, outAdj, freeVerts,
+      eIndex, eNames, eData, src, tgt, freeEdges, bbdata, inBBox, bboxParent)
+
+  /** The number of slots in use, i.e. vertices plus edges, over the number of slots allocated */
+  def occupancy: Double =
+    if (vNames.length + eNames.length == 0) 1.0
+    else (vIndex.size + eIndex.size).toDouble / (vNames.length + eNames.length)
+
+  def addVertex(v: VName, d: VData): CompactGraph = {
+    if (vIndex.contains(v)) throw new DuplicateVertexNameException(v)
+    freeVerts match {
+      // the adjacency of a deleted vertex is already empty
+      case i :: rest => copy(vIndex = vIndex + (v -> i), vNames = vNames.updated(i, v), vData = vData.updated(i, d),
+        freeVerts = rest)
+      case Nil =>
+        val i = vNames.length
+        copy(vIndex = vIndex + (v -> i), vNames = vNames :+ v, vData = vData :+ d,
+          inAdj = inAdj :+ NoEdges, outAdj = outAdj :+ NoEdges)
+    }
+  }
+
+  def addEdge(e: EName, d: EData, vs: (VName, VName)): CompactGraph = {
+    if (eIndex.contains(e)) throw new DuplicateEdgeNameException(e)
+    if (!vIndex.contains(vs._1)) throw new GraphException("Edge: " + e + " has no endpoint: " + vs._1 + " in graph")
+    if (!vIndex.contains(vs._2)) throw new GraphException("Edge: " + e + " has no endpoint: " + vs._2 + " in graph")
+    val (s, t) = (vIndex(vs._1), vIndex(vs._2))
+    val g = freeEdges match {
+      case i :: rest => copy(eIndex = eIndex + (e -> i), eNames = eNames.updated(i, e), eData = eData.updated(i, d),
+        src = src.updated(i, s), tgt = tgt.updated(i, t), freeEdges = rest)
+      case Nil => copy(eIndex = eIndex + (e -> eNames.length), eNames = eNames :+ e, eData = eData :+ d,
+        src = src :+ s, tgt = tgt :+ t)
+    }
+    val i = g.eIndex(e)
+    g.copy(inAdj = g.inAdj.updated(t, g.inAdj(t) :+ i), outAdj = g.outAdj.updated(s, g.outAdj(s) :+ i))
+  }
+
+  def updateVData(v: VName)(f: VData => VData): CompactGraph = {
+    val i = vertexIndex(v)
+    copy(vData = vData.updated(i, f(vData(i))))
+  }
+
+  def updateEData(e: EName)(f: EData => EData): CompactGraph = {
+    val i = edgeIndex(e)
+    copy(eData = eData.updated(i, f(eData(i))))
+  }
+
+  def deleteEdge(e: EName): CompactGraph = {
+    val i = edgeIndex(e)
+    val (s, t) = (src(i), tgt(i))
+    copy(inAdj = inAdj.updated(t, inAdj(t).filter(_ != i)), outAdj = outAdj.updated(s, outAdj(s).filter(_ != i)),
+      eIndex = eIndex - e, eNames = eNames.updated(i, null), eData = eData.updated(i, null),
+      freeEdges = i :: freeEdges)
+  }
+
+  /** Delete a vertex, along with its adjacent edges */
+  def deleteVertex(v: VName): CompactGraph = {
+    val i = vertexIndex(v)
+    val g = (inAdj(i) ++ outAdj(i)).distinct.foldLeft(this) { (g1, e) => g1.deleteEdge(eNames(e)) }
+    g.copy(vIndex = vIndex - v, vNames = vNames.updated(i, null), vData = vData.updated(i, null),
+      freeVerts = i :: freeVerts, inBBox = inBBox.unmapDom(v))
+  }
+
+  /**
+    * The same graph, with vertices and edges renumbered densely. Deleted slots are reused by later additions, but
+    * a graph which has shrunk a lot should be compacted, which shares no storage with this one.
+    */
+  def compacted: CompactGraph = if (freeVerts.isEmpty && freeEdges.isEmpty) this else fromGraph(toGraph)
+
+  def toGraph: Graph = {
+    val es = edges.toSeq
+    Graph(
+      data = data,
+      vdata = vIndex.map { case (v, i) => v -> vData(i) },
+      edata = eIndex.map { case (e, i) => e -> eData(i) },
+      source = PFun(es.map { e => e -> source(e) }: _*),
+      target = PFun(es.map { e => e -> target(e) }: _*),
+      bbdata = bbdata,
+      inBBox = inBBox,
+      bboxParent = bboxParent)
+  }
+}
+
+object CompactGraph {
+  private val NoEdges: Array[Int] = Array()
+
+  def fromGraph(g: Graph): CompactGraph = {
+    // share equal data between vertices (and edges), e.g. the data of every wire-vertex
+    val shared = mutable.HashMap[AnyRef, AnyRef]()
+    def share[A <: AnyRef](x: A): A = shared.getOrElseUpdate(x, x).asInstanceOf[A]
+
+    val vs = g.verts.toVector.sorted
+    val es = g.edges.toVector.sorted
+    val vIndex = vs.zipWithIndex.toMap
+    val eIndex = es.zipWithIndex.toMap
+    val src = es.map { e => vIndex(g.source(e)) }
+    val tgt = es.map { e => vIndex(g.target(e)) }
+    val inAdj = vs.map { v => g.inEdges(v).toArray.map(eIndex).sorted }
+    val outAdj = vs.map { v => g.outEdges(v).toArray.map(eIndex).sorted }
+
+    new CompactGraph(g.data, vIndex, ChunkedArray(vs), ChunkedArray(vs.map { v => share(g.vdata(v)) }),
+      ChunkedArray(inAdj), ChunkedArray(outAdj), Nil,
+      eIndex, ChunkedArray(es), ChunkedArray(es.map { e => share(g.edata(e)) }),
+      ChunkedArray.ints(src), ChunkedArray.ints(tgt), Nil, g.bbdata, g.inBBox, g.bboxParent)
+  }
+}
@@ -138,6 +138,38 @@ object CompositeExpression {
     CompositeExpression(typeVector, parseKnowingTypes(values, typeVector))
   }
 
+  /** The number of parsed values kept by parseCached */
+  var parseCacheSize = 4096
+
+  // the most recently parsed values, shared by every vertex and graph, so each distinct value is parsed once
+  private val parseCache = new java.util.LinkedHashMap[(String, Vector[ValueType]), CompositeExpression](
+    256, 0.75f, true) {
+    override def removeEldestEntry(
+      eldest: java.util.Map.Entry[(String, Vector[ValueType]), CompositeExpression]): Boolean = size > parseCacheSize
+  }
+
+  /**
+    * As parse, for a value whose types are already known, but remembers the result. Expressions are immutable, so
+    * the same parsed value is handed to every vertex with the same value string.
+    */
+  def parseCached(s: String, v: Vector[ValueType]): CompositeExpression = {
+    val key = (s, v)
+    val hit = parseCache.synchronized { parseCache.get(key) }
+    if (hit != null) hit
+    else {
+      // parse outside the lock; a value parsed twice at once is simply stored twice
+      val e = CompositeExpression(v, parseKnowingTypes(s, v))
+      parseCache.synchronized { parseCache.put(key, e) }
+      e
+    }
+  }
+
+  /** Remember that s parses to e, e.g. for a value string made from an expression which is already parsed */
+  def rememberParse(s: String, e: CompositeExpression): Unit =
+    parseCache.synchronized { parseCache.put((s, e.valueTypes), e) }
+
+  def clearParseCache(): Unit = parseCache.synchronized { parseCache.clear() }
+
   def parseKnowingTypes(s: String, v: Vector[ValueType]): Vector[PhaseExpression] = {
     // Will fill with empties if more types requested than string elements given
     val split: Array[String] = s.split(",")
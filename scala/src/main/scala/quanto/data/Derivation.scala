@@ -1,11 +1,11 @@
 package quanto.data
 
 import quanto.gui.{DeriveState, HeadState, StepState}
-import quanto.layout.ForceLayout
+import quanto.layout.{ForceLayout, RewriteLayout}
 import quanto.util.TreeSeq
 import quanto.util.json._
 
-import scala.collection.SortedSet
+import scala.collection.{SortedSet, mutable}
 
 trait DerivationException
 
@@ -13,10 +13,143 @@ case class DerivationLoadException(message: String, cause: Throwable = null)
   extends Exception(message, cause)
     with DerivationException
 
-case class DStep(name: DSName,
-                 ruleName: String,
-                 rule: Rule,
-                 graph: Graph) {
+/**
+  * The graph at a derivation step. Most steps keep only a delta against the graph at their parent step, and
+  * materialise their graph on demand. Along a chain of steps, every KeyframeInterval-th graph is kept in full, as a
+  * CompactGraph, so materialising any step applies a bounded number of deltas. Recently materialised graphs are kept
+  * in an LRU cache, shared by all derivations, so moving back and forth between nearby steps does not repeat work.
+  */
+sealed abstract class StepGraph {
+  def graph: Graph
+
+  /** The number of deltas applied to materialise this graph */
+  def depth: Int
+}
+
+object StepGraph {
+  val KeyframeInterval = 32
+  var cacheSize = 64
+
+  final class Full(val graph: Graph) extends StepGraph {
+    def depth = 0
+  }
+
+  /** A graph kept in full, in the compact form, which is converted back to a Graph on demand */
+  final class Keyframe(val compact: CompactGraph) extends StepGraph {
+    def depth = 0
+
+    def graph: Graph = materialise(this)
+  }
+
+  final class Delta(val parent: StepGraph, val delta: GraphDelta) extends StepGraph {
+    val depth: Int = parent.depth + 1
+
+    def graph: Graph = materialise(this)
+  }
+
+  private val cache = new java.util.LinkedHashMap[StepGraph, Graph](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[StepGraph, Graph]): Boolean = size > cacheSize
+  }
+
+  private def materialise(s: StepGraph): Graph = {
+    val hit = cache.synchronized { cache.get(s) }
+    if (hit != null) hit
+    else remember(s, s match {
+      case k: Keyframe => k.compact.toGraph
+      case d: Delta => d.delta(d.parent.graph)
+      case _ => s.graph
+    })
+  }
+
+  private def remember(s: StepGraph, g: Graph): Graph = {
+    cache.synchronized { cache.put(s, g) }
+    g
+  }
+
+  def clearCache(): Unit = cache.synchronized { cache.clear() }
+
+  private def keyframe(graph: Graph): StepGraph = {
+    val k = new Keyframe(CompactGraph.fromGraph(graph))
+    remember(k, graph)
+    k
+  }
+
+  /** Store a graph as a delta against the graph at its parent step, or in full if the chain of deltas is too long */
+  def against(parent: StepGraph, graph: Graph): StepGraph =
+    if (parent.depth + 1 >= KeyframeInterval) keyframe(graph)
+    else {
+      val d = new Delta(parent, GraphDelta.between(parent.graph, graph))
+      remember(d, graph)
+      d
+    }
+
+  /** The graph obtained by applying a delta to the graph at the parent step */
+  def applied(parent: StepGraph, delta: GraphDelta): StepGraph =
+    if (parent.depth + 1 >= KeyframeInterval) keyframe(delta(parent.graph))
+    else new Delta(parent, delta)
+
+  /** Told how long, in nanoseconds, the layout of a step produced by the given rule took */
+  type LayoutTimer = (Rule, Long) => Unit
+
+  val NoTimer: LayoutTimer = (_, _) => ()
+
+  /**
+    * The graph produced by a rewrite, not yet laid out. It is held as the delta made by the rewrite, and laid out with
+    * RewriteLayout the first time it is needed, which is then kept. Rather than forcing the layout of every step
+    * above it, the layout starts from the nearest ancestor that is laid out, applies the deltas of the steps in
+    * between, and lets every vertex that is not in that ancestor move. The time this takes is given to timer.
+    */
+  final class Deferred(val parent: StepGraph, val delta: GraphDelta, val rule: Rule,
+                       val timer: LayoutTimer = NoTimer) extends StepGraph {
+    @volatile private var laidOut: StepGraph = _
+
+    def isLaidOut: Boolean = laidOut != null
+
+    // no deltas are applied to a graph laid out against a step that is not laid out
+    def depth: Int = if (laidOut != null) laidOut.depth else 0
+
+    def graph: Graph = {
+      if (laidOut == null) synchronized {
+        if (laidOut == null) {
+          var chain = List[Deferred](this)
+          var base = parent
+          while (base.isInstanceOf[Deferred] && !base.asInstanceOf[Deferred].isLaidOut) {
+            chain ::= base.asInstanceOf[Deferred]
+            base = chain.head.parent
+          }
+
+          val baseGraph = base.graph
+          val g = chain.foldLeft(baseGraph) { (g1, d) => d.delta(g1) }
+          // counted against the rule of this step, even when the steps above it are laid out with it
+          val t0 = System.nanoTime
+          val g1 =
+            if (chain.lengthCompare(1) == 0) RewriteLayout.layout(g, rule)
+            else RewriteLayout.layout(g, g.verts.filter(baseGraph.verts.contains))
+          timer(rule, System.nanoTime - t0)
+          laidOut = against(base, g1)
+        }
+      }
+      laidOut.graph
+    }
+  }
+
+  /** True if two stored graphs are known to be the same, without materialising them */
+  def same(a: StepGraph, b: StepGraph): Boolean = (a eq b) || ((a, b) match {
+    case (f1: Full, f2: Full) => f1.graph eq f2.graph
+    case _ => false
+  })
+}
+
+/**
+  * A step of a derivation: the rule that was applied and the graph it produced. The graph is held as a StepGraph,
+  * which Derivation stores as a delta against the graph at the parent step.
+  */
+final class DStep private(val name: DSName,
+                          val ruleName: String,
+                          val rule: Rule,
+                          private[data] val stored: StepGraph) {
+  def graph: Graph = stored.graph
+
   def layout: DStep = {
     val layoutProc = new ForceLayout
     layoutProc.maxIterations = 400
@@ -38,20 +171,58 @@ case class DStep(name: DSName,
     copy(graph = graph1)
   }
 
+  // keeps the stored form if the graph is unchanged
   def copy(name: DSName = name,
            ruleName: String = ruleName,
            rule: Rule = rule,
            graph: Graph = graph)
-  = DStep(name, ruleName, rule, graph)
+  = new DStep(name, ruleName, rule, if (graph eq stored.graph) stored else new StepGraph.Full(graph))
+
+  /** This step, with its graph stored against the graph at the given parent step */
+  private[data] def storedAgainst(parent: StepGraph): DStep = stored match {
+    case d: StepGraph.Delta if StepGraph.same(d.parent, parent) => this
+    case d: StepGraph.Deferred if !d.isLaidOut =>
+      if (StepGraph.same(d.parent, parent)) this
+      else new DStep(name, ruleName, rule, new StepGraph.Deferred(parent, d.delta, d.rule, d.timer))
+    case _ => new DStep(name, ruleName, rule, StepGraph.against(parent, graph))
+  }
+
+  override def equals(other: Any): Boolean = other match {
+    case that: DStep => (that eq this) ||
+      (name == that.name && ruleName == that.ruleName && rule == that.rule && graph == that.graph)
+    case _ => false
+  }
+
+  override def hashCode: Int = 41 * name.hashCode + ruleName.hashCode
+
+  override def toString: String = "DStep(" + name + ", " + ruleName + ")"
 }
 
 object DStep {
-
+  def apply(name: DSName, ruleName: String, rule: Rule, graph: Graph): DStep =
+    new DStep(name, ruleName, rule, new StepGraph.Full(graph))
 
   def apply(name: DSName, rule: Rule, graph: Graph): DStep =
     DStep(name, rule.name, rule, graph)
 
-  def toJson(dstep: DStep, parent: Option[DSName], thy: Theory = Theory.DefaultTheory): Json = {
+  /**
+    * A step made by rewriting the graph previous to give graph, which is laid out only when it is first needed (see
+    * StepGraph.Deferred). The layout is against the graph at the step this is added under, which should be previous,
+    * or previous laid out. The time taken to lay it out is given to timer.
+    */
+  def deferred(name: DSName, rule: Rule, previous: Graph, graph: Graph,
+               timer: StepGraph.LayoutTimer = StepGraph.NoTimer): DStep =
+    new DStep(name, rule.name, rule,
+      new StepGraph.Deferred(new StepGraph.Full(previous), GraphDelta.between(previous, graph), rule, timer))
+
+  private[data] def apply(name: DSName, ruleName: String, rule: Rule, stored: StepGraph): DStep =
+    new DStep(name, ruleName, rule, stored)
+
+  /**
+    * Write a step, with its graph in full, or as the given delta against the graph at its parent
+    */
+  def toJson(dstep: DStep, parent: Option[DSName], thy: Theory = Theory.DefaultTheory,
+             delta: Option[GraphDelta] = None): Json = {
     JsonObject(
       "name" -> dstep.name.toString,
       "parent" -> parent.map(_.toString),
@@ -62,23 +233,37 @@ object DStep {
       } else {
         "forwards"
       }),
-      "graph" -> Graph.toJson(dstep.graph, thy)
+      delta match {
+        case Some(d) => "graph_delta" -> GraphDelta.toJson(d, thy)
+        case None => "graph" -> Graph.toJson(dstep.graph, thy)
+      }
     )
   }
 
-  def fromJson(name: DSName, json: Json, thy: Theory = Theory.DefaultTheory): DStep = try {
+  /**
+    * Read a step. A step written with a "graph_delta" needs the stored graph of its parent step (or of the root). A
+    * full graph may be given, if it was already read from the step's "graph".
+    */
+  def fromJson(name: DSName, json: Json, thy: Theory = Theory.DefaultTheory,
+               parent: Option[StepGraph] = None, graph: Option[Graph] = None): DStep = try {
     val baseRule = Rule.fromJson(json / "rule", thy)
     val rule: Rule = json ? "rule_variant" match {
       case JsonString("inverse") => baseRule.inverse
       case _ => baseRule
     }
-    DStep(
+    val stored = (json.get("graph_delta"), parent) match {
+      case (Some(d), Some(p)) => StepGraph.applied(p, GraphDelta.fromJson(d, thy))
+      case (Some(_), None) => throw DerivationLoadException("Step '" + name + "' is a delta, but has no parent graph")
+      case (None, _) => new StepGraph.Full(graph.getOrElse(Graph.fromJson(json / "graph", thy)))
+    }
+    new DStep(
       name = name,
       ruleName = (json / "rule_name").stringValue,
       rule = rule,
-      graph = Graph.fromJson(json / "graph", thy)
+      stored = stored
     )
   } catch {
+    case e: DerivationLoadException => throw e
     case e: JsonAccessException =>
       throw DerivationLoadException(e.getMessage)
     case e: RuleLoadException =>
@@ -111,10 +296,25 @@ case class Derivation(root: Graph,
 
 
   def updateGraphInStep(s: DSName, g: Graph): Derivation = {
-    val s1 = steps(s).copy(graph = g)
+    val s1 = steps(s).copy(graph = g).storedAgainst(storedAt(parentMap.get(s)))
     copy(steps = steps + (s -> s1))
   }
 
+  // the stored graph at the given step, or at the root
+  private def storedAt(s: Option[DSName]): StepGraph = s match {
+    case Some(p) => steps(p).stored
+    case None => new StepGraph.Full(root)
+  }
+
+  /** The delta taking the graph at the parent of a step (or the root) to the graph at the step */
+  def deltaAt(s: DSName): GraphDelta = {
+    val parent = storedAt(parentMap.get(s))
+    steps(s).stored match {
+      case d: StepGraph.Delta if StepGraph.same(d.parent, parent) => d.delta
+      case st => GraphDelta.between(parent.graph, st.graph)
+    }
+  }
+
   def allChildren(s: DSName): Set[DSName] =
     children(s).foldLeft(Set[DSName]()) { case (set, c) => set union allChildren(c) } + s
 
@@ -134,16 +334,19 @@ case class Derivation(root: Graph,
 
   def deleteHead(h: DSName): Derivation = copy(heads = heads - h)
 
-  def addStep(parentOpt: Option[DSName], step: DStep): Derivation = parentOpt match {
-    case Some(p) =>
-      copy(
-        steps = steps + (step.name -> step),
-        heads = (if (heads.contains(p)) heads - p else heads) + step.name,
-        parent = parentMap + (step.name -> p))
-    case None =>
-      copy(
-        steps = steps + (step.name -> step),
-        heads = heads + step.name)
+  def addStep(parentOpt: Option[DSName], step: DStep): Derivation = {
+    val step1 = step.storedAgainst(storedAt(parentOpt))
+    parentOpt match {
+      case Some(p) =>
+        copy(
+          steps = steps + (step.name -> step1),
+          heads = (if (heads.contains(p)) heads - p else heads) + step.name,
+          parent = parentMap + (step.name -> p))
+      case None =>
+        copy(
+          steps = steps + (step.name -> step1),
+          heads = heads + step.name)
+    }
   }
 
   def deleteStep(s: DSName): Derivation = {
@@ -199,6 +402,8 @@ case class Derivation(root: Graph,
 
   def toJson(theory: Theory): Json = Derivation.toJson(this, theory)
 
+  def toJson(theory: Theory, deltas: Boolean): Json = Derivation.toJson(this, theory, deltas)
+
   private def dft(step: DSName, rest: Vector[DeriveState]): Vector[DeriveState] =
     (if (isHead(step)) Vector(StepState(step), HeadState(Some(step)))
     else Vector(StepState(step))) ++
@@ -209,37 +414,79 @@ object Derivation {
   type DerivationWithHead = (Derivation, Option[DSName])
 
   def fromJson(json: Json, thy: Theory = Theory.DefaultTheory): Derivation = try {
-    val parent = (json ? "steps").asObject.foldLeft(PFun[DSName, DSName]()) {
+    fromParts(Graph.fromJson(json / "root", thy), (json ? "steps").asObject.mapValue, json ? "heads") {
+      (s, stepJson, parent) => DStep.fromJson(s, stepJson, thy, Some(parent))
+    }
+  } catch {
+    case e: JsonAccessException => throw DerivationLoadException(e.getMessage, e)
+    case e: GraphLoadException =>
+      throw DerivationLoadException("Graph 'root': " + e.getMessage, e)
+    case e: DerivationLoadException => throw e
+    case e: Exception =>
+      e.printStackTrace()
+      throw DerivationLoadException("Error reading JSON", e)
+  }
+
+  // assemble a derivation from its root and the JSON of its steps. Parents are loaded before children, since a step
+  // may be stored as a delta against its parent. Steps stored in full are then converted to deltas, as in addStep.
+  private[data] def fromParts(root: Graph, stepsJson: Map[String, Json], headsJson: Json)
+                             (readStep: (DSName, Json, StepGraph) => DStep): Derivation = {
+    val parent = stepsJson.foldLeft(PFun[DSName, DSName]()) {
       case (pf, (step, obj)) => obj.get("parent") match {
         case Some(JsonString(p)) => pf + (DSName(step) -> DSName(p))
         case _ => pf
       }
     }
 
-    val steps = (json ? "steps").asObject.foldLeft(Map[DSName, DStep]()) {
-      case (mp, (step, obj)) => mp + (DSName(step) -> DStep.fromJson(DSName(step), obj, thy))
+    val rootStored = new StepGraph.Full(root)
+    val steps = mutable.Map[DSName, DStep]()
+    for (step <- stepsJson.keys.map(DSName(_))) {
+      val pending = Iterator.iterate(Option(step))(_.flatMap(parent.get))
+        .takeWhile(_.exists(s => !steps.contains(s) && stepsJson.contains(s.toString))).map(_.get).toList
+      for (s <- pending.reverse) {
+        val parentStored = parent.get(s).flatMap(steps.get).map(_.stored).getOrElse(rootStored)
+        steps(s) = readStep(s, stepsJson(s.toString), parentStored).storedAgainst(parentStored)
+      }
     }
 
-    val heads = (json ? "heads").asArray.foldLeft(SortedSet[DSName]()) { case (set, h) => set + DSName(h.stringValue) }
+    val heads = headsJson.asArray.foldLeft(SortedSet[DSName]()) { case (set, h) => set + DSName(h.stringValue) }
 
     Derivation(
-      root = Graph.fromJson(json / "root", thy),
-      steps = steps,
+      root = root,
+      steps = steps.toMap,
       heads = heads,
       parentMap = parent
     )
-  } catch {
-    case e: JsonAccessException => throw DerivationLoadException(e.getMessage, e)
-    case e: GraphLoadException =>
-      throw DerivationLoadException("Graph 'root': " + e.getMessage, e)
-    case e: DerivationLoadException => throw e
-    case e: Exception =>
-      e.printStackTrace()
-      throw DerivationLoadException("Error reading JSON", e)
   }
 
-  def toJson(derive: Derivation, thy: Theory = Theory.DefaultTheory): JsonObject = {
-    val steps = derive.steps.map { case (k, v) => (k.toString, DStep.toJson(v, derive.parentMap.get(k), thy)) }
+  /** Read a derivation from a file, without building a Json tree for the whole file */
+  def fromFile(f: java.io.File, thy: Theory = Theory.DefaultTheory): Derivation = {
+    val in = new Json.Input(f)
+    try {
+      StreamingJson.readDerivation(in, thy)
+    } finally {
+      in.close()
+    }
+  }
+
+  /** Write a derivation to a file, with the same contents as toJson(derive, thy, deltas).writeTo(f) */
+  def toFile(derive: Derivation, f: java.io.File, thy: Theory = Theory.DefaultTheory, deltas: Boolean = false) {
+    val out = new Json.Output(f)
+    try {
+      StreamingJson.writeDerivation(out, derive, thy, deltas)
+    } finally {
+      out.close()
+    }
+  }
+
+  /**
+    * Write a derivation. With deltas set, each step is written as a "graph_delta" against the graph at its parent
+    * step (or the root), rather than in full. Either form is read by fromJson.
+    */
+  def toJson(derive: Derivation, thy: Theory = Theory.DefaultTheory, deltas: Boolean = false): JsonObject = {
+    val steps = derive.steps.map { case (k, v) =>
+      (k.toString, DStep.toJson(v, derive.parentMap.get(k), thy, if (deltas) Some(derive.deltaAt(k)) else None))
+    }
     JsonObject(
       "root" -> Graph.toJson(derive.root, thy),
       "steps" -> JsonObject(steps),
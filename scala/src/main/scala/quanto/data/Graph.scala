@@ -4,6 +4,7 @@ package quanto.data
 import quanto.cosy.AdjMat
 import quanto.data.Names._
 import quanto.data.Theory.ValueType
+import quanto.util.WeakIdentityMap
 import quanto.util.json.JsonValues._
 import quanto.util.json._
 
@@ -20,6 +21,9 @@ case class GraphSearchContext(exploredV: Set[VName], exploredE: Set[EName])
 class GraphLoadException(message: String, cause: Throwable = null)
   extends GraphException(message, cause)
 
+// the fresh name allocators carried by a Graph
+private[data] case class GraphNames(v: NameAllocator[VName], e: NameAllocator[EName], bb: NameAllocator[BBName])
+
 sealed abstract class BBOp {
   def bb: BBName
 
@@ -55,8 +59,21 @@ case class Graph(
                   inBBox: BinRel[VName, BBName] = BinRel[VName, BBName](),
                   bboxParent: PFun[BBName, BBName] = PFun[BBName, BBName]()) extends Ordered[Graph] {
   lazy val nodesThatAreNotWires: Set[VName] = verts.filterNot(vdata(_).isWireVertex)
+  // canonical form up to isomorphism (of normal forms), see Canonical
+  lazy val certificate: GraphCertificate = Canonical.certificate(this)
   protected val factory = new Graph(_, _, _, _, _, _, _, _)
 
+  // fresh name allocators, kept beside the graph in Graph.allocators. They are computed the first time a fresh name
+  // is needed, and from then on passed on by copy and updated as names are added (see rebuilt).
+  private def names: GraphNames = Graph.allocators.getOrElseUpdate(this,
+    GraphNames(NameAllocator(verts), NameAllocator(edges), NameAllocator(bboxes)))
+
+  def vertexNames: NameAllocator[VName] = names.v
+
+  def edgeNames: NameAllocator[EName] = names.e
+
+  def bboxNames: NameAllocator[BBName] = names.bb
+
   def isInternalWire(v: VName): Boolean = vdata(v).isWireVertex && outEdges(v).size == 1 && inEdges(v).size == 1
 
   def isCircle(vn: VName): Boolean =
@@ -272,7 +289,7 @@ case class Graph(
   }
 
   def newVertex(data: VData): (Graph, VName) = {
-    val vn = vdata.fresh
+    val vn = vertexNames.fresh(vdata.contains)
     (addVertex(vn, data), vn)
   }
 
@@ -280,11 +297,12 @@ case class Graph(
     if (vdata contains vn)
       throw new DuplicateVertexNameException(vn)
 
-    copy(vdata = vdata + (vn -> data))
+    rebuilt(n => n.copy(v = n.v + vn),
+      this.data, vdata + (vn -> data), edata, source, target, bbdata, inBBox, bboxParent)
   }
 
   def newEdge(data: EData, vns: (VName, VName)): (Graph, EName) = {
-    val en = edata.fresh
+    val en = edgeNames.fresh(edata.contains)
     (addEdge(en, data, vns), en)
   }
 
@@ -292,10 +310,9 @@ case class Graph(
     if (bbdata contains bbn)
       throw new DuplicateBBoxNameException(bbn)
 
-    val g1 = copy(
-      bbdata = bbdata + (bbn -> data),
-      inBBox = contents.foldLeft(inBBox) { (x, v) => x + (v -> bbn) }
-    )
+    val g1 = rebuilt(n => n.copy(bb = n.bb + bbn),
+      this.data, vdata, edata, source, target,
+      bbdata + (bbn -> data), contents.foldLeft(inBBox) { (x, v) => x + (v -> bbn) }, bboxParent)
 
     parent match {
       case Some(p) => g1.setBBoxParent(bbn, Some(p))
@@ -388,7 +405,7 @@ case class Graph(
   }
 
   def newBBox(data: BBData, contents: Set[VName] = Set[VName](), parent: Option[BBName] = None): (Graph, BBName) = {
-    val bbn = bbdata.fresh
+    val bbn = bboxNames.fresh(bbdata.contains)
     (addBBox(bbn, data, contents, parent), bbn)
   }
 
@@ -560,23 +577,29 @@ case class Graph(
     var avoidV = avoidVerts
     var avoidE = avoidEdges
     var avoidBB = avoidBBoxes
+    var namesV = NameAllocator(avoidVerts)
+    var namesE = NameAllocator(avoidEdges)
+    var namesBB = NameAllocator(avoidBBoxes)
 
     for (x <- verts if !mp.v.domSet.contains(x)) {
-      val fr = avoidV.freshWithSuggestion(x)
+      val fr = namesV.freshWithSuggestion(x, avoidV.contains)
       mp = mp.addVertex(x -> fr)
       avoidV = avoidV + fr
+      namesV = namesV + fr
     }
 
     for (x <- edges if !mp.e.domSet.contains(x)) {
-      val fr = avoidE.freshWithSuggestion(x)
+      val fr = namesE.freshWithSuggestion(x, avoidE.contains)
       mp = mp.addEdge(x -> fr)
       avoidE = avoidE + fr
+      namesE = namesE + fr
     }
 
     for (x <- bboxes if !mp.bb.domSet.contains(x)) {
-      val fr = avoidBB.freshWithSuggestion(x)
+      val fr = namesBB.freshWithSuggestion(x, avoidBB.contains)
       mp = mp.addBBox(x -> fr)
       avoidBB = avoidBB + fr
+      namesBB = namesBB + fr
     }
 
     mp
@@ -787,7 +810,19 @@ case class Graph(
            bbdata: Map[BBName, BBData] = this.bbdata,
            inBBox: BinRel[VName, BBName] = this.inBBox,
            bboxParent: PFun[BBName, BBName] = this.bboxParent): Graph =
-    factory(data, vdata, edata, source, target, bbdata, inBBox, bboxParent)
+    rebuilt(identity, data, vdata, edata, source, target, bbdata, inBBox, bboxParent)
+
+  // a new graph, which is given the allocators of this one updated by f, if this has any. Graphs which have never
+  // needed a fresh name have no allocators, so building them costs one lookup and nothing more.
+  private def rebuilt(f: GraphNames => GraphNames,
+                      data: GData, vdata: Map[VName, VData], edata: Map[EName, EData],
+                      source: PFun[EName, VName], target: PFun[EName, VName],
+                      bbdata: Map[BBName, BBData], inBBox: BinRel[VName, BBName],
+                      bboxParent: PFun[BBName, BBName]): Graph = {
+    val g = factory(data, vdata, edata, source, target, bbdata, inBBox, bboxParent)
+    Graph.allocators.get(this).foreach { n => Graph.allocators.put(g, f(n)) }
+    g
+  }
 
   def outEdges(vn: VName): Set[EName] = source.codf(vn)
 
@@ -799,11 +834,9 @@ case class Graph(
     if (!vdata.contains(vns._1))
       throw new GraphException("Edge: " + en + " has no endpoint: " + vns._2 + " in graph")
 
-    copy(
-      edata = edata + (en -> data),
-      source = source + (en -> vns._1),
-      target = target + (en -> vns._2)
-    )
+    rebuilt(n => n.copy(e = n.e + en),
+      this.data, vdata, edata + (en -> data), source + (en -> vns._1), target + (en -> vns._2),
+      bbdata, inBBox, bboxParent)
   }
 
   def expandWire(w: VName): (Graph, (VName, VName, EName)) = {
@@ -813,8 +846,8 @@ case class Graph(
         throw new GraphException("attempted to expand wire " + w + ", which has no adjacent edges")
     }
 
-    val newW = verts.freshWithSuggestion(w)
-    val newE = edges.freshWithSuggestion(Names.defaultEName)
+    val newW = vertexNames.freshWithSuggestion(w, vdata.contains)
+    val newE = edgeNames.fresh(edata.contains)
     val newBB = inBBox.domf(w).foldRight(inBBox) { (bb, mp) => mp + (newW -> bb) }
 
     var g = addVertex(newW, vdata(w)).copy(inBBox = newBB)
@@ -849,7 +882,7 @@ case class Graph(
   def edgeToWire(e: EName): Graph = {
     val s = source(e)
     val t = target(e)
-    val w = verts.fresh
+    val w = vertexNames.fresh(vdata.contains)
     val ed = edata(e)
 
     this
@@ -898,37 +931,59 @@ case class Graph(
     vdata(vn).isWireVertex && (inEdges(vn).size + outEdges(vn).size) <= 1
 
   /**
-    * Put graph in normal form, where each wire has exactly 1 wire vertex
+    * Put graph in normal form, where each wire has exactly 1 wire vertex. This is computed once per instance.
     *
     * @return Graph
     */
-  def normalise: Graph = {
-    var ch = false
+  def normalise: Graph = Graph.normalForms.get(this) match {
+    case Some(n) => n.getOrElse(this)
+    case None => remember(normaliseOver(edges.toSeq.sorted, _.verts))
+  }
+
+  /**
+    * The normal form of a graph which is already normal away from the given vertices, such as the result of
+    * rewriting a normalised graph, where vs is the image of the RHS. Only the edges adjacent to vs, and the
+    * wire-vertices near it, are visited, so this costs time in the size of vs rather than the size of the graph.
+    * The result is also remembered as the normal form of this graph.
+    */
+  def normaliseAround(vs: Set[VName]): Graph = Graph.normalForms.get(this) match {
+    case Some(n) => n.getOrElse(this)
+    case None =>
+      val region = vs intersect verts
+      val near = (region union adjacentVerts(region)).toSeq.sorted
+      remember(normaliseOver(adjacentEdges(region).toSeq.sorted, _ => near))
+  }
+
+  // a normal form is its own normal form
+  private def remember(n: Graph): Graph = {
+    Graph.normalForms.put(n, None)
+    if (n ne this) Graph.normalForms.put(this, Some(n))
+    n
+  }
+
+  // The fix-ups done by normalise, at the given edges, then at the given wire-vertices of the result. A single pass
+  // over the edges suffices: collapsing a wire never changes whether another wire-vertex is terminal, or unmakes a
+  // self-loop, and the wire-vertices added by edgeToWire are only adjacent to nodes.
+  private def normaliseOver(es: Seq[EName], ws: Graph => Iterable[VName]): Graph = {
     var g = this
 
-    for (e <- edges) {
-      if (!ch) {
-        val s = source(e)
-        val t = target(e)
-        (vdata(s), vdata(t)) match {
-          case (_: NodeV, _: NodeV) =>
-            g = g.edgeToWire(e)
-            ch = true
-          case (_: WireV, _: WireV) if s != t =>
-
-            /**
-              * Collapse if between two internal wires, unless going in or out of a bbox
-              */
-            if (!isTerminalWire(s) && !isTerminalWire(t)) {
-              g = g.collapseWire(e)
-              ch = true
-            }
-          case _ => // do nothing
-        }
+    for (e <- es if g.edges.contains(e)) {
+      val s = g.source(e)
+      val t = g.target(e)
+      (g.vdata(s), g.vdata(t)) match {
+        case (_: NodeV, _: NodeV) =>
+          g = g.edgeToWire(e)
+        case (_: WireV, _: WireV) if s != t =>
+
+          /**
+            * Collapse if between two internal wires, unless going in or out of a bbox
+            */
+          if (!g.isTerminalWire(s) && !g.isTerminalWire(t)) g = g.collapseWire(e)
+        case _ => // do nothing
       }
     }
 
-    for (w <- g.verts if g.vdata(w).isWireVertex) {
+    for (w <- ws(g) if g.verts.contains(w) && g.vdata(w).isWireVertex) {
       val ine = g.inEdges(w)
       if (ine.size == 2) g = g.flipEdge(ine.head)
       else {
@@ -937,16 +992,17 @@ case class Graph(
       }
     }
 
-    if (ch) g.normalise
-    else g
+    g
   }
 
-  def minimise: Graph = {
-    val n = normalise
-    n.verts.foldRight(n) { (v, g) =>
-      if (g.vdata(v).isWireVertex) g.wireToEdge(v)
-      else g
-    }
+  /** Remove all of the wire-vertices in the normal form that are not needed. This is computed once per instance. */
+  def minimise: Graph = Graph.minimalForms.get(this) match {
+    case Some(m) => m.getOrElse(this)
+    case None =>
+      val n = normalise
+      val m = n.verts.filter(n.vdata(_).isWireVertex).foldRight(n) { (v, g) => g.wireToEdge(v) }
+      Graph.minimalForms.put(this, if (m eq this) None else Some(m))
+      m
   }
 
   /**
@@ -969,13 +1025,10 @@ case class Graph(
 
     var g1 = appendGraph(gfr)
 
-    var freshE = g1.edges
-
     for (e <- adjacentEdges(g.verts) -- g.edges) {
       val s = source(e)
       val t = target(e)
-      val e1 = freshE.freshWithSuggestion(e)
-      freshE = freshE + e1
+      val e1 = g1.edgeNames.freshWithSuggestion(e, g1.edata.contains)
       mp1 = mp1.addEdge(e -> e1)
       g1 = g1.addEdge(e1, edata(e), mp1.v.getOrElse(s, s) -> mp1.v.getOrElse(t, t))
     }
@@ -1113,6 +1166,14 @@ case class Graph(
 }
 
 object Graph {
+  // the fresh name allocators of each graph, see Graph.vertexNames
+  private val allocators = new WeakIdentityMap[Graph, GraphNames]
+
+  // the normal and minimal forms of each graph, computed on demand, where None stands for the graph itself, which
+  // cannot be held as a value of its own entry
+  private val normalForms = new WeakIdentityMap[Graph, Option[Graph]]
+  private val minimalForms = new WeakIdentityMap[Graph, Option[Graph]]
+
   //  val Flavor = new DataFlavor(Graph.getClass, "X-quantoderive/qgraph; class=<quanto.data.Graph>;")
   //  class GraphPacket(graph: Graph, val theory: Theory) extends Transferable {
   //    def getTransferData(f: DataFlavor) = this
@@ -1126,12 +1187,32 @@ object Graph {
 
   def fromJson(s: String, thy: Theory): Graph =
     try {
-      fromJson(Json.parse(s), thy)
+      StreamingJson.readGraph(new Json.Input(s), thy)
     }
     catch {
       case e: JsonParseException => throw new GraphLoadException("Error parsing JSON", e)
     }
 
+  /** Read a graph from a file, without building a Json tree for the whole file */
+  def fromFile(f: java.io.File, thy: Theory = Theory.DefaultTheory): Graph = {
+    val in = new Json.Input(f)
+    try {
+      StreamingJson.readGraph(in, thy)
+    } finally {
+      in.close()
+    }
+  }
+
+  /** Write a graph to a file, with the same contents as toJson(graph, thy).writeTo(f) */
+  def toFile(graph: Graph, f: java.io.File, thy: Theory = Theory.DefaultTheory) {
+    val out = new Json.Output(f)
+    try {
+      StreamingJson.writeGraph(out, graph, thy)
+    } finally {
+      out.close()
+    }
+  }
+
   def fromJson(json: Json, thy: Theory = Theory.DefaultTheory): Graph = try {
     Function.chain[Graph](Seq(
 
@@ -1156,17 +1237,7 @@ object Graph {
         g.addEdge(e._1, UndirEdge(data, annotation, thy), ((e._2 / "src").stringValue, (e._2 / "tgt").stringValue))
       },
 
-      (json ? "bang_boxes").asObject.foldLeft(_) { (g, bb) =>
-        val data = (bb._2 ? "data").asObject
-        val annotation = (bb._2 ? "annotation").asObject
-        val contains = (bb._2 ? "contents").vectorValue map {
-          VName(_)
-        }
-        val parent = bb._2.get("parent") map {
-          BBName(_)
-        }
-        g.addBBox(bb._1, BBData(data, annotation), contains.toSet, parent)
-      }
+      addBBoxesFromJson(_, json ? "bang_boxes")
 
     ))({
       val data = (json ? "data").asObject
@@ -1181,6 +1252,20 @@ object Graph {
       throw new GraphLoadException("Unexpected error reading JSON", e)
   }
 
+  // add the !-boxes in the "bang_boxes" section of a graph
+  private[data] def addBBoxesFromJson(graph: Graph, bboxes: Json): Graph =
+    bboxes.asObject.foldLeft(graph) { (g, bb) =>
+      val data = (bb._2 ? "data").asObject
+      val annotation = (bb._2 ? "annotation").asObject
+      val contains = (bb._2 ? "contents").vectorValue map {
+        VName(_)
+      }
+      val parent = bb._2.get("parent") map {
+        BBName(_)
+      }
+      g.addBBox(bb._1, BBData(data, annotation), contains.toSet, parent)
+    }
+
   def toJson(graph: Graph, thy: Theory = Theory.DefaultTheory): Json = {
     val (wireVertices, nodeVertices) = graph.vdata.foldLeft((JsonObject(), JsonObject())) {
       case ((objW, objN), (v, w: WireV)) => (objW + (v.toString -> w.toJson), objN)
@@ -1290,9 +1375,7 @@ object Graph {
       vnd._2 match {
         case node: NodeV =>
           val nodeDataType = theory.vertexTypes(node.typ).value.typ
-          val phases = CompositeExpression.parseKnowingTypes(node.data ? "value", nodeDataType)
-          val compositeExpression = CompositeExpression(nodeDataType, phases)
-          names union compositeExpression.varsWithType
+          names union CompositeExpression.parseCached(node.data ? "value", nodeDataType).varsWithType
         case _ => names
       }
     }
@@ -0,0 +1,153 @@
+package quanto.data
+
+import quanto.util.json._
+
+/**
+  * The difference between two graphs, used to store each step of a derivation against the graph at its parent.
+  *
+  * A delta deletes some edges and vertices (along with their !-box memberships), then adds or overwrites vertex
+  * data, then adds edges. An edge whose data or endpoints change is deleted and added again. !-boxes and graph data
+  * change rarely, so when they do, the delta simply carries the new ones in full.
+  *
+  * @param deletedVerts vertices of the old graph that are not in the new one
+  * @param deletedEdges edges of the old graph that are not in the new one, or that changed
+  * @param vdata        the data of vertices that are new, or whose data changed
+  * @param edges        the data and endpoints of edges that are new, or that changed
+  * @param bboxes       the !-boxes of the new graph, if they differ
+  * @param data         the graph data of the new graph, if it differs
+  */
+case class GraphDelta(deletedVerts: Set[VName] = Set(),
+                      deletedEdges: Set[EName] = Set(),
+                      vdata: Map[VName, VData] = Map(),
+                      edges: Map[EName, (EData, VName, VName)] = Map(),
+                      bboxes: Option[(Map[BBName, BBData], BinRel[VName, BBName], PFun[BBName, BBName])] = None,
+                      data: Option[GData] = None) {
+
+  def isEmpty: Boolean =
+    deletedVerts.isEmpty && deletedEdges.isEmpty && vdata.isEmpty && edges.isEmpty && bboxes.isEmpty && data.isEmpty
+
+  /** The number of vertices and edges mentioned by this delta, a rough measure of its size */
+  def size: Int = deletedVerts.size + deletedEdges.size + vdata.size + edges.size
+
+  /** Apply this delta to the graph it was computed against */
+  def apply(g: Graph): Graph = {
+    val g1 = g.deleteEdges(deletedEdges).deleteVertices(deletedVerts)
+    val g2 = vdata.foldLeft(g1) { case (h, (v, d)) =>
+      if (h.vdata.contains(v)) h.updateVData(v)(_ => d) else h.addVertex(v, d)
+    }
+    val g3 = edges.foldLeft(g2) { case (h, (e, (d, s, t))) => h.addEdge(e, d, (s, t)) }
+    val g4 = bboxes match {
+      case Some((bbd, inBB, bbp)) => g3.copy(bbdata = bbd, inBBox = inBB, bboxParent = bbp)
+      case None => g3
+    }
+    data match {
+      case Some(d) => g4.copy(data = d)
+      case None => g4
+    }
+  }
+}
+
+object GraphDelta {
+  val Empty = GraphDelta()
+
+  /**
+    * Compute the delta taking one graph to another. Only the entries that differ are kept, and since graphs produced
+    * by rewriting share most of their data with the graph they came from, most comparisons are by reference.
+    */
+  def between(from: Graph, to: Graph): GraphDelta = {
+    val deletedVerts = from.verts.filter(!to.vdata.contains(_))
+    val vdata = to.vdata.filter { case (v, d) => !from.vdata.get(v).contains(d) }
+
+    def changed(e: EName) =
+      to.edata(e) != from.edata(e) || to.source(e) != from.source(e) || to.target(e) != from.target(e)
+
+    val deletedEdges = from.edges.filter { e => !to.edata.contains(e) || changed(e) }
+    val edges = to.edges.iterator.filter { e => !from.edata.contains(e) || changed(e) }
+      .map { e => e -> (to.edata(e), to.source(e), to.target(e)) }.toMap
+
+    val bbChanged = to.bbdata != from.bbdata || to.bboxParent != from.bboxParent ||
+      to.inBBox != deletedVerts.foldLeft(from.inBBox) { (rel, v) => rel.unmapDom(v) }
+
+    GraphDelta(
+      deletedVerts = deletedVerts,
+      deletedEdges = deletedEdges,
+      vdata = vdata,
+      edges = edges,
+      bboxes = if (bbChanged) Some((to.bbdata, to.inBBox, to.bboxParent)) else None,
+      data = if (to.data != from.data) Some(to.data) else None
+    )
+  }
+
+  /**
+    * Vertices and edges are written as in Graph.toJson, under the same keys, so a delta against the empty graph reads
+    * as an ordinary graph. Deletions come first under their own keys, and "bang_boxes" is written (possibly null)
+    * only when the !-boxes change.
+    */
+  def toJson(delta: GraphDelta, thy: Theory = Theory.DefaultTheory): JsonObject = {
+    val (wireVertices, nodeVertices) = delta.vdata.foldLeft((JsonObject(), JsonObject())) {
+      case ((objW, objN), (v, w: WireV)) => (objW + (v.toString -> w.toJson), objN)
+      case ((objW, objN), (v, n: NodeV)) => (objW, objN + (v.toString -> n.toJson))
+    }
+
+    val (dirEdges, undirEdges) = delta.edges.foldLeft((JsonObject(), JsonObject())) {
+      case ((objD, objU), (e, (d, s, t))) =>
+        val entry = e.toString -> (d.toJson + ("src" -> s.toString, "tgt" -> t.toString))
+        if (d.isDirected) (objD + entry, objU) else (objD, objU + entry)
+    }
+
+    val json = JsonObject(
+      "delete_vertices" -> JsonArray(delta.deletedVerts.toSeq.sorted.map(_.toString)),
+      "delete_edges" -> JsonArray(delta.deletedEdges.toSeq.sorted.map(_.toString)),
+      "wire_vertices" -> wireVertices.asObjectOrKeyArray,
+      "node_vertices" -> nodeVertices.asObjectOrKeyArray,
+      "dir_edges" -> dirEdges,
+      "undir_edges" -> undirEdges
+    ).noEmpty
+
+    val withBBoxes = delta.bboxes match {
+      case Some((bbd, inBB, bbp)) =>
+        val bbGraph = Graph(bbdata = bbd, inBBox = inBB, bboxParent = bbp)
+        json + ("bang_boxes" -> (Graph.toJson(bbGraph, thy) ? "bang_boxes"))
+      case None => json
+    }
+
+    delta.data match {
+      case Some(d) => withBBoxes + ("graph_data" -> JsonObject("data" -> d.data, "annotation" -> d.annotation))
+      case None => withBBoxes
+    }
+  }
+
+  def fromJson(json: Json, thy: Theory = Theory.DefaultTheory): GraphDelta = try {
+    // read the additions as a graph, without the !-boxes, whose contents may not be among the added vertices
+    val added = Graph.fromJson(JsonObject(
+      "wire_vertices" -> (json ? "wire_vertices"),
+      "node_vertices" -> (json ? "node_vertices")), thy)
+
+    def readEdges(key: String, make: (JsonObject, JsonObject) => EData) =
+      (json ? key).asObject.map { case (e, obj) =>
+        val data = obj.getOrElse("data", thy.defaultEdgeData).asObject
+        val annotation = (obj ? "annotation").asObject
+        EName(e) -> (make(data, annotation), VName((obj / "src").stringValue), VName((obj / "tgt").stringValue))
+      }
+
+    val bboxes = json.get("bang_boxes").map { bbJson =>
+      val bbGraph = Graph.fromJson(JsonObject("bang_boxes" -> bbJson), thy)
+      (bbGraph.bbdata, bbGraph.inBBox, bbGraph.bboxParent)
+    }
+
+    val data = json.get("graph_data").map { d =>
+      GData((d ? "data").asObject, (d ? "annotation").asObject, thy)
+    }
+
+    GraphDelta(
+      deletedVerts = (json ? "delete_vertices").vectorValue.map(v => VName(v.stringValue)).toSet,
+      deletedEdges = (json ? "delete_edges").vectorValue.map(e => EName(e.stringValue)).toSet,
+      vdata = added.vdata,
+      edges = readEdges("dir_edges", DirEdge(_, _, thy)).toMap ++ readEdges("undir_edges", UndirEdge(_, _, thy)),
+      bboxes = bboxes,
+      data = data
+    )
+  } catch {
+    case e: JsonAccessException => throw new GraphLoadException(e.getMessage, e)
+  }
+}
@@ -0,0 +1,80 @@
+package quanto.data
+
+import java.io.File
+
+import quanto.util.json.Json
+
+import scala.util.Try
+
+/**
+  * Compares the heap used by Graph and CompactGraph on the graphs (and rule sides) in a folder of examples.
+  *
+  * Sizes are measured as the growth of the used heap after a collection, while holding a number of separately
+  * loaded copies of every graph. They are approximate, but stable enough to compare the two representations.
+  */
+object GraphFootprint {
+
+  case class Row(folder: String, graphs: Int, vertices: Int, graphBytes: Long, compactBytes: Long) {
+    def ratio: Double = if (compactBytes == 0) 0.0 else graphBytes.toDouble / compactBytes
+
+    override def toString: String =
+      f"$folder%-20s $graphs%6d $vertices%8d ${graphBytes / 1024}%10d KB ${compactBytes / 1024}%10d KB $ratio%6.2fx"
+  }
+
+  // theory named by a project file, or by the folder, or red_green
+  private def theoryFor(folder: File): Theory = {
+    val project = new File(folder, "main.qproject")
+    val name =
+      if (project.exists) Try((Json.parse(project) / "theory").stringValue).getOrElse(folder.getName)
+      else folder.getName
+    Try(Theory.fromFile(name)).getOrElse(Theory.fromFile("red_green"))
+  }
+
+  private def loadAll(folder: File, thy: Theory): Seq[Graph] =
+    Option(folder.listFiles).toSeq.flatten.sortBy(_.getName).flatMap { f =>
+      if (f.getName.endsWith(".qgraph")) Try(Seq(Graph.fromJson(Json.parse(f), thy))).getOrElse(Seq())
+      else if (f.getName.endsWith(".qrule")) Try {
+        val r = Rule.fromJson(Json.parse(f), thy)
+        Seq(r.lhs, r.rhs)
+      }.getOrElse(Seq())
+      else Seq()
+    }
+
+  private def usedHeap(): Long = {
+    val rt = Runtime.getRuntime
+    for (_ <- 1 to 3) System.gc()
+    rt.totalMemory - rt.freeMemory
+  }
+
+  // heap held by the result of build
+  private def measure(build: => Seq[AnyRef]): Long = {
+    val before = usedHeap()
+    val held = build
+    val after = usedHeap()
+    if (held.isEmpty) 0 else math.max(0L, after - before)
+  }
+
+  /**
+    * Measure each sub-folder of the given folder
+    *
+    * @param examples the folder to look in, by default the examples/ folder of a checkout
+    * @param copies   the number of copies of each graph to hold at once
+    */
+  def apply(examples: File = new File("../examples"), copies: Int = 20): Seq[Row] =
+    Option(examples.listFiles).toSeq.flatten.filter(_.isDirectory).sortBy(_.getName).flatMap { folder =>
+      val thy = theoryFor(folder)
+      val sample = loadAll(folder, thy)
+      if (sample.isEmpty) None
+      else {
+        val graphBytes = measure { (1 to copies).flatMap { _ => loadAll(folder, thy) } }
+        val compactBytes = measure { (1 to copies).flatMap { _ => loadAll(folder, thy).map(CompactGraph.fromGraph) } }
+        Some(Row(folder.getName, sample.size, sample.map(_.verts.size).sum, graphBytes / copies, compactBytes / copies))
+      }
+    }
+
+  /** A table of the measurements, for showing to the user */
+  def report(examples: File = new File("../examples")): String = {
+    val header = f"${"folder"}%-20s ${"graphs"}%6s ${"vertices"}%8s ${"Graph"}%13s ${"CompactGraph"}%13s ${"ratio"}%7s"
+    (header +: apply(examples).map(_.toString)).mkString("\n")
+  }
+}
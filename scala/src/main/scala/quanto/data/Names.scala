@@ -2,52 +2,150 @@ package quanto.data
 
 import quanto.util.json.JsonString
 
+import java.lang.ref.{ReferenceQueue, WeakReference}
+import java.util.concurrent.ConcurrentHashMap
+
 import scala.collection._
 
 
 trait Name[This <: Name[This]] extends Ordered[This] {
   val s: String
-  val (prefix, suffix) = {
-    var intIndex = s.length
-    while (intIndex > 0 && s.charAt(intIndex - 1) >= '0' && s.charAt(intIndex - 1) <= '9') intIndex -= 1
 
-    // preserve leading zeros
-    while (intIndex < s.length - 1 && s.charAt(intIndex) == '0') intIndex += 1
-
-    (
-      s.substring(0, intIndex),
-      if (intIndex == s.length) -1 else s.substring(intIndex, s.length).toInt
-    )
+  // the sort key, computed once per name: a prefix (interned, so it can usually be compared by reference) and a
+  // numerical suffix, or -1 if there is none
+  val prefix: String = s.substring(0, Name.suffixStart(s)).intern()
+  val suffix: Int = {
+    val i = Name.suffixStart(s)
+    if (i == s.length) -1 else s.substring(i).toInt
   }
-  protected val mk: String => This
 
-  def compare(that: This): Int = if (prefix < that.prefix) -1
-  else if (prefix > that.prefix) 1
-  else suffix compare that.suffix
+  protected def mk(s: String): This
+
+  def compare(that: This): Int =
+    if (this eq that) 0
+    else if ((prefix eq that.prefix) || prefix == that.prefix) Integer.compare(suffix, that.suffix)
+    else if (prefix < that.prefix) -1
+    else 1
 
   def succ: This = mk(prefix + (suffix + 1))
 
+  def withSuffix(i: Int): This = mk(prefix + i)
+
+  // names are interned, so equal names are almost always the same object. Names made with copy are not.
+  override def equals(that: Any): Boolean = that match {
+    case n: AnyRef => (this eq n) || (getClass == n.getClass && s == n.asInstanceOf[Name[This]].s)
+    case _ => false
+  }
+
+  override def hashCode: Int = s.hashCode
+
   override def toString: String = s
 }
 
+object Name {
+  // the index where the numerical suffix of s starts, preserving leading zeros
+  private def suffixStart(s: String): Int = {
+    var intIndex = s.length
+    while (intIndex > 0 && s.charAt(intIndex - 1) >= '0' && s.charAt(intIndex - 1) <= '9') intIndex -= 1
+    while (intIndex < s.length - 1 && s.charAt(intIndex) == '0') intIndex += 1
+    intIndex
+  }
+}
+
+/**
+  * A global table of interned names, which can be used from many threads at once. Looking up a name which is already
+  * in the table takes no lock. Names are only held weakly, so those which are no longer used anywhere can be
+  * collected, and their entries are then dropped.
+  */
+class NameTable[N <: AnyRef](mk: String => N) {
+  private val queue = new ReferenceQueue[N]()
+  private val table = new ConcurrentHashMap[String, Entry]()
+
+  private class Entry(val key: String, n: N) extends WeakReference[N](n, queue)
+
+  def apply(s: String): N = {
+    val entry = table.get(s)
+    val existing = if (entry == null) null.asInstanceOf[N] else entry.get
+    if (existing != null) existing
+    else {
+      expunge()
+      // another thread may be adding the same name, so the check is repeated atomically
+      var n = null.asInstanceOf[N]
+      table.compute(s, { (_: String, old: Entry) =>
+        val x = if (old == null) null.asInstanceOf[N] else old.get
+        if (x != null) {
+          n = x
+          old
+        } else {
+          n = mk(s)
+          new Entry(s, n)
+        }
+      })
+      n
+    }
+  }
+
+  /** The number of names currently in the table, including some which may have been collected */
+  def size: Int = table.size
+
+  private def expunge(): Unit = {
+    var r = queue.poll()
+    while (r != null) {
+      val entry = r.asInstanceOf[Entry]
+      table.remove(entry.key, entry)
+      r = queue.poll()
+    }
+  }
+}
+
 case class GName(s: String) extends Name[GName] {
-  protected val mk = GName(_)
+  protected def mk(s: String): GName = GName(s)
+}
+
+object GName extends (String => GName) {
+  val table = new NameTable[GName](new GName(_))
+
+  def apply(s: String): GName = table(s)
 }
 
 case class VName(s: String) extends Name[VName] {
-  protected val mk = VName(_)
+  protected def mk(s: String): VName = VName(s)
+}
+
+object VName extends (String => VName) {
+  val table = new NameTable[VName](new VName(_))
+
+  def apply(s: String): VName = table(s)
 }
 
 case class EName(s: String) extends Name[EName] {
-  protected val mk = EName(_)
+  protected def mk(s: String): EName = EName(s)
+}
+
+object EName extends (String => EName) {
+  val table = new NameTable[EName](new EName(_))
+
+  def apply(s: String): EName = table(s)
 }
 
 case class BBName(s: String) extends Name[BBName] {
-  protected val mk = BBName(_)
+  protected def mk(s: String): BBName = BBName(s)
+}
+
+object BBName extends (String => BBName) {
+  val table = new NameTable[BBName](new BBName(_))
+
+  def apply(s: String): BBName = table(s)
 }
 
 case class DSName(s: String) extends Name[DSName] {
-  protected val mk = DSName(_)
+  protected def mk(s: String): DSName = DSName(s)
+}
+
+object DSName extends (String => DSName) {
+  val table = new NameTable[DSName](new DSName(_))
+
+  def apply(s: String): DSName = table(s)
 }
 
 class DuplicateNameException[N <: Name[N]](ty: String, val name: N)
@@ -84,6 +182,46 @@ object Names {
     }
   }
 
+  /**
+    * Persistent per-prefix high-water marks for a set of names, along with the greatest name, so fresh names can be
+    * found in constant time. These are only hints: every candidate is checked against the names actually in use, so
+    * an allocator which has missed some names (e.g. after a renaming) still gives fresh names, it just takes longer
+    * to find them.
+    */
+  class NameAllocator[N <: Name[N]] private(marks: Map[String, Int], maxName: Option[N]) {
+    def +(n: N): NameAllocator[N] = {
+      val mark = marks.getOrElse(n.prefix, 0)
+      if (n.suffix < mark && maxName.exists(n <= _)) this
+      else new NameAllocator(
+        if (n.suffix + 1 > mark) marks + (n.prefix -> (n.suffix + 1)) else marks,
+        if (maxName.forall(_ < n)) Some(n) else maxName)
+    }
+
+    def ++(ns: TraversableOnce[N]): NameAllocator[N] = ns.foldLeft(this)(_ + _)
+
+    // the same as NameSet.fresh, if no names have been removed
+    def fresh(used: N => Boolean)(implicit default: N): N = maxName match {
+      case Some(n) => freshWithSuggestion(n.succ, used)
+      case None => freshWithSuggestion(default, used)
+    }
+
+    /**
+      * The suggestion s, if it is not used. Otherwise, rather than walking up from s, jump straight past every name
+      * with the prefix of s.
+      */
+    def freshWithSuggestion(s: N, used: N => Boolean): N =
+      if (!used(s)) s
+      else {
+        var t = s.withSuffix(math.max(marks.getOrElse(s.prefix, 0), s.suffix + 1))
+        while (used(t)) t = t.succ
+        t
+      }
+  }
+
+  object NameAllocator {
+    def apply[N <: Name[N]](names: TraversableOnce[N]): NameAllocator[N] = new NameAllocator[N](Map(), None) ++ names
+  }
+
   //  class NamePFun[N <: Name[N], T](val pf: PFun[N,T]) {
   //    def fresh(implicit default: N) : N = if (pf.isEmpty) default else pf.dom.max.succ
   //    def freshWithSuggestion(s : N) : N = {
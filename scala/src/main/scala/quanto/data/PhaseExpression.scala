@@ -77,17 +77,7 @@ class PhaseExpression(const: Rational,
     sr => sr._1 -> (if (finiteField) mod(sr._2) else sr._2)
   ).filterNot(sr => sr._2.isZero)
 
-  def mod(r: Rational): Rational = if (modulus.nonEmpty) {
-    val reduced = Rational(r.n % (modulus.get * r.d), r.d)
-    // Recall that -1 % 2 is still -1, for reasons.
-    if (reduced < 0) {
-      reduced + modulus.get
-    } else {
-      reduced
-    }
-  } else {
-    r
-  }
+  def mod(r: Rational): Rational = if (modulus.nonEmpty) r mod modulus.get else r
 
   override def equals(that: Any): Boolean = that match {
     case e: PhaseExpression =>
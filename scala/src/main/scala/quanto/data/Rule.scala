@@ -89,6 +89,26 @@ object Rule {
       throw RuleLoadException("Unexpected error reading JSON", e)
   }
 
+  /** Read a rule from a file, without building a Json tree for the whole file */
+  def fromFile(f: java.io.File, thy: Theory = Theory.DefaultTheory, description: Option[RuleDesc] = None): Rule = {
+    val in = new Json.Input(f)
+    try {
+      StreamingJson.readRule(in, thy, description)
+    } finally {
+      in.close()
+    }
+  }
+
+  /** Write a rule to a file, with the same contents as toJson(rule, thy).writeTo(f) */
+  def toFile(rule: Rule, f: java.io.File, thy: Theory = Theory.DefaultTheory) {
+    val out = new Json.Output(f)
+    try {
+      StreamingJson.writeRule(out, rule, thy)
+    } finally {
+      out.close()
+    }
+  }
+
   def toJson(rule: Rule, thy: Theory = Theory.DefaultTheory): Json = {
     val obj = JsonObject(
       "lhs" -> Graph.toJson(rule.lhs, thy),
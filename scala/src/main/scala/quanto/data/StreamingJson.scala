@@ -0,0 +1,362 @@
+package quanto.data
+
+import com.fasterxml.jackson.core.{JsonToken, JsonParseException => JacksonParseException}
+import quanto.util.json._
+
+import scala.collection.mutable
+
+/**
+  * Reads graphs, rules and derivations straight from a JsonParser, and writes them straight to a JsonGenerator.
+  *
+  * Graph.fromJson(json) needs a Json tree for the whole document, and rebuilds the graph for every vertex and edge it
+  * adds, while Graph.toJson builds the whole tree before anything is written. Here, only small parts of a document
+  * (the data of a single vertex, edge or !-box) become Json trees, and a graph is built once, at the end.
+  *
+  * The output is byte-for-byte the output of writing the tree built by the corresponding toJson, including the
+  * order of the keys in each object (which, for a JsonObject, is the iteration order of its Map). The readers accept
+  * exactly what the fromJson methods accept.
+  */
+object StreamingJson {
+
+  // the order in which a JsonObject writes the given keys, when they are added in the given order
+  private def keyOrder(keys: String*): Seq[String] =
+    keys.foldLeft(Map[String, Unit]()) { (m, k) => m + (k -> (())) }.keys.toVector
+
+  // entries in the order a JsonObject writes them, when they are added one at a time in the given order
+  private def inJsonOrder[A](entries: Iterator[(String, A)]): Iterable[(String, A)] =
+    entries.foldLeft(Map[String, A]()) { _ + _ }
+
+  private val GraphKeys =
+    keyOrder("wire_vertices", "node_vertices", "dir_edges", "undir_edges", "bang_boxes", "data", "annotation")
+
+  private val StepKeys = keyOrder("name", "parent", "rule_name", "rule", "rule_variant", "graph")
+
+  private val DeltaStepKeys = keyOrder("name", "parent", "rule_name", "rule", "rule_variant", "graph_delta")
+
+  // the non-empty sections of a graph, in the order Graph.toJson writes them
+  private def graphSections(graph: Graph): Seq[(String, Json.Output => Unit)] = {
+    lazy val wires = inJsonOrder(graph.vdata.iterator.collect { case (v, d: WireV) => v.toString -> (d: VData) })
+    lazy val nodes = inJsonOrder(graph.vdata.iterator.collect { case (v, d: NodeV) => v.toString -> (d: VData) })
+    lazy val dirEdges = inJsonOrder(graph.edata.iterator.collect { case (e, d) if d.isDirected => e.toString -> e })
+    lazy val undirEdges = inJsonOrder(graph.edata.iterator.collect { case (e, d) if !d.isDirected => e.toString -> e })
+    lazy val bboxes = inJsonOrder(graph.bbdata.keysIterator.map { bb => bb.toString -> bb })
+
+    GraphKeys.flatMap { key =>
+      val section: Option[Json.Output => Unit] = key match {
+        case "wire_vertices" => if (wires.isEmpty) None else Some(writeVertices(_, wires))
+        case "node_vertices" => if (nodes.isEmpty) None else Some(writeVertices(_, nodes))
+        case "dir_edges" => if (dirEdges.isEmpty) None else Some(writeEdges(_, graph, dirEdges))
+        case "undir_edges" => if (undirEdges.isEmpty) None else Some(writeEdges(_, graph, undirEdges))
+        case "bang_boxes" => if (bboxes.isEmpty) None else Some(writeBBoxes(_, graph, bboxes))
+        case "data" => if (graph.data.data.isEmpty) None else Some((o: Json.Output) => graph.data.data.writeTo(o))
+        case "annotation" =>
+          if (graph.data.annotation.isEmpty) None else Some((o: Json.Output) => graph.data.annotation.writeTo(o))
+      }
+      section.map(key -> _)
+    }
+  }
+
+  // as JsonObject.asObjectOrKeyArray, a list of names if no vertex has any data to write
+  private def writeVertices(out: Json.Output, vs: Iterable[(String, VData)]) {
+    val g = out.g
+    if (vs.forall(_._2.toJson.isEmpty)) {
+      g.writeStartArray()
+      for (v <- vs.map(_._1).toVector.sorted) g.writeString(v)
+      g.writeEndArray()
+    } else {
+      g.writeStartObject()
+      for ((v, d) <- vs) {
+        g.writeFieldName(v)
+        d.toJson.writeTo(out)
+      }
+      g.writeEndObject()
+    }
+  }
+
+  private def writeEdges(out: Json.Output, graph: Graph, es: Iterable[(String, EName)]) {
+    val g = out.g
+    g.writeStartObject()
+    for ((s, e) <- es) {
+      g.writeFieldName(s)
+      (graph.edata(e).toJson + ("src" -> graph.source(e).toString, "tgt" -> graph.target(e).toString)).writeTo(out)
+    }
+    g.writeEndObject()
+  }
+
+  private def writeBBoxes(out: Json.Output, graph: Graph, bbs: Iterable[(String, BBName)]) {
+    val g = out.g
+    g.writeStartObject()
+    for ((s, bb) <- bbs) {
+      val d = graph.bbdata(bb)
+      val contents = graph.contents(bb)
+      g.writeFieldName(s)
+      g.writeStartObject()
+      if (contents.nonEmpty) {
+        g.writeFieldName("contents")
+        g.writeStartArray()
+        for (v <- contents) g.writeString(v.toString)
+        g.writeEndArray()
+      }
+      for (p <- graph.bboxParent.get(bb)) {
+        g.writeFieldName("parent")
+        g.writeString(p.toString)
+      }
+      if (d.data.nonEmpty) {
+        g.writeFieldName("data")
+        d.data.writeTo(out)
+      }
+      if (d.annotation.nonEmpty) {
+        g.writeFieldName("annotation")
+        d.annotation.writeTo(out)
+      }
+      g.writeEndObject()
+    }
+    g.writeEndObject()
+  }
+
+  private def writeSections(out: Json.Output, sections: Seq[(String, Json.Output => Unit)]) {
+    out.g.writeStartObject()
+    for ((key, write) <- sections) {
+      out.g.writeFieldName(key)
+      write(out)
+    }
+    out.g.writeEndObject()
+  }
+
+  /** Write a graph, as Graph.toJson(graph, thy).writeTo(out) */
+  def writeGraph(out: Json.Output, graph: Graph, thy: Theory = Theory.DefaultTheory) {
+    writeSections(out, graphSections(graph))
+  }
+
+  /** Write a rule, as Rule.toJson(rule, thy).writeTo(out) */
+  def writeRule(out: Json.Output, rule: Rule, thy: Theory = Theory.DefaultTheory) {
+    writeSections(out, Seq[(String, Json.Output => Unit)](
+      "lhs" -> (writeGraph(_, rule.lhs, thy)),
+      "rhs" -> (writeGraph(_, rule.rhs, thy))) ++
+      rule.derivation.map { d => "derivation" -> ((o: Json.Output) => o.g.writeString(d)) })
+  }
+
+  private def writeStep(out: Json.Output, derive: Derivation, s: DSName, thy: Theory, deltas: Boolean) {
+    val step = derive.steps(s)
+    writeSections(out, (if (deltas) DeltaStepKeys else StepKeys).map { key =>
+      key -> (key match {
+        case "name" => (o: Json.Output) => o.g.writeString(step.name.toString)
+        case "parent" => (o: Json.Output) => derive.parentMap.get(s) match {
+          case Some(p) => o.g.writeString(p.toString)
+          case None => o.g.writeNull()
+        }
+        case "rule_name" => (o: Json.Output) => o.g.writeString(step.ruleName)
+        case "rule" => writeRule(_: Json.Output, step.rule, thy)
+        case "rule_variant" =>
+          (o: Json.Output) => o.g.writeString(if (step.rule.description.inverse) "inverse" else "forwards")
+        case "graph" => writeGraph(_: Json.Output, step.graph, thy)
+        case "graph_delta" => (o: Json.Output) => GraphDelta.toJson(derive.deltaAt(s), thy).writeTo(o)
+      })
+    })
+  }
+
+  /** Write a derivation, as Derivation.toJson(derive, thy, deltas).writeTo(out) */
+  def writeDerivation(out: Json.Output, derive: Derivation, thy: Theory = Theory.DefaultTheory,
+                      deltas: Boolean = false) {
+    val rootSections = graphSections(derive.root)
+    val steps = inJsonOrder(derive.steps.keysIterator.map { s => s.toString -> s })
+    val heads = derive.heads.map(_.toString)
+
+    val sections = Seq[(String, Json.Output => Unit)](
+      "root" -> (writeSections(_, rootSections)),
+      "steps" -> { o: Json.Output =>
+        o.g.writeStartObject()
+        for ((key, s) <- steps) {
+          o.g.writeFieldName(key)
+          writeStep(o, derive, s, thy, deltas)
+        }
+        o.g.writeEndObject()
+      },
+      "heads" -> { o: Json.Output =>
+        o.g.writeStartArray()
+        for (h <- heads) o.g.writeString(h)
+        o.g.writeEndArray()
+      })
+
+    // as JsonObject.noEmpty
+    val nonEmpty = Map("root" -> rootSections.nonEmpty, "steps" -> steps.nonEmpty, "heads" -> heads.nonEmpty)
+    writeSections(out, sections.filter { case (key, _) => nonEmpty(key) })
+  }
+
+  private def next(in: Json.Input): JsonToken =
+    try {
+      in.p.nextToken()
+    } catch {
+      case e: JacksonParseException => throw new JsonParseException("Error while parsing", e)
+    }
+
+  // move to the first token, if the parser has not been started yet
+  private def start(in: Json.Input) {
+    if (in.p.getCurrentToken == null) next(in)
+  }
+
+  // call f with each field of the object at the current token, leaving the parser on the value of that field. As
+  // Json.asObject, null is read as an empty object.
+  private def readFields(in: Json.Input)(f: String => Unit) {
+    start(in)
+    val p = in.p
+    if (p.getCurrentToken == JsonToken.START_OBJECT) {
+      while (next(in) == JsonToken.FIELD_NAME) {
+        val field = p.getCurrentName
+        next(in)
+        f(field)
+      }
+    } else if (p.getCurrentToken != JsonToken.VALUE_NULL) {
+      throw new JsonAccessException("Expected: JsonObject", Json.readValue(in))
+    }
+  }
+
+  // call f with each entry of the section at the current token. As Json.asObject, this accepts an object, a list of
+  // names (each with empty data) or null.
+  private def readEntries(in: Json.Input)(f: (String, Json) => Unit) {
+    if (in.p.getCurrentToken == JsonToken.START_OBJECT) readFields(in) { k => f(k, Json.readValue(in)) }
+    else Json.readValue(in).asObject.foreach { case (k, v) => f(k, v) }
+  }
+
+  private def skip(in: Json.Input) {
+    in.p.skipChildren()
+  }
+
+  /** Read a graph, as Graph.fromJson(Json.parse(in), thy) */
+  def readGraph(in: Json.Input, thy: Theory = Theory.DefaultTheory): Graph = try {
+    val wires = mutable.ArrayBuffer[(VName, VData)]()
+    val nodes = mutable.ArrayBuffer[(VName, VData)]()
+    val dirEdges = mutable.ArrayBuffer[(EName, EData, VName, VName)]()
+    val undirEdges = mutable.ArrayBuffer[(EName, EData, VName, VName)]()
+    var bboxes: Json = JsonNull
+    var data: Json = JsonNull
+    var annotation: Json = JsonNull
+
+    def edge(e: String, json: Json, make: (JsonObject, JsonObject) => EData) =
+      (EName(e), make(json.getOrElse("data", thy.defaultEdgeData).asObject, (json ? "annotation").asObject),
+        VName((json / "src").stringValue), VName((json / "tgt").stringValue))
+
+    readFields(in) {
+      case "wire_vertices" => readEntries(in) { (v, json) => wires += VName(v) -> WireV.fromJson(json, thy) }
+      case "node_vertices" => readEntries(in) { (v, json) => nodes += VName(v) -> NodeV.fromJson(json, thy) }
+      case "dir_edges" => readEntries(in) { (e, json) => dirEdges += edge(e, json, DirEdge(_, _, thy)) }
+      case "undir_edges" => readEntries(in) { (e, json) => undirEdges += edge(e, json, UndirEdge(_, _, thy)) }
+      case "bang_boxes" => bboxes = Json.readValue(in)
+      case "data" => data = Json.readValue(in)
+      case "annotation" => annotation = Json.readValue(in)
+      case _ => skip(in)
+    }
+
+    // vertices and edges are added in the same order as Graph.fromJson adds them
+    val vdata = (wires.iterator ++ nodes.iterator).foldLeft(Map[VName, VData]()) { case (m, (v, d)) =>
+      if (m.contains(v)) throw new DuplicateVertexNameException(v)
+      m + (v -> d)
+    }
+
+    val edges = dirEdges ++ undirEdges
+    val edata = edges.foldLeft(Map[EName, EData]()) { case (m, (e, d, s, t)) =>
+      if (m.contains(e)) throw new DuplicateEdgeNameException(e)
+      if (!vdata.contains(s)) throw new GraphException("Edge: " + e + " has no endpoint: " + s + " in graph")
+      if (!vdata.contains(t)) throw new GraphException("Edge: " + e + " has no endpoint: " + t + " in graph")
+      m + (e -> d)
+    }
+
+    val graph = Graph(
+      data = GData(data.asObject, annotation.asObject, thy),
+      vdata = vdata,
+      edata = edata,
+      source = PFun(edges.map { case (e, _, s, _) => e -> s }: _*),
+      target = PFun(edges.map { case (e, _, _, t) => e -> t }: _*))
+
+    Graph.addBBoxesFromJson(graph, bboxes)
+  } catch {
+    case e: JsonAccessException =>
+      throw new GraphLoadException(e.getMessage, e)
+    case e: JsonParseException => throw e
+    case e: Exception =>
+      e.printStackTrace()
+      throw new GraphLoadException("Unexpected error reading JSON", e)
+  }
+
+  /** Read a rule, as Rule.fromJson(Json.parse(in), thy, description) */
+  def readRule(in: Json.Input, thy: Theory = Theory.DefaultTheory, description: Option[RuleDesc] = None): Rule = try {
+    var lhs: Option[Graph] = None
+    var rhs: Option[Graph] = None
+    var derivation: Option[String] = None
+    var desc = RuleDesc()
+
+    readFields(in) {
+      case "lhs" => lhs = Some(readGraph(in, thy))
+      case "rhs" => rhs = Some(readGraph(in, thy))
+      case "derivation" => Json.readValue(in) match {
+        case JsonString(s) => derivation = Some(s)
+        case _ =>
+      }
+      case "description" => Json.readValue(in) match {
+        case JsonString(s) => desc = RuleDesc(s)
+        case _ =>
+      }
+      case _ => skip(in)
+    }
+
+    Rule(_lhs = lhs.getOrElse(throw RuleLoadException("Key not found: lhs")),
+      _rhs = rhs.getOrElse(throw RuleLoadException("Key not found: rhs")),
+      derivation = derivation,
+      description = description.getOrElse(desc))
+  } catch {
+    case e: RuleLoadException => throw e
+    case e: JsonAccessException =>
+      throw RuleLoadException(e.getMessage, e)
+    case e: GraphLoadException =>
+      throw RuleLoadException("Graph: " + e.getMessage, e)
+    case e: JsonParseException => throw e
+    case e: Exception =>
+      e.printStackTrace()
+      throw RuleLoadException("Unexpected error reading JSON", e)
+  }
+
+  /**
+    * Read a derivation, as Derivation.fromJson(Json.parse(in), thy). The graph of each step is read straight into a
+    * Graph, and everything else about the step into a small Json tree.
+    */
+  def readDerivation(in: Json.Input, thy: Theory = Theory.DefaultTheory): Derivation = try {
+    var root: Option[Graph] = None
+    var steps = Map[String, Json]()
+    val graphs = mutable.Map[String, Graph]()
+    var heads: Json = JsonNull
+
+    readFields(in) {
+      case "root" =>
+        root = Some(readGraph(in, thy))
+      case "steps" if in.p.getCurrentToken == JsonToken.START_OBJECT => readFields(in) { s =>
+        var step = Map[String, Json]()
+        readFields(in) {
+          case "graph" => graphs(s) = try {
+            readGraph(in, thy)
+          } catch {
+            case e: GraphLoadException =>
+              throw DerivationLoadException("Graph at step '" + s + "': " + e.getMessage, e)
+          }
+          case key => step += key -> Json.readValue(in)
+        }
+        steps += s -> JsonObject(step)
+      }
+      case "steps" => readEntries(in) { (s, json) => steps += s -> json }
+      case "heads" => heads = Json.readValue(in)
+      case _ => skip(in)
+    }
+
+    Derivation.fromParts(root.getOrElse(throw DerivationLoadException("Key not found: root")), steps, heads) {
+      (s, stepJson, parent) => DStep.fromJson(s, stepJson, thy, Some(parent), graphs.remove(s.toString))
+    }
+  } catch {
+    case e: JsonAccessException => throw DerivationLoadException(e.getMessage, e)
+    case e: GraphLoadException =>
+      throw DerivationLoadException("Graph 'root': " + e.getMessage, e)
+    case e: DerivationLoadException => throw e
+    case e: JsonParseException => throw e
+    case e: Exception =>
+      e.printStackTrace()
+      throw DerivationLoadException("Error reading JSON", e)
+  }
+}
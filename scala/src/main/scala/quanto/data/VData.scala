@@ -78,16 +78,15 @@ case class NodeV(
   // and store it in "phaseData". If it should have a value, but parsing fails, set
   // it to empty.
   lazy val (phaseData: CompositeExpression, hasValue: Boolean) =
-  try {
-    val phaseTypes = theory.vertexTypes(typ).value.typ
-    val phaseValues = CompositeExpression.parseKnowingTypes(value, phaseTypes)
-    (CompositeExpression(phaseTypes, phaseValues), true)
-  }
-  catch {
-    // YOU WILL END UP HERE IF THE PARSER WAS HANDED AN UNFAMILIAR VALUETYPE
-    // See uses of PhaseParseException to pinpoint where
-    case _: PhaseParseException => (CompositeExpression(Vector(), Vector()), false)
-  }
+    try {
+      val phaseTypes = theory.vertexTypes(typ).value.typ
+      (CompositeExpression.parseCached(value, phaseTypes), true)
+    }
+    catch {
+      // YOU WILL END UP HERE IF THE PARSER WAS HANDED AN UNFAMILIAR VALUETYPE
+      // See uses of PhaseParseException to pinpoint where
+      case _: PhaseParseException => (CompositeExpression(Vector(), Vector()), false)
+    }
 
   //  def label = data.getOrElse("label","").stringValue
   def typeInfo = theory.vertexTypes(typ)
@@ -95,6 +94,16 @@ case class NodeV(
   def withCoord(c: (Double, Double)): NodeV =
     copy(annotation = annotation + ("coord" -> JsonArray(c._1, c._2)))
 
+  /**
+    * Create a copy of the current vertex with the given, already parsed, value. The value is written into the data as
+    * a string, and the parse is remembered (see CompositeExpression.parseCached), so it need not be parsed back.
+    */
+  def withPhaseData(p: CompositeExpression): NodeV = {
+    val s = p.toString
+    CompositeExpression.rememberParse(s, p)
+    withValue(s)
+  }
+
   /** Create a copy of the current vertex with the new value */
   def withValue(s: String): NodeV =
     copy(data = data.setPath("$.value", s).asObject)
@@ -2,7 +2,6 @@ package quanto.gui
 
 import java.io.File
 import quanto.data._
-import quanto.util.json.Json
 import quanto.layout._
 import quanto.util.FileHelper.printToFile
 
@@ -38,14 +37,12 @@ class DerivationDocument(panel: DerivationPanel) extends Document {
   def stepRef(s: DSName) = new StepRef(s)
 
   protected def loadDocument(f: File) {
-    val json = Json.parse(f)
-    _derivation = Derivation.fromJson(json, panel.theory)
+    _derivation = Derivation.fromFile(f, panel.theory)
     storedDerivation = _derivation
   }
 
   protected def saveDocument(f: File)  {
-    val json = Derivation.toJson(_derivation, panel.theory)
-    json.writeTo(f)
+    Derivation.toFile(_derivation, f, panel.theory)
     storedDerivation = _derivation
   }
 
@@ -6,6 +6,7 @@ import quanto.util.swing.ToolBar
 import quanto.gui.graphview.GraphView
 import scala.swing.event._
 import javax.swing.ImageIcon
+import java.awt.{Font => AWTFont}
 import quanto.gui.histview.HistView
 
 case class RequestReRunSimproc() extends Event
@@ -139,7 +140,7 @@ class DerivationPanel(val project: Project)
       ), BorderPanel.Position.South)
     }
 
-    add(new SplitPane(Orientation.Horizontal, topPane, PreviewScrollPane), BorderPanel.Position.Center)
+    add(new SplitPane(Orientation.Horizontal, topPane, BottomPane), BorderPanel.Position.Center)
   }
 
   val SimplifyPane = new BorderPanel {
@@ -169,10 +170,30 @@ class DerivationPanel(val project: Project)
       tooltip = "Stop"
     }
 
+    // by default, each step is laid out when it is first shown or saved
+    val LayoutFinalOnly = new CheckBox("Lay out final graph only") {
+      tooltip = "Leave the intermediate graphs as the simproc made them"
+    }
+
+    // counters for each rule and simproc, shown while the simproc runs (see Instrumentation)
+    val CollectStats = new CheckBox("Collect statistics") {
+      tooltip = "Count the matches, rewrites and layouts made by each rule, and the time they take"
+    }
+
+    val Stats = new TextArea {
+      editable = false
+      font = new Font("Monospaced", AWTFont.PLAIN, 12)
+    }
+    val StatsScrollPane = new ScrollPane(Stats)
+
+    val BottomPane = new TabbedPane
+    BottomPane.pages += new TabbedPane.Page("Preview", PreviewScrollPane)
+    BottomPane.pages += new TabbedPane.Page("Statistics", StatsScrollPane)
+
     val topPane = new BorderPanel {
       add(SimprocsScrollPane, BorderPanel.Position.Center)
       add(new FlowPanel(FlowPanel.Alignment.Left)(
-        RefreshButton, SimplifyButton, StopButton
+        RefreshButton, SimplifyButton, StopButton, LayoutFinalOnly, CollectStats
       ), BorderPanel.Position.South)
     }
 
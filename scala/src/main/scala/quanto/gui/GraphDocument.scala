@@ -31,15 +31,13 @@ class GraphDocument(val parent: Component, theory: Theory) extends Document with
   }
 
   protected def loadDocument(f: File) {
-    val json = Json.parse(f)
-    storedGraph = Graph.fromJson(json, theory)
+    storedGraph = Graph.fromFile(f, theory)
     graph = storedGraph
     publish(GraphReplaced(this, clearSelection = true))
   }
 
   protected def saveDocument(f: File) {
-    val json = Graph.toJson(graph, theory)
-    json.writeTo(f)
+    Graph.toFile(graph, f, theory)
     storedGraph = graph
   }
 
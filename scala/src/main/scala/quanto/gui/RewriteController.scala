@@ -49,9 +49,9 @@ class RewriteController(panel: DerivationPanel) extends Publisher {
 
     for (rd <- rules) {
       try {
-        val rule = Rule.fromJson(Json.parse(new File(panel.project.rootFolder + "/" + rd.name + ".qrule")), theory)
-        val ms = Matcher.initialise(if (rd.inverse) rule.rhs else rule.lhs, panel.LhsView.graph, sel)
-        pullRewrite(ms, rd, rule)
+        val rule = Rule.fromFile(new File(panel.project.rootFolder + "/" + rd.name + ".qrule"), theory)
+        val matches = Matcher.matchIterator(if (rd.inverse) rule.inverse else rule, panel.LhsView.graph, sel)
+        pullRewrite(matches, rd, rule)
       } catch {
         case RuleLoadException(message, _) =>
           UserAlerts.alert(s"Could not load ${rd.name}, error: $message", Elevation.WARNING)
@@ -103,11 +103,12 @@ class RewriteController(panel: DerivationPanel) extends Publisher {
 //    }
 //  }
 
-  private def pullRewrite(ms: MatchState, rd: RuleDesc, rule: Rule) {
-    val resp: Future[Option[(Match, Option[MatchState])]] = Future {
-      try { ms.nextMatch() } catch { case e: Throwable => e.printStackTrace(); throw e } }
+  private def pullRewrite(matches: MatchIterator, rd: RuleDesc, rule: Rule) {
+    val resp: Future[Option[Match]] = Future {
+      try { if (matches.hasNext) Some(matches.next()) else None }
+      catch { case e: Throwable => e.printStackTrace(); throw e } }
     resp.onComplete {
-      case Success(Some((m, msOpt))) =>
+      case Success(Some(m)) =>
         val (graph1, rule1) = Rewriter.rewrite(m, if (rd.inverse) rule.lhs else rule.rhs)
 
         val step = DStep(
@@ -123,7 +124,7 @@ class RewriteController(panel: DerivationPanel) extends Publisher {
           resultSet += rd -> step
 
           if (resultSet.numResults(rd) < 50) {
-            msOpt match { case Some(ms1) => pullRewrite(ms1, rd, rule); case None => }
+            pullRewrite(matches, rd, rule)
           }
         }
 
@@ -3,7 +3,6 @@ package quanto.gui
 import java.io.File
 
 import quanto.data._
-import quanto.util.json.Json
 
 import scala.swing.Component
 import quanto.util.FileHelper.printToFile
@@ -38,8 +37,7 @@ class RuleDocument(val parent: Component, theory: Theory) extends Document {
     storedRule.rhs != rhsRef.graph
 
   protected def loadDocument(f: File) {
-    val json = Json.parse(f)
-    val r = Rule.fromJson(json, theory)
+    val r = Rule.fromFile(f, theory)
     lhsRef.graph = r.lhs
     rhsRef.graph = r.rhs
     derivation = r.derivation
@@ -50,8 +48,7 @@ class RuleDocument(val parent: Component, theory: Theory) extends Document {
 
   protected def saveDocument(f: File)  {
     val r = Rule(lhsRef.graph, rhsRef.graph, derivation)
-    val json = Rule.toJson(r, theory)
-    json.writeTo(f)
+    Rule.toFile(r, f, theory)
     storedRule = r
   }
 
@@ -6,6 +6,8 @@ import quanto.data._
 import quanto.data.Names._
 import quanto.util.json._
 import akka.pattern.ask
+import quanto.layout.RewriteLayout
+import quanto.rewrite.{Instrumentation, Simproc}
 import quanto.util.UserAlerts
 
 import scala.concurrent.ExecutionContext.Implicits.global
@@ -18,6 +20,8 @@ class SimplifyController(panel: DerivationPanel) extends Publisher {
   implicit val timeout = QuantoDerive.timeout
   private var simpId = 0
   private var activeSimp: Option[Future[Boolean]] = None
+  // the least time in milliseconds between showing steps while a simproc runs
+  private val ShowInterval = 1000
 
 
 
@@ -36,6 +40,11 @@ class SimplifyController(panel: DerivationPanel) extends Publisher {
 
   def theory = panel.theory
 
+  private def showStats(session: Instrumentation.Session) {
+    val report = session.report
+    Swing.onEDT { panel.SimplifyPane.Stats.text = report }
+  }
+
   def refreshSimprocs() {
     simpId += 1
     Swing.onEDT {
@@ -68,25 +77,60 @@ class SimplifyController(panel: DerivationPanel) extends Publisher {
         UserAlerts.alert(sourceMessage)
         val processReporting = new SelfAlertingProcess("Simproc: " + simpName)
         val simpIdAtStart = simpId
+        val start = panel.LhsView.graph
+        val finalOnly = panel.SimplifyPane.LayoutFinalOnly.selected
+        val collectStats = panel.SimplifyPane.CollectStats.selected
+        val session = if (collectStats) Some(new Instrumentation.Session) else None
         val res = Future[Boolean] {
-          val iteratedSimp : Iterator[(Graph, Rule)] = simproc.simp(panel.LhsView.graph)
+          val iteratedSimp : Iterator[(Graph, Rule)] = session match {
+            case Some(s) => s.steps(simpName, simproc.simp(start))
+            case None => simproc.simp(start)
+          }
+          val layoutTimer = session.map(_.layoutTimer).getOrElse(StepGraph.NoTimer)
+          var previous = start
+          var lastShown = 0L
+          var lastStep: Option[DSName] = None
+
+          def show(s: DSName) {
+            // lay out here, rather than on the EDT
+            panel.document.derivation.steps(s).graph
+            lastShown = System.currentTimeMillis
+            Swing.onEDT {
+              panel.controller.state = HeadState(Some(s))
+            }
+            session.foreach(showStats)
+          }
 
           // Don't update the derivation if the simpId call has changed
           while(iteratedSimp.hasNext && simpId == simpIdAtStart){
             val (graph, rule) = iteratedSimp.next()
             val suggest = simpName + "-" + rule.name.replaceFirst("^.*\\/", "") + "-0"
-            val step = DStep(
-              name = panel.derivation.steps.freshWithSuggestion(DSName(suggest)),
-              rule = rule,
-              graph = graph.minimise) // layout is already done by simproc now
-
-              panel.document.derivation = panel.document.derivation.addStep(parentOpt, step)
-              parentOpt = Some(step.name)
-              Swing.onEDT {
-                panel.controller.state = HeadState(Some(step.name))
-              }
+            val name = panel.derivation.steps.freshWithSuggestion(DSName(suggest))
+            val graph1 = graph.minimise
+            // steps are laid out when they are first shown or saved, unless only the final graph is to be
+            val step =
+              if (finalOnly) DStep(name, rule, graph1)
+              else DStep.deferred(name, rule, previous, graph1, layoutTimer)
+            previous = graph1
+
+            panel.document.derivation = panel.document.derivation.addStep(parentOpt, step)
+            parentOpt = Some(step.name)
+            lastStep = parentOpt
+
+            // showing a step lays it out, so only show one every so often while the simproc runs
+            if (System.currentTimeMillis - lastShown > ShowInterval) show(step.name)
           }
 
+          if (finalOnly) lastStep.foreach { s =>
+            val fixed = start.verts.filter(previous.verts.contains)
+            panel.document.derivation =
+              panel.document.derivation.updateGraphInStep(s, RewriteLayout.layout(previous, fixed))
+          }
+          lastStep.foreach(show)
+
+          Simproc.haltOf(iteratedSimp).foreach { h =>
+            UserAlerts.alert(s"Simproc '$simpName' stopped early: ${h.message}", UserAlerts.Elevation.WARNING)
+          }
 
           if(simpId != simpIdAtStart) {
             throw SimprocHaltedWhileRunning()
@@ -95,6 +139,8 @@ class SimplifyController(panel: DerivationPanel) extends Publisher {
           true
         }
 
+        session.foreach { s => res.onComplete { _ => showStats(s) } }
+
         res.onComplete {
           case Success(b) =>
             processReporting.finish()
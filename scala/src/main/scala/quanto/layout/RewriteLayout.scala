@@ -0,0 +1,29 @@
+package quanto.layout
+
+import quanto.data._
+
+/**
+  * Lays out the result of rewriting, moving only the vertices the rewriting introduced and leaving the rest where
+  * they were.
+  */
+object RewriteLayout {
+  /** Lay out the graph, keeping the given vertices fixed */
+  def layout(graph: Graph, fixed: Set[VName]): Graph = {
+    val layoutProc = new ForceLayout
+    layoutProc.keepCentered = false
+    layoutProc.nodeCharge = 0.1
+
+    layoutProc.alpha0 = 0.05
+    layoutProc.alphaAdjust = 1.0
+    layoutProc.maxIterations = 300
+
+    graph.verts.foreach { v => if (fixed.contains(v)) layoutProc.lockVertex(v) }
+    layoutProc.layout(graph, randomCoords = false).snapToGrid()
+  }
+
+  /** Lay out the result of a single rewrite, where the rule is the instance of the rule that was applied */
+  def layout(graph: Graph, rule: Rule): Graph = {
+    val rhsInterior = rule.rhs.verts.filter(!rule.rhs.isTerminalWire(_))
+    layout(graph, graph.verts.filter(!rhsInterior.contains(_)))
+  }
+}
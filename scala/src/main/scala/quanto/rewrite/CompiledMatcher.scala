@@ -0,0 +1,501 @@
+package quanto.rewrite
+
+import quanto.data._
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * A graph compiled into int-indexed adjacency arrays, for use by CompiledMatcher. Vertices and edges are numbered
+  * in name order, so that comparing indices is the same as comparing names.
+  *
+  * @param graph a normalised graph
+  */
+class CompiledGraph(val graph: Graph) {
+  val vNames: Array[VName] = graph.verts.toArray.sorted
+  val eNames: Array[EName] = graph.edges.toArray.sorted
+  val vIndex: Map[VName, Int] = vNames.zipWithIndex.toMap
+  val eIndex: Map[EName, Int] = eNames.zipWithIndex.toMap
+
+  val vdata: Array[VData] = vNames.map(graph.vdata)
+  val isNode: Array[Boolean] = vdata.map(!_.isWireVertex)
+  val src: Array[Int] = eNames.map(e => vIndex(graph.source(e)))
+  val tgt: Array[Int] = eNames.map(e => vIndex(graph.target(e)))
+  val directed: Array[Boolean] = eNames.map(graph.edata(_).isDirected)
+  val eType: Array[String] = eNames.map(graph.edata(_).typ)
+  val adj: Array[Array[Int]] = vNames.map(v => graph.adjacentEdges(v).toArray.map(eIndex).sorted)
+
+  def numVerts: Int = vNames.length
+
+  def numEdges: Int = eNames.length
+
+  /** If "e" is not a self-loop, get the end of "e" which is not "v". Otherwise, return "v". */
+  def otherEnd(e: Int, v: Int): Int = if (src(e) == v) tgt(e) else src(e)
+
+  /** Get the other edge connected to this wire vertex, or -1 if there is none */
+  def otherEdge(w: Int, e: Int): Int = {
+    val es = adj(w)
+    var i = 0
+    while (i < es.length) {
+      if (es(i) != e) return es(i)
+      i += 1
+    }
+    -1
+  }
+}
+
+/**
+  * A growable stack of ints, used as the undo log for CompiledSearch
+  */
+private class IntStack {
+  private var arr = new Array[Int](64)
+  private var n = 0
+
+  def size: Int = n
+
+  def push(i: Int): Unit = {
+    if (n == arr.length) arr = java.util.Arrays.copyOf(arr, n * 2)
+    arr(n) = i
+    n += 1
+  }
+
+  def pop(): Int = {
+    n -= 1
+    arr(n)
+  }
+}
+
+/**
+  * A choice point in CompiledSearch. Either a pattern node to be matched on one of several target nodes, or a
+  * pattern edge (adjacent to the matched node np -> nt) to be matched on one of several target edges.
+  */
+private final class SearchFrame(val kind: Int, val np: Int, val ep: Int, val nt: Int,
+                                val candidates: Array[Int], val mark: Int) {
+  var next: Int = 0
+}
+
+/**
+  * A depth-first match search over a single concrete (!-box free) pattern, using mutable int-indexed state and an
+  * undo log rather than copying state at every step.
+  *
+  * The search makes the same choices as MatchState: pick a scheduled node and match one of its free edges in every
+  * possible way, or if there are none, pick an unmatched node and match it in every possible way. Hence, it finds the
+  * same matches, but possibly in a different order.
+  */
+private class CompiledSearch(pat: CompiledGraph,
+                             tgt: CompiledGraph,
+                             targetIndex: TargetIndex,
+                             targetVertices: Set[VName],
+                             orbitRep: Array[Int],
+                             orbitAge: Array[Int]) {
+
+  import CompiledSearch._
+
+  private val vmap = Array.fill(pat.numVerts)(-1)
+  private val emap = Array.fill(pat.numEdges)(-1)
+  private val tAvailable: Array[Boolean] = tgt.vNames.map(targetVertices.contains)
+  private val tEdgeUses = new Array[Int](tgt.numEdges)
+  private val pNodes = new Array[Boolean](pat.numVerts)
+  private val psNodes = new Array[Boolean](pat.numVerts)
+  private var expressionMatcher = CompositeExpressionMatcher()
+
+  private val trail = new IntStack
+  private val expressionTrail = ArrayBuffer[CompositeExpressionMatcher]()
+  private val frames = ArrayBuffer[SearchFrame]()
+  private var started = false
+  private var exhausted = false
+
+  /** Lazily enumerate all matches, as triples of vertex map, edge map and angle substitution */
+  def matches: Iterator[(Array[Int], Array[Int], CompositeExpressionMatcher)] =
+    new Iterator[(Array[Int], Array[Int], CompositeExpressionMatcher)] {
+      private var ready = false
+
+      def hasNext: Boolean = {
+        if (!ready) ready = advance()
+        ready
+      }
+
+      def next(): (Array[Int], Array[Int], CompositeExpressionMatcher) =
+        if (hasNext) {
+          ready = false
+          (vmap.clone(), emap.clone(), expressionMatcher)
+        } else Iterator.empty.next()
+    }
+
+  /**
+    * Move the search state to the next complete match
+    *
+    * @return false if the search space is exhausted
+    */
+  private def advance(): Boolean = {
+    if (exhausted) return false
+    var descending = !started
+    started = true
+
+    while (true) {
+      if (descending) {
+        step() match {
+          case Found => return true
+          case Continue => ()
+          case Branch => descending = false
+        }
+      } else if (frames.isEmpty) {
+        exhausted = true
+        return false
+      } else {
+        val f = frames.last
+        undoTo(f.mark)
+        if (f.next >= f.candidates.length) {
+          frames.remove(frames.length - 1)
+        } else {
+          val c = f.candidates(f.next)
+          f.next += 1
+          descending =
+            if (f.kind == NodeFrame) matchNode(f.np, c)
+            else matchWire(f.np, f.ep, f.nt, c)
+        }
+      }
+    }
+
+    false
+  }
+
+  // do one deterministic step of the search, possibly pushing a new choice point
+  private def step(): Int = {
+    val np = firstSet(psNodes)
+    if (np != -1) {
+      val nt = vmap(np)
+      val ep = firstUnmatchedEdge(np)
+      if (ep != -1) {
+        val candidates = tgt.adj(nt).filter { e => tEdgeUses(e) == 0 && tAvailable(tgt.otherEnd(e, nt)) }
+        frames += new SearchFrame(EdgeFrame, np, ep, nt, candidates, trail.size)
+        Branch
+      } else {
+        // de-schedule np. If every edge in the neighbourhood of nt is used, np is done.
+        if (tgt.adj(nt).forall(tEdgeUses(_) != 0)) setPNode(np, b = false)
+        setPSNode(np, b = false)
+        Continue
+      }
+    } else {
+      val un = firstUnmatchedNode()
+      if (un != -1) {
+        val candidates = targetIndex.candidates(pat.graph, pat.vNames(un)).iterator
+          .map(tgt.vIndex).filter(tAvailable(_)).toArray.sorted
+        frames += new SearchFrame(NodeFrame, un, -1, -1, candidates, trail.size)
+        Branch
+      } else if (firstSet(pNodes) == -1 && vmap.forall(_ != -1) && emap.forall(_ != -1)) {
+        MatchState.recordMatch()
+        Found
+      } else Branch
+    }
+  }
+
+  private def firstSet(arr: Array[Boolean]): Int = arr.indexWhere(b => b)
+
+  private def firstUnmatchedEdge(np: Int): Int = {
+    val es = pat.adj(np)
+    var i = 0
+    while (i < es.length) {
+      if (emap(es(i)) == -1) return es(i)
+      i += 1
+    }
+    -1
+  }
+
+  private def firstUnmatchedNode(): Int = {
+    var i = 0
+    while (i < pat.numVerts) {
+      if (pat.isNode(i) && vmap(i) == -1) return i
+      i += 1
+    }
+    -1
+  }
+
+  /** (c.f. MatchState.matchNewNode) */
+  private def matchNode(np: Int, nt: Int): Boolean =
+    if (!matchIsMonotone(np, nt)) false
+    else (pat.vdata(np), tgt.vdata(nt)) match {
+      case (pd: NodeV, td: NodeV) =>
+        // instances have no !-boxes, so arities must agree exactly (c.f. MatchState.pVertexMayBeCompleted)
+        if (pd.typ != td.typ || pat.adj(np).length != tgt.adj(nt).length) false
+        else {
+          val phaseOk =
+            if (pd.hasValue) {
+              expressionMatcher.addMatch(pd.phaseData, td.phaseData) match {
+                case Some(em) =>
+                  setExpressionMatcher(em)
+                  true
+                case None => false
+              }
+            } else pd.value == td.value
+
+          if (phaseOk) {
+            mapVertex(np, nt)
+            setPNode(np, b = true)
+            setPSNode(np, b = true)
+            useTargetVertex(nt)
+          }
+
+          phaseOk
+        }
+      case _ => throw new MatchException("matchNode called on a non-node")
+    }
+
+  /** (c.f. MatchState.matchNewWire) */
+  private def matchWire(vp0: Int, ep0: Int, vt0: Int, et0: Int): Boolean = {
+    var vp = vp0
+    var ep = ep0
+    var vt = vt0
+    var et = et0
+
+    while (true) {
+      val pDir = pat.directed(ep)
+      val tDir = tgt.directed(et)
+      val pOutEdge = pat.src(ep) == vp
+      val tOutEdge = tgt.src(et) == vt
+
+      if (!((pDir && tDir && pOutEdge == tOutEdge) || (!pDir && !tDir)) || pat.eType(ep) != tgt.eType(et))
+        return false
+
+      val newVp = pat.otherEnd(ep, vp)
+      val newVt = tgt.otherEnd(et, vt)
+
+      if (pNodes(newVp)) {
+        if (vmap(newVp) != newVt) return false
+        setPSNode(newVp, b = true)
+        mapEdge(ep, et)
+        return true
+      } else if (!tAvailable(newVt)) {
+        return false
+      } else if (!pat.isNode(newVp) && !tgt.isNode(newVt)) {
+        if (!matchIsMonotone(newVp, newVt)) return false
+        val newEp = pat.otherEdge(newVp, ep)
+        val newEt = tgt.otherEdge(newVt, et)
+        if (newEp == -1) {
+          // boundaries are not removed from the available target vertices
+          mapEdge(ep, et)
+          mapVertex(newVp, newVt)
+          return true
+        } else if (newEt == -1) {
+          return false
+        } else {
+          mapEdge(ep, et)
+          mapVertex(newVp, newVt)
+          useTargetVertex(newVt)
+          vp = newVp
+          ep = newEp
+          vt = newVt
+          et = newEt
+        }
+      } else if (pat.isNode(newVp) && tgt.isNode(newVt)) {
+        if (vmap(newVp) != -1 || !matchNode(newVp, newVt)) return false
+        mapEdge(ep, et)
+        return true
+      } else {
+        return false
+      }
+    }
+
+    false
+  }
+
+  /**
+    * Copies of the same !-box must be matched monotonically. As in MatchState.matchIsMonotone, if a copy made later
+    * has a name no greater than one made earlier, its image must be no greater either. Names are compared as names,
+    * rather than by their indices, so this doesn't rely on the order of vNames.
+    */
+  private def matchIsMonotone(p: Int, t: Int): Boolean =
+    if (!MatchState.smashSymmetries || orbitRep(p) == -1) true
+    else {
+      var i = 0
+      while (i < pat.numVerts) {
+        if (i != p && orbitRep(i) == orbitRep(p) && vmap(i) != -1) {
+          val laterIsP = orbitAge(p) > orbitAge(i)
+          val late = if (laterIsP) p else i
+          val early = if (laterIsP) i else p
+          val tLate = if (laterIsP) t else vmap(i)
+          val tEarly = if (laterIsP) vmap(i) else t
+          if (pat.vNames(late) <= pat.vNames(early) && tgt.vNames(tLate) > tgt.vNames(tEarly)) return false
+        }
+        i += 1
+      }
+      true
+    }
+
+  // state updates, recorded in the undo log as (op, arg) pairs
+
+  private def mapVertex(p: Int, t: Int): Unit = {
+    vmap(p) = t
+    trail.push(OpVertex); trail.push(p)
+  }
+
+  private def mapEdge(p: Int, t: Int): Unit = {
+    emap(p) = t
+    tEdgeUses(t) += 1
+    trail.push(OpEdge); trail.push(p)
+  }
+
+  private def useTargetVertex(t: Int): Unit = {
+    tAvailable(t) = false
+    trail.push(OpUseVertex); trail.push(t)
+  }
+
+  private def setPNode(p: Int, b: Boolean): Unit =
+    if (pNodes(p) != b) {
+      pNodes(p) = b
+      trail.push(OpPNode); trail.push(p)
+    }
+
+  private def setPSNode(p: Int, b: Boolean): Unit =
+    if (psNodes(p) != b) {
+      psNodes(p) = b
+      trail.push(OpPSNode); trail.push(p)
+    }
+
+  private def setExpressionMatcher(em: CompositeExpressionMatcher): Unit = {
+    expressionTrail += expressionMatcher
+    expressionMatcher = em
+    trail.push(OpExpression); trail.push(0)
+  }
+
+  private def undoTo(mark: Int): Unit =
+    while (trail.size > mark) {
+      val arg = trail.pop()
+      trail.pop() match {
+        case OpVertex => vmap(arg) = -1
+        case OpEdge =>
+          tEdgeUses(emap(arg)) -= 1
+          emap(arg) = -1
+        case OpUseVertex => tAvailable(arg) = true
+        case OpPNode => pNodes(arg) = !pNodes(arg)
+        case OpPSNode => psNodes(arg) = !psNodes(arg)
+        case OpExpression => expressionMatcher = expressionTrail.remove(expressionTrail.length - 1)
+      }
+    }
+}
+
+private object CompiledSearch {
+  final val NodeFrame = 0
+  final val EdgeFrame = 1
+
+  final val Found = 0
+  final val Continue = 1
+  final val Branch = 2
+
+  final val OpVertex = 0
+  final val OpEdge = 1
+  final val OpUseVertex = 2
+  final val OpPNode = 3
+  final val OpPSNode = 4
+  final val OpExpression = 5
+}
+
+/**
+  * An alternative matching engine, which compiles pattern and target into int-indexed arrays and searches with an
+  * undo log, rather than building immutable copies of the match state at every step.
+  *
+  * !-boxes are handled by enumerating the concrete instances of the pattern (in the same order of !-box operations
+  * as MatchState, so names and bbops agree), and searching each instance in turn. Only non-nested, non-overlapping
+  * !-boxes in the pattern are supported, and targets may not contain !-boxes. Patterns containing bare wires or
+  * circles are also left to MatchState. Use supports to check.
+  */
+object CompiledMatcher {
+
+  private case class Instance(graph: Graph, bbops: List[BBOp], orbits: Map[VName, (VName, Int)])
+
+  /** Check whether a (normalised) pattern and target can be handled by this engine */
+  def supports(pat: Graph, tgt: Graph): Boolean =
+    tgt.bboxes.isEmpty &&
+      pat.bboxParent.isEmpty &&
+      pat.verts.forall { v =>
+        pat.bboxesContaining(v).size <= 1 && !pat.isCircle(v) && !pat.representsBareWire(v)
+      }
+
+  /**
+    * Find all matches, starting from the initial MatchState given by Matcher.initialise
+    */
+  def findMatches(ms: MatchState): Stream[Match] = {
+    val target = new CompiledGraph(ms.m.target)
+    val profile = targetProfile(ms.m.target)
+
+    instances(ms.m.pattern, List(), Map(), profile).flatMap { inst =>
+      val pattern = new CompiledGraph(inst.graph)
+      val orbitRep = Array.fill(pattern.numVerts)(-1)
+      val orbitAge = new Array[Int](pattern.numVerts)
+      val repIds = inst.orbits.values.map(_._1).toSeq.distinct.zipWithIndex.toMap
+      for ((v, (rep, age)) <- inst.orbits; i <- pattern.vIndex.get(v)) {
+        orbitRep(i) = repIds(rep)
+        orbitAge(i) = age
+      }
+
+      val search = new CompiledSearch(pattern, target, ms.targetIndex, ms.targetVertices, orbitRep, orbitAge)
+      search.matches.map { case (vmap, emap, em) =>
+        val vPairs = vmap.indices.map { i => pattern.vNames(i) -> target.vNames(vmap(i)) }
+        val ePairs = emap.indices.map { i => pattern.eNames(i) -> target.eNames(emap(i)) }
+        Match(
+          pattern0 = ms.m.pattern0,
+          pattern = inst.graph,
+          target = ms.m.target,
+          map = GraphMap(v = PFun(vPairs: _*), e = PFun(ePairs: _*)),
+          bbops = inst.bbops,
+          subst = em.toMap)
+      }.filter { m => !MatchState.smashSymmetries || ms.symmetry.isLeast(m) }.toStream
+    }
+  }
+
+  // for each node type in the target: the number of nodes of that type and their maximum arity
+  private def targetProfile(tgt: Graph): Map[String, (Int, Int)] =
+    tgt.vdata.foldLeft(Map[String, (Int, Int)]()) {
+      case (mp, (v, d: NodeV)) =>
+        val (n, a) = mp.getOrElse(d.typ, (0, 0))
+        mp + (d.typ -> (n + 1, math.max(a, tgt.arity(v))))
+      case (mp, _) => mp
+    }
+
+  /**
+    * The nodes outside of !-boxes, and their edges to vertices outside of !-boxes, will survive into every instance
+    * of the pattern. Return a weight which grows with the number of such nodes and edges, or None if they can't
+    * possibly fit in the target.
+    */
+  private def concreteWeight(g: Graph, profile: Map[String, (Int, Int)]): Option[Int] = {
+    val nodes = g.verts.filter { v => !g.vdata(v).isWireVertex && g.bboxesContaining(v).isEmpty }
+    val arities = nodes.toSeq.map { v =>
+      v -> g.adjacentEdges(v).count { e => g.bboxesContaining(g.edgeGetOtherVertex(e, v)).isEmpty }
+    }
+
+    val fits =
+      nodes.groupBy(g.typeOf).forall { case (t, vs) => profile.get(t).exists(_._1 >= vs.size) } &&
+        arities.forall { case (v, a) => profile.get(g.typeOf(v)).exists(_._2 >= a) }
+
+    if (fits) Some(nodes.size + arities.map(_._2).sum) else None
+  }
+
+  /**
+    * Enumerate all concrete instances of a pattern, applying !-box operations in the same order as MatchState: the
+    * minimal !-box is expanded zero or more times then killed (or if it is wild, dropped or killed), then the next.
+    * Expansions are only explored while they add concrete nodes or edges that can still fit into the target.
+    */
+  private def instances(g: Graph, bbops: List[BBOp], orbits: Map[VName, (VName, Int)],
+                        profile: Map[String, (Int, Int)]): Stream[Instance] =
+    if (g.bboxes.isEmpty) Stream(Instance(g, bbops, orbits))
+    else concreteWeight(g, profile) match {
+      case None => Stream()
+      case Some(w) =>
+        val bb = g.bboxes.min
+        val (killGraph, killOp) = g.killBBox(bb)
+        if (g.isWildBBox(bb)) {
+          val (dropGraph, dropOp) = g.dropBBox(bb)
+          instances(dropGraph, dropOp :: bbops, orbits, profile) #:::
+            instances(killGraph, killOp :: bbops, orbits, profile)
+        } else {
+          val minV = g.contents(bb).min
+          val (expandGraph, expandOp) = g.expandBBox(bb)
+          val expanded = concreteWeight(expandGraph, profile) match {
+            case Some(w1) if w1 > w =>
+              val orbits1 = orbits + (expandOp.mp.v(minV) -> (minV, bbops.length))
+              instances(expandGraph, expandOp :: bbops, orbits1, profile)
+            case _ => Stream()
+          }
+          expanded #::: instances(killGraph, killOp :: bbops, orbits, profile)
+        }
+    }
+}
@@ -3,46 +3,69 @@ package quanto.rewrite
 
 import quanto.data.Theory.ValueType
 import quanto.data.{CompositeExpression, PhaseExpression}
-import quanto.util.{Rational, RationalMatrix}
-
-class PhaseExpressionMatcher(pVars: Vector[String], tVars: Vector[String], mat: RationalMatrix) {
-  val pvSet: Set[String] = pVars.toSet
-  val tvSet: Set[String] = tVars.toSet
+import quanto.util.{EchelonSolver, Rational}
+
+/**
+  * Matches pattern phase expressions against target ones, solving for the pattern variables as a system of linear
+  * equations with the target variables treated as constants.
+  *
+  * A matcher is an immutable value holding its own EchelonSolver. The matchers made from one another by addMatch
+  * share every row of the system that a new equation did not change, so each branch of a search keeps its own system
+  * at the cost of the rows it touches, and matchers can be used from any thread without locking.
+  */
+class PhaseExpressionMatcher private(private val system: EchelonSolver,
+                                     private val patternColumns: Map[String, Int],
+                                     private val targetColumns: Map[String, Int],
+                                     private val names: Vector[String]) {
 
   def addMatch(patternExpression: PhaseExpression, targetExpression: PhaseExpression): Option[PhaseExpressionMatcher] = {
-    val patternVars1 = pVars ++ (patternExpression.vars.toSet -- pvSet).toVector
-    val targetVars1 = tVars ++ (targetExpression.vars.toSet -- tvSet).toVector
-    val zero = Rational(0)
-    val r1 = patternVars1.map { v => patternExpression.coefficients.getOrElse(v, zero) }
-    val r2 = targetVars1.map { v => targetExpression.coefficients.getOrElse(v, zero) }
-    val row = r1 ++ r2 :+ (targetExpression.constant - patternExpression.constant)
-
-    mat.padTo(patternVars1.length, targetVars1.length).gaussUpdate(row).map { mat1 =>
-      new PhaseExpressionMatcher(patternVars1, targetVars1, mat1)
+    val m = targetExpression.vars.foldLeft(patternExpression.vars.foldLeft(this)(_.withPatternColumn(_))) {
+      _.withTargetColumn(_)
+    }
+
+    val row = Array.fill(m.system.numColumns)(Rational.Zero)
+    for ((v, c) <- patternExpression.coefficients) row(m.patternColumns(v)) = c
+    for ((v, c) <- targetExpression.coefficients) row(m.targetColumns(v)) = c
+
+    m.system.addRow(row, targetExpression.constant - patternExpression.constant).map { system1 =>
+      new PhaseExpressionMatcher(system1, m.patternColumns, m.targetColumns, m.names)
     }
   }
 
+  private def withPatternColumn(v: String): PhaseExpressionMatcher =
+    if (patternColumns.contains(v)) this
+    else new PhaseExpressionMatcher(system.withColumn(isFree = true),
+      patternColumns + (v -> names.length), targetColumns, names :+ v)
+
+  private def withTargetColumn(v: String): PhaseExpressionMatcher =
+    if (targetColumns.contains(v)) this
+    else new PhaseExpressionMatcher(system.withColumn(isFree = false),
+      patternColumns, targetColumns + (v -> names.length), names :+ v)
+
   def toMap(valueType: ValueType): Map[String, PhaseExpression] = toMap.mapValues(_.as(valueType))
 
-  def toMap: Map[String, PhaseExpression] =
-    if (mat.numCols == 0) Map()
-    else mat.rows.foldLeft(Map[String, PhaseExpression]()) { (mp, row) =>
-      val p = RationalMatrix.findPivot(row)
-      var coefficients = Map[String, Rational]()
-      for (i <- p + 1 until mat.line)
-        if (row(i) != Rational(0)) coefficients = coefficients + (pVars(i) -> row(i) * -1)
-      for (i <- mat.line to row.length - 2)
-        if (row(i) != Rational(0)) coefficients = coefficients + (tVars(i - mat.line) -> row(i))
-
-      mp + (pVars(p) -> PhaseExpression(row.last, coefficients, ValueType.Rational))
-    }
+  def toMap: Map[String, PhaseExpression] = solution
+
+  // the pattern variables with a pivot, in terms of the constants, target variables and other pattern variables
+  private lazy val solution: Map[String, PhaseExpression] =
+    (0 until system.numRows).map { r =>
+      val p = system.pivot(r)
+      val coefficients = (0 until system.numColumns).iterator.collect {
+        case i if i != p && !system.coefficient(r, i).isZero =>
+          if (system.isFree(i)) names(i) -> system.coefficient(r, i) * -1
+          else names(i) -> system.coefficient(r, i)
+      }.toMap
+      names(p) -> PhaseExpression(system.constant(r), coefficients, ValueType.Rational)
+    }.toMap
 }
 
 object PhaseExpressionMatcher {
   def empty: PhaseExpressionMatcher = PhaseExpressionMatcher(Vector(), Vector(), None)
 
-  def apply(pVars: Vector[String], tVars: Vector[String], modulus: Option[Int]) =
-    new PhaseExpressionMatcher(pVars, tVars, new RationalMatrix(Vector(), pVars.length, modulus))
+  def apply(pVars: Vector[String], tVars: Vector[String], modulus: Option[Int]): PhaseExpressionMatcher = {
+    val m = new PhaseExpressionMatcher(EchelonSolver.empty, Map(), Map(), Vector())
+    tVars.foldLeft(pVars.foldLeft(m)(_.withPatternColumn(_)))(_.withTargetColumn(_))
+  }
 }
 
 
@@ -0,0 +1,179 @@
+package quanto.rewrite
+
+import quanto.data._
+
+import scala.annotation.tailrec
+
+/**
+  * Rewrites a graph repeatedly with a list of rules, with the same result as REPEAT(REWRITE(rules)), but without
+  * searching the whole graph for every rule at every step.
+  *
+  * Once a rule fails to match a graph, any match it has after the next rewrite must overlap the region that rewrite
+  * changed, i.e. the image of the RHS, which includes the boundary. For each rule, we keep track of the region of
+  * the current graph where it might still match, and restrict the search to a neighbourhood of that region large
+  * enough to contain any match of the LHS touching it.
+  *
+  * This is only sound when a match is bounded in size, and connected. Rules whose LHS contains !-boxes, bare wires,
+  * circles or several components are always searched in full, as is any target containing !-boxes.
+  *
+  * The normal form of the current graph, its TargetIndex and the set of rules that might match it are likewise
+  * updated only near each rewrite, so a step costs time in the size of the rewritten region rather than the graph
+  * (apart from rules which must be searched in full).
+  *
+  * @param rules the rules, in the order they should be tried
+  */
+class IncrementalRewriter(val rules: Seq[Rule]) {
+
+  import IncrementalRewriter._
+
+  private val index = new RuleIndex(rules)
+  private val radii: Vector[Option[Int]] = rules.map { r => matchRadius(r.lhs) }.toVector
+
+  /**
+    * Rewrite the graph until no rule matches.
+    *
+    * @param start   the initial graph
+    * @param prepare applied to each rewritten graph (e.g. to lay it out) before it is returned and rewritten again.
+    *                It must not rename any vertices.
+    * @return an iterator over the rewritten graphs and the rule instances used to get there
+    */
+  def reduce(start: Graph, prepare: ((Graph, Rule)) => (Graph, Rule) = identity): Iterator[(Graph, Rule)] =
+    new Iterator[(Graph, Rule)] {
+      private var current = start
+
+      // the normal form of current, indexed for matching and for finding the rules that might match it. These are
+      // updated near each rewrite, rather than built again.
+      private var target = Target(start.normalise)
+
+      // for each rule, the region of current where it might match, or None if it might match anywhere
+      private var regions: Vector[Option[Set[VName]]] = Vector.fill(rules.size)(None)
+      private var nextStep: Option[((Graph, Rule), Vector[Option[Set[VName]]], Target)] = None
+      private var searched = false
+
+      private def search(): Unit = if (!searched) {
+        searched = true
+        val local = current.bboxes.isEmpty
+        val tgt = target.graph
+        val possible = target.possible.possibleRuleIndices.toSet
+
+        def find(i: Int, restrictTo: Set[VName]): Option[Match] =
+          Matcher.initialise(rules(i), tgt, restrictTo, target.matching).nextMatch().map(_._1)
+
+        @tailrec
+        def firstMatch(i: Int): Option[(Int, Match)] =
+          if (i >= rules.size) None
+          else {
+            val found =
+              if (!possible.contains(i)) None
+              else (regions(i), radii(i)) match {
+                case (Some(region), Some(radius)) if local =>
+                  if (region.isEmpty) None
+                  else find(i, neighbourhood(current, tgt, region, radius))
+                case _ => find(i, tgt.verts)
+              }
+
+            found match {
+              case Some(m) => Some((i, m))
+              case None =>
+                // there are now no matches for rule i anywhere in the current graph
+                regions = regions.updated(i, Some(Set()))
+                firstMatch(i + 1)
+            }
+          }
+
+        nextStep = firstMatch(0).map { case (i, m) =>
+          val rule = rules(i)
+          val (g1, r1) = prepare(Rewriter.rewrite(m, rule.rhs, rule.description))
+          // the rule instance returned by the rewriter has the rewritten region of g1 as its RHS
+          val changed = r1.rhs.verts
+          val regions1 = regions.updated(i, None).map(_.map { r => (r intersect g1.verts) union changed })
+          val target1 =
+            if (g1.bboxes.isEmpty) target.updated(g1.normaliseAround(changed), m.map.v.codSet union changed)
+            else Target(g1.normalise)
+          ((g1, r1), regions1, target1)
+        }
+      }
+
+      override def hasNext: Boolean = {
+        search()
+        nextStep.isDefined
+      }
+
+      override def next(): (Graph, Rule) = {
+        search()
+        nextStep match {
+          case Some((step, regions1, target1)) =>
+            current = step._1
+            regions = regions1
+            target = target1
+            searched = false
+            step
+          case None => throw new NoSuchElementException("no more rewrites")
+        }
+      }
+    }
+
+  // a normalised target, with its index for matching and the rules which might match it
+  private case class Target(graph: Graph, matching: TargetIndex, possible: RuleIndex#Tracker) {
+    // the same target, changed at the given vertices
+    def updated(graph1: Graph, touched: Set[VName]): Target =
+      Target(graph1, matching.updated(graph1, touched), possible.updated(graph1, touched))
+  }
+
+  private object Target {
+    def apply(graph: Graph): Target = Target(graph, new TargetIndex(graph), index.tracker(graph))
+  }
+}
+
+object IncrementalRewriter {
+
+  /**
+    * If every match of the given pattern is connected and has a bounded size, return the largest distance between
+    * two vertices of the (normalised) pattern. Otherwise None.
+    */
+  def matchRadius(pattern: Graph): Option[Int] = {
+    val p = pattern.normalise
+    val local = p.bboxes.isEmpty &&
+      p.verts.exists { v => p.vdata(v).isInstanceOf[NodeV] } &&
+      !p.verts.exists { v => p.representsBareWire(v) || p.isCircle(v) }
+
+    if (!local) None
+    else {
+      val dists = p.verts.toSeq.map { v => distances(p, Set(v), p.verts.size) }
+      if (dists.exists(_.size < p.verts.size)) None
+      else Some(dists.map(_.values.max).max)
+    }
+  }
+
+  /**
+    * The vertices of the normalised target tgt within the given distance of a region of g, where tgt is
+    * g.normalise. Vertices of the region removed by normalisation are replaced by the nearest vertices which
+    * were kept.
+    */
+  def neighbourhood(g: Graph, tgt: Graph, region: Set[VName], radius: Int): Set[VName] = {
+    @tailrec
+    def kept(frontier: Set[VName], seen: Set[VName], found: Set[VName]): Set[VName] =
+      if (frontier.isEmpty) found
+      else {
+        val (in, out) = frontier.partition(tgt.verts.contains)
+        val next = g.adjacentVerts(out) -- seen
+        kept(next, seen union next, found union in)
+      }
+
+    val start = kept(region intersect g.verts, region, Set())
+    distances(tgt, start, radius).keySet
+  }
+
+  // breadth-first distances from the given vertices, up to the given bound
+  private def distances(g: Graph, from: Set[VName], bound: Int): Map[VName, Int] = {
+    @tailrec
+    def bfs(frontier: Set[VName], d: Int, dist: Map[VName, Int]): Map[VName, Int] =
+      if (frontier.isEmpty || d >= bound) dist
+      else {
+        val next = g.adjacentVerts(frontier).filterNot(dist.contains)
+        bfs(next, d + 1, dist ++ next.map(_ -> (d + 1)))
+      }
+
+    bfs(from, 0, from.map(_ -> 0).toMap)
+  }
+}
@@ -0,0 +1,168 @@
+package quanto.rewrite
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import quanto.data._
+import quanto.util.json._
+
+import scala.collection.JavaConverters._
+
+/**
+  * Counters and timers for one rule or simproc. Searches for one rule may run on several threads at once, so every
+  * counter is atomic. Times are in nanoseconds.
+  */
+class RewriteCounters(val name: String) {
+  // matching (see MatchState)
+  val searches = new AtomicLong(0)
+  val statesExplored = new AtomicLong(0)
+  val candidatesPruned = new AtomicLong(0) // target nodes skipped by the target index
+  val candidatesRejected = new AtomicLong(0) // target nodes or edges tried, but which did not match
+  val matchesFound = new AtomicLong(0)
+  val matchTime = new AtomicLong(0)
+
+  // rewriting (see Rewriter) and layout of the rewritten graph (see StepGraph.Deferred and Session.layoutTimer)
+  val rewrites = new AtomicLong(0)
+  val rewriteTime = new AtomicLong(0)
+  val layouts = new AtomicLong(0)
+  val layoutTime = new AtomicLong(0)
+
+  // the steps given by a simproc, and the time spent finding them
+  val steps = new AtomicLong(0)
+  val stepTime = new AtomicLong(0)
+
+  private def fields: Seq[(String, AtomicLong)] = Seq(
+    "searches" -> searches,
+    "states_explored" -> statesExplored,
+    "candidates_pruned" -> candidatesPruned,
+    "candidates_rejected" -> candidatesRejected,
+    "matches_found" -> matchesFound,
+    "match_time" -> matchTime,
+    "rewrites" -> rewrites,
+    "rewrite_time" -> rewriteTime,
+    "layouts" -> layouts,
+    "layout_time" -> layoutTime,
+    "steps" -> steps,
+    "step_time" -> stepTime)
+
+  /** The non-zero counters, with times in milliseconds */
+  def toJson: JsonObject = JsonObject(fields.collect {
+    case (k, c) if c.get != 0 =>
+      if (k.endsWith("_time")) k -> (JsonDouble(c.get / 1e6): Json)
+      else if (c.get <= Int.MaxValue) k -> (JsonInt(c.get.toInt): Json)
+      else k -> (JsonDouble(c.get.toDouble): Json)
+  }.toMap)
+
+  override def toString: String =
+    f"$name%-24s ${statesExplored.get}%10d ${candidatesPruned.get}%8d ${candidatesRejected.get}%8d " +
+      f"${matchesFound.get}%7d ${matchTime.get / 1e6}%9.1f ${rewrites.get}%7d ${rewriteTime.get / 1e6}%9.1f " +
+      f"${layoutTime.get / 1e6}%9.1f ${steps.get}%6d ${stepTime.get / 1e6}%9.1f"
+}
+
+/**
+  * Instrumentation of matching, rewriting and layout, per rule and per simproc.
+  *
+  * Counters are kept by a Session, which is only counted into while it is current on some thread (see
+  * Session.apply). A search is counted against the session current when it was started (see
+  * Matcher.initialise(rule, ...)), even if its branches run on other threads, so runs on different threads, each with
+  * its own session, do not mix their counts. A search for a pattern with no rule, or a rewrite with an unnamed rule, is
+  * only counted under the name it was given.
+  */
+object Instrumentation {
+  // not inherited, as threads started by a run (e.g. those of a pool) may outlive it
+  private val current = new ThreadLocal[Session]
+
+  /** The counters collected by one run, e.g. of a simproc or a batch of them */
+  class Session {
+    private val ruleCounters = new ConcurrentHashMap[String, RewriteCounters]()
+    private val simprocCounters = new ConcurrentHashMap[String, RewriteCounters]()
+
+    def rule(name: String): RewriteCounters = ruleCounters.computeIfAbsent(name, new RewriteCounters(_))
+
+    def simproc(name: String): RewriteCounters = simprocCounters.computeIfAbsent(name, new RewriteCounters(_))
+
+    def rules: Seq[RewriteCounters] = ruleCounters.values.asScala.toSeq.sortBy(_.name)
+
+    def simprocs: Seq[RewriteCounters] = simprocCounters.values.asScala.toSeq.sortBy(_.name)
+
+    /** Run f with this as the current session on this thread */
+    def apply[T](f: => T): T = {
+      val outer = current.get
+      current.set(this)
+      try f
+      finally current.set(outer)
+    }
+
+    /**
+      * Count the steps given by a simproc, and the time spent finding them. As the steps are found lazily, this
+      * session is made current each time one is looked for.
+      */
+    def steps(simprocName: String, iter: Iterator[(Graph, Rule)]): Iterator[(Graph, Rule)] = {
+      val c = simproc(simprocName)
+      new Simproc.HaltingIterator {
+        override def halt: Option[Simproc.Halt] = Simproc.haltOf(iter)
+
+        override def hasNext: Boolean = {
+          val t0 = System.nanoTime
+          val more = Session.this.apply(iter.hasNext)
+          c.stepTime.addAndGet(System.nanoTime - t0)
+          more
+        }
+
+        override def next(): (Graph, Rule) = {
+          val t0 = System.nanoTime
+          val step = Session.this.apply(iter.next())
+          c.stepTime.addAndGet(System.nanoTime - t0)
+          if (step != null) c.steps.incrementAndGet()
+          step
+        }
+      }
+    }
+
+    /** Counts layouts against their rules, for passing to DStep.deferred, which may lay out on any thread */
+    val layoutTimer: StepGraph.LayoutTimer = { (rule, nanos) =>
+      val c = this.rule(rule.name)
+      c.layoutTime.addAndGet(nanos)
+      c.layouts.incrementAndGet()
+    }
+
+    def toJson: JsonObject = JsonObject(
+      "rules" -> JsonObject(rules.map { c => c.name -> (c.toJson: Json) }.toMap),
+      "simprocs" -> JsonObject(simprocs.map { c => c.name -> (c.toJson: Json) }.toMap))
+
+    /** A table of the counters, for showing to the user */
+    def report: String = {
+      val ruleTable = header("rule") +: rules.map(_.toString)
+      val simprocTable = if (simprocs.isEmpty) Seq() else "" +: header("simproc") +: simprocs.map(_.toString)
+      (ruleTable ++ simprocTable).mkString("\n")
+    }
+  }
+
+  /** The session current on this thread, if any */
+  def session: Option[Session] = Option(current.get)
+
+  def enabled: Boolean = current.get != null
+
+  /** The counters for the given rule, if collecting on this thread */
+  def rule(name: String): Option[RewriteCounters] = session.map(_.rule(name))
+
+  /** The counters for the given simproc, if collecting on this thread */
+  def simproc(name: String): Option[RewriteCounters] = session.map(_.simproc(name))
+
+  /** Run f, adding one to the count and its time to the timer given, if collecting */
+  def timed[T](counters: Option[RewriteCounters])(count: RewriteCounters => AtomicLong,
+                                                  time: RewriteCounters => AtomicLong)(f: => T): T =
+    counters match {
+      case Some(c) =>
+        val t0 = System.nanoTime
+        val result = f
+        time(c).addAndGet(System.nanoTime - t0)
+        count(c).incrementAndGet()
+        result
+      case None => f
+    }
+
+  private def header(kind: String): String =
+    f"$kind%-24s ${"states"}%10s ${"pruned"}%8s ${"rejected"}%8s ${"matches"}%7s ${"match ms"}%9s " +
+      f"${"rewrites"}%7s ${"rewr. ms"}%9s ${"layout ms"}%9s ${"steps"}%6s ${"step ms"}%9s"
+}
@@ -0,0 +1,60 @@
+package quanto.rewrite
+
+/**
+  * A cursor over the matches of a search. Unlike the Stream returned by Matcher.findMatches, it only holds on to
+  * the state of the search, never to the matches it has already returned, so enumerating (or counting) many matches
+  * runs in constant space.
+  *
+  * @param start the initial state of the search, or None if there is nothing to search
+  */
+class MatchIterator(start: Option[MatchState]) extends Iterator[Match] {
+  private var state: Option[MatchState] = start
+  private var pending: Option[Match] = None
+
+  def this(ms: MatchState) = this(Some(ms))
+
+  // find the next match, if we haven't already
+  private def advance(): Unit =
+    if (pending.isEmpty) state.foreach { ms =>
+      ms.nextMatch() match {
+        case Some((m, next)) =>
+          pending = Some(m)
+          state = next
+        case None =>
+          state = None
+      }
+    }
+
+  override def hasNext: Boolean = {
+    advance()
+    pending.isDefined
+  }
+
+  override def next(): Match = {
+    advance()
+    pending match {
+      case Some(m) =>
+        pending = None
+        m
+      case None => throw new NoSuchElementException("no more matches")
+    }
+  }
+
+  /** The state the search will continue from, if there might be more matches after the pending one */
+  def searchState: Option[MatchState] = state
+
+  /** Count the remaining matches. This consumes the iterator. */
+  def countRemaining(): Int = {
+    var c = if (pending.isDefined) 1 else 0
+    pending = None
+    while (state.isDefined) {
+      state = state.get.nextMatch() match {
+        case Some((_, next)) =>
+          c += 1
+          next
+        case None => None
+      }
+    }
+    c
+  }
+}
@@ -1,5 +1,7 @@
 package quanto.rewrite
 
+import java.util.concurrent.atomic.AtomicBoolean
+
 import quanto.data._
 
 import scala.annotation.tailrec
@@ -8,6 +10,7 @@ case class MatchState(
                        m: Match, // the match being built
                        targetVertices: Set[VName], // restriction of the range of the match
                        expressionMatcher: CompositeExpressionMatcher, // state of matched angle data
+                       targetIndex: TargetIndex, // type/arity/phase index of target nodes
                        pNodes: Set[VName] = Set(), // nodes with partially-mapped neighbourhood
                        psNodes: Set[VName] = Set(), // same, but scheduled for completion
                        sBBox: Option[BBName] = None, // a bbox scheduled for matching
@@ -16,7 +19,11 @@ case class MatchState(
                        candidateWires: Option[Set[(VName, Int)]] = None, // wire-vertices to try matching bare wires on
                        candidateBBoxes: Option[Set[BBName]] = None, // bboxes to try matching in the target
                        bboxOrbits: PFun[VName, VName] = PFun(), // for smashing redundant matches
-                       nextState: Option[MatchState] = None // next state to try after search terminates
+                       symmetry: PatternSymmetry = PatternSymmetry.Trivial, // same, for automorphisms of the pattern
+                       plan: SearchPlan = SearchPlan.ByName, // the order to match nodes and edges in
+                       nextState: Option[MatchState] = None, // next state to try after search terminates
+                       counters: Option[RewriteCounters] = None, // where to count the search, if anywhere
+                       cancelled: Option[AtomicBoolean] = None // when set, the search gives up (see ParallelMatcher)
                      ) {
 
   lazy val uBareWires: Set[VName] = unmatchedVertices.filter(m.pattern.representsBareWire)
@@ -28,34 +35,52 @@ case class MatchState(
 
 
   /**
-    * This is the main match loop. It maintains its own stack (via nextState), so it can be tail-recursive.
+    * Find the next match, timing the search if it is being counted (see Instrumentation)
     *
     * @return the next match and if there could be more matches, the next MatchState in the search tree
     */
+  final def nextMatch(): Option[(Match, Option[MatchState])] = counters match {
+    case Some(c) =>
+      val t0 = System.nanoTime
+      val result = search()
+      c.matchTime.addAndGet(System.nanoTime - t0)
+      result
+    case None => search()
+  }
+
+  /**
+    * This is the main match loop. It maintains its own stack (via nextState), so it can be tail-recursive. If the
+    * search has been cancelled, it stops at the next state it visits, as if there were no more matches.
+    */
   @tailrec
-  final def nextMatch(): Option[(Match, Option[MatchState])] = {
+  private def search(): Option[(Match, Option[MatchState])] = {
+    counters.foreach(_.statesExplored.incrementAndGet())
+
 //    if (m.map.e.domSet.size == 4) {
 //      print("got 4 edges")
 //    }
 
-    // if unmatched circles are found in the pattern, match them first
-    if (uCircles.nonEmpty) {
+    if (cancelled.exists(_.get)) {
+      None
+
+      // if unmatched circles are found in the pattern, match them first
+    } else if (uCircles.nonEmpty) {
       val pc = uCircles.min
 
       targetVertices.find(v => m.target.isCircle(v) && reflectsBBoxes(pc, v)) match {
         case None => nextState match {
-          case Some(next) => next.nextMatch();
+          case Some(next) => next.search();
           case None => None
         }
         case Some(tc) =>
           val pce = m.pattern.inEdges(pc).min
           val tce = m.target.inEdges(tc).min
-          copy(m = m.addEdge(pce -> tce, pc -> tc), targetVertices = targetVertices - tc).nextMatch()
+          copy(m = m.addEdge(pce -> tce, pc -> tc), targetVertices = targetVertices - tc).search()
       }
 
       // if there is a scheduled node, try to match its neighbourhood in every possible way
     } else if (psNodes.nonEmpty) {
-      val np = psNodes.min
+      val np = plan.nextNode(psNodes)
 
       val cmp = pVertexMayBeCompleted(np)
       if (cmp) {
@@ -65,7 +90,7 @@ case class MatchState(
           !m.map.e.domSet.contains(e) &&
             bboxesMatched(m.pattern.edgeGetOtherVertex(e, np))
         )
-        val epOpt = if (uEdges.isEmpty) None else Some(uEdges.min)
+        val epOpt = if (uEdges.isEmpty) None else Some(plan.nextEdge(uEdges))
         epOpt match {
           // if there is an matchable edge in nhd(np), try to match it in every possible way
           // to an edge in the neighbourhood of nt
@@ -75,11 +100,11 @@ case class MatchState(
                 copy(candidateEdges = Some(m.target.adjacentEdges(nt).filter { e =>
                   !m.map.e.codSet.contains(e) &&
                     targetVertices.contains(m.target.edgeGetOtherVertex(e, nt))
-                })).nextMatch()
+                })).search()
               case Some(candidateEdges1) =>
                 if (candidateEdges1.isEmpty) {
                   nextState match {
-                    case Some(ms1) => ms1.nextMatch()
+                    case Some(ms1) => ms1.search()
                     case None => None
                   }
                 } else {
@@ -87,9 +112,10 @@ case class MatchState(
                   val next = copy(candidateEdges = Some(candidateEdges1 - et))
                   matchNewWire(np, ep, nt, et) match {
                     case Some(ms1) =>
-                      ms1.copy(candidateEdges = None, nextState = Some(next)).nextMatch()
+                      ms1.copy(candidateEdges = None, nextState = Some(next)).search()
                     case None =>
-                      next.nextMatch()
+                      counters.foreach(_.candidatesRejected.incrementAndGet())
+                      next.search()
                   }
                 }
             }
@@ -97,14 +123,14 @@ case class MatchState(
           // then additionally mark np as done.
           case None =>
             if (m.target.adjacentEdges(nt).forall(m.map.e.codSet.contains))
-              copy(pNodes = pNodes - np, psNodes = psNodes - np).nextMatch()
+              copy(pNodes = pNodes - np, psNodes = psNodes - np).search()
             else
-              copy(psNodes = psNodes - np).nextMatch()
+              copy(psNodes = psNodes - np).search()
         }
       } else {
         // any match mapping np -> nt is doomed, so continue to the next possibility
         nextState match {
-          case Some(ms1) => ms1.nextMatch()
+          case Some(ms1) => ms1.search()
           case None => None
         }
       }
@@ -113,24 +139,26 @@ case class MatchState(
       // if there are no scheduled nodes, pick a new unmatched node in the pattern, match it in every possible way
       // and schedule its neighbourhood for matching
     } else if (uNodes.nonEmpty) {
-      val np = uNodes.min
+      val np = plan.nextNode(uNodes)
       candidateNodes match {
         case None =>
-          copy(candidateNodes = Some(targetVertices.filter { v =>
-            !m.target.vdata(v).isWireVertex
-          })).nextMatch()
+          val candidates = targetIndex.candidates(m.pattern, np)
+          counters.foreach(_.candidatesPruned.addAndGet(targetIndex.size - candidates.size))
+          copy(candidateNodes = Some(candidates.filter(targetVertices.contains))).search()
         case Some(candidateNodes1) =>
           if (candidateNodes1.isEmpty) {
             nextState match {
-              case Some(ms1) => ms1.nextMatch()
+              case Some(ms1) => ms1.search()
               case None => None
             }
           } else {
             val nt = candidateNodes1.min
             val next = copy(candidateNodes = Some(candidateNodes1 - nt))
             matchNewNode(np, nt) match {
-              case Some(ms1) => ms1.copy(candidateNodes = None, nextState = Some(next)).nextMatch()
-              case None => next.nextMatch()
+              case Some(ms1) => ms1.copy(candidateNodes = None, nextState = Some(next)).search()
+              case None =>
+                counters.foreach(_.candidatesRejected.incrementAndGet())
+                next.search()
             }
           }
       }
@@ -146,11 +174,11 @@ case class MatchState(
             for (v <- targetVertices if m.target.representsWire(v) && reflectsBBoxes(pbw, v);
                  i <- 0 to m.bareWireMap.get(v).map(_.length).getOrElse(0))
               yield (v, i)
-          copy(candidateWires = Some(cWires)).nextMatch()
+          copy(candidateWires = Some(cWires)).search()
         case Some(candidateWires1) =>
           if (candidateWires1.isEmpty) {
             nextState match {
-              case Some(ms1) => ms1.nextMatch()
+              case Some(ms1) => ms1.search()
               case None => None
             }
           } else {
@@ -162,7 +190,7 @@ case class MatchState(
             copy(
               m = m.addVertex(pbw -> tbw._1).copy(bareWireMap = newMap),
               candidateWires = None,
-              nextState = Some(next)).nextMatch()
+              nextState = Some(next)).search()
           }
       }
 
@@ -173,7 +201,7 @@ case class MatchState(
         case Some(candidateBBoxes1) =>
           if (candidateBBoxes1.isEmpty) {
             nextState match {
-              case Some(ms1) => ms1.nextMatch()
+              case Some(ms1) => ms1.search()
               case None => None
             }
           } else {
@@ -189,7 +217,7 @@ case class MatchState(
               psNodes = pNodes, // re-schedule everything
               candidateBBoxes = None,
               nextState = Some(next)
-            ).nextMatch()
+            ).search()
           }
         case None =>
           val (killGraph, killOp) = m.pattern.killBBox(pbb)
@@ -238,25 +266,29 @@ case class MatchState(
             }
 
 
-          expState.nextMatch()
+          expState.search()
       }
 
       // if there is nothing left to do, check if the match is complete and return it if so. If not, continue
       // the search from nextState
     } else {
-      if (pNodes.isEmpty && m.isTotal) {
-        if (MatchState.countMatches) MatchState.matchCounter += 1
+      if (pNodes.isEmpty && m.isTotal && (!MatchState.smashSymmetries || symmetry.isLeast(m))) {
+        MatchState.recordMatch()
+        counters.foreach(_.matchesFound.incrementAndGet())
         val ms = copy(m = m.copy(subst = expressionMatcher.toMap))
         Some((ms.m, nextState))
       } else {
         nextState match {
-          case Some(ms1) => ms1.nextMatch()
+          case Some(ms1) => ms1.search()
           case None => None
         }
       }
     }
   }
 
+  /** The number of target nodes skipped so far by the target index, rather than tried with matchNewNode */
+  def candidatesPruned: Long = targetIndex.pruned
+
   def matchIsMonotone(pv: VName, tv: VName): Boolean =
     if (!MatchState.smashSymmetries) true
     else
@@ -272,6 +304,9 @@ case class MatchState(
         case None => true
       }
 
+  def matchIsLeast(pv: VName, tv: VName): Boolean =
+    !MatchState.smashSymmetries || symmetry.mayAdd(m, pv, tv)
+
   def pVertexMayBeCompleted(vp: VName): Boolean = {
     val allEdges = m.pattern.adjacentEdges(vp)
     val concreteEdges = allEdges.filter(e => m.pattern.bboxesContaining(m.pattern.edgeGetOtherVertex(e, vp)).isEmpty)
@@ -310,7 +345,7 @@ case class MatchState(
     * @return
     */
   def matchNewNode(np: VName, nt: VName): Option[MatchState] =
-    if (!reflectsBBoxes(np, nt) || !matchIsMonotone(np, nt)) None
+    if (!reflectsBBoxes(np, nt) || !matchIsMonotone(np, nt) || !matchIsLeast(np, nt)) None
     else
       (m.pattern.vdata(np), m.target.vdata(nt)) match {
         case (pd: NodeV, td: NodeV) =>
@@ -370,7 +405,8 @@ case class MatchState(
         else None
       } else if (targetVertices contains newVt) {
         (m.pattern.vdata(newVp), m.target.vdata(newVt)) match {
-          case (_: WireV, _: WireV) if reflectsBBoxes(newVp, newVt) && matchIsMonotone(newVp, newVt) =>
+          case (_: WireV, _: WireV)
+            if reflectsBBoxes(newVp, newVt) && matchIsMonotone(newVp, newVt) && matchIsLeast(newVp, newVt) =>
             (m.pattern.wireVertexGetOtherEdge(newVp, ep), m.target.wireVertexGetOtherEdge(newVt, et)) match {
               case (Some(newEp), Some(newEt)) =>
                 copy(
@@ -395,7 +431,7 @@ case class MatchState(
 }
 
 object MatchState {
-  // use !-box orbits to ignore redundant matches
+  // use !-box orbits and pattern automorphisms to ignore redundant matches
   var smashSymmetries = true
   // for testing e.g. laziness in a single thread
   private var matchCounter = 0
@@ -410,4 +446,7 @@ object MatchState {
     countMatches = false
     matchCounter
   }
+
+  private[rewrite] def recordMatch(): Unit =
+    if (countMatches) matchCounter += 1
 }
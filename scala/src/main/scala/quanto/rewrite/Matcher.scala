@@ -2,23 +2,64 @@ package quanto.rewrite
 
 import quanto.data._
 
+import scala.concurrent.ExecutionContext
+
+/**
+  * The search engine used by Matcher.findMatches
+  */
+sealed abstract class MatchEngine
+
+// the search over persistent MatchState objects
+case object PersistentMatchEngine extends MatchEngine
+
+// the int-indexed search in CompiledMatcher. Falls back to MatchState for graphs it does not support.
+case object CompiledMatchEngine extends MatchEngine
+
 object Matcher {
   def initialise(pat: Graph, tgt: Graph, restrictTo: Set[VName]): MatchState = {
-    val patN = pat.normalise
     val tgtN = tgt.normalise
-    val restrict0 = restrictTo intersect tgtN.verts
+    initialise(pat, tgtN, restrictTo, new TargetIndex(tgtN))
+  }
+
+  /**
+    * Start a search in a target which is already normalised and indexed, e.g. by a caller which keeps the index up
+    * to date as it rewrites the target (see IncrementalRewriter)
+    *
+    * @param targetIndex the index of tgt, which must be the target it was built or updated for
+    */
+  def initialise(pat: Graph, tgt: Graph, restrictTo: Set[VName], targetIndex: TargetIndex): MatchState = {
+    require(targetIndex.target eq tgt, "the target index is not for this target")
+    val patN = pat.normalise
+    val restrict0 = restrictTo intersect tgt.verts
     val restrict1 = restrict0.foldRight(restrict0) { (v, s) =>
-      if (tgtN.verts contains v) {
-        s union tgtN.adjacentVerts(v)
+      if (tgt.verts contains v) {
+        s union tgt.adjacentVerts(v)
       } else s
     }
 
     MatchState(
-      m = Match(pattern0 = patN, pattern = patN, target = tgtN),
+      m = Match(pattern0 = patN, pattern = patN, target = tgt),
       targetVertices = restrict1,
+      targetIndex = targetIndex,
       expressionMatcher = CompositeExpressionMatcher()) // Create the matcher empty, it will fill itself in in time
   }
 
+  /**
+    * Start a search for matches of the LHS of a rule, following the rule's search plan and skipping matches related
+    * by its symmetries
+    */
+  def initialise(rule: Rule, tgt: Graph, restrictTo: Set[VName]): MatchState = {
+    val tgtN = tgt.normalise
+    initialise(rule, tgtN, restrictTo, new TargetIndex(tgtN))
+  }
+
+  def initialise(rule: Rule, tgt: Graph, restrictTo: Set[VName], targetIndex: TargetIndex): MatchState = {
+    val counters = Instrumentation.rule(rule.name)
+    counters.foreach(_.searches.incrementAndGet())
+    initialise(rule.lhs, tgt, restrictTo, targetIndex)
+      .copy(symmetry = PatternSymmetry.forRule(rule), plan = SearchPlan.forRule(rule), counters = counters)
+  }
+
   def findMatches(pat: Graph, tgt: Graph, restrictTo: Set[VName]): Stream[Match] = {
     matchMain(initialise(pat, tgt, restrictTo))
   }
@@ -26,6 +67,91 @@ object Matcher {
   def findMatches(pat: Graph, tgt: Graph): Stream[Match] =
     findMatches(pat, tgt, tgt.verts)
 
+  /**
+    * Iterate over the matches of pat in tgt, without retaining any of them. Prefer this to findMatches when the
+    * matches are only traversed once.
+    */
+  def matchIterator(pat: Graph, tgt: Graph, restrictTo: Set[VName]): MatchIterator =
+    new MatchIterator(initialise(pat, tgt, restrictTo))
+
+  def matchIterator(pat: Graph, tgt: Graph): MatchIterator =
+    matchIterator(pat, tgt, tgt.verts)
+
+  /**
+    * Iterate over the matches of the LHS of a rule, returning only one of the matches related by an automorphism
+    * of the LHS which leaves the result of the rewrite unchanged (see PatternSymmetry). Setting
+    * MatchState.smashSymmetries to false returns every labelled match instead.
+    */
+  def matchIterator(rule: Rule, tgt: Graph, restrictTo: Set[VName]): MatchIterator =
+    new MatchIterator(initialise(rule, tgt, restrictTo))
+
+  def matchIterator(rule: Rule, tgt: Graph): MatchIterator =
+    matchIterator(rule, tgt, tgt.verts)
+
+  def firstMatch(pat: Graph, tgt: Graph, restrictTo: Set[VName]): Option[Match] =
+    initialise(pat, tgt, restrictTo).nextMatch().map(_._1)
+
+  def firstMatch(pat: Graph, tgt: Graph): Option[Match] =
+    firstMatch(pat, tgt, tgt.verts)
+
+  def firstMatch(rule: Rule, tgt: Graph, restrictTo: Set[VName]): Option[Match] =
+    initialise(rule, tgt, restrictTo).nextMatch().map(_._1)
+
+  def firstMatch(rule: Rule, tgt: Graph): Option[Match] =
+    firstMatch(rule, tgt, tgt.verts)
+
+  def hasMatch(pat: Graph, tgt: Graph, restrictTo: Set[VName]): Boolean =
+    firstMatch(pat, tgt, restrictTo).isDefined
+
+  def hasMatch(pat: Graph, tgt: Graph): Boolean =
+    hasMatch(pat, tgt, tgt.verts)
+
+  def hasMatch(rule: Rule, tgt: Graph): Boolean =
+    firstMatch(rule, tgt).isDefined
+
+  def countMatches(pat: Graph, tgt: Graph, restrictTo: Set[VName]): Int =
+    matchIterator(pat, tgt, restrictTo).countRemaining()
+
+  def countMatches(pat: Graph, tgt: Graph): Int =
+    countMatches(pat, tgt, tgt.verts)
+
+  def takeMatches(pat: Graph, tgt: Graph, n: Int): List[Match] =
+    matchIterator(pat, tgt).take(n).toList
+
+  def findMatches(pat: Graph, tgt: Graph, restrictTo: Set[VName], engine: MatchEngine): Stream[Match] = {
+    val ms = initialise(pat, tgt, restrictTo)
+    engine match {
+      case CompiledMatchEngine if CompiledMatcher.supports(ms.m.pattern, ms.m.target) =>
+        CompiledMatcher.findMatches(ms)
+      case _ => matchMain(ms)
+    }
+  }
+
+  def findMatches(pat: Graph, tgt: Graph, engine: MatchEngine): Stream[Match] =
+    findMatches(pat, tgt, tgt.verts, engine)
+
+  /**
+    * Find all matches, splitting the search over the given ExecutionContext (by default the global fork-join pool).
+    * This returns the same matches in the same order as findMatches, but computes them all before returning.
+    */
+  def findMatchesParallel(pat: Graph, tgt: Graph, restrictTo: Set[VName])
+                         (implicit ec: ExecutionContext = ExecutionContext.global): Stream[Match] =
+    ParallelMatcher.findMatches(initialise(pat, tgt, restrictTo))
+
+  def findMatchesParallel(pat: Graph, tgt: Graph): Stream[Match] =
+    findMatchesParallel(pat, tgt, tgt.verts)
+
+  /**
+    * Find some match, splitting the search over the given ExecutionContext and returning as soon as any branch of
+    * the search succeeds. Use this in place of findMatches(...).headOption when any match will do.
+    */
+  def findFirstMatchParallel(pat: Graph, tgt: Graph, restrictTo: Set[VName])
+                            (implicit ec: ExecutionContext = ExecutionContext.global): Option[Match] =
+    ParallelMatcher.findFirstMatch(initialise(pat, tgt, restrictTo))
+
+  def findFirstMatchParallel(pat: Graph, tgt: Graph): Option[Match] =
+    findFirstMatchParallel(pat, tgt, tgt.verts)
+
   private def matchMain(ms: MatchState): Stream[Match] =
     ms.nextMatch() match {
       case Some((m1, Some(next))) => m1 #:: matchMain(next)
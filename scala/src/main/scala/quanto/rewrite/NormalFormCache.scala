@@ -0,0 +1,288 @@
+package quanto.rewrite
+
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+import quanto.data.Names._
+import quanto.data._
+import quanto.util.json._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * A bounded memo of normal forms. For a graph and a simproc that rewrites to a fixpoint (REPEAT or REDUCE), it keeps
+  * the sequence of rewrites that took the graph to its normal form, keyed by the certificate of the graph. A graph
+  * isomorphic to one already reduced is then reduced by replaying the same rewrites, renamed to fit, without
+  * searching for a single match.
+  *
+  * The rewrites are stored with the vertices and edges of the (normalised) start graph named by their place in its
+  * canonical order, and every other name replaced by a placeholder, so they can be renamed to fit any graph with the
+  * same certificate. Only the start graph is kept in full. Each step keeps the GraphDelta from the graph before it
+  * and the (small) rule instance, and the graphs are rebuilt on a hit, so an entry costs memory in the size of the
+  * changes rather than the number of steps times the size of the graph. Graphs with !-boxes are not cached.
+  *
+  * @param maxSize  the number of normal forms kept, least recently used first out
+  * @param maxSteps the longest sequence of rewrites kept
+  */
+class NormalFormCache(val maxSize: Int = 1024, val maxSteps: Int = 1000) {
+
+  import NormalFormCache._
+
+  private val entries = new java.util.LinkedHashMap[(String, String), Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[(String, String), Entry]): Boolean =
+      size > maxSize
+  }
+
+  private var hitCount = 0L
+  private var missCount = 0L
+
+  def hits: Long = entries.synchronized { hitCount }
+
+  def misses: Long = entries.synchronized { missCount }
+
+  def size: Int = entries.synchronized { entries.size }
+
+  def stats: String = entries.synchronized {
+    val total = hitCount + missCount
+    s"normal form cache: $hitCount hits, $missCount misses" +
+      (if (total > 0) f" (${100.0 * hitCount / total}%.1f%% hit rate)" else "") +
+      s", ${entries.size} of $maxSize entries"
+  }
+
+  def clear(): Unit = entries.synchronized {
+    entries.clear()
+    hitCount = 0
+    missCount = 0
+  }
+
+  /** The rewrites taking the graph to its normal form under the given simproc, if already known */
+  def lookup(simproc: String, g: Graph): Option[Seq[(Graph, Rule)]] =
+    if (!cacheable(g)) None
+    else {
+      val entry = entries.synchronized { Option(entries.get((simproc, g.certificate.hash))) }
+      val steps = entry.flatMap(replay(_, g))
+      entries.synchronized { if (steps.isDefined) hitCount += 1 else missCount += 1 }
+      steps
+    }
+
+  /** Remember the rewrites taking the given graph to its normal form under the given simproc */
+  def put(simproc: String, g: Graph, steps: Seq[(Graph, Rule)]): Unit =
+    if (cacheable(g) && steps.size <= maxSteps &&
+      steps.forall { case (g1, r1) => cacheable(g1) && !r1.hasBBoxes }) {
+      val entry = store(g, steps)
+      entries.synchronized { entries.put((simproc, g.certificate.hash), entry) }
+    }
+
+  /**
+    * Reduce the graph with the given simproc, by replaying a known normal form if there is one. Otherwise, the steps
+    * are recorded as the simproc runs, and remembered only if it runs to the end without halting early.
+    */
+  def reduce(simproc: String, g: Graph, s: Simproc): Iterator[(Graph, Rule)] = lookup(simproc, g) match {
+    case Some(steps) => steps.iterator
+    case None =>
+      val iter = s.simp(g)
+      if (!cacheable(g)) iter
+      else new Simproc.HaltingIterator {
+        private val steps = ArrayBuffer[(Graph, Rule)]()
+        private var finished = false
+
+        override def halt: Option[Simproc.Halt] = Simproc.haltOf(iter)
+
+        override def hasNext: Boolean = {
+          val more = iter.hasNext
+          if (!more && !finished) {
+            finished = true
+            if (halt.isEmpty) put(simproc, g, steps)
+          }
+          more
+        }
+
+        override def next(): (Graph, Rule) = {
+          val step = iter.next()
+          if (step != null && steps.size <= maxSteps) steps += step
+          step
+        }
+      }
+  }
+
+  /** Write the cache to a file, least recently used entries first */
+  def save(f: File, thy: Theory = Theory.DefaultTheory): Unit = {
+    val snapshot = entries.synchronized { entries.asScala.toVector }
+    val json = JsonObject(
+      "max_size" -> maxSize,
+      "entries" -> JsonArray(snapshot.map { case ((simproc, hash), entry) =>
+        JsonObject(
+          "simproc" -> simproc,
+          "certificate" -> hash,
+          "start" -> Graph.toJson(entry.start, thy),
+          "steps" -> JsonArray(entry.steps.map { case (d1, r1) =>
+            JsonObject("graph_delta" -> GraphDelta.toJson(d1, thy), "rule" -> ruleToJson(r1, thy))
+          }))
+      }))
+    json.writeTo(f)
+  }
+
+  /** Add the entries saved in a file to the cache */
+  def load(f: File, thy: Theory = Theory.DefaultTheory): Unit = {
+    val json = Json.parse(f)
+    val loaded = (json / "entries").vectorValue.map { e =>
+      val steps = (e / "steps").vectorValue.map { s =>
+        (GraphDelta.fromJson(s / "graph_delta", thy), ruleFromJson(s / "rule", thy))
+      }
+      ((e / "simproc").stringValue, (e / "certificate").stringValue) -> Entry(Graph.fromJson(e / "start", thy), steps)
+    }
+    entries.synchronized { loaded.foreach { case (k, entry) => entries.put(k, entry) } }
+  }
+}
+
+object NormalFormCache {
+
+  /** The cache used by REPEAT and REDUCE, if any. None by default, i.e. no caching. */
+  @volatile var global: Option[NormalFormCache] = None
+
+  /**
+    * A simproc which reduces by s, consulting the global cache (if set) under the given key, which should identify
+    * what s does, e.g. by fingerprint(rules). The key is only computed once there is a cache, and if it is None,
+    * the cache is never used.
+    */
+  def cached(key: => Option[String], s: Simproc): Simproc = new Simproc {
+    override lazy val fingerprint: Option[String] = key
+
+    override def simp(g: Graph): Iterator[(Graph, Rule)] = global match {
+      case Some(cache) => fingerprint match {
+        case Some(k) => cache.reduce(k, g, s)
+        case None => s.simp(g)
+      }
+      case None => s.simp(g)
+    }
+  }
+
+  /**
+    * A stable hash of a list of rules, which changes if any rule changes (up to isomorphism fixing the boundary), or
+    * the rules are reordered
+    */
+  def fingerprint(rules: Seq[Rule]): String = {
+    val desc = rules.map { r =>
+      r.name + ":" + Canonical.certificate(r.lhs, r.lhs.boundary).hash + ":" +
+        Canonical.certificate(r.rhs, r.rhs.boundary).hash
+    }.mkString("\n")
+    MessageDigest.getInstance("SHA-256").digest(desc.getBytes(StandardCharsets.UTF_8))
+      .map("%02x".format(_)).mkString
+  }
+
+  // the normalised start graph and the rewrites from it, in canonical names, each as a delta from the graph before
+  private case class Entry(start: Graph, steps: Vector[(GraphDelta, Rule)]) {
+    // the graphs and rules of the rewrites
+    def expanded: Vector[(Graph, Rule)] =
+      steps.scanLeft((start, null: Rule)) { case ((g, _), (d, r)) => (d(g), r) }.tail
+  }
+
+  private def cacheable(g: Graph): Boolean = g.bboxes.isEmpty
+
+  // the vertices and edges of a normalised graph, in canonical order
+  private def canonicalOrder(g: Graph): (Vector[VName], Vector[EName]) = {
+    val vs = Canonical.labelling(g).toVector
+    val pos = vs.zipWithIndex.toMap
+    val es = g.edges.toVector.sortBy { e =>
+      val d = g.edata(e)
+      val (s, t) = (pos(g.source(e)), pos(g.target(e)))
+      val (s1, t1) = if (d.isDirected) (s, t) else (math.min(s, t), math.max(s, t))
+      (s1, t1, d.isDirected, d.data.toString)
+    }
+    (vs, es)
+  }
+
+  private def canonicalV(i: Int) = VName("c" + i)
+
+  private def canonicalE(i: Int) = EName("c" + i)
+
+  private def graphs(start: Graph, steps: Seq[(Graph, Rule)]): Seq[Graph] =
+    start +: steps.flatMap { case (g1, r1) => Seq(g1, r1.lhs, r1.rhs) }
+
+  private def makeRule(lhs: Graph, rhs: Graph, derivation: Option[String], desc: RuleDesc): Rule =
+    if (desc.inverse) Rule(rhs, lhs, derivation, desc) else Rule(lhs, rhs, derivation, desc)
+
+  private def renamed(steps: Seq[(Graph, Rule)], vrn: Map[VName, VName], ern: Map[EName, EName]) =
+    steps.map { case (g1, r1) =>
+      (g1.rename(vrn, ern), makeRule(r1.lhs.rename(vrn, ern), r1.rhs.rename(vrn, ern), r1.derivation, r1.description))
+    }
+
+  private def store(g: Graph, steps: Seq[(Graph, Rule)]): Entry = {
+    val start = g.normalise
+    val (vs, es) = canonicalOrder(start)
+    val all = graphs(start, steps)
+    val vrn0 = vs.zipWithIndex.map { case (v, i) => v -> canonicalV(i) }.toMap
+    val ern0 = es.zipWithIndex.map { case (e, i) => e -> canonicalE(i) }.toMap
+    val vrn = all.flatMap(_.verts).distinct.filterNot(vrn0.contains).zipWithIndex
+      .foldLeft(vrn0) { case (m, (v, j)) => m + (v -> VName("n" + j)) }
+    val ern = all.flatMap(_.edges).distinct.filterNot(ern0.contains).zipWithIndex
+      .foldLeft(ern0) { case (m, (e, j)) => m + (e -> EName("n" + j)) }
+    val start1 = start.rename(vrn, ern)
+    val steps1 = renamed(steps, vrn, ern)
+    val deltas = (start1 +: steps1.map(_._1)).sliding(2).collect { case Seq(g0, g1) => GraphDelta.between(g0, g1) }
+    Entry(start1, deltas.toVector.zip(steps1.map(_._2)))
+  }
+
+  // the stored rewrites, renamed to start from the given graph, or None if it turns out not to fit
+  private def replay(entry: Entry, g: Graph): Option[Seq[(Graph, Rule)]] = {
+    val start = g.normalise
+    val (vs, es) = canonicalOrder(start)
+    if (vs.size != entry.start.verts.size || es.size != entry.start.edges.size) return None
+
+    val steps = entry.expanded
+    val all = graphs(entry.start, steps)
+    val vrn0 = vs.indices.map { i => canonicalV(i) -> vs(i) }.toMap
+    val ern0 = es.indices.map { i => canonicalE(i) -> es(i) }.toMap
+    val vrn = freshNames(all.flatMap(_.verts).distinct.filterNot(vrn0.contains), vrn0, start.vertexNames, VName("v0"))
+    val ern = freshNames(all.flatMap(_.edges).distinct.filterNot(ern0.contains), ern0, start.edgeNames, EName("e0"))
+
+    if (!sameUpToLayout(entry.start.rename(vrn, ern), start)) None
+    else Some(renamed(steps, vrn, ern).map { case (g1, r1) => (withCoords(g1, start), r1) })
+  }
+
+  // extend the renaming, giving each of the given names a fresh one
+  private def freshNames[N <: Name[N]](names: Seq[N], rn: Map[N, N], alloc: NameAllocator[N], suggest: N): Map[N, N] =
+    names.foldLeft((rn, alloc, rn.values.toSet)) { case ((m, a, used), n) =>
+      val n1 = a.freshWithSuggestion(suggest, used.contains)
+      (m + (n -> n1), a + n1, used + n1)
+    }._1
+
+  // the stored start graph, renamed, should be the given one up to coordinates and the direction of undirected edges
+  private def sameUpToLayout(g1: Graph, g2: Graph): Boolean =
+    g1.verts == g2.verts && g1.edges == g2.edges &&
+      g1.verts.forall { v =>
+        (g1.vdata(v), g2.vdata(v)) match {
+          case (d1: NodeV, d2: NodeV) => d1.data == d2.data
+          case (d1: WireV, d2: WireV) => d1.isBoundary == d2.isBoundary && d1.data == d2.data
+          case _ => false
+        }
+      } &&
+      g1.edges.forall { e =>
+        val (d1, d2) = (g1.edata(e), g2.edata(e))
+        d1.isDirected == d2.isDirected && d1.data == d2.data && {
+          val (s1, t1, s2, t2) = (g1.source(e), g1.target(e), g2.source(e), g2.target(e))
+          (s1 == s2 && t1 == t2) || (!d1.isDirected && s1 == t2 && t1 == s2)
+        }
+      }
+
+  // vertices kept from the start graph are put where they are in the start graph
+  private def withCoords(g1: Graph, start: Graph): Graph =
+    g1.verts.foldLeft(g1) { (g, v) =>
+      start.vdata.get(v) match {
+        case Some(d) if d.annotation.get("coord").isDefined => g.updateVData(v)(_.withCoord(d.coord))
+        case _ => g
+      }
+    }
+
+  private def ruleToJson(r: Rule, thy: Theory): Json = JsonObject(
+    "name" -> r.description.name,
+    "inverse" -> r.description.inverse,
+    "lhs" -> Graph.toJson(r.lhs, thy),
+    "rhs" -> Graph.toJson(r.rhs, thy))
+
+  private def ruleFromJson(json: Json, thy: Theory): Rule =
+    makeRule(Graph.fromJson(json / "lhs", thy), Graph.fromJson(json / "rhs", thy), None,
+      RuleDesc((json / "name").stringValue, (json / "inverse").boolValue))
+}
@@ -0,0 +1,86 @@
+package quanto.rewrite
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import scala.annotation.tailrec
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future, Promise}
+
+/**
+  * Runs a match search on several threads, by splitting the search tree at the first pattern node into independent
+  * branches, one for each of its candidate nodes in the target. Each branch is explored sequentially by
+  * MatchState.nextMatch, as a separate task on a fork-join ExecutionContext.
+  */
+object ParallelMatcher {
+
+  /**
+    * Split the search tree rooted at the given state into independent states, one per candidate of the first
+    * pattern node. The branches are given in the same order MatchState would have explored them, and each of them
+    * has no nextState, so the searches below them share nothing but the (immutable) graphs.
+    *
+    * If the search does not start by matching a node (e.g. the pattern has circles, or no nodes at all), the
+    * original state is returned as a single branch.
+    *
+    * @param ms a freshly initialised MatchState
+    * @return the states to search
+    */
+  def branches(ms: MatchState): Seq[MatchState] =
+    if (ms.uCircles.nonEmpty || ms.psNodes.nonEmpty || ms.uNodes.isEmpty || ms.nextState.nonEmpty) Seq(ms)
+    else {
+      val np = ms.plan.nextNode(ms.uNodes)
+      val candidates = ms.targetIndex.candidates(ms.m.pattern, np).filter(ms.targetVertices.contains)
+      candidates.toSeq.sorted.flatMap { nt =>
+        ms.matchNewNode(np, nt).map(_.copy(candidateNodes = None, nextState = None))
+      }
+    }
+
+  /**
+    * Find all of the matches, searching the branches in parallel. The matches are returned in the same order as
+    * the sequential search would produce them, but unlike Matcher.findMatches, they are all computed up front.
+    */
+  def findMatches(ms: MatchState)(implicit ec: ExecutionContext): Stream[Match] = {
+    val tasks = branches(ms).map { b => Future { allMatches(b) } }
+    Await.result(Future.sequence(tasks), Duration.Inf).flatten.toStream
+  }
+
+  /**
+    * Find a single match, searching the branches in parallel. The first branch to produce a match wins, and the
+    * remaining branches are cancelled: they all share a flag, which MatchState checks at each state it visits, so
+    * branches which haven't started yet find nothing, and branches in progress stop at their next state.
+    *
+    * Since branches race, this is not necessarily the first match the sequential search would have found.
+    */
+  def findFirstMatch(ms: MatchState)(implicit ec: ExecutionContext): Option[Match] = {
+    val done = new AtomicBoolean(false)
+    val result = Promise[Option[Match]]()
+
+    val tasks = branches(ms).map(_.copy(cancelled = Some(done))).map { b =>
+      Future {
+        b.nextMatch() match {
+          case Some((m, _)) => if (!done.getAndSet(true)) result.trySuccess(Some(m))
+          case None =>
+        }
+      }
+    }
+
+    // if every branch finishes without a match, there is no match
+    Future.sequence(tasks).onComplete { r =>
+      r.failed.foreach(result.tryFailure)
+      result.trySuccess(None)
+    }
+
+    Await.result(result.future, Duration.Inf)
+  }
+
+  private def allMatches(ms: MatchState): Vector[Match] = {
+    @tailrec
+    def collect(state: MatchState, acc: Vector[Match]): Vector[Match] =
+      state.nextMatch() match {
+        case Some((m, Some(next))) => collect(next, acc :+ m)
+        case Some((m, None)) => acc :+ m
+        case None => acc
+      }
+
+    collect(ms, Vector())
+  }
+}
@@ -0,0 +1,136 @@
+package quanto.rewrite
+
+import quanto.data._
+import quanto.util.WeakIdentityMap
+
+/**
+  * The automorphisms of a normalised pattern, used to avoid returning the same match once per symmetry.
+  *
+  * If m is a match and s an automorphism of the pattern, m . s is a match with the same image. Of the matches
+  * related in this way, only the lexicographically least is kept, comparing the images of the pattern vertices
+  * in the order given by `order`. MatchState checks this as vertices are added, so a partial match is dropped as
+  * soon as some permutation of it is known to come first.
+  *
+  * The group is not stored in full. It is given by a stabiliser chain along `order` (c.f. Schreier-Sims): for each
+  * vertex b, the orbit of b under the automorphisms which fix every vertex before it, along with one automorphism
+  * taking b to each point of its orbit. These generate the group. A match m is least exactly when, for each vertex
+  * b, m(b) is no greater than m(x) for every other x in the orbit of b, so minimality is checked one orbit at a time.
+  * Images may be equal, e.g. when two boundaries of the pattern are matched on the same wire-vertex of a self-loop,
+  * and such ties are kept, as dropping them would lose every copy of the match.
+  *
+  * @param pattern the normalised pattern
+  * @param orbits  for each vertex b, its orbit under the automorphisms fixing the vertices before it in `order`,
+  *                and an automorphism taking b to each point of the orbit other than b
+  */
+class PatternSymmetry(val pattern: Graph, val orbits: Map[VName, Map[VName, Map[VName, VName]]]) {
+  // nodes first, since most wire-vertices are matched along with a node
+  val order: Vector[VName] = PatternSymmetry.order(pattern)
+
+  /** Automorphisms which generate the group */
+  val generators: Seq[Map[VName, VName]] = orbits.values.flatMap(_.values).toSeq.distinct
+
+  /** The number of automorphisms, including the identity */
+  val size: BigInt = orbits.values.foldLeft(BigInt(1)) { (n, o) => n * (o.size + 1) }
+
+  def isTrivial: Boolean = generators.isEmpty
+
+  // for each vertex, the other points of its orbit, and the vertices in whose orbit it lies
+  private val orbitOf: Map[VName, Set[VName]] = orbits.collect { case (b, o) if o.nonEmpty => b -> o.keySet }
+  private val basesOf: Map[VName, Seq[VName]] =
+    orbitOf.toSeq.flatMap { case (b, o) => o.map(_ -> b) }.groupBy(_._1).mapValues(_.map(_._2))
+
+  /**
+    * Check if a (partial) vertex map could still be extended to a match which is least among its permutations
+    * by automorphisms of the pattern.
+    */
+  def mayExtend(vmap: VName => Option[VName]): Boolean =
+    orbitOf.forall { case (b, o) => vmap(b).forall { tb => o.forall { x => vmap(x).forall(tb <= _) } } }
+
+  /** As mayExtend, with the given pattern vertex added to the match, which is assumed to be least already */
+  def mayAdd(m: Match, pv: VName, tv: VName): Boolean =
+    isTrivial || (
+      orbitOf.get(pv).forall { o => o.forall { x => m.map.v.get(x).forall(tv <= _) } } &&
+        basesOf.getOrElse(pv, Seq()).forall { b => m.map.v.get(b).forall(_ <= tv) })
+
+  def isLeast(m: Match): Boolean =
+    isTrivial || mayExtend(m.map.v.get)
+}
+
+object PatternSymmetry {
+  val Trivial = new PatternSymmetry(Graph(), Map())
+
+  // the order matches are compared in: nodes, then wire-vertices, each by name
+  private def order(pattern: Graph): Vector[VName] = {
+    val (wires, nodes) = pattern.verts.toVector.sorted.partition(pattern.vdata(_).isWireVertex)
+    nodes ++ wires
+  }
+
+  /**
+    * Compute the automorphisms of a pattern, as its bijective matches on itself. Patterns with !-boxes (whose
+    * symmetries are handled by MatchState.bboxOrbits) or bare wires are given no symmetries.
+    */
+  def apply(pattern: Graph): PatternSymmetry = subgroup(pattern, (_, _) => true)
+
+  // the symmetries of rules, computed on first use
+  private val ruleSymmetries = new WeakIdentityMap[Rule, PatternSymmetry]
+
+  /**
+    * The symmetries of the LHS of a rule which do not change the result of rewriting, i.e. those whose action on
+    * the boundary is also the action of some automorphism of the RHS. These are computed once per rule.
+    */
+  def forRule(rule: Rule): PatternSymmetry = ruleSymmetries.getOrElseUpdate(rule, {
+    val rhsBoundary = rule.rhs.boundary
+    // many automorphisms act on the boundary in the same way
+    val extendsToRhs = collection.mutable.Map[Map[VName, VName], Boolean]()
+    subgroup(rule.lhs, { (p, a) =>
+      val bmap = p.boundary.map(b => b -> a(b)).toMap
+      bmap.forall { case (b, b1) => b == b1 } ||
+        extendsToRhs.getOrElseUpdate(bmap, Canonical.isomorphic(rule.rhs, rule.rhs.rename(bmap), rhsBoundary))
+    })
+  })
+
+  /**
+    * The stabiliser chain of the automorphisms of a pattern satisfying keep, which must form a group. The orbit
+    * of each vertex is found by searching for an automorphism which fixes the vertices before it and takes it to
+    * each candidate point, so the group is never enumerated.
+    */
+  private def subgroup(pattern: Graph, keep: (Graph, Map[VName, VName]) => Boolean): PatternSymmetry = {
+    val p = pattern.normalise
+    if (p.bboxes.nonEmpty || p.verts.exists(p.representsBareWire)) new PatternSymmetry(p, Map())
+    else {
+      val ord = order(p)
+      val orbits = ord.indices.map { i =>
+        val b = ord(i)
+        val fixed = ord.take(i)
+        val candidates = ord.drop(i + 1).filter { x =>
+          sameData(p.vdata(b), p.vdata(x)) && p.arity(b) == p.arity(x)
+        }
+        b -> candidates.flatMap { x => automorphism(p, fixed, b, x, keep(p, _)).map(x -> _) }.toMap
+      }
+      new PatternSymmetry(p, orbits.toMap)
+    }
+  }
+
+  // an automorphism of p satisfying keep, which fixes the given vertices and takes b to x, if there is one
+  private def automorphism(p: Graph, fixed: Seq[VName], b: VName, x: VName,
+                           keep: Map[VName, VName] => Boolean): Option[Map[VName, VName]] = {
+    val pairs = fixed.map(f => f -> f) :+ (b -> x)
+    // start the search from the nodes we know the images of
+    val start = pairs.filter { case (v, _) => !p.vdata(v).isWireVertex }
+      .foldLeft(Option(Matcher.initialise(p, p, p.verts))) { case (ms, (v, w)) => ms.flatMap(_.matchNewNode(v, w)) }
+
+    new MatchIterator(start).map(_.map.v.toMap).find { a =>
+      pairs.forall { case (v, w) => a.get(v).contains(w) } &&
+        a.values.toSet.size == p.verts.size &&
+        a.forall { case (v, w) => sameData(p.vdata(v), p.vdata(w)) } &&
+        keep(a)
+    }
+  }
+
+  // phases must be equal, not just matching. Annotations (e.g. coordinates) are ignored.
+  private def sameData(d1: VData, d2: VData): Boolean = (d1, d2) match {
+    case (n1: NodeV, n2: NodeV) => n1.data == n2.data
+    case (w1: WireV, w2: WireV) => w1.data == w2.data
+    case _ => false
+  }
+}
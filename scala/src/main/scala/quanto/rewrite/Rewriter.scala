@@ -4,42 +4,100 @@ import quanto.data.Names._
 import quanto.data._
 
 object Rewriter {
-  def rewrite(m: Match, rhs: Graph, desc: RuleDesc = RuleDesc()): (Graph, Rule) = {
+  def rewrite(m: Match, rhs: Graph, desc: RuleDesc = RuleDesc()): (Graph, Rule) =
+    Instrumentation.timed(Instrumentation.rule(ruleName(desc)))(_.rewrites, _.rewriteTime) {
+      rewriteUntimed(m, rhs, desc)
+    }
+
+  // the name of a rule, as given by Rule.name
+  private def ruleName(desc: RuleDesc): String = desc.name + (if (desc.inverse) " inverted" else "")
+
+  private def rewriteUntimed(m: Match, rhs: Graph, desc: RuleDesc): (Graph, Rule) = {
     // expand bare wires in the match
     val m1 = m.normalize
 
+    // compute the pushout complement
+    val context = pushoutComplement(Seq(m1))
+
+    val (quotientLhs, quotientRhs) = instantiate(m1, rhs, context, Set(), Set())
+
+    val ruleInst = if (desc.inverse) Rule(quotientRhs, quotientLhs, description = desc)
+    else Rule(quotientLhs, quotientRhs, description = desc)
+
+    // compute the pushout as a union of the context with the quotiented domain of the matching
+    (quotientRhs.appendGraph(context), ruleInst)
+  }
+
+  /**
+    * Rewrite at several matches at once, with a single pushout. The matches must be normalised matches of the same
+    * target, and independent of each other, as collected by IndependentMatches. Each comes with the RHS it is to be
+    * replaced by. Matches found in one search share the same target instance, so checking that the targets agree
+    * is cheap, but matches of equal targets found separately are also accepted.
+    *
+    * @return the rewritten graph, and a composite rule whose LHS and RHS are the unions of those of the instances of
+    *         the individual rules
+    */
+  def rewriteAll(rewrites: Seq[(Match, Graph)], desc: RuleDesc): (Graph, Rule) =
+    Instrumentation.timed(Instrumentation.rule(ruleName(desc)))(_.rewrites, _.rewriteTime) {
+      rewriteAllUntimed(rewrites, desc)
+    }
+
+  private def rewriteAllUntimed(rewrites: Seq[(Match, Graph)], desc: RuleDesc): (Graph, Rule) = {
+    val ms = rewrites.map(_._1)
+    require(ms.nonEmpty && ms.forall { m => m.isNormalized && sameTarget(m, ms.head) })
+    val context = pushoutComplement(ms)
+
+    // the fresh names in each instance avoid those in the instances before it
+    val (instances, _, _) = rewrites.foldLeft((Vector[(Graph, Graph)](), Set[VName](), Set[EName]())) {
+      case ((insts, usedV, usedE), (m, r)) =>
+        val (quotientLhs, quotientRhs) = instantiate(m, r, context, usedV, usedE)
+        (insts :+ ((quotientLhs, quotientRhs)), usedV union quotientRhs.verts, usedE union quotientRhs.edges)
+    }
+    val lhs = instances.map(_._1).reduceLeft { (g, h) => g.appendGraph(h, noOverlap = false) }
+    val rhs = instances.map(_._2).reduceLeft { (g, h) => g.appendGraph(h, noOverlap = false) }
+
+    (rhs.appendGraph(context), Rule(lhs, rhs, description = desc))
+  }
+
+  // true if two matches are of the same target, which is nearly always the same instance
+  private[rewrite] def sameTarget(m1: Match, m2: Match): Boolean = (m1.target eq m2.target) || m1.target == m2.target
+
+  // the target of the matches, without the matched edges and the images of the interiors of the patterns
+  private def pushoutComplement(ms: Seq[Match]): Graph =
+    ms.foldLeft(ms.head.target) { (g, m) =>
+      g.deleteEdges(m.map.e.codSet).deleteVertices(m.map.v.directImage(m.pattern.verts -- m.pattern.boundary))
+    }
+
+  // the LHS and RHS of the rule instance at a normalised match, with the pattern renamed to its image in the target,
+  // and the new vertices and edges of the RHS given names that avoid the context and the given names
+  private def instantiate(m1: Match, rhs: Graph, context: Graph,
+                          avoidV: Set[VName], avoidE: Set[EName]): (Graph, Graph) = {
     // make the pattern graph fresh w.r.t. to the target
     val boundary = m1.pattern.boundary
 
     // expand bboxes in RHS
     val rhsE = expandRhs(m1, rhs)
 
-    val interiorLhs = m1.pattern.verts -- boundary
     val interiorRhs = rhsE.verts -- boundary
 
-    // compute the pushout complement
-    val context = m1.target
-      .deleteEdges(m1.map.e.codSet)
-      .deleteVertices(m1.map.v.directImage(interiorLhs))
-
-    val vertexMap = interiorRhs.foldRight(m1.map.v.restrictDom(boundary)) { (v, mp) =>
-      mp + (v -> (context.verts union mp.codSet).freshWithSuggestion(v))
+    val (vertexMap, _) = interiorRhs.foldRight((m1.map.v.restrictDom(boundary), context.vertexNames)) {
+      case (v, (mp, names)) =>
+        val v1 = names.freshWithSuggestion(v,
+          { x => context.vdata.contains(x) || avoidV.contains(x) || mp.codSet.contains(x) })
+        (mp + (v -> v1), names + v1)
     }
 
-    val edgeMap = rhsE.edges.foldRight(PFun[EName, EName]()) { (e, mp) =>
-      mp + (e -> (context.edges union mp.codSet).freshWithSuggestion(e))
+    val (edgeMap, _) = rhsE.edges.foldRight((PFun[EName, EName](), context.edgeNames)) {
+      case (e, (mp, names)) =>
+        val e1 = names.freshWithSuggestion(e,
+          { x => context.edata.contains(x) || avoidE.contains(x) || mp.codSet.contains(x) })
+        (mp + (e -> e1), names + e1)
     }
 
-
     // quotient the lhs and rhs such that pairs of boundaries mapped to the same vertex are identified
     val quotientLhs = m1.pattern.rename(m1.map.v.toMap, m1.map.e.toMap, m1.map.bb.toMap)
     val quotientRhs = rhsE.rename(vertexMap.toMap, edgeMap.toMap, m1.map.bb.toMap)
-
-    val ruleInst = if (desc.inverse) Rule(quotientRhs, quotientLhs, description = desc)
-    else Rule(quotientLhs, quotientRhs, description = desc)
-
-    // compute the pushout as a union of the context with the quotiented domain of the matching
-    (quotientRhs.appendGraph(context), ruleInst)
+    (quotientLhs, quotientRhs)
   }
 
   def expandRhs(m: Match, rhs: Graph): Graph = {
@@ -54,16 +112,57 @@ object Rewriter {
 
     val rhs1 = m.bbops.foldRight(rhs) { (bbop, g) => g.applyBBOp(bbop, fullBoundary) }
 
-    // Apply all substitutions from our matches
-    val vdata = rhs1.vdata.mapValues {
-      case d: NodeV =>
-        val data = d.data.setPath(
-          "$.value", m.subst.foldLeft(d.phaseData)((data, t) => data.substSubValues(t._2)).toString
-        ).asObject
-        d.copy(data = data)
-      case d: WireV => d
+    // Apply all substitutions from our matches. The substituted values are handed to the new vertices as they are,
+    // rather than being parsed back out of their strings.
+    val vdata = rhs1.vdata.map {
+      case (v, d: NodeV) =>
+        val phase = m.subst.foldLeft(d.phaseData)((data, t) => data.substSubValues(t._2))
+        if (d.hasValue) v -> d.withPhaseData(phase)
+        else v -> d.copy(data = d.data.setPath("$.value", phase.toString).asObject)
+      case (v, d: WireV) => v -> d
     }
 
     rhs1.copy(vdata = vdata)
   }
-}
\ No newline at end of file
+}
+
+/**
+  * A set of matches that can be rewritten together by Rewriter.rewriteAll, chosen greedily. A match is added only if
+  * it is a normalised match of the same target as the others, shares no edge with them, does not touch the interior
+  * vertices of any of them, and has no interior vertex they touch.
+  */
+class IndependentMatches {
+  private var chosen = Vector[(Match, Rule)]()
+  private var touched = Set[VName]()
+  private var interiors = Set[VName]()
+  private var edges = Set[EName]()
+
+  def matches: Vector[(Match, Rule)] = chosen
+
+  def isEmpty: Boolean = chosen.isEmpty
+
+  /** The target vertices that are in the interior of a chosen match */
+  def interior: Set[VName] = interiors
+
+  /** Add the match if it is independent of those already chosen, returning true if it was added */
+  def add(m: Match, rule: Rule): Boolean = {
+    val image = m.map.v.codSet
+    val interior = m.map.v.directImage(m.pattern.verts -- m.pattern.boundary)
+    val independent = m.isNormalized && chosen.forall { c => Rewriter.sameTarget(c._1, m) } &&
+      !interior.exists(touched.contains) && !image.exists(interiors.contains) && !m.map.e.codSet.exists(edges.contains)
+    if (independent) {
+      chosen :+= ((m, rule))
+      touched ++= image
+      interiors ++= interior
+      edges ++= m.map.e.codSet
+    }
+    independent
+  }
+
+  /** Rewrite at all of the chosen matches, as a single step */
+  def rewrite(): (Graph, Rule) = {
+    val counts = chosen.groupBy(_._2.name).mapValues(_.size)
+    val names = chosen.map(_._2.name).distinct.map { n => if (counts(n) == 1) n else n + " x" + counts(n) }
+    Rewriter.rewriteAll(chosen.map { case (m, rule) => (m, rule.rhs) }, RuleDesc(names.mkString(" + ")))
+  }
+}
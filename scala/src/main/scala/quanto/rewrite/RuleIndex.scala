@@ -0,0 +1,199 @@
+package quanto.rewrite
+
+import quanto.data._
+
+import scala.annotation.tailrec
+
+/**
+  * A precompiled index of the left-hand sides of a list of rules, used to discard rules which cannot possibly match
+  * a target before running the full matcher on them. This plays the same role as the discrimination nets in the
+  * ML core.
+  *
+  * Every concrete node (i.e. not in a !-box) of a LHS gives a local signature: its type, its arity, the shape of its
+  * phase and the types of the concrete nodes adjacent to it. A rule can only match a target if each of its
+  * signatures is admitted by some node in the target, and the target has enough nodes of each type. Rules which
+  * share signatures share the work of checking them.
+  *
+  * @param rules the rules to index, in order of preference
+  */
+class RuleIndex(val rules: Seq[Rule]) {
+
+  import RuleIndex._
+
+  private val (signatures, ruleSignatures, ruleTypeCounts) = {
+    val perRule = rules.map { r => lhsSignatures(r.lhs.normalise) }
+    val sigs = perRule.flatMap(_._1).distinct.toVector
+    val sigIndex = sigs.zipWithIndex.toMap
+    (sigs, perRule.map { p => p._1.map(sigIndex).toArray }.toVector, perRule.map(_._2).toVector)
+  }
+
+  /**
+    * All of the rules which could match the given target, in their original order.
+    */
+  def possibleRules(target: Graph): Seq[Rule] = possibleRules(target, target.verts)
+
+  /**
+    * All of the rules which could match the given target, when the match is restricted to the given vertices (and
+    * their neighbours), as in Matcher.findMatches.
+    */
+  def possibleRules(target: Graph, restrictTo: Set[VName]): Seq[Rule] =
+    possibleRuleIndices(target, restrictTo).map(rules)
+
+  /**
+    * The positions in rules of all the rules which could match the given target.
+    */
+  def possibleRuleIndices(target: Graph, restrictTo: Set[VName]): Seq[Int] = {
+    val tgt = target.normalise
+    val restrict = restrictTo intersect tgt.verts
+    val nodes = (restrict union tgt.adjacentVerts(restrict)).toSeq.flatMap(targetNode(tgt, _)).groupBy(_.data.typ)
+
+    val admitted = signatures.map { s => nodes.getOrElse(s.typ, Seq()).exists(s.admits) }
+    rules.indices.filter { i =>
+      ruleSignatures(i).forall(admitted) &&
+        ruleTypeCounts(i).forall { case (t, n) => nodes.get(t).exists(_.size >= n) }
+    }
+  }
+
+  /**
+    * Track the rules which could match a normalised target, as it is rewritten one step at a time.
+    */
+  def tracker(target: Graph): Tracker =
+    new Tracker(target, Map(), Vector.fill(signatures.size)(0), Map()).updated(target, target.verts)
+
+  /**
+    * The rules which could match a normalised target, for the whole of the target. For each signature, this keeps
+    * the number of target nodes admitting it, so that after a rewrite only the nodes near the rewritten region need
+    * to be looked at again (see IncrementalRewriter).
+    */
+  class Tracker private[RuleIndex](val target: Graph,
+                                   nodes: Map[VName, TargetNode],
+                                   admitting: Vector[Int],
+                                   typeCounts: Map[String, Int]) {
+
+    /** The positions in rules of all the rules which could match the target, as given by possibleRuleIndices */
+    def possibleRuleIndices: Seq[Int] = rules.indices.filter { i =>
+      ruleSignatures(i).forall(admitting(_) > 0) &&
+        ruleTypeCounts(i).forall { case (t, n) => typeCounts.getOrElse(t, 0) >= n }
+    }
+
+    /**
+      * The tracker for a new target, which differs from this one only at the given vertices. The signature of a
+      * node depends on the nodes along its wires, so the nodes within two steps of those vertices are looked at
+      * again too.
+      *
+      * @param target1 the new normalised target graph
+      * @param touched every vertex added to, removed from or changed in the target
+      */
+    def updated(target1: Graph, touched: Set[VName]): Tracker = {
+      val live = touched intersect target1.verts
+      val near = live union target1.adjacentVerts(live)
+      val affected = touched union near union target1.adjacentVerts(near)
+
+      var nodes1 = nodes
+      var admitting1 = admitting
+      var typeCounts1 = typeCounts
+
+      def count(t: TargetNode, d: Int): Unit = {
+        admitting1 = signatures.indices.foldLeft(admitting1) { (a, s) =>
+          if (signatures(s).admits(t)) a.updated(s, a(s) + d) else a
+        }
+        typeCounts1 += t.data.typ -> (typeCounts1.getOrElse(t.data.typ, 0) + d)
+      }
+
+      for (v <- affected) {
+        nodes1.get(v).foreach(count(_, -1))
+        targetNode(target1, v) match {
+          case Some(t) =>
+            count(t, 1)
+            nodes1 += v -> t
+          case None =>
+            nodes1 -= v
+        }
+      }
+
+      new Tracker(target1, nodes1, admitting1, typeCounts1)
+    }
+  }
+
+  /**
+    * The first rule (in order) which matches the target, along with its first match.
+    */
+  def findFirstMatch(target: Graph): Option[(Rule, Match)] =
+    possibleRules(target).toStream.flatMap { r =>
+      Matcher.firstMatch(r, target).map { m => (r, m) }
+    }.headOption
+
+  /**
+    * True if any of the rules matches the target.
+    */
+  def matchesAny(target: Graph): Boolean = findFirstMatch(target).isDefined
+}
+
+object RuleIndex {
+
+  import TargetIndex.{PhaseClass, phaseClass, phaseMayMatch}
+
+  /**
+    * The local signature of a concrete node in a LHS.
+    *
+    * @param typ        vertex type
+    * @param arity      arity, or a lower bound if the node is adjacent to a !-box
+    * @param exact      whether the arity is exact
+    * @param phase      the shape of the phase
+    * @param neighbours the number of concrete neighbouring nodes of each type
+    */
+  case class NodeSignature(typ: String, arity: Int, exact: Boolean, phase: PhaseClass,
+                           neighbours: Map[String, Int]) {
+    def admits(t: TargetNode): Boolean =
+      t.data.typ == typ &&
+        (if (exact) t.arity == arity else t.arity >= arity) &&
+        phaseMayMatch(phase, t.data) &&
+        neighbours.forall { case (nt, n) => t.neighbours.getOrElse(nt, 0) >= n }
+  }
+
+  case class TargetNode(data: NodeV, arity: Int, neighbours: Map[String, Int])
+
+  /** The target node at v, if v is a node-vertex of the normalised target */
+  def targetNode(tgt: Graph, v: VName): Option[TargetNode] = tgt.vdata.get(v) match {
+    case Some(d: NodeV) => Some(TargetNode(d, tgt.arity(v), neighbourTypes(tgt, v, _ => true)))
+    case _ => None
+  }
+
+  /**
+    * Signatures of the concrete nodes of a normalised LHS, and the number of concrete nodes of each type
+    */
+  def lhsSignatures(lhs: Graph): (Seq[NodeSignature], Map[String, Int]) = {
+    val concrete: VName => Boolean = v => lhs.bboxesContaining(v).isEmpty
+    val sigs = lhs.vdata.toSeq.collect {
+      case (v, d: NodeV) if concrete(v) =>
+        val (arity, exact) = TargetIndex.arityBound(lhs, v)
+        NodeSignature(d.typ, arity, exact, phaseClass(d), neighbourTypes(lhs, v, concrete))
+    }
+    (sigs.distinct, sigs.groupBy(_.typ).map { case (t, s) => t -> s.size })
+  }
+
+  /**
+    * Count the node-vertices of each type reachable from v along a single wire, only passing through vertices
+    * satisfying the given predicate.
+    */
+  def neighbourTypes(g: Graph, v: VName, concrete: VName => Boolean): Map[String, Int] =
+    g.adjacentEdges(v).foldLeft(Map[String, Int]()) { (counts, e) =>
+      nodeAlongWire(g, v, e, concrete) match {
+        case Some(t) => counts + (t -> (counts.getOrElse(t, 0) + 1))
+        case None => counts
+      }
+    }
+
+  @tailrec
+  private def nodeAlongWire(g: Graph, from: VName, e: EName, concrete: VName => Boolean): Option[String] = {
+    val w = g.edgeGetOtherVertex(e, from)
+    if (!concrete(w)) None
+    else g.vdata(w) match {
+      case d: NodeV => Some(d.typ)
+      case _ => g.wireVertexGetOtherEdge(w, e) match {
+        case Some(e1) => nodeAlongWire(g, w, e1, concrete)
+        case None => None
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package quanto.rewrite
+
+import quanto.data._
+import quanto.util.WeakIdentityMap
+
+import scala.annotation.tailrec
+
+/**
+  * The order in which MatchState visits the nodes and edges of a (normalised) pattern. The search is anchored at
+  * the most selective node, then grows breadth-first, expanding the neighbours of each node in order of selectivity.
+  * Each further component is started from its most selective node.
+  *
+  * Vertices and edges the plan does not know about, e.g. ones created by expanding !-boxes, come after all the
+  * others, in name order.
+  *
+  * @param nodeRank the position of each node in the search
+  * @param edgeRank the position of each edge in the search
+  */
+class SearchPlan(val nodeRank: Map[VName, Int], val edgeRank: Map[EName, Int]) {
+  def isEmpty: Boolean = nodeRank.isEmpty && edgeRank.isEmpty
+
+  /** The next node to match out of the given (non-empty) set */
+  def nextNode(vs: Set[VName]): VName =
+    if (nodeRank.isEmpty) vs.min
+    else vs.minBy { v => (nodeRank.getOrElse(v, Int.MaxValue), v) }
+
+  /** The next edge to match out of the given (non-empty) set */
+  def nextEdge(es: Set[EName]): EName =
+    if (edgeRank.isEmpty) es.min
+    else es.minBy { e => (edgeRank.getOrElse(e, Int.MaxValue), e) }
+}
+
+object SearchPlan {
+  /** The plan which visits everything in name order */
+  val ByName = new SearchPlan(Map(), Map())
+
+  // the plans of rules, computed on first use
+  private val rulePlans = new WeakIdentityMap[Rule, SearchPlan]
+
+  /** The plan for the LHS of a rule, which is computed once per rule */
+  def forRule(rule: Rule): SearchPlan = rulePlans.getOrElseUpdate(rule, SearchPlan(rule.lhs))
+
+  /**
+    * Compute a plan for a pattern. Nodes are compared by how often their type occurs in the pattern (rarest first),
+    * then by degree (highest first), then by whether their phase contains variables (those without first). Boundaries
+    * are reached last, since they can match any wire.
+    */
+  def apply(pattern: Graph): SearchPlan = {
+    val p = pattern.normalise
+    val nodes = p.verts.filter { v => !p.vdata(v).isWireVertex }
+    val typeCount = nodes.toSeq.groupBy(p.vdata(_).typ).mapValues(_.size)
+
+    def score(v: VName): (Int, Int, Int, VName) = p.vdata(v) match {
+      case d: NodeV =>
+        val symbolic = if (TargetIndex.phaseClass(d) == TargetIndex.Symbolic) 1 else 0
+        (typeCount(d.typ), -p.arity(v), symbolic, v)
+      case _ => (Int.MaxValue, 0, 0, v)
+    }
+
+    // the vertex at the other end of the wire starting with edge e at vertex v
+    @tailrec
+    def across(e: EName, v: VName): VName = {
+      val w = p.edgeGetOtherVertex(e, v)
+      if (!p.vdata(w).isWireVertex) w
+      else p.wireVertexGetOtherEdge(w, e) match {
+        case Some(e1) => across(e1, w)
+        case None => w
+      }
+    }
+
+    @tailrec
+    def bfs(queue: List[VName], rest: List[VName], nRank: Map[VName, Int], eRank: Map[EName, Int])
+    : (Map[VName, Int], Map[EName, Int]) = queue match {
+      case v :: queue1 =>
+        val es = p.adjacentEdges(v).filterNot(eRank.contains).toSeq
+          .map { e => (e, across(e, v)) }
+          .sortBy { case (_, w) => score(w) }
+        val eRank1 = es.foldLeft(eRank) { case (r, (e, _)) => r + (e -> r.size) }
+        val found = es.map(_._2).filter { w => nodes.contains(w) && !nRank.contains(w) }.distinct
+        val nRank1 = found.foldLeft(nRank) { (r, w) => r + (w -> r.size) }
+        bfs(queue1 ++ found, rest, nRank1, eRank1)
+      case Nil => rest.filterNot(nRank.contains) match {
+        case anchor :: rest1 => bfs(List(anchor), rest1, nRank + (anchor -> nRank.size), eRank)
+        case Nil => (nRank, eRank)
+      }
+    }
+
+    val (nodeRank, edgeRank) = bfs(Nil, nodes.toList.sortBy(score), Map(), Map())
+    new SearchPlan(nodeRank, edgeRank)
+  }
+}
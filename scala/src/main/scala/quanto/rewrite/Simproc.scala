@@ -3,9 +3,9 @@ package quanto.rewrite
 import quanto.cosy.{AutoReduce, RuleSynthesis}
 import quanto.data.Derivation.DerivationWithHead
 import quanto.data._
-import quanto.layout.ForceLayout
 import quanto.util.UserAlerts
 
+import scala.collection.mutable
 import scala.util.Random
 
 
@@ -13,8 +13,12 @@ abstract class Simproc {
   var sourceFile: String = ""
   var sourceCode: String = ""
 
+  // the rewritten graphs are not laid out, which is left to whatever shows or saves them (see DStep.deferred)
   def simp(g: Graph): Iterator[(Graph, Rule)]
 
+  // identifies what the simproc does, for simprocs whose results can be cached (see NormalFormCache)
+  def fingerprint: Option[String] = None
+
   // jython binding for >>
   def __rshift__(t: Simproc): Simproc = this >> t
 
@@ -22,11 +26,15 @@ abstract class Simproc {
   def >>(t: Simproc) = {
     val s = this
     new Simproc {
-      override def simp(g: Graph): Iterator[(Graph, Rule)] = new Iterator[(Graph, Rule)] {
+      override def simp(g: Graph): Iterator[(Graph, Rule)] = new Simproc.HaltingIterator {
         var iterS: Iterator[(Graph, Rule)] = s.simp(g)
         var iterT: Iterator[(Graph, Rule)] = _
         var lastGraphS: Graph = g
 
+        // t still runs after s stops early
+        override def halt: Option[Simproc.Halt] =
+          (if (iterT != null) Simproc.haltOf(iterT) else None).orElse(Simproc.haltOf(iterS))
+
         override def hasNext: Boolean =
           if (iterT != null) iterT.hasNext
           else if (iterS.hasNext) true
@@ -53,6 +61,130 @@ abstract class Simproc {
 
 object Simproc {
 
+  /** Why a rewriting loop stopped before reaching a fixpoint */
+  sealed abstract class Halt(val message: String)
+
+  // the graph after `step` rewrites is isomorphic to the one after `earlier` rewrites, so the loop would go on forever
+  case class CycleHalt(earlier: Int, step: Int) extends Halt(
+    if (earlier == step - 1) s"step $step leaves the graph unchanged"
+    else s"step $step gives the same graph as step $earlier")
+
+  case class StepBudgetHalt(steps: Int) extends Halt(s"stopped after $steps steps")
+
+  case class TimeBudgetHalt(millis: Long) extends Halt(s"stopped after $millis ms")
+
+  case class VertexBudgetHalt(vertices: Int, limit: Int) extends Halt(
+    s"stopped at a graph with $vertices vertices, more than the limit of $limit")
+
+  /**
+    * Limits on a rewriting loop (see REPEAT)
+    *
+    * @param maxSteps           the most rewrites to make
+    * @param maxMillis          the longest time to keep looking for rewrites
+    * @param maxVertices        the most vertices a rewritten graph may have
+    * @param detectCycles       whether to stop when a graph is isomorphic to one already reached. This costs time at
+    *                           every check, so it is off unless asked for.
+    * @param cycleCheckInterval how many steps apart to look for cycles. A cycle is still found, but up to this many
+    *                           (times its length) steps late.
+    */
+  case class Budget(maxSteps: Int = Int.MaxValue,
+                    maxMillis: Long = Long.MaxValue,
+                    maxVertices: Int = Int.MaxValue,
+                    detectCycles: Boolean = false,
+                    cycleCheckInterval: Int = 8)
+
+  object Budget {
+    // the budget of REPEAT and REDUCE when none is given, read each time they are run
+    @volatile var default: Budget = Budget()
+  }
+
+  /** An iterator over rewrites which may stop early, and says why */
+  trait HaltingIterator extends Iterator[(Graph, Rule)] {
+    /** Why the iterator stopped early, if it did, once hasNext is false */
+    def halt: Option[Halt]
+  }
+
+  /** Why an iterator given by simp stopped early, if it did */
+  def haltOf(iter: Iterator[(Graph, Rule)]): Option[Halt] = iter match {
+    case h: HaltingIterator => h.halt
+    case _ => None
+  }
+
+  /**
+    * The rewrites given by iter, starting from the given graph, until it ends or the budget runs out.
+    *
+    * If the budget asks for it, cycles are looked for every cycleCheckInterval steps. Only a cheap invariant of each
+    * graph checked is kept, along with the delta back to the graph checked before it. When the invariants of two
+    * graphs agree, the earlier graph is derived again from the later one through those deltas, and their
+    * certificates are compared. The step which closes a cycle is left out.
+    */
+  def guarded(start: Graph, iter: Iterator[(Graph, Rule)], budget: Budget): HaltingIterator = new HaltingIterator {
+    private val startTime = System.currentTimeMillis
+    private var steps = 0
+    private var pending: (Graph, Rule) = _
+    private var finished = false
+    var halt: Option[Halt] = None
+
+    // the steps at which graphs were checked, latest first, those steps by the invariant of their graphs, and for
+    // each but the first, the delta back to the graph at the check before it
+    private var checked = List[Int]()
+    private val seen = mutable.Map[Int, List[Int]]()
+    private val back = mutable.Map[Int, GraphDelta]()
+    private var lastChecked: Graph = _
+    if (budget.detectCycles) revisited(start, 0)
+
+    private def stop(h: Halt): Boolean = {
+      halt = Some(h)
+      finished = true
+      false
+    }
+
+    // if g, the graph after the given step, has been checked before, the step it was reached at. Otherwise, remember
+    // its invariant.
+    private def revisited(g: Graph, step: Int): Option[Int] = {
+      val inv = Canonical.invariant(g)
+      if (lastChecked != null) back(step) = GraphDelta.between(g, lastChecked)
+      checked ::= step
+      lastChecked = g
+
+      val same = seen.getOrElse(inv, Nil)
+      seen(inv) = step :: same
+      same.find { earlier =>
+        val g0 = checked.tail.takeWhile(_ >= earlier).foldLeft((g, step)) { case ((h, s), s0) => (back(s)(h), s0) }._1
+        g0.certificate == g.certificate
+      }
+    }
+
+    override def hasNext: Boolean =
+      if (pending != null) true
+      else if (finished) false
+      else if (steps >= budget.maxSteps) stop(StepBudgetHalt(steps))
+      else if (System.currentTimeMillis - startTime > budget.maxMillis)
+        stop(TimeBudgetHalt(System.currentTimeMillis - startTime))
+      else if (!iter.hasNext) { finished = true; false }
+      else {
+        val step = iter.next()
+        if (step == null) { finished = true; false }
+        else if (step._1.verts.size > budget.maxVertices)
+          stop(VertexBudgetHalt(step._1.verts.size, budget.maxVertices))
+        else (if (budget.detectCycles && (steps + 1) % budget.cycleCheckInterval == 0) revisited(step._1, steps + 1)
+              else None) match {
+          case Some(earlier) => stop(CycleHalt(earlier, steps + 1))
+          case None =>
+            pending = step
+            steps += 1
+            true
+        }
+      }
+
+    override def next(): (Graph, Rule) =
+      if (hasNext) {
+        val step = pending
+        pending = null
+        step
+      } else null
+  }
+
   // Converts a (Derivation, Head) pair into an iterated series of steps
   // Allows gluing together of simprocs and derivations
   implicit def fromDerivationWithHead(d: DerivationWithHead): Iterator[(Graph, Rule)] = {
@@ -99,33 +231,61 @@ object Simproc {
 
   // takes a list of rules and rewrites w.r.t. the first that gets a match
   def REWRITE(rules: List[Rule]) = new Simproc {
+    private val index = new RuleIndex(rules)
+
+    override lazy val fingerprint: Option[String] = Some("REWRITE(" + NormalFormCache.fingerprint(rules) + ")")
+
     override def simp(g: Graph): Iterator[(Graph, Rule)] = {
-      for (rule <- rules)
-        Matcher.findMatches(rule.lhs, g).headOption.foreach { m =>
-          return Iterator.single(layout(Rewriter.rewrite(m, rule.rhs, rule.description)))
+      for (rule <- index.possibleRules(g))
+        Matcher.firstMatch(rule, g).foreach { m =>
+          return Iterator.single(Rewriter.rewrite(m, rule.rhs, rule.description))
         }
       //println("got no match REWRITE: " + rules.map{_.name}.toString())
       Iterator.empty
     }
   }
 
-  private def layout(gr: (Graph, Rule)) = {
-    val (graph, rule) = gr
-    val layoutProc = new ForceLayout
-    layoutProc.keepCentered = false
-    layoutProc.nodeCharge = 0.1
+  // as REWRITE, but searches for each match on all available cores. If several matches exist, which one is
+  // rewritten is not deterministic.
+  def REWRITE_PARALLEL(rules: List[Rule]) = new Simproc {
+    private val index = new RuleIndex(rules)
+
+    override def simp(g: Graph): Iterator[(Graph, Rule)] = {
+      for (rule <- index.possibleRules(g))
+        Matcher.findFirstMatchParallel(rule.lhs, g).foreach { m =>
+          return Iterator.single(Rewriter.rewrite(m, rule.rhs, rule.description))
+        }
+      Iterator.empty
+    }
+  }
+
+  // rewrites at many matches in one step: for each rule in turn, takes every match independent of those already taken
+  // (see IndependentMatches), and rewrites them all with a single pushout. Matches of bare wires are rewritten on
+  // their own, as in REWRITE, when there is nothing else to rewrite.
+  def REWRITE_ALL(rules: List[Rule]) = new Simproc {
+    private val index = new RuleIndex(rules)
+    private val single = REWRITE(rules)
+
+    override lazy val fingerprint: Option[String] = Some("REWRITE_ALL(" + NormalFormCache.fingerprint(rules) + ")")
+
+    override def simp(g: Graph): Iterator[(Graph, Rule)] = {
+      val chosen = new IndependentMatches
+      for (rule <- index.possibleRules(g)) {
+        // skip the part of the graph that is already taken, as far as the search allows
+        Matcher.matchIterator(rule, g, g.verts -- chosen.interior).foreach(chosen.add(_, rule))
+      }
+      if (chosen.isEmpty) single.simp(g)
+      else Iterator.single(chosen.rewrite())
+    }
+  }
 
-    layoutProc.alpha0 = 0.05
-    layoutProc.alphaAdjust = 1.0
-    layoutProc.maxIterations = 300
-    //layoutProc.keepCentered = false
+  // the same as REPEAT(REWRITE(rules)), but after each rewrite, only searches near the rewritten region where it can
+  def REDUCE(rules: List[Rule]): Simproc = REDUCE(rules, Budget.default)
 
-    val rhsInterior = rule.rhs.verts.filter(!rule.rhs.isTerminalWire(_))
-    //println(rhsi)
-    graph.verts.foreach { v => if (!rhsInterior.contains(v)) layoutProc.lockVertex(v) }
-    //graph.verts.foreach { v =>  if (graph.isBoundary(v)) layoutProc.lockVertex(v) }
-    (layoutProc.layout(graph, randomCoords = false).snapToGrid(), rule)
-    //(graph, rule)
+  def REDUCE(rules: List[Rule], budget: => Budget): Simproc = {
+    val rewriter = new IncrementalRewriter(rules)
+    val reduce: Simproc = g => rewriter.reduce(g)
+    within(NormalFormCache.cached(Some("REDUCE(" + NormalFormCache.fingerprint(rules) + ")"), reduce), budget)
   }
 
   // Applies rewrite rules, but only if the rule affects the targeted vertex
@@ -140,7 +300,7 @@ object Simproc {
       } match {
         case Some((m, _)) =>
           //println("SUCCESS")
-          Iterator.single(layout(Rewriter.rewrite(m, rule.rhs, rule.description)))
+          Iterator.single(Rewriter.rewrite(m, rule.rhs, rule.description))
         case None =>
           //println("got no match REWRITE_TARGETED: " + rule.name)
           //println("FAILED")
@@ -155,7 +315,7 @@ object Simproc {
         if (g.verts contains vt) {
           val ms = Matcher.initialise(rule.lhs, g, g.verts)
           ms.matchNewNode(vp, vt).flatMap(_.nextMatch()).map { case (m, _) =>
-            return Iterator.single(layout(Rewriter.rewrite(m, rule.rhs, rule.description)))
+            return Iterator.single(Rewriter.rewrite(m, rule.rhs, rule.description))
           }
         }
       }
@@ -169,7 +329,7 @@ object Simproc {
       //      } match {
       //        case Some((m,_)) =>
       //          //println("SUCCESS")
-      //          Iterator.single(layout(Rewriter.rewrite(m, rule.rhs, rule.description)))
+      //          Iterator.single(Rewriter.rewrite(m, rule.rhs, rule.description))
       //        case None =>
       //          //println("FAILED")
       //          Iterator.empty
@@ -182,9 +342,9 @@ object Simproc {
       override def simp(g: Graph): Iterator[(Graph, Rule)] = {
         if (metric(g) <= target) return Iterator.empty
         for (rule <- rules) {
-          Matcher.findMatches(rule.lhs, g).foreach { m =>
+          Matcher.matchIterator(rule, g).foreach { m =>
             val (g1, r1) = Rewriter.rewrite(m, rule.rhs, rule.description)
-            if (metric(g1) < metric(g)) return Iterator.single(layout((g1, r1)))
+            if (metric(g1) < metric(g)) return Iterator.single((g1, r1))
           }
         }
         Iterator.empty
@@ -196,16 +356,31 @@ object Simproc {
       override def simp(g: Graph): Iterator[(Graph, Rule)] = {
         if (metric(g) <= 0) return Iterator.empty
         for (rule <- rules) {
-          Matcher.findMatches(rule.lhs, g).foreach { m =>
+          Matcher.matchIterator(rule, g).foreach { m =>
             val (g1, r1) = Rewriter.rewrite(m, rule.rhs, rule.description)
-            if (metric(g1) <= metric(g)) return Iterator.single(layout((g1, r1)))
+            if (metric(g1) <= metric(g)) return Iterator.single((g1, r1))
           }
         }
         Iterator.empty
       }
     }
 
-  def REPEAT(s: Simproc): Simproc = (g: Graph) => new Iterator[(Graph, Rule)] {
+  // applies s until it gives nothing, or the budget runs out (see guarded). If s has a fingerprint, the normal forms it
+  // gives are looked up in (and added to) NormalFormCache.global.
+  def REPEAT(s: Simproc): Simproc = REPEAT(s, Budget.default)
+
+  def REPEAT(s: Simproc, budget: => Budget): Simproc =
+    within(NormalFormCache.cached(s.fingerprint.map("REPEAT(" + _ + ")"), repeat(s)), budget)
+
+  // s, guarded by the budget. This is outside of the normal form cache, so the budget also holds for steps which are
+  // replayed from it, and a run which is stopped early is never cached.
+  private def within(s: Simproc, budget: => Budget): Simproc = new Simproc {
+    override def fingerprint: Option[String] = s.fingerprint
+
+    override def simp(g: Graph): Iterator[(Graph, Rule)] = guarded(g, s.simp(g), budget)
+  }
+
+  private def repeat(s: Simproc): Simproc = (g: Graph) => new Iterator[(Graph, Rule)] {
     var iterS: Iterator[(Graph, Rule)] = s.simp(g)
     var lastGraphS: Graph = g
 
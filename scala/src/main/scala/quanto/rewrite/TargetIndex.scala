@@ -0,0 +1,156 @@
+package quanto.rewrite
+
+import java.util.concurrent.atomic.AtomicLong
+
+import quanto.data._
+
+/**
+  * An index of the node-vertices of a target graph, keyed by vertex type, arity and phase class. It is built once
+  * per match search by Matcher.initialise, and used by MatchState to seed candidateNodes with only those target
+  * nodes that could possibly match a given pattern node. When the target is rewritten, the index can be updated at
+  * the vertices that changed, rather than built again (see IncrementalRewriter).
+  *
+  * @param target a normalised target graph
+  */
+class TargetIndex private[rewrite](val target: Graph, entries: TargetIndex.Entries) {
+
+  import TargetIndex._
+
+  def this(target: Graph) = this(target, TargetIndex.Entries().updated(target, target.verts))
+
+  private val index = entries.index
+
+  /** The number of node-vertices in the target */
+  val size: Int = entries.keys.size
+
+  /**
+    * The index of a new target, which differs from this one only at the given vertices. Those that are no longer
+    * node-vertices of the target (e.g. because they were removed) are dropped from the index.
+    *
+    * @param target1 the new normalised target graph
+    * @param touched every vertex added to, removed from or changed in the target, including any node whose arity
+    *                changed
+    */
+  def updated(target1: Graph, touched: Set[VName]): TargetIndex =
+    new TargetIndex(target1, entries.updated(target1, touched))
+
+  private val prunedCounter = new AtomicLong(0)
+
+  /** The total number of target nodes skipped by calls to candidates, over the lifetime of this index */
+  def pruned: Long = prunedCounter.get
+
+  /**
+    * Get all of the target nodes which could be matched on the given pattern node. Nodes are excluded if they have
+    * the wrong type, an arity that can never be reached by the pattern node (even after !-box expansion), or a
+    * phase that cannot be matched by the phase of the pattern node.
+    *
+    * @param pattern the current pattern graph
+    * @param np      a node-vertex in the pattern
+    * @return a set of node-vertices in the target
+    */
+  def candidates(pattern: Graph, np: VName): Set[VName] = {
+    val pd = pattern.vdata(np) match {
+      case d: NodeV => d
+      case _ => throw new MatchException("TargetIndex.candidates called on a non-node")
+    }
+
+    val (minArity, exact) = arityBound(pattern, np)
+    val byArity = index.getOrElse(pd.typ, Map[Int, Map[PhaseClass, Set[VName]]]())
+    val buckets =
+      if (exact) byArity.get(minArity).toSeq
+      else byArity.toSeq.collect { case (a, byClass) if a >= minArity => byClass }
+
+    val pcls = phaseClass(pd)
+    val found = buckets.foldLeft(Set[VName]()) { (s, byClass) =>
+      byClass.foldLeft(s) { case (s1, (tcls, vs)) => s1 union phaseCandidates(pcls, tcls, vs) }
+    }
+
+    prunedCounter.addAndGet(size - found.size)
+    found
+  }
+
+  // restrict the given bucket of target nodes to those whose phase might match a pattern node with class pcls
+  private def phaseCandidates(pcls: PhaseClass, tcls: PhaseClass, vs: Set[VName]): Set[VName] =
+    (pcls, tcls) match {
+      case (Literal(s), Literal(t)) => if (s == t) vs else Set()
+      case (Literal(s), _) => vs.filter { v => target.vdata(v).asInstanceOf[NodeV].value == s }
+      case (Constant, Symbolic) => Set()
+      case _ => vs
+    }
+}
+
+object TargetIndex {
+
+  private[rewrite] type Key = (String, Int, PhaseClass)
+
+  // the key of each indexed vertex, and the vertices under each key
+  private[rewrite] case class Entries(keys: Map[VName, Key] = Map(),
+                             index: Map[String, Map[Int, Map[PhaseClass, Set[VName]]]] = Map()) {
+    def updated(target: Graph, vs: Set[VName]): Entries = vs.foldLeft(this) { (es, v) =>
+      val es1 = es.keys.get(v).map(es.remove(v, _)).getOrElse(es)
+      target.vdata.get(v) match {
+        case Some(d: NodeV) => es1.add(v, (d.typ, target.arity(v), phaseClass(d)))
+        case _ => es1
+      }
+    }
+
+    private def add(v: VName, key: Key): Entries = {
+      val (typ, arity, cls) = key
+      val byArity = index.getOrElse(typ, Map[Int, Map[PhaseClass, Set[VName]]]())
+      val byClass = byArity.getOrElse(arity, Map[PhaseClass, Set[VName]]())
+      val vs = byClass.getOrElse(cls, Set[VName]()) + v
+      Entries(keys + (v -> key), index + (typ -> (byArity + (arity -> (byClass + (cls -> vs))))))
+    }
+
+    private def remove(v: VName, key: Key): Entries = {
+      val (typ, arity, cls) = key
+      val byArity = index(typ)
+      val byClass = byArity(arity)
+      val vs = byClass(cls) - v
+      // drop buckets that become empty, so candidates only sees the arities that occur
+      val byClass1 = if (vs.isEmpty) byClass - cls else byClass + (cls -> vs)
+      val byArity1 = if (byClass1.isEmpty) byArity - arity else byArity + (arity -> byClass1)
+      Entries(keys - v, if (byArity1.isEmpty) index - typ else index + (typ -> byArity1))
+    }
+  }
+
+  /**
+    * Coarse classification of the phase of a node, used to rule out target nodes without running the phase matcher.
+    *
+    * A node whose value cannot be parsed is a Literal, and is only matched by exact string comparison. A parsed
+    * phase with no free variables is Constant, and can never be matched by a target phase containing variables.
+    */
+  sealed abstract class PhaseClass
+
+  case class Literal(value: String) extends PhaseClass
+
+  case object Constant extends PhaseClass
+
+  case object Symbolic extends PhaseClass
+
+  def phaseClass(d: NodeV): PhaseClass =
+    if (!d.hasValue) Literal(d.value)
+    else if (d.phaseData.vars.isEmpty) Constant
+    else Symbolic
+
+  /** Could a pattern node with phase class pcls possibly match a target node with data td? */
+  def phaseMayMatch(pcls: PhaseClass, td: NodeV): Boolean = pcls match {
+    case Literal(s) => td.value == s
+    case Constant => phaseClass(td) != Symbolic
+    case Symbolic => true
+  }
+
+  /**
+    * A lower bound on the arity of any target node matching the given pattern node, and whether that bound is exact.
+    * Edges to vertices inside !-boxes may be killed or copied, so only the remaining "concrete" edges are counted.
+    *
+    * (c.f. MatchState.pVertexMayBeCompleted)
+    */
+  def arityBound(pattern: Graph, np: VName): (Int, Boolean) = {
+    val allEdges = pattern.adjacentEdges(np)
+    val concreteEdges = allEdges.filter { e =>
+      pattern.bboxesContaining(pattern.edgeGetOtherVertex(e, np)).isEmpty
+    }
+    (concreteEdges.size, concreteEdges.size == allEdges.size)
+  }
+}
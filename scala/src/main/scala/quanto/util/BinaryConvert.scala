@@ -0,0 +1,63 @@
+package quanto.util
+
+import java.io.File
+
+import quanto.data._
+import quanto.util.json.Json
+
+/**
+  * Converts graphs, rules and derivations between JSON and the binary format of BinaryFormat. The direction is given
+  * by the extension of the input: .qgraph, .qrule and .qderive become .qgraphb, .qruleb and .qderiveb, and back.
+  *
+  * Usage: BinaryConvert [-theory (name | file.qtheory)] input [output]
+  *
+  * The theory is one of the built-in theories, such as red_green, or a theory file. It defaults to the default
+  * theory, and is needed to read JSON, which leaves out data that is the default for its theory.
+  */
+object BinaryConvert {
+  private val Extensions = Map("qgraph" -> "qgraphb", "qrule" -> "qruleb", "qderive" -> "qderiveb")
+
+  def extension(f: File): String = f.getName.lastIndexOf('.') match {
+    case -1 => ""
+    case i => f.getName.substring(i + 1)
+  }
+
+  /** The file an input converts to, by default */
+  def converted(f: File): File = {
+    val ext = extension(f)
+    val ext1 = Extensions.getOrElse(ext, Extensions.find(_._2 == ext).map(_._1)
+      .getOrElse(throw new IllegalArgumentException("Unrecognised file type: " + f)))
+    new File(f.getPath.substring(0, f.getPath.length - ext.length) + ext1)
+  }
+
+  def convert(in: File, out: File, thy: Theory = Theory.DefaultTheory) {
+    extension(in) match {
+      case "qgraph" => BinaryFormat.writeGraph(Graph.fromFile(in, thy), out)
+      case "qrule" => BinaryFormat.writeRule(Rule.fromFile(in, thy), out)
+      case "qderive" => BinaryFormat.writeDerivation(Derivation.fromFile(in, thy), out)
+      case "qgraphb" => Graph.toFile(BinaryFormat.readGraph(in, thy), out, thy)
+      case "qruleb" => Rule.toFile(BinaryFormat.readRule(in, thy), out, thy)
+      case "qderiveb" => Derivation.toFile(BinaryFormat.readDerivation(in, thy), out, thy)
+      case _ => throw new IllegalArgumentException("Unrecognised file type: " + in)
+    }
+  }
+
+  def theory(arg: String): Theory =
+    if (arg.endsWith(".qtheory")) Theory.fromJson(Json.parse(new File(arg)))
+    else Theory.fromFile(arg)
+
+  def main(args: Array[String]) {
+    val (thy, files) = args.toList match {
+      case "-theory" :: t :: rest => (theory(t), rest)
+      case rest => (Theory.DefaultTheory, rest)
+    }
+
+    files match {
+      case List(in) => convert(new File(in), converted(new File(in)), thy)
+      case List(in, out) => convert(new File(in), new File(out), thy)
+      case _ =>
+        System.err.println("Usage: BinaryConvert [-theory (name | file.qtheory)] input [output]")
+        System.exit(1)
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package quanto.util
+
+import java.util.Arrays
+
+/**
+  * Persistent arrays split into chunks of a fixed size. Updating or appending an entry copies one chunk and the array
+  * of chunk pointers, so successive versions of a large array share nearly all of their storage.
+  */
+object ChunkedArray {
+  private[util] val Bits = 5
+  private[util] val ChunkSize: Int = 1 << Bits
+  private[util] val Mask: Int = ChunkSize - 1
+
+  def empty[A]: ChunkedArray[A] = new ChunkedArray[A](Array(), 0)
+
+  def apply[A](xs: Iterable[A]): ChunkedArray[A] = xs.foldLeft(empty[A]) { (a, x) => a :+ x }
+
+  def ints(xs: Iterable[Int]): IntChunkedArray = xs.foldLeft(IntChunkedArray.empty) { (a, x) => a :+ x }
+}
+
+/** A persistent array of references */
+final class ChunkedArray[A] private(chunks: Array[Array[AnyRef]], val length: Int) {
+
+  import ChunkedArray._
+
+  def apply(i: Int): A =
+    if (i < 0 || i >= length) throw new IndexOutOfBoundsException(i.toString)
+    else chunks(i >> Bits)(i & Mask).asInstanceOf[A]
+
+  def updated(i: Int, x: A): ChunkedArray[A] = {
+    if (i < 0 || i >= length) throw new IndexOutOfBoundsException(i.toString)
+    val c = i >> Bits
+    val chunk = chunks(c).clone()
+    chunk(i & Mask) = x.asInstanceOf[AnyRef]
+    val chunks1 = chunks.clone()
+    chunks1(c) = chunk
+    new ChunkedArray[A](chunks1, length)
+  }
+
+  def :+(x: A): ChunkedArray[A] = {
+    val c = length >> Bits
+    val chunks1 = if (c < chunks.length) chunks.clone() else Arrays.copyOf(chunks, c + 1)
+    val chunk = if (c < chunks.length) Arrays.copyOf(chunks(c), (length & Mask) + 1) else new Array[AnyRef](1)
+    chunk(length & Mask) = x.asInstanceOf[AnyRef]
+    chunks1(c) = chunk
+    new ChunkedArray[A](chunks1, length + 1)
+  }
+
+  def iterator: Iterator[A] = Iterator.range(0, length).map(apply)
+}
+
+object IntChunkedArray {
+  val empty: IntChunkedArray = new IntChunkedArray(Array(), 0)
+}
+
+/** A persistent array of unboxed ints */
+final class IntChunkedArray private(chunks: Array[Array[Int]], val length: Int) {
+
+  import ChunkedArray._
+
+  def apply(i: Int): Int =
+    if (i < 0 || i >= length) throw new IndexOutOfBoundsException(i.toString)
+    else chunks(i >> Bits)(i & Mask)
+
+  def updated(i: Int, x: Int): IntChunkedArray = {
+    if (i < 0 || i >= length) throw new IndexOutOfBoundsException(i.toString)
+    val c = i >> Bits
+    val chunk = chunks(c).clone()
+    chunk(i & Mask) = x
+    val chunks1 = chunks.clone()
+    chunks1(c) = chunk
+    new IntChunkedArray(chunks1, length)
+  }
+
+  def :+(x: Int): IntChunkedArray = {
+    val c = length >> Bits
+    val chunks1 = if (c < chunks.length) chunks.clone() else Arrays.copyOf(chunks, c + 1)
+    val chunk = if (c < chunks.length) Arrays.copyOf(chunks(c), (length & Mask) + 1) else new Array[Int](1)
+    chunk(length & Mask) = x
+    chunks1(c) = chunk
+    new IntChunkedArray(chunks1, length + 1)
+  }
+
+  def iterator: Iterator[Int] = Iterator.range(0, length).map(apply)
+}
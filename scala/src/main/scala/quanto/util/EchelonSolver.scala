@@ -0,0 +1,84 @@
+package quanto.util
+
+/**
+  * A system of linear equations over the rationals, kept in reduced row-echelon form as equations are added.
+  *
+  * Each equation is written as
+  *   sum of (coefficient * column) = constant
+  * over a set of columns, each of which is either a free variable (a pattern variable, which may be solved for) or
+  * a fixed one (a target variable, treated as a constant). Pivots are only ever taken in free columns, in the order
+  * the columns were added, so an equation that reduces to one in fixed columns alone makes the system inconsistent.
+  *
+  * Systems are persistent: adding a column or a row gives a new system and leaves this one as it was. Rows are arrays
+  * of Rationals, indexed by column, which are never changed once made, and may be shorter than the number of columns,
+  * in which case the missing entries are zero. A new system shares every row that the new equation did not touch, so
+  * each branch of a backtracking search can keep its own system without copying the matrix.
+  */
+final class EchelonSolver private(free: Vector[Boolean], rows: Vector[EchelonSolver.Row]) {
+  import EchelonSolver._
+
+  def numColumns: Int = free.length
+
+  def numRows: Int = rows.length
+
+  def isFree(column: Int): Boolean = free(column)
+
+  /** Add a column, either free or fixed, whose index is the number of columns of this system */
+  def withColumn(isFree: Boolean): EchelonSolver = new EchelonSolver(free :+ isFree, rows)
+
+  /**
+    * Add an equation, given by its coefficients (indexed by column) and its constant.
+    *
+    * @return None if the equation is inconsistent with the system
+    */
+  def addRow(coefficients: Array[Rational], constant: Rational): Option[EchelonSolver] = {
+    // reduce the new row by every existing one. Since the system is fully reduced, each pivot column is zero in every
+    // other row, so the order does not matter.
+    val reduced = rows.foldLeft(new Row(coefficients, constant, -1)) { (r, r1) =>
+      val c = r(r1.pivot)
+      if (c.isZero) r else r.minus(c, r1)
+    }
+
+    val p = reduced.coefficients.indices.indexWhere(i => free(i) && !reduced(i).isZero)
+    if (p == -1) {
+      // redundant if nothing is left, otherwise a contradiction between fixed variables and constants
+      if (reduced.constant.isZero && reduced.coefficients.forall(_.isZero)) Some(this) else None
+    } else {
+      val r = reduced.normalised(p)
+      val rows1 = rows.map { r1 =>
+        val c = r1(p)
+        if (c.isZero) r1 else r1.minus(c, r)
+      }
+      Some(new EchelonSolver(free, rows1 :+ r))
+    }
+  }
+
+  /** The pivot column of the given row, whose coefficient there is 1, and is 0 in every other row */
+  def pivot(row: Int): Int = rows(row).pivot
+
+  def coefficient(row: Int, column: Int): Rational = rows(row)(column)
+
+  def constant(row: Int): Rational = rows(row).constant
+}
+
+object EchelonSolver {
+  val empty = new EchelonSolver(Vector(), Vector())
+
+  // a row, never changed once made. Entries past the end of coefficients are zero.
+  private[util] final class Row(val coefficients: Array[Rational], val constant: Rational, val pivot: Int) {
+    def apply(i: Int): Rational = if (i < coefficients.length) coefficients(i) else Rational.Zero
+
+    // this row minus c times the given row
+    def minus(c: Rational, r: Row): Row = {
+      val n = math.max(coefficients.length, r.coefficients.length)
+      new Row(Array.tabulate(n) { i => if (r(i).isZero) apply(i) else apply(i) - c * r(i) },
+        constant - c * r.constant, pivot)
+    }
+
+    // this row divided by its entry at p, which becomes its pivot
+    def normalised(p: Int): Row = {
+      val c = coefficients(p).inv
+      new Row(coefficients.map(_ * c), constant * c, p)
+    }
+  }
+}
@@ -1,62 +1,200 @@
 package quanto.util
 
-class RationalDivideByZeroException(r: Rational)
-  extends Exception("Attempted to divide by 0 in (" + r.n + "/" + r.d + ")")
-
-class Rational(numerator: Int, denominator: Int) extends Ordered[Rational] {
+import java.math.{BigInteger, MathContext, BigDecimal => JBigDecimal}
+
+class RationalDivideByZeroException(numerator: Any)
+  extends Exception("Attempted to divide by 0 in (" + numerator + "/0)")
+
+/**
+  * A rational number, always in lowest terms with a positive denominator.
+  *
+  * Numerators and denominators that fit in a Long are held as Longs, and arithmetic on them is checked for overflow,
+  * moving to BigIntegers when it happens rather than wrapping around. Results that fit in a Long again move back.
+  * Common small values, such as the multiples of pi/8 that make up most phases, are shared rather than allocated.
+  */
+final class Rational private(private[util] val ln: Long,
+                             private[util] val ld: Long,
+                             private[util] val bn: BigInteger,
+                             private[util] val bd: BigInteger) extends Ordered[Rational] {
+
+  // the Long fields are used unless the value needs BigIntegers, in which case bn and bd are set
+  private[util] def isSmall: Boolean = bn == null
+
+  def numerator: BigInteger = if (isSmall) BigInteger.valueOf(ln) else bn
+
+  def denominator: BigInteger = if (isSmall) BigInteger.valueOf(ld) else bd
+
+  /** The numerator as an Int, throwing an ArithmeticException if it does not fit */
+  def n: Int = if (isSmall) Math.toIntExact(ln) else bn.intValueExact
+
+  /** The denominator as an Int, throwing an ArithmeticException if it does not fit */
+  def d: Int = if (isSmall) Math.toIntExact(ld) else bd.intValueExact
+
+  def +(r: Rational): Rational =
+    if (isSmall && r.isSmall) {
+      try {
+        if (ld == r.ld) Rational.make(Math.addExact(ln, r.ln), ld)
+        else Rational.make(Math.addExact(Math.multiplyExact(ln, r.ld), Math.multiplyExact(r.ln, ld)),
+          Math.multiplyExact(ld, r.ld))
+      } catch {
+        case _: ArithmeticException => bigAdd(r)
+      }
+    } else bigAdd(r)
+
+  def -(r: Rational): Rational =
+    if (isSmall && r.isSmall) {
+      try {
+        if (ld == r.ld) Rational.make(Math.subtractExact(ln, r.ln), ld)
+        else Rational.make(Math.subtractExact(Math.multiplyExact(ln, r.ld), Math.multiplyExact(r.ln, ld)),
+          Math.multiplyExact(ld, r.ld))
+      } catch {
+        case _: ArithmeticException => bigAdd(r.negate)
+      }
+    } else bigAdd(r.negate)
+
+  def *(r: Rational): Rational =
+    if (isSmall && r.isSmall) {
+      if (ln == 0 || r.ln == 0) Rational.Zero
+      else try {
+        // cancel across before multiplying, so the product is already in lowest terms
+        val g1 = Rational.gcd(ln, r.ld)
+        val g2 = Rational.gcd(r.ln, ld)
+        Rational.reduced(Math.multiplyExact(ln / g1, r.ln / g2), Math.multiplyExact(ld / g2, r.ld / g1))
+      } catch {
+        case _: ArithmeticException => bigMul(r)
+      }
+    } else bigMul(r)
+
+  def *(i: Int): Rational = this * Rational(i)
+
+  def /(r: Rational): Rational = this * r.inv
+
+  /** The remainder on dividing by i, between 0 (inclusive) and i (exclusive) */
+  def mod(i: Int): Rational =
+    if (isSmall) {
+      try {
+        Rational.reduced(Math.floorMod(ln, Math.multiplyExact(ld, i.toLong)), ld)
+      } catch {
+        case _: ArithmeticException =>
+          Rational.make(numerator.mod(denominator.multiply(BigInteger.valueOf(i))), denominator)
+      }
+    } else Rational.make(bn.mod(bd.multiply(BigInteger.valueOf(i))), bd)
+
+  def inv: Rational =
+    if (isZero) throw new RationalDivideByZeroException(ld)
+    else if (isSmall) Rational.make(ld, ln)
+    else Rational.make(bd, bn)
+
+  def negate: Rational =
+    if (isSmall && ln != Long.MinValue) Rational.reduced(-ln, ld)
+    else Rational.make(numerator.negate, denominator)
+
+  private def bigAdd(r: Rational): Rational =
+    Rational.make(numerator.multiply(r.denominator).add(r.numerator.multiply(denominator)),
+      denominator.multiply(r.denominator))
+
+  private def bigMul(r: Rational): Rational =
+    Rational.make(numerator.multiply(r.numerator), denominator.multiply(r.denominator))
 
-  private val r = Rational.gcd(numerator, denominator)
-  private val dsn = if (denominator < 0) -1 else 1
+  override def equals(r: Any): Boolean = r match {
+    case r1: Rational =>
+      if (isSmall) r1.isSmall && ln == r1.ln && ld == r1.ld
+      else !r1.isSmall && bn == r1.bn && bd == r1.bd
+    case _ => false
+  }
 
-  if (denominator == 0) throw new RationalDivideByZeroException(this)
-  val n: Int = dsn * numerator / r
-  val d: Int = dsn * denominator / r
+  override def hashCode: Int =
+    if (isSmall) 41 * java.lang.Long.hashCode(ln) + java.lang.Long.hashCode(ld)
+    else 41 * bn.hashCode + bd.hashCode
 
-  def +(r: Rational) = Rational(n * r.d + r.n * d, d * r.d)
+  override def compare(r: Rational): Int =
+    if (isSmall && r.isSmall) {
+      try {
+        if (ld == r.ld) java.lang.Long.compare(ln, r.ln)
+        else java.lang.Long.compare(Math.multiplyExact(ln, r.ld), Math.multiplyExact(r.ln, ld))
+      } catch {
+        case _: ArithmeticException => bigCompare(r)
+      }
+    } else bigCompare(r)
 
-  def -(r: Rational) = Rational(n * r.d - r.n * d, d * r.d)
+  private def bigCompare(r: Rational): Int =
+    numerator.multiply(r.denominator).compareTo(r.numerator.multiply(denominator))
 
-  def *(r: Rational) = Rational(n * r.n, d * r.d)
+  def isZero: Boolean = isSmall && ln == 0
 
-  def *(i: Int) = Rational(n * i, d)
+  def isOne: Boolean = isSmall && ln == 1 && ld == 1
 
-  def /(r: Rational) = Rational(n * r.d, d * r.n)
+  def doubleValue: Double =
+    if (isSmall) ln.toDouble / ld.toDouble
+    else new JBigDecimal(bn).divide(new JBigDecimal(bd), MathContext.DECIMAL64).doubleValue
 
-  def mod(i: Int): Rational =
-    if (n < 0) Rational((n % (d * i)) + (d * i), d)
-    else Rational(n % (d * i), d)
+  override def toString: String =
+    if (isSmall) { if (ld == 1) ln.toString else "(" + ln + "/" + ld + ")" }
+    else "(" + bn + "/" + bd + ")"
 
-  def inv = Rational(d, n)
+}
 
-  override def equals(r: Any): Boolean = r match {
-    case r1: Rational => n == r1.n && d == r1.d
-    case _ => false
-  }
+object Rational {
+  // values with a denominator up to CachedDenominators and a numerator up to CachedNumerators (either sign) are shared
+  private val CachedDenominators = 16
+  private val CachedNumerators = 64
 
-  override def compare(r: Rational): Int = {
-    n * r.d - r.n * d
+  private val cache: Array[Array[Rational]] = Array.tabulate(CachedDenominators, 2 * CachedNumerators + 1) { (i, j) =>
+    val (n, d) = (j - CachedNumerators, i + 1)
+    if (gcd(n, d) == 1) new Rational(n, d, null, null) else null
   }
 
-  def isZero: Boolean = n == 0
+  val Zero: Rational = reduced(0, 1)
+  val One: Rational = reduced(1, 1)
 
-  def isOne: Boolean = n == 1 && d == 1
+  def apply(numerator: Int, denominator: Int): Rational = make(numerator.toLong, denominator.toLong)
 
-  override def toString: String = if (d == 1) n.toString else "(" + n + "/" + d + ")"
+  def apply(numerator: Int): Rational = reduced(numerator, 1)
 
-}
+  def apply(numerator: Long, denominator: Long): Rational = make(numerator, denominator)
 
-object Rational {
-  def apply(numerator: Int, denominator: Int) = new Rational(numerator, denominator)
+  def apply(numerator: BigInteger, denominator: BigInteger): Rational = make(numerator, denominator)
 
-  private def gcd(a: Int, b: Int): Int = {
-    if (b == 0) Math.abs(a) else gcd(b, a % b)
+  /** The greatest common divisor, throwing an ArithmeticException if it is too big for a Long */
+  private[util] def gcd(a: Long, b: Long): Long = {
+    var x = a
+    var y = b
+    while (y != 0) {
+      val t = x % y
+      x = y
+      y = t
+    }
+    if (x == Long.MinValue) throw new ArithmeticException("long overflow")
+    Math.abs(x)
   }
 
-  def apply(numerator: Int) = new Rational(numerator, 1)
-
-
+  /** A value already in lowest terms with a positive denominator */
+  private[util] def reduced(n: Long, d: Long): Rational =
+    if (d <= CachedDenominators && n >= -CachedNumerators && n <= CachedNumerators) {
+      cache(d.toInt - 1)(n.toInt + CachedNumerators)
+    } else {
+      new Rational(n, d, null, null)
+    }
+
+  private[util] def make(n: Long, d: Long): Rational =
+    if (d == 0) throw new RationalDivideByZeroException(n)
+    else if (d == 1) reduced(n, 1)
+    else if (n == Long.MinValue || d == Long.MinValue) make(BigInteger.valueOf(n), BigInteger.valueOf(d))
+    else {
+      val g = gcd(n, d)
+      if (d < 0) reduced(-n / g, -d / g) else reduced(n / g, d / g)
+    }
+
+  private[util] def make(n: BigInteger, d: BigInteger): Rational =
+    if (d.signum == 0) throw new RationalDivideByZeroException(n)
+    else {
+      val g = n.gcd(d)
+      val (n1, d1) = if (d.signum < 0) (n.divide(g).negate, d.divide(g).negate) else (n.divide(g), d.divide(g))
+      if (n1.bitLength < 64 && d1.bitLength < 64) reduced(n1.longValue, d1.longValue)
+      else new Rational(0, 0, n1, d1)
+    }
 
   implicit def intToRational(i: Int): Rational = Rational(i)
 
-  implicit def rationalToDouble(r: Rational): Double = r.n.toFloat / r.d.toFloat
+  implicit def rationalToDouble(r: Rational): Double = r.doubleValue
 }
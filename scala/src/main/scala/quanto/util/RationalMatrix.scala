@@ -14,76 +14,77 @@ package quanto.util
   * @param constModulo Modulus to apply to the constant or -1 for no modulus.
   */
 
-class RationalMatrix(val mat: Vector[Vector[Rational]], val line: Int, val constModulo: Option[Int] = Some(2)) {
+class RationalMatrix private(private val rowArray: Array[RationalRow], val line: Int, val constModulo: Option[Int]) {
 
   import RationalMatrix._
 
-  def numRows: Int = mat.length
+  def this(mat: Vector[Vector[Rational]], line: Int, constModulo: Option[Int] = Some(2)) =
+    this(mat.map(RationalRow(_)).toArray, line, constModulo)
+
+  // the rows are kept as RationalRows, and only turned into Vectors of Rationals when asked for
+  lazy val mat: Vector[Vector[Rational]] = rowArray.iterator.map(_.toVector).toVector
+
+  def numRows: Int = rowArray.length
 
   override def equals(that: Any): Boolean = that match {
     case m1: RationalMatrix =>
-      mat == m1.mat && line == line && constModulo == constModulo
+      java.util.Arrays.equals(rowArray.asInstanceOf[Array[AnyRef]], m1.rowArray.asInstanceOf[Array[AnyRef]]) &&
+        line == m1.line && constModulo == m1.constModulo
     case _ => false
   }
 
+  override def hashCode: Int = 41 * java.util.Arrays.hashCode(rowArray.asInstanceOf[Array[AnyRef]]) + line
+
   def apply(i: Int): Vector[Rational] = mat(i)
 
   def rows: Vector[Vector[Rational]] = mat
 
+  def row(i: Int): RationalRow = rowArray(i)
+
   def padTo(vCols: Int, cCols: Int): RationalMatrix = {
     val m = vCols - line
     val n = cCols - (numCols - line - 1)
-    if (m >= 0 && n >= 0)
-      new RationalMatrix(mat.map { row =>
-        row.slice(0, line) ++ Vector.fill(m)(Rational(0)) ++
-          row.slice(line, row.length - 1) ++ Vector.fill(n)(Rational(0)) :+
-          row(row.length - 1)
-      }, math.max(line, vCols), constModulo)
+    if (m == 0 && n == 0) this
+    else if (m >= 0 && n >= 0)
+      new RationalMatrix(rowArray.map(_.padTo(line, m, n)), math.max(line, vCols), constModulo)
     else this
   }
 
   //def insertVar = new RationalMatrix(mat.map { row => ins(row, line) }, line+1, constModulo)
   //def insertConst = new RationalMatrix(mat.map { row => ins(row, row.length-1) }, line, constModulo)
 
-  def numCols: Int = if (mat.isEmpty) 0 else mat(0).length
+  def numCols: Int = if (rowArray.isEmpty) 0 else rowArray(0).length
 
   //  private def ins(row : Vector[Rational], i : Int) : Vector[Rational] =
   //    row.take(i) ++ (Rational(0) +: row.takeRight(row.length - i))
 
   def isReduced: Boolean = {
-    var p = -1
-    for (r <- mat) {
-      val p1 = findPivot(r)
-      if (p1 <= p || r(p1) != Rational(1)) return false
-      p = p1
+    val pivots = rowArray.map(_.pivot)
+    pivots.indices.forall { i =>
+      pivots(i) > (if (i == 0) -1 else pivots(i - 1)) && rowArray(i)(pivots(i)).isOne
     }
-
-    true
   }
 
   // translate matrix to echelon form. returns None if there is an inconsistent row, i.e. a row of the form
   // (0..0|v!=0..0)
   def gauss: Option[RationalMatrix] = {
-    val empty: Option[RationalMatrix] = Some(new RationalMatrix(Vector(), line, constModulo))
-    mat.foldLeft(empty) {
+    val empty: Option[RationalMatrix] = Some(new RationalMatrix(Array[RationalRow](), line, constModulo))
+    rowArray.foldLeft(empty) {
       case (Some(m), r) => m.gaussUpdate(r)
       case _ => None
     }
   }
 
   // add a new row, keeping the matrix in echelon form. Returns None if new row introduces an inconsistency.
-  def gaussUpdate(row: Vector[Rational]): Option[RationalMatrix] = {
-    var r = row
+  def gaussUpdate(row: Vector[Rational]): Option[RationalMatrix] = gaussUpdate(RationalRow(row))
 
+  def gaussUpdate(row: RationalRow): Option[RationalMatrix] = {
     // gaussian reduce the new row
-    mat.foreach { r1 =>
-      val p1 = findPivot(r1)
-      if (p1 != -1) {
-        r = reduceWith(r, r1, p1)
-      }
+    val reduced = rowArray.foldLeft(row) { (r, r1) =>
+      if (r1.pivot != -1) r.reducedWith(r1, r1.pivot) else r
     }
 
-    val p = findPivot(r)
+    val p = reduced.pivot
     if (p == -1) {
       // new row is redundant, so return this
       Some(this)
@@ -92,42 +93,13 @@ class RationalMatrix(val mat: Vector[Vector[Rational]], val line: Int, val const
       None
     } else {
       // otherwise use the new row to further reduce existing rows, and insert into the correct position
-      r = normaliseRow(r, p)
-      val (mat1, inserted) = mat.foldLeft((Vector[Vector[Rational]](), false)) {
-        case ((rows, ins), row1) =>
-          if (findPivot(row1) > p) {
-            if (!ins) (rows :+ r :+ row1, true)
-            else (rows :+ row1, ins)
-          } else {
-            (rows :+ reduceWith(row1, r, p), ins)
-          }
-      }
-
-      Some(new RationalMatrix(if (!inserted) mat1 :+ r else mat1, line, constModulo))
-    }
-  }
-
-  // multiply row by a scalar to make pivot = 1
-  private def normaliseRow(row: Vector[Rational], p: Int) = {
-    val r = row(p).inv
-    Vector.tabulate(row.length) { i =>
-      if (constModulo.nonEmpty && i == row.length) (row(i) * r) mod constModulo.get
-      else row(i) * r
-    }
-  }
-
-  // subtract a multiple of row2 (with pivot p2) from row1 to make row1(p2) == 0. Assumes row2 is
-  // normalised.
-  private def reduceWith(row1: Vector[Rational], row2: Vector[Rational], p2: Int) = {
-    val n = row1(p2)
-    if (!n.isZero) {
-      Vector.tabulate(row1.length) { i =>
-        val n1 = row1(i) - (n * row2(i))
-        if (constModulo.nonEmpty && i == row1.length) n1 mod constModulo.get
-        else n1
-      }
-    } else {
-      row1
+      val r = reduced.normalised(p)
+      val rows1 = rowArray.map { r1 => if (r1.pivot > p) r1 else r1.reducedWith(r, p) }
+      val (before, after) = rows1.splitAt(rowArray.indexWhere(_.pivot > p) match {
+        case -1 => rowArray.length
+        case i => i
+      })
+      Some(new RationalMatrix((before :+ r) ++ after, line, constModulo))
     }
   }
 
@@ -146,4 +118,3 @@ object RationalMatrix {
   def findPivot(row: Vector[Rational]): Int =
     row.indexWhere(!_.isZero)
 }
-
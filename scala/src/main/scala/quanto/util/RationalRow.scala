@@ -0,0 +1,140 @@
+package quanto.util
+
+/**
+  * A row of a RationalMatrix.
+  *
+  * While every entry fits in a Long, the row is held as two arrays of numerators and denominators (each entry in
+  * lowest terms with a positive denominator), and the row operations used in gaussian elimination work on those arrays
+  * directly, without a Rational for each entry. An operation that overflows gives a row of Rationals instead.
+  */
+final class RationalRow private(private val num: Array[Long],
+                                private val den: Array[Long],
+                                private val big: Array[Rational]) {
+
+  import RationalRow._
+
+  def length: Int = if (big == null) num.length else big.length
+
+  def apply(i: Int): Rational = if (big == null) Rational.reduced(num(i), den(i)) else big(i)
+
+  def isZero(i: Int): Boolean = if (big == null) num(i) == 0 else big(i).isZero
+
+  /** The index of the first non-zero entry, or -1 if there is none */
+  lazy val pivot: Int = (0 until length).indexWhere(!isZero(_))
+
+  def toVector: Vector[Rational] = Vector.tabulate(length)(apply)
+
+  /** Insert m zeros at the given column and n zeros before the last column */
+  def padTo(column: Int, m: Int, n: Int): RationalRow = {
+    val last = length - 1
+    val indices = (0 until column) ++ Seq.fill(m)(-1) ++ (column until last) ++ Seq.fill(n)(-1) :+ last
+    if (big == null) {
+      new RationalRow(indices.map(i => if (i == -1) 0L else num(i)).toArray,
+        indices.map(i => if (i == -1) 1L else den(i)).toArray, null)
+    } else {
+      new RationalRow(null, null, indices.map(i => if (i == -1) Rational.Zero else big(i)).toArray)
+    }
+  }
+
+  /** This row divided by its entry at p, which must be non-zero */
+  def normalised(p: Int): RationalRow =
+    primitive { (n, d) =>
+      // multiply by den(p)/num(p), with the sign moved to the numerator
+      val neg = num(p) < 0
+      val sn = if (neg) Math.negateExact(den(p)) else den(p)
+      val sd = if (neg) Math.negateExact(num(p)) else num(p)
+      for (i <- num.indices) mulInto(num(i), den(i), sn, sd, n, d, i)
+    }.getOrElse {
+      val r = apply(p).inv
+      RationalRow(Vector.tabulate(length)(i => apply(i) * r))
+    }
+
+  /** Subtract a multiple of the given row (which has a 1 at p) from this one, to make the entry of this row at p zero */
+  def reducedWith(row: RationalRow, p: Int): RationalRow =
+    if (isZero(p)) this
+    else {
+      val result = if (row.big != null) None else primitive { (n, d) =>
+        for (i <- num.indices) subMulInto(num(i), den(i), num(p), den(p), row.num(i), row.den(i), n, d, i)
+      }
+      result.getOrElse {
+        val c = apply(p)
+        RationalRow(Vector.tabulate(length)(i => apply(i) - c * row(i)))
+      }
+    }
+
+  // fill in the entries of a new row of Longs, or give None if this row is not held as Longs or the arithmetic overflows
+  private def primitive(fill: (Array[Long], Array[Long]) => Unit): Option[RationalRow] =
+    if (big != null) None
+    else {
+      try {
+        val n = new Array[Long](num.length)
+        val d = new Array[Long](num.length)
+        fill(n, d)
+        Some(new RationalRow(n, d, null))
+      } catch {
+        case _: ArithmeticException => None
+      }
+    }
+
+  override def equals(other: Any): Boolean = other match {
+    case that: RationalRow =>
+      if (big == null && that.big == null) {
+        java.util.Arrays.equals(num, that.num) && java.util.Arrays.equals(den, that.den)
+      } else {
+        toVector == that.toVector
+      }
+    case _ => false
+  }
+
+  override def hashCode: Int = toVector.hashCode
+
+  override def toString: String = toVector.mkString("RationalRow(", ", ", ")")
+}
+
+object RationalRow {
+  def apply(entries: Seq[Rational]): RationalRow =
+    if (entries.forall(_.isSmall)) new RationalRow(entries.map(_.ln).toArray, entries.map(_.ld).toArray, null)
+    else new RationalRow(null, null, entries.toArray)
+
+  // set entry i of num and den to (an/ad) * (bn/bd), for entries in lowest terms with positive denominators
+  private def mulInto(an: Long, ad: Long, bn: Long, bd: Long, num: Array[Long], den: Array[Long], i: Int) {
+    if (an == 0 || bn == 0) {
+      num(i) = 0
+      den(i) = 1
+    } else {
+      val g1 = Rational.gcd(an, bd)
+      val g2 = Rational.gcd(bn, ad)
+      num(i) = Math.multiplyExact(an / g1, bn / g2)
+      den(i) = Math.multiplyExact(ad / g2, bd / g1)
+    }
+  }
+
+  // set entry i of num and den to (an/ad) - (cn/cd) * (bn/bd)
+  private def subMulInto(an: Long, ad: Long, cn: Long, cd: Long, bn: Long, bd: Long,
+                         num: Array[Long], den: Array[Long], i: Int) {
+    mulInto(cn, cd, bn, bd, num, den, i)
+    val pn = num(i)
+    val pd = den(i)
+    if (pn == 0) {
+      num(i) = an
+      den(i) = ad
+    } else {
+      var n = 0L
+      var d = ad
+      if (ad == pd) {
+        n = Math.subtractExact(an, pn)
+      } else {
+        n = Math.subtractExact(Math.multiplyExact(an, pd), Math.multiplyExact(pn, ad))
+        d = Math.multiplyExact(ad, pd)
+      }
+      if (n == 0) {
+        num(i) = 0
+        den(i) = 1
+      } else {
+        val g = Rational.gcd(n, d)
+        num(i) = n / g
+        den(i) = d / g
+      }
+    }
+  }
+}
@@ -6,7 +6,7 @@ import akka.util.Timeout
 import org.python.core._
 import quanto.data._
 import quanto.gui.QuantoDerive
-import quanto.rewrite.Simproc
+import quanto.rewrite.{NormalFormCache, Simproc}
 import quanto.util.json._
 
 import scala.collection.JavaConverters._
@@ -33,21 +33,17 @@ object Scripting {
 
   def load_graph(s: String): Graph = {
     val path = project.rootFolder + "/" + s + ".qgraph"
-    Graph.fromJson(Json.parse(new File(path)), theory)
+    Graph.fromFile(new File(path), theory)
   }
 
   def save_graph(g: Graph, s: String) {
     val path = project.rootFolder + "/" + s + ".qgraph"
-    val json = Graph.toJson(g, theory)
-    json.writeTo(new File(path))
+    Graph.toFile(g, new File(path), theory)
   }
 
   def load_rule(s: String): Rule = {
     val path = project.rootFolder + "/" + s + ".qrule"
-    Rule.fromJson(
-      Json.parse(new File(path)),
-      theory,
-      Some(RuleDesc(s, inverse = false)))
+    Rule.fromFile(new File(path), theory, Some(RuleDesc(s, inverse = false)))
   }
 
   def load_rules(ss: PyList): PyList = {
@@ -136,8 +132,7 @@ object Scripting {
 
     def save(s: String) {
       val path = project.rootFolder + "/" + s + ".qderive"
-      val json = Derivation.toJson(d, theory)
-      json.writeTo(new File(path))
+      Derivation.toFile(d, new File(path), theory)
     }
 
     def copy() : derivation = { val d1 = new derivation(start); d1.d = d; d1 }
@@ -195,6 +190,18 @@ object Scripting {
     case _ => Simproc.REWRITE(List(o.asInstanceOf[Rule]))
   }
 
+  // as REWRITE, but searches for each match on several threads
+  def REWRITE_PARALLEL(o: Object) = o match {
+    case list: PyList => Simproc.REWRITE_PARALLEL(pyListToList(list))
+    case _ => Simproc.REWRITE_PARALLEL(List(o.asInstanceOf[Rule]))
+  }
+
+  // as REWRITE, but rewrites every independent match found at once
+  def REWRITE_ALL(o: Object) = o match {
+    case list: PyList => Simproc.REWRITE_ALL(pyListToList(list))
+    case _ => Simproc.REWRITE_ALL(List(o.asInstanceOf[Rule]))
+  }
+
   def REWRITE_METRIC(o: Object, metric: PyFunction) = {
     val rules = o match {
       case list: PyList => pyListToList(list)
@@ -244,13 +251,62 @@ object Scripting {
 
   def REPEAT(s: Simproc) = Simproc.REPEAT(s)
 
+  // REPEAT, stopping after the given number of steps or milliseconds, or at a graph with more than the given number
+  // of vertices. A limit of 0 means no limit.
+  def REPEAT_WITHIN(s: Simproc, steps: Int, millis: Int, vertices: Int) =
+    Simproc.REPEAT(s, budget(steps, millis, vertices))
+
+  // the limits used by REPEAT and REDUCE from now on, as for REPEAT_WITHIN
+  def set_repeat_budget(steps: Int, millis: Int, vertices: Int) {
+    val b = budget(steps, millis, vertices)
+    Simproc.Budget.default = b.copy(detectCycles = Simproc.Budget.default.detectCycles,
+      cycleCheckInterval = Simproc.Budget.default.cycleCheckInterval)
+  }
+
+  // make REPEAT and REDUCE stop from now on when they go round in a cycle, looking for one every given number of
+  // steps. An interval of 0 stops looking.
+  def set_cycle_check(interval: Int) {
+    Simproc.Budget.default =
+      if (interval > 0) Simproc.Budget.default.copy(detectCycles = true, cycleCheckInterval = interval)
+      else Simproc.Budget.default.copy(detectCycles = false)
+  }
+
+  private def budget(steps: Int, millis: Int, vertices: Int) = Simproc.Budget(
+    maxSteps = if (steps > 0) steps else Int.MaxValue,
+    maxMillis = if (millis > 0) millis.toLong else Long.MaxValue,
+    maxVertices = if (vertices > 0) vertices else Int.MaxValue)
+
   // REDUCE_XXX(-) := REPEAT(REWRITE_XXX(-))
-  def REDUCE(o: Object) = REPEAT(REWRITE(o))
+  // (REDUCE only searches near the last rewrite where it can, so it may rewrite at different matches than
+  // REPEAT(REWRITE(-)) along the way. With a confluent set of rules, it reaches the same normal form.)
+  def REDUCE(o: Object) = o match {
+    case list: PyList => Simproc.REDUCE(pyListToList(list))
+    case _ => Simproc.REDUCE(List(o.asInstanceOf[Rule]))
+  }
+
   def REDUCE_TARGETED(rule: Rule, v: String, targ: PyFunction) = REPEAT(REWRITE_TARGETED(rule, v, targ))
   def REDUCE_METRIC(o: Object, metric: PyFunction) = REPEAT(REWRITE_METRIC(o, metric))
   def REDUCE_METRIC_TO(o: Object, metric: PyFunction, target: Int) = REPEAT(REWRITE_METRIC_TO(o, metric, target))
   def REDUCE_WEAK_METRIC(o: Object, metric: PyFunction) = REPEAT(REWRITE_WEAK_METRIC(o, metric))
 
+  // remember the normal forms found by REPEAT and REDUCE, and replay them on isomorphic graphs
+  def use_normal_form_cache(size: Int) {
+    NormalFormCache.global = Some(new NormalFormCache(size))
+  }
+
+  def normal_form_cache_stats(): String = NormalFormCache.global.map(_.stats).getOrElse("no normal form cache")
+
+  def save_normal_form_cache(s: String) {
+    val path = project.rootFolder + "/" + s + ".json"
+    NormalFormCache.global.foreach(_.save(new File(path), theory))
+  }
+
+  def load_normal_form_cache(s: String) {
+    val path = project.rootFolder + "/" + s + ".json"
+    if (NormalFormCache.global.isEmpty) NormalFormCache.global = Some(new NormalFormCache())
+    NormalFormCache.global.foreach(_.load(new File(path), theory))
+  }
+
   private def register_simproc(simprocName: String, simproc: Simproc, sourceFile: String): Unit = {
     simproc.sourceFile = sourceFile
     project.simprocs += simprocName -> simproc
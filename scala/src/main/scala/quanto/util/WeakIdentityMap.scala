@@ -0,0 +1,59 @@
+package quanto.util
+
+import java.lang.ref.{ReferenceQueue, WeakReference}
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+  * A map from objects to values computed from them, keyed by the identity of the object rather than by equals. This
+  * is for remembering things about immutable objects, such as graphs, whose equals and hashCode look at the whole
+  * object. Keys are held weakly, so an entry goes away once its key is no longer used anywhere else. A value must not
+  * refer back to its own key, or the entry is never dropped.
+  *
+  * It is safe to share between threads.
+  */
+class WeakIdentityMap[K <: AnyRef, V] {
+  private val queue = new ReferenceQueue[K]()
+  private val entries = new ConcurrentHashMap[Key, V]()
+
+  private class Key(k: K, q: ReferenceQueue[K]) extends WeakReference[K](k, q) {
+    private val hash = System.identityHashCode(k)
+
+    override def hashCode: Int = hash
+
+    // once a key is collected, its entry can only be found by the Key itself, as expunge does
+    override def equals(o: Any): Boolean = o match {
+      case that: Key =>
+        (this eq that) || {
+          val x = get
+          x != null && (x eq that.get)
+        }
+      case _ => false
+    }
+  }
+
+  def get(k: K): Option[V] = Option(entries.get(new Key(k, null)))
+
+  def put(k: K, v: V): Unit = {
+    expunge()
+    entries.put(new Key(k, queue), v)
+  }
+
+  def getOrElseUpdate(k: K, v: => V): V = get(k) match {
+    case Some(x) => x
+    case None =>
+      val x = v
+      put(k, x)
+      x
+  }
+
+  /** The number of entries, including some whose keys may have been collected */
+  def size: Int = entries.size
+
+  private def expunge(): Unit = {
+    var r = queue.poll()
+    while (r != null) {
+      entries.remove(r)
+      r = queue.poll()
+    }
+  }
+}
@@ -272,4 +272,20 @@ class GraphAnalysisSpec extends FlatSpec {
     assert(!ZXiso(g1,g2))
   }
 
+  it should "give graphs the same certificate hash exactly when they are isomorphic" in {
+    val g1: Graph = QuickGraph(rg).node("Z", angle = "0", nodeName = "v").addInput().join("v", "i-0")
+    val g2: Graph = QuickGraph(rg).node("Z", angle = "0", nodeName = "w").addInput().join("w", "i-0")
+    val g3: Graph = QuickGraph(rg).node("Z", angle = "0", nodeName = "v").addOutput().join("v", "o-0")
+    assert(certificateHash(g1, boundaryRegex) === certificateHash(g2, boundaryRegex))
+    assert(certificateHash(g1, boundaryRegex) !== certificateHash(g3, boundaryRegex))
+    assert(ZXiso(g1, g2) && !ZXiso(g1, g3))
+  }
+
+  it should "remove rules with isomorphic sides, and rules isomorphic to earlier ones" in {
+    val v: Graph = QuickGraph(rg).node("Z", angle = "0", nodeName = "v").addInput().join("v", "i-0")
+    val w: Graph = QuickGraph(rg).node("Z", angle = "0", nodeName = "w").addInput().join("w", "i-0")
+    val x: Graph = QuickGraph(rg).node("X", angle = "0", nodeName = "v").addInput().join("v", "i-0")
+    val rules = List(Rule(v, w), Rule(v, x), Rule(w, x), Rule(x, v))
+    assert(removeIsomorphisms(rg, boundaryRegex, rules) === List(Rule(v, x), Rule(x, v)))
+  }
 }
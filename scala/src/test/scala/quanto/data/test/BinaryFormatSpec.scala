@@ -0,0 +1,112 @@
+package quanto.data.test
+
+import java.io.File
+
+import org.scalatest._
+import quanto.data.Names._
+import quanto.data._
+import quanto.util.BinaryConvert
+import quanto.util.json.Json
+
+class BinaryFormatSpec extends FlatSpec {
+  val rg: Theory = Theory.fromFile("red_green")
+
+  val small: Graph = Graph.fromJson(Json.parse(
+    """
+      |{
+      |  "wire_vertices": {"b0": {"annotation": {"boundary": true}}, "b1": {}},
+      |  "node_vertices": {
+      |    "v0": {"data": {"type": "Z", "value": "a"}, "annotation": {"coord": [1.5, -2.0]}},
+      |    "v1": {"data": {"type": "X", "value": ""}}
+      |  },
+      |  "dir_edges": {
+      |    "e0": {"src": "b0", "tgt": "v0"}
+      |  },
+      |  "undir_edges": {
+      |    "e1": {"src": "v0", "tgt": "v1"},
+      |    "e2": {"src": "v1", "tgt": "b1"}
+      |  },
+      |  "bang_boxes": {
+      |    "bb0": {"contents": ["v1"]},
+      |    "bb1": {"contents": ["v1"], "parent": "bb0"}
+      |  },
+      |  "annotation": {"note": "small"}
+      |}
+    """.stripMargin), thy = rg)
+
+  // a graph that has been through JSON, so its data compares equal after another trip
+  val large: Graph = Graph.fromJson(Json.parse(Graph.toJson(Graph.random(60, 80, 3)).toString))
+
+  def tempFile(ext: String): File = {
+    val f = File.createTempFile("binary-format", "." + ext)
+    f.deleteOnExit()
+    f
+  }
+
+  behavior of "The binary format"
+
+  it should "round-trip graphs" in {
+    for ((g, thy) <- Seq((small, rg), (large, Theory.DefaultTheory), (Graph(), Theory.DefaultTheory))) {
+      val f = tempFile("qgraphb")
+      BinaryFormat.writeGraph(g, f)
+      assert(BinaryFormat.readGraph(f, thy) === g)
+    }
+  }
+
+  it should "decode vertex data on demand" in {
+    val f = tempFile("qgraphb")
+    BinaryFormat.writeGraph(small, f)
+    val g = BinaryFormat.readGraph(f, rg)
+    assert(g.vdata.isInstanceOf[LazyVDataMap])
+    assert(g.verts === small.verts)
+    assert(g.vdata("v0") === small.vdata("v0"))
+    assert(g.addVertex("v2", small.vdata("v1")).vdata === small.vdata + (VName("v2") -> small.vdata("v1")))
+  }
+
+  it should "reject unknown vertex types and other kinds of file" in {
+    val f = tempFile("qgraphb")
+    BinaryFormat.writeGraph(small, f)
+    assertThrows[GraphLoadException] { BinaryFormat.readGraph(f) }
+    assertThrows[RuleLoadException] { BinaryFormat.readRule(f, rg) }
+  }
+
+  it should "round-trip rules" in {
+    val r = Rule(small, small.deleteVertex("v1"), Some("deriv"), RuleDesc("r"))
+    for (rule <- Seq(r, r.inverse)) {
+      val f = tempFile("qruleb")
+      BinaryFormat.writeRule(rule, f)
+      val rule1 = BinaryFormat.readRule(f, rg)
+      assert(rule1 === rule)
+      assert(rule1.lhs === rule.lhs)
+    }
+  }
+
+  it should "round-trip derivations" in {
+    val rule = Rule(small, small, None, RuleDesc("r"))
+    val d = (0 until 6).foldLeft(Derivation(small)) { (d, i) =>
+      d.addStep(d.firstHead, DStep(DSName("s" + i), rule, small.deleteVertex("v" + (i % 2))))
+    }.addStep(None, DStep(DSName("t"), rule.inverse, small.deleteEdge("e0")))
+
+    val f = tempFile("qderiveb")
+    BinaryFormat.writeDerivation(d, f)
+    val d1 = BinaryFormat.readDerivation(f, rg)
+    assert(d1.root === d.root)
+    assert(d1.heads === d.heads)
+    assert(d1.parentMap === d.parentMap)
+    for ((s, step) <- d.steps) assert(d1.steps(s) === step)
+  }
+
+  behavior of "BinaryConvert"
+
+  it should "convert to binary and back by extension" in {
+    val json = tempFile("qgraph")
+    Graph.toFile(small, json, rg)
+    val bin = BinaryConvert.converted(json)
+    bin.deleteOnExit()
+    assert(bin.getName.endsWith(".qgraphb"))
+    BinaryConvert.convert(json, bin, rg)
+    val back = tempFile("qgraph")
+    BinaryConvert.convert(bin, back, rg)
+    assert(Graph.fromFile(back, rg) === small)
+  }
+}
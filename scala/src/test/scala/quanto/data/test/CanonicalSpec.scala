@@ -0,0 +1,62 @@
+package quanto.data.test
+
+import org.scalatest._
+import quanto.data.Names._
+import quanto.data._
+import quanto.util.json.Json
+
+class CanonicalSpec extends FlatSpec {
+  val rg: Theory = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // a directed path through Z and X nodes, between two boundaries
+  def path(names: Seq[String], types: Seq[String], angles: Seq[String], in: String = "b0", out: String = "b1"): Graph = {
+    val nodes = names.zip(types.zip(angles)).map { case (v, (t, a)) =>
+      s""""$v": {"data": {"type": "$t", "value": "$a"}}"""
+    }
+    val chain = in +: names :+ out
+    val edges = chain.zip(chain.tail).zipWithIndex.map { case ((s, t), i) =>
+      s""""e$i": {"src": "$s", "tgt": "$t"}"""
+    }
+    parse(
+      s"""
+         |{
+         |  "wire_vertices": ["$in", "$out"],
+         |  "node_vertices": {${nodes.mkString(", ")}},
+         |  "dir_edges": {${edges.mkString(", ")}}
+         |}
+      """.stripMargin)
+  }
+
+  behavior of "A canonical form"
+
+  it should "not depend on the names of vertices" in {
+    val g1 = path(Seq("v0", "v1", "v2"), Seq("Z", "X", "Z"), Seq("0", "1/2", "0"))
+    val g2 = path(Seq("a", "q7", "c"), Seq("Z", "X", "Z"), Seq("0", "1/2", "0"))
+    assert(g1.certificate === g2.certificate)
+    assert(g1.certificate.hash === g2.certificate.hash)
+  }
+
+  it should "respect types, phases and directions" in {
+    val g = path(Seq("v0", "v1"), Seq("Z", "X"), Seq("0", "0"))
+    assert(g.certificate !== path(Seq("v0", "v1"), Seq("Z", "Z"), Seq("0", "0")).certificate)
+    assert(g.certificate !== path(Seq("v0", "v1"), Seq("Z", "X"), Seq("0", "1")).certificate)
+    assert(g.certificate !== path(Seq("v1", "v0"), Seq("X", "Z"), Seq("0", "0")).certificate)
+  }
+
+  it should "fix boundaries by name" in {
+    val g1 = path(Seq("v0", "v1"), Seq("Z", "X"), Seq("0", "0"), in = "b0", out = "b1")
+    val g2 = path(Seq("v0", "v1"), Seq("Z", "X"), Seq("0", "0"), in = "b1", out = "b0")
+    assert(Canonical.isomorphic(g1, g2))
+    assert(!Canonical.isomorphic(g1, g2, Set("b0", "b1")))
+    assert(Canonical.isomorphic(g1, g1.rename(Map(VName("v0") -> VName("w"))), Set("b0", "b1")))
+  }
+
+  it should "handle graphs with many automorphisms" in {
+    val g1 = (0 until 8).foldLeft(Graph()) { (g, i) => g.addVertex(VName("v" + i), NodeV()) }
+    val g2 = g1.rename((0 until 8).map { i => VName("v" + i) -> VName("w" + (7 - i)) }.toMap)
+    assert(g1.certificate === g2.certificate)
+    assert(Canonical.labelling(g1).toSet === g1.verts)
+  }
+}
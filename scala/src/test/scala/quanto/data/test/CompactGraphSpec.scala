@@ -0,0 +1,103 @@
+package quanto.data.test
+
+import org.scalatest._
+import quanto.data.Names._
+import quanto.data._
+import quanto.util.ChunkedArray
+import quanto.util.json.Json
+
+class CompactGraphSpec extends FlatSpec {
+  val rg: Theory = Theory.fromFile("red_green")
+
+  val g: Graph = Graph.fromJson(Json.parse(
+    """
+      |{
+      |  "wire_vertices": ["b0", "b1"],
+      |  "node_vertices": {
+      |    "v0": {"data": {"type": "Z", "value": "a"}},
+      |    "v1": {"data": {"type": "X", "value": ""}}
+      |  },
+      |  "dir_edges": {
+      |    "e0": {"src": "b0", "tgt": "v0"},
+      |    "e1": {"src": "v0", "tgt": "v1"},
+      |    "e2": {"src": "v1", "tgt": "b1"},
+      |    "e3": {"src": "v1", "tgt": "v1"}
+      |  },
+      |  "bang_boxes": {
+      |    "bb0": {"contents": ["v1"]}
+      |  }
+      |}
+    """.stripMargin), thy = rg)
+
+  behavior of "A chunked array"
+
+  it should "keep old versions unchanged" in {
+    val a = ChunkedArray((0 until 100).map(_.toString))
+    val b = a.updated(70, "x") :+ "y"
+    assert(a(70) === "70")
+    assert(a.length === 100)
+    assert(b(70) === "x")
+    assert(b(100) === "y")
+    assert(b.iterator.count(_ != null) === 101)
+    assertThrows[IndexOutOfBoundsException] { a(100) }
+  }
+
+  behavior of "A compact graph"
+
+  it should "convert to and from a graph" in {
+    val c = CompactGraph.fromGraph(g)
+    assert(c.toGraph === g)
+    assert(c.verts === g.verts)
+    assert(c.edges === g.edges)
+  }
+
+  it should "answer the same queries as a graph" in {
+    val c = CompactGraph.fromGraph(g)
+    for (v <- g.verts) {
+      assert(c.vdata(v) === g.vdata(v))
+      assert(c.inEdges(v) === g.inEdges(v))
+      assert(c.outEdges(v) === g.outEdges(v))
+      assert(c.adjacentVerts(v) === g.adjacentVerts(v))
+      assert(c.arity(v) === g.arity(v))
+      assert(c.bboxesContaining(v) === g.bboxesContaining(v))
+    }
+    for (e <- g.edges) {
+      assert(c.source(e) === g.source(e))
+      assert(c.target(e) === g.target(e))
+      assert(c.edata(e) === g.edata(e))
+    }
+  }
+
+  it should "update persistently" in {
+    val c = CompactGraph.fromGraph(g)
+    val c1 = c.addVertex("v2", NodeV(theory = rg)).addEdge("e4", UndirEdge(), ("v0", "v2"))
+    val c2 = c1.deleteVertex("v1")
+
+    assert(c.toGraph === g)
+    assert(c1.toGraph === g.addVertex("v2", NodeV(theory = rg)).addEdge("e4", UndirEdge(), ("v0", "v2")))
+    assert(c2.verts === Set[VName]("b0", "b1", "v0", "v2"))
+    assert(c2.edges === Set[EName]("e0", "e4"))
+    assert(c2.arity("v0") === 2)
+    assert(c2.toGraph === g.addVertex("v2", NodeV(theory = rg)).addEdge("e4", UndirEdge(), ("v0", "v2"))
+      .deleteVertex("v1"))
+  }
+
+  it should "reuse the slots of deleted vertices and edges" in {
+    val c = CompactGraph.fromGraph(g)
+    val c1 = c.deleteVertex("v1")
+    assert(c1.occupancy < 1.0)
+    val c2 = c1.addVertex("v2", NodeV(theory = rg)).addEdge("e4", UndirEdge(), ("v0", "v2"))
+      .addEdge("e5", UndirEdge(), ("v2", "b1")).addEdge("e6", UndirEdge(), ("v2", "v2"))
+    assert(c2.occupancy === 1.0)
+    assert(c2.toGraph === g.deleteVertex("v1").addVertex("v2", NodeV(theory = rg))
+      .addEdge("e4", UndirEdge(), ("v0", "v2")).addEdge("e5", UndirEdge(), ("v2", "b1"))
+      .addEdge("e6", UndirEdge(), ("v2", "v2")))
+    assert(c2.arity("v2") === 3)
+  }
+
+  it should "compact a graph which has shrunk" in {
+    val c = CompactGraph.fromGraph(g).deleteVertex("v1").compacted
+    assert(c.occupancy === 1.0)
+    assert(c.toGraph === g.deleteVertex("v1"))
+  }
+}
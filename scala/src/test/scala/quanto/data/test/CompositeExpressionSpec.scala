@@ -5,6 +5,7 @@ import quanto.data.CompositeExpression._
 import quanto.data.Theory.ValueType
 import quanto.data._
 import quanto.util.Rational
+import quanto.util.json.JsonObject
 
 class CompositeExpressionSpec extends FlatSpec {
 
@@ -38,4 +39,27 @@ class CompositeExpressionSpec extends FlatSpec {
     assert(parseTypes(all) === vs.toVector)
   }
 
+  behavior of "Cached parsing"
+
+  it should "parse each value once" in {
+    val types = Vector(ValueType.AngleExpr, ValueType.Boolean)
+    val e = parseCached("a + b, x", types)
+    assert(e === CompositeExpression(types, parseKnowingTypes("a + b, x", types)))
+    assert(parseCached("a + b, x", types) eq e)
+    assert(parseCached("a + b, x", Vector(ValueType.AngleExpr)) ne e)
+    clearParseCache()
+    assert(parseCached("a + b, x", types) ne e)
+  }
+
+  it should "give nodes made from parsed values the same phase data" in {
+    val rg = Theory.fromFile("red_green")
+    val n = NodeV(JsonObject("type" -> "Z", "value" -> "a"), theory = rg)
+    val e = n.phaseData.substSubValues(Map("a" -> parseSingle("b + 1/2", ValueType.AngleExpr)))
+    val n1 = n.withPhaseData(e)
+    assert(n1.phaseData eq e)
+    assert(n1 === NodeV(JsonObject("type" -> "Z", "value" -> e.toString), theory = rg))
+    assert(n1.withCoord((1.0, 2.0)).phaseData eq e)
+    assert(n1.copy(annotation = JsonObject("label" -> "n1")).phaseData eq e)
+  }
+
 }
\ No newline at end of file
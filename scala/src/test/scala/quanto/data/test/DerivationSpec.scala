@@ -0,0 +1,135 @@
+package quanto.data.test
+
+import org.scalatest._
+import quanto.data.Names._
+import quanto.data._
+import quanto.util.json.Json
+
+class DerivationSpec extends FlatSpec {
+  val rg: Theory = Theory.fromFile("red_green")
+
+  val root: Graph = Graph.fromJson(Json.parse(
+    """
+      |{
+      |  "wire_vertices": ["b0", "b1"],
+      |  "node_vertices": {
+      |    "v0": {"data": {"type": "Z", "value": "a"}},
+      |    "v1": {"data": {"type": "X", "value": ""}}
+      |  },
+      |  "undir_edges": {
+      |    "e0": {"src": "b0", "tgt": "v0"},
+      |    "e1": {"src": "v0", "tgt": "v1"},
+      |    "e2": {"src": "v1", "tgt": "b1"}
+      |  },
+      |  "bang_boxes": {
+      |    "bb0": {"contents": ["v1"]}
+      |  }
+      |}
+    """.stripMargin), thy = rg)
+
+  val rule = Rule(new Graph(), new Graph(), None, RuleDesc("step"))
+  val z: VData = root.vdata("v0")
+  val x: VData = root.vdata("v1")
+  val edge: EData = root.edata("e0")
+
+  // a chain of graphs, each growing and changing the last, longer than the interval between full graphs
+  val chain: Seq[Graph] = (1 to StepGraph.KeyframeInterval + 8).scanLeft(root) { (g, i) =>
+    g.addVertex("n" + i, z)
+      .addEdge("f" + i, edge, ("v0", "n" + i))
+      .updateVData("v1")(_ => x.withCoord((i.toDouble, 0.0)))
+  }
+
+  val derivation: Derivation = chain.tail.zipWithIndex.foldLeft(Derivation(root)) { case (d, (g, i)) =>
+    d.addStep(if (i == 0) None else Some(DSName("s" + (i - 1))), DStep(DSName("s" + i), rule, g))
+  }
+
+  behavior of "A graph delta"
+
+  it should "take one graph to another" in {
+    val g1 = root.deleteVertex("v1")
+      .addVertex("v2", z)
+      .addEdge("e1", edge, ("v0", "v2"))
+      .updateVData("v0")(_ => x)
+    val delta = GraphDelta.between(root, g1)
+    assert(delta.deletedVerts === Set[VName]("v1"))
+    assert(delta.vdata.keySet === Set[VName]("v0", "v2"))
+    assert(delta.bboxes.isEmpty)
+    assert(delta(root) === g1)
+    assert(GraphDelta.between(g1, root)(g1) === root)
+  }
+
+  it should "be empty between equal graphs" in {
+    assert(GraphDelta.between(root, root).isEmpty)
+  }
+
+  it should "carry changed !-boxes" in {
+    val g1 = root.addBBox("bb1", BBData(), Set("v0"))
+    val delta = GraphDelta.between(root, g1)
+    assert(delta.bboxes.nonEmpty)
+    assert(delta(root) === g1)
+    assert(GraphDelta.fromJson(GraphDelta.toJson(delta, rg), rg)(root) === g1)
+  }
+
+  behavior of "A derivation"
+
+  it should "store steps as deltas" in {
+    assert(derivation.steps(DSName("s1")).stored.isInstanceOf[StepGraph.Delta])
+    assert(derivation.steps.values.map(_.stored.depth).max < StepGraph.KeyframeInterval)
+    assert(derivation.steps.values.exists(_.stored.isInstanceOf[StepGraph.Keyframe]))
+  }
+
+  it should "materialise the graphs that were added" in {
+    StepGraph.clearCache()
+    for ((g, i) <- chain.tail.zipWithIndex.reverse) assert(derivation.steps(DSName("s" + i)).graph === g)
+    assert(derivation.graphsTo(DSName("s3")).toSeq === chain.take(5))
+  }
+
+  it should "keep the graphs of later steps when a graph is updated" in {
+    val g = chain(2).updateVData("v0")(_ => x)
+    val d1 = derivation.updateGraphInStep(DSName("s1"), g)
+    assert(d1.steps(DSName("s1")).graph === g)
+    assert(d1.steps(DSName("s2")).graph === chain(3))
+  }
+
+  it should "write and read steps as deltas" in {
+    val json = Derivation.toJson(derivation, rg, deltas = true)
+    val step = (json / "steps" / "s5").asObject
+    assert(step.get("graph").isEmpty)
+    assert(step.get("graph_delta").nonEmpty)
+
+    StepGraph.clearCache()
+    val d1 = Derivation.fromJson(Json.parse(json.toString), rg)
+    for ((g, i) <- chain.tail.zipWithIndex) assert(d1.steps(DSName("s" + i)).graph === g)
+    assert(d1.heads === derivation.heads)
+  }
+
+  it should "read steps written in full" in {
+    val json = Derivation.toJson(derivation, rg)
+    assert((json / "steps" / "s5").asObject.get("graph").nonEmpty)
+
+    val d1 = Derivation.fromJson(Json.parse(json.toString), rg)
+    for ((g, i) <- chain.tail.zipWithIndex) assert(d1.steps(DSName("s" + i)).graph === g)
+    assert(d1.steps(DSName("s1")).stored.isInstanceOf[StepGraph.Delta])
+  }
+
+  it should "lay out deferred steps only when they are needed" in {
+    val d = chain.zip(chain.tail).zipWithIndex.foldLeft(Derivation(root)) { case (d1, ((g0, g1), i)) =>
+      d1.addStep(if (i == 0) None else Some(DSName("s" + (i - 1))), DStep.deferred(DSName("s" + i), rule, g0, g1))
+    }
+    def deferred(i: Int) = d.steps(DSName("s" + i)).stored.asInstanceOf[StepGraph.Deferred]
+
+    assert((0 until chain.size - 1).forall(!deferred(_).isLaidOut))
+    val last = chain.size - 2
+    val g = d.steps(DSName("s" + last)).graph
+    assert(g.verts === chain.last.verts)
+    assert(g.edges === chain.last.edges)
+    assert(deferred(last).isLaidOut)
+    assert(!deferred(last - 1).isLaidOut)
+    assert(d.steps(DSName("s" + last)).graph eq g)
+
+    // saving lays out the rest
+    val d1 = Derivation.fromJson(Json.parse(Derivation.toJson(d, rg, deltas = true).toString), rg)
+    assert(d1.steps(DSName("s3")).graph.verts === chain(4).verts)
+    assert(deferred(3).isLaidOut)
+  }
+}
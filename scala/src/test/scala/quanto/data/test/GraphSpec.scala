@@ -554,4 +554,53 @@ class GraphSpec extends FlatSpec with GivenWhenThen {
     assert(g0.nodesThatAreNotWires.size == 2)
     assert(g0.edges.size == 3) // One going left to boundary, two between v1 and v2
   }
+
+  it should "allocate fresh names above the greatest name" in {
+    val big = (0 until 100).foldLeft(Graph()) { (g1, i) => g1.addVertex(VName("v" + i), NodeV()) }
+    assert(big.vertexNames.fresh(big.vdata.contains) === VName("v100"))
+    assert(big.vertexNames.freshWithSuggestion(VName("v0"), big.vdata.contains) === VName("v100"))
+    assert(big.vertexNames.freshWithSuggestion(VName("w0"), big.vdata.contains) === VName("w0"))
+
+    val (big1, v) = big.deleteVertex("v99").newVertex(NodeV())
+    assert(!big.deleteVertex("v99").verts.contains(v))
+    assert(big1.verts.size === 100)
+  }
+
+  it should "keep a free suggestion, and jump past a taken one" in {
+    val g = Graph().addVertex("v0", NodeV()).addVertex("v1", NodeV()).addVertex("v5", NodeV())
+    assert(g.vertexNames.freshWithSuggestion(VName("v2"), g.vdata.contains) === VName("v2"))
+    assert(g.vertexNames.freshWithSuggestion(VName("v0"), g.vdata.contains) === VName("v6"))
+    assert(g.vertexNames.fresh(g.vdata.contains) === VName("v6"))
+  }
+
+  it should "find a fresh name for a taken suggestion without walking past the names in use" in {
+    val big = (0 until 10000).foldLeft(Graph()) { (g1, i) => g1.addVertex(VName("v" + i), NodeV()) }
+    var lookups = 0
+    val used = { v: VName => lookups += 1; big.vdata.contains(v) }
+    assert(big.vertexNames.freshWithSuggestion(VName("v0"), used) === VName("v10000"))
+    assert(lookups === 2)
+  }
+
+  it should "still allocate fresh names after a renaming" in {
+    val g1 = Graph().addVertex("v0", NodeV()).addVertex("v1", NodeV())
+    val g2 = g1.rename(Map(VName("v0") -> VName("v5"), VName("v1") -> VName("v6")))
+    val (g3, v) = g2.newVertex(NodeV())
+    assert(!g2.verts.contains(v))
+    assert(g3.verts.size === 3)
+    assert(g2.vertexNames.freshWithSuggestion(VName("v5"), g2.vdata.contains) === VName("v7"))
+  }
+
+  it should "normalise a long wire in one pass, and only once" in {
+    val chain = (1 until 300).foldLeft(Graph().addVertex("w0", WireV())) { (g1, i) =>
+      g1.addVertex(VName("w" + i), WireV()).addEdge(EName("e" + i), DirEdge(), VName("w" + (i - 1)) -> VName("w" + i))
+    }
+    val n = chain.normalise
+    assert(n.verts === Set[VName]("w0", "w1", "w299"))
+    assert(n.edges.size === 2)
+    assert(chain.normalise eq n)
+    assert(n.normalise eq n)
+    assert(chain.minimise.verts === Set[VName]("w0", "w299"))
+    assert(chain.minimise eq chain.minimise)
+    assert(chain.minimise.minimise eq chain.minimise.minimise)
+  }
 }
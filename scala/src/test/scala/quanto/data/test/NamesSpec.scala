@@ -0,0 +1,53 @@
+package quanto.data.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.util.json.Json
+
+class NamesSpec extends FlatSpec {
+  val rg: Theory = Theory.fromFile("red_green")
+
+  behavior of "A name"
+
+  it should "be interned" in {
+    assert(VName("v" + 12) eq VName("v12"))
+    assert(EName("e0").succ eq EName("e1"))
+  }
+
+  it should "be interned once when made on many threads at once" in {
+    val table = new NameTable[VName](new VName(_))
+    val names = (1 to 8).par.flatMap { _ => (0 until 1000).map { i => table("t" + i) } }.seq
+    assert(names.groupBy(_.s).values.forall { ns => ns.forall(_ eq ns.head) })
+    assert(table.size === 1000)
+  }
+
+  it should "equal a copy with the same string" in {
+    val v = VName("w3")
+    val v1 = v.copy()
+    assert(v1 ne v)
+    assert(v1 === v)
+    assert(v1.hashCode === v.hashCode)
+    assert(Set(v)(v1))
+  }
+
+  it should "compare by prefix, then numerically by suffix" in {
+    val names = Seq("v10", "v2", "b1", "v", "w0", "v02").map(VName)
+    assert(names.sorted.map(_.s) === Seq("b1", "v", "v2", "v10", "v02", "w0"))
+    assert(VName("v02").prefix === "v0")
+    assert(VName("v02").suffix === 2)
+  }
+
+  it should "share names between graphs loaded from JSON" in {
+    val json = Json.parse(
+      """
+        |{
+        |  "wire_vertices": ["b0"],
+        |  "node_vertices": { "v0": {"data": {"type": "Z"}} },
+        |  "undir_edges": { "e0": {"src": "v0", "tgt": "b0"} }
+        |}
+      """.stripMargin)
+    val g1 = Graph.fromJson(json, thy = rg)
+    val g2 = Graph.fromJson(json, thy = rg)
+    assert(g1.verts.find(_.s == "v0").get eq g2.verts.find(_.s == "v0").get)
+  }
+}
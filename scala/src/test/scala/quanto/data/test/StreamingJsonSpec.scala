@@ -0,0 +1,113 @@
+package quanto.data.test
+
+import java.io.StringWriter
+
+import org.scalatest._
+import quanto.data.Names._
+import quanto.data._
+import quanto.util.json.Json
+
+class StreamingJsonSpec extends FlatSpec {
+  val rg: Theory = Theory.fromFile("red_green")
+
+  val small: Graph = Graph.fromJson(Json.parse(
+    """
+      |{
+      |  "wire_vertices": ["b0", "b1"],
+      |  "node_vertices": {
+      |    "v0": {"data": {"type": "Z", "value": "a"}, "annotation": {"coord": [1.5, -2.0]}},
+      |    "v1": {"data": {"type": "X", "value": ""}}
+      |  },
+      |  "undir_edges": {
+      |    "e0": {"src": "b0", "tgt": "v0"},
+      |    "e1": {"src": "v0", "tgt": "v1"},
+      |    "e2": {"src": "v1", "tgt": "b1"}
+      |  },
+      |  "bang_boxes": {
+      |    "bb0": {"contents": ["v1"]},
+      |    "bb1": {"contents": ["v1"], "parent": "bb0"}
+      |  },
+      |  "annotation": {"note": "small"}
+      |}
+    """.stripMargin), thy = rg)
+
+  val large: Graph = Graph.random(60, 80, 3)
+
+  def written(write: Json.Output => Unit, pretty: Boolean = false): String = {
+    val sw = new StringWriter
+    val out = new Json.Output(sw)
+    out.prettyPrint = pretty
+    write(out)
+    out.close()
+    sw.toString
+  }
+
+  behavior of "The streaming writer"
+
+  it should "write graphs exactly as toJson does" in {
+    val graphs = Seq((small, rg), (large, Theory.DefaultTheory), (Graph(), Theory.DefaultTheory))
+    for ((g, thy) <- graphs; pretty <- Seq(false, true)) {
+      assert(written(StreamingJson.writeGraph(_, g, thy), pretty) === written(Graph.toJson(g, thy).writeTo(_), pretty))
+    }
+  }
+
+  it should "write rules exactly as toJson does" in {
+    val r = Rule(small, small.deleteVertex("v1"), Some("deriv"))
+    assert(written(StreamingJson.writeRule(_, r, rg)) === written(Rule.toJson(r, rg).writeTo(_)))
+    assert(written(StreamingJson.writeRule(_, r.inverse, rg)) === written(Rule.toJson(r.inverse, rg).writeTo(_)))
+  }
+
+  it should "write derivations exactly as toJson does" in {
+    val rule = Rule(small, small, None, RuleDesc("r"))
+    val d = (0 until 6).foldLeft(Derivation(small)) { (d, i) =>
+      d.addStep(d.firstHead, DStep(DSName("s" + i), rule, small.deleteVertex("v" + (i % 2))))
+    }.addStep(None, DStep(DSName("t"), rule.inverse, small))
+
+    for (deltas <- Seq(false, true))
+      assert(written(StreamingJson.writeDerivation(_, d, rg, deltas)) ===
+        written(Derivation.toJson(d, rg, deltas).writeTo(_)))
+    assert(written(StreamingJson.writeDerivation(_, Derivation(Graph()), rg)) ===
+      written(Derivation.toJson(Derivation(Graph()), rg).writeTo(_)))
+  }
+
+  behavior of "The streaming reader"
+
+  it should "read graphs as fromJson does" in {
+    for ((g, thy) <- Seq((small, rg), (large, Theory.DefaultTheory))) {
+      val s = Graph.toJson(g, thy).toString
+      assert(StreamingJson.readGraph(new Json.Input(s), thy) === Graph.fromJson(Json.parse(s), thy))
+    }
+    assert(Graph.fromJson("""{"node_vertices": ["n0"], "dir_edges": {"e0": {"src": "n0", "tgt": "n0"}}}""").edges ===
+      Set[EName]("e0"))
+  }
+
+  it should "reject bad graphs as fromJson does" in {
+    assertThrows[GraphLoadException] {
+      Graph.fromJson("""{"node_vertices": ["n0"], "dir_edges": {"e0": {"src": "n0", "tgt": "n1"}}}""")
+    }
+    assertThrows[GraphLoadException] {
+      Graph.fromJson("""{"node_vertices": ["n0"], "dir_edges": {"e0": {"src": "n0"}}}""")
+    }
+    assertThrows[GraphLoadException] {
+      Graph.fromJson("""{"node_vertices": ["n0"], "wire_vertices": ["n0"]}""")
+    }
+    assertThrows[GraphLoadException] {
+      Graph.fromJson("""{"node_vertices": ["n0" """)
+    }
+  }
+
+  it should "read rules and derivations as fromJson does" in {
+    val r = Rule(small, small.deleteVertex("v1"), Some("deriv"))
+    val rs = Rule.toJson(r, rg).toString
+    assert(StreamingJson.readRule(new Json.Input(rs), rg) === Rule.fromJson(Json.parse(rs), rg))
+
+    val d = Derivation(small).addStep(None, DStep(DSName("s0"), r, small.deleteVertex("v1")))
+    for (deltas <- Seq(false, true)) {
+      val ds = Derivation.toJson(d, rg, deltas).toString
+      val d1 = StreamingJson.readDerivation(new Json.Input(ds), rg)
+      assert(d1.root === small)
+      assert(d1.steps(DSName("s0")).graph === small.deleteVertex("v1"))
+      assert(d1.heads === d.heads)
+    }
+  }
+}
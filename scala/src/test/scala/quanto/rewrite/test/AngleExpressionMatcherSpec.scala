@@ -69,4 +69,20 @@ class AngleExpressionMatcherSpec extends FlatSpec {
     val m1 = m.addMatch(parse("a + b"), parse("z"))
     assert(m1 === None)
   }
+
+  it should "keep earlier matchers usable after branching" in {
+    val m = AngleExpressionMatcher(Vector("a", "b"), Vector("x", "y")).addMatch(parse("a + b"), parse("x")).get
+    val m1 = m.addMatch(parse("b"), parse("y")).get
+    val m2 = m.addMatch(parse("b"), parse("pi")).get
+    // a match on a variable only seen in one branch
+    val m3 = m2.addMatch(parse("c"), parse("w")).get
+
+    assert(m1.toMap.mapValues(_.as(ValueType.AngleExpr)) === Map("a" -> parse("x - y"), "b" -> parse("y")))
+    assert(m3.toMap.mapValues(_.as(ValueType.AngleExpr)) ===
+      Map("a" -> parse("x + pi"), "b" -> parse("pi"), "c" -> parse("w")))
+    assert(m1.addMatch(parse("c"), parse("y")).get.toMap.mapValues(_.as(ValueType.AngleExpr)) ===
+      Map("a" -> parse("x - y"), "b" -> parse("y"), "c" -> parse("y")))
+    assert(m.toMap.mapValues(_.as(ValueType.AngleExpr)) === Map("a" -> parse("x - b")))
+    assert(m2.addMatch(parse("a"), parse("y")) === None)
+  }
 }
@@ -0,0 +1,214 @@
+package quanto.rewrite.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.json.Json
+
+class CompiledMatcherSpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // matches are compared up to the order they are found in
+  def matchSet(ms: Stream[Match]): Set[(List[String], Map[VName, VName], Map[EName, EName])] =
+    ms.map { m => (m.bbops.map(_.shortName), m.map.v.toMap, m.map.e.toMap) }.toSet
+
+  def assertSameMatches(pat: Graph, tgt: Graph): Unit = {
+    val persistent = Matcher.findMatches(pat, tgt, PersistentMatchEngine)
+    val compiled = Matcher.findMatches(pat, tgt, CompiledMatchEngine)
+    assert(compiled.size === persistent.size)
+    assert(matchSet(compiled) === matchSet(persistent))
+    assert(compiled.forall { m => m.isTotal && m.isHomomorphism })
+  }
+
+  behavior of "The compiled matcher"
+
+  it should "match a graph with four nodes on itself 4! times" in {
+    val g = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": ""}},
+        |    "v1": {"data": {"type": "Z", "value": ""}},
+        |    "v2": {"data": {"type": "Z", "value": ""}},
+        |    "v3": {"data": {"type": "Z", "value": ""}}
+        |  }
+        |}
+      """.stripMargin)
+    assert(Matcher.findMatches(g, g, CompiledMatchEngine).size === 4 * 3 * 2)
+    assertSameMatches(g, g)
+  }
+
+  it should "find the same matches as MatchState on a directed graph" in {
+    val g1 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}}
+        |  },
+        |  "wire_vertices": ["w0", "w1", "w2"],
+        |  "dir_edges": {
+        |    "e0": {"src": "w0", "tgt": "v0"},
+        |    "e1": {"src": "v0", "tgt": "w1"},
+        |    "e2": {"src": "v0", "tgt": "w2"}
+        |  }
+        |}
+      """.stripMargin)
+    val g2 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}},
+        |    "v1": {"data": {"type": "X"}},
+        |    "v2": {"data": {"type": "X"}},
+        |    "v3": {"data": {"type": "X"}}
+        |  },
+        |  "wire_vertices": ["w0", "w1", "w2"],
+        |  "dir_edges": {
+        |    "e0": {"src": "w0", "tgt": "v0"},
+        |    "e1": {"src": "v0", "tgt": "w1"},
+        |    "e2": {"src": "v0", "tgt": "w2"},
+        |    "e3": {"src": "v1", "tgt": "w0"},
+        |    "e4": {"src": "w1", "tgt": "v2"},
+        |    "e5": {"src": "w2", "tgt": "v3"}
+        |  }
+        |}
+      """.stripMargin)
+    assertSameMatches(g1, g2)
+  }
+
+  it should "find the same matches as MatchState with angle variables" in {
+    val g1 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": "a"}},
+        |    "v1": {"data": {"type": "Z", "value": "a + 1"}}
+        |  },
+        |  "wire_vertices": ["b0", "b1"],
+        |  "undir_edges": {
+        |    "e0": {"src": "b0", "tgt": "v0"},
+        |    "e1": {"src": "v0", "tgt": "v1"},
+        |    "e2": {"src": "v1", "tgt": "b1"}
+        |  }
+        |}
+      """.stripMargin)
+    val g2 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": "1/2"}},
+        |    "v1": {"data": {"type": "Z", "value": "3/2"}},
+        |    "v2": {"data": {"type": "Z", "value": "1/2"}},
+        |    "v3": {"data": {"type": "X", "value": ""}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v3", "tgt": "v0"},
+        |    "e1": {"src": "v0", "tgt": "v1"},
+        |    "e2": {"src": "v1", "tgt": "v2"},
+        |    "e3": {"src": "v2", "tgt": "v3"}
+        |  }
+        |}
+      """.stripMargin)
+    assertSameMatches(g1, g2)
+  }
+
+  it should "find the same matches as MatchState with a !-box" in {
+    val g1 = parse(
+      """
+        |{
+        |  "wire_vertices": [
+        |    "b0"
+        |  ],
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "b0"}
+        |  },
+        |  "bang_boxes": {
+        |    "bb0": {"contents": ["b0"]}
+        |  }
+        |}
+      """.stripMargin)
+    val g2 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}},
+        |    "v1": {"data": {"type": "Z"}},
+        |    "v2": {"data": {"type": "Z"}},
+        |    "v3": {"data": {"type": "Z"}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "v1"},
+        |    "e1": {"src": "v0", "tgt": "v2"}
+        |  }
+        |}
+      """.stripMargin)
+    assert(Matcher.findMatches(g1, g2, CompiledMatchEngine).size === 5)
+    assertSameMatches(g1, g2)
+  }
+
+  it should "match !-box copies monotonically when names and indices are in different orders" in {
+    // copies of w9 are named w10, w11, ..., and v8, ..., v11 sort differently as strings than as names
+    val g1 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "c": {"data": {"type": "Z"}},
+        |    "w9": {"data": {"type": "X"}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "c", "tgt": "w9"}
+        |  },
+        |  "bang_boxes": {
+        |    "bb0": {"contents": ["w9"]}
+        |  }
+        |}
+      """.stripMargin)
+    val g2 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "c": {"data": {"type": "Z"}},
+        |    "v8": {"data": {"type": "X"}},
+        |    "v9": {"data": {"type": "X"}},
+        |    "v10": {"data": {"type": "X"}},
+        |    "v11": {"data": {"type": "X"}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "c", "tgt": "v8"},
+        |    "e1": {"src": "c", "tgt": "v9"},
+        |    "e2": {"src": "c", "tgt": "v10"},
+        |    "e3": {"src": "c", "tgt": "v11"}
+        |  }
+        |}
+      """.stripMargin)
+    // one match, rather than one for each of the 4! orders of the copies
+    assert(Matcher.findMatches(g1, g2, CompiledMatchEngine).size === 1)
+    assertSameMatches(g1, g2)
+  }
+
+  it should "match an empty (wild) bbox twice" in {
+    val g1 = parse(
+      """
+        |{
+        |  "bang_boxes": {
+        |    "bb0": {"contents": []}
+        |  }
+        |}
+      """.stripMargin)
+    val g2 = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "X"}},
+        |    "v1": {"data": {"type": "Z"}}
+        |  }
+        |}
+      """.stripMargin)
+    assertSameMatches(g1, g2)
+  }
+}
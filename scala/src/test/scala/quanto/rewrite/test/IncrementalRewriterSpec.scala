@@ -0,0 +1,113 @@
+package quanto.rewrite.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.json.Json
+
+class IncrementalRewriterSpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // a line of n Z spiders between two boundaries
+  def line(n: Int): Graph = {
+    val nodes = (0 until n).map { i => s""""v$i": {"data": {"type": "Z"}}""" }
+    val names = "b0" +: (0 until n).map("v" + _) :+ "b1"
+    val edges = names.zip(names.tail).zipWithIndex.map { case ((s, t), i) =>
+      s""""e$i": {"src": "$s", "tgt": "$t"}"""
+    }
+    parse(
+      s"""
+         |{
+         |  "wire_vertices": ["b0", "b1"],
+         |  "node_vertices": {${nodes.mkString(", ")}},
+         |  "undir_edges": {${edges.mkString(", ")}}
+         |}
+      """.stripMargin)
+  }
+
+  val fuse = Rule(line(2), line(1), description = RuleDesc("fuse"))
+
+  val spider = parse(
+    """
+      |{
+      |  "wire_vertices": ["b0"],
+      |  "node_vertices": {
+      |    "v0": {"data": {"type": "Z"}}
+      |  },
+      |  "undir_edges": {
+      |    "e0": {"src": "v0", "tgt": "b0"}
+      |  },
+      |  "bang_boxes": {
+      |    "bb0": {"contents": ["b0"]}
+      |  }
+      |}
+    """.stripMargin)
+
+  behavior of "The incremental rewriter"
+
+  it should "only search locally for connected patterns without !-boxes" in {
+    // b0 - v0 - w - v1 - b1, once normalised
+    assert(IncrementalRewriter.matchRadius(line(2)) === Some(4))
+    assert(IncrementalRewriter.matchRadius(spider) === None)
+    assert(IncrementalRewriter.matchRadius(line(1).appendGraph(line(1).renameAvoiding(line(1)))) === None)
+  }
+
+  it should "restrict the search to a neighbourhood of the changed region" in {
+    val g = line(6).normalise
+    val near = IncrementalRewriter.neighbourhood(g, g, Set(VName("v0")), 2)
+    assert(near.contains(VName("b0")))
+    assert(!near.contains(VName("v5")))
+  }
+
+  it should "reduce a graph in the same number of steps as REPEAT(REWRITE)" in {
+    val g = line(5)
+    val steps = new IncrementalRewriter(List(fuse)).reduce(g).toList
+    val fullSteps = Simproc.REPEAT(Simproc.REWRITE(List(fuse))).simp(g).toList
+    assert(steps.size === 4)
+    assert(steps.size === fullSteps.size)
+    assert(steps.last._1.verts.count { v => !steps.last._1.vdata(v).isWireVertex } === 1)
+  }
+
+  it should "reach the same normal form as REPEAT(REWRITE), which REDUCE in scripts used to be" in {
+    for (n <- Seq(1, 2, 5, 8)) {
+      val g = line(n)
+      val steps = Simproc.REDUCE(List(fuse)).simp(g).toList
+      val fullSteps = Simproc.REPEAT(Simproc.REWRITE(List(fuse))).simp(g).toList
+      assert(steps.size === fullSteps.size)
+      val (last, fullLast) = if (steps.isEmpty) (g, g) else (steps.last._1, fullSteps.last._1)
+      assert(Canonical.isomorphic(last, fullLast))
+    }
+  }
+
+  it should "normalise a rewritten graph near the rewrite only, with the same result" in {
+    val g = line(5).normalise
+    val m = Matcher.firstMatch(fuse, g).get
+    val (g1, r1) = Rewriter.rewrite(m, fuse.rhs, fuse.description)
+    // copy gives a graph which has not yet remembered its normal form
+    assert(g1.normaliseAround(r1.rhs.verts) === g1.copy().normalise)
+  }
+
+  it should "update the target index and the possible rules near a rewrite" in {
+    val g = line(2).normalise
+    val rules = new RuleIndex(List(fuse, fuse.inverse))
+    val m = Matcher.firstMatch(fuse, g).get
+    val (g1, r1) = Rewriter.rewrite(m, fuse.rhs, fuse.description)
+    val tgt1 = g1.normaliseAround(r1.rhs.verts)
+    val touched = m.map.v.codSet union r1.rhs.verts
+
+    val index1 = new TargetIndex(g).updated(tgt1, touched)
+    val fresh = new TargetIndex(tgt1)
+    val pat = fuse.inverse.lhs.normalise
+    assert(index1.size === fresh.size)
+    for (np <- pat.verts if !pat.vdata(np).isWireVertex)
+      assert(index1.candidates(pat, np) === fresh.candidates(pat, np))
+
+    val tracker = rules.tracker(g)
+    assert(tracker.possibleRuleIndices === Seq(0, 1))
+    // there is only one Z spider left, so fuse can no longer match
+    assert(tracker.updated(tgt1, touched).possibleRuleIndices === Seq(1))
+    assert(rules.tracker(tgt1).possibleRuleIndices === Seq(1))
+  }
+}
@@ -0,0 +1,86 @@
+package quanto.rewrite.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.json.Json
+
+class InstrumentationSpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // a line of n Z spiders between two boundaries
+  def line(n: Int): Graph = {
+    val nodes = (0 until n).map { i => s""""v$i": {"data": {"type": "Z"}}""" }
+    val names = "b0" +: (0 until n).map("v" + _) :+ "b1"
+    val edges = names.zip(names.tail).zipWithIndex.map { case ((s, t), i) =>
+      s""""e$i": {"src": "$s", "tgt": "$t"}"""
+    }
+    parse(
+      s"""
+         |{
+         |  "wire_vertices": ["b0", "b1"],
+         |  "node_vertices": {${nodes.mkString(", ")}},
+         |  "undir_edges": {${edges.mkString(", ")}}
+         |}
+      """.stripMargin)
+  }
+
+  val fuse = Rule(line(2), line(1), description = RuleDesc("instrumented fuse"))
+
+  behavior of "Instrumentation"
+
+  it should "count nothing outside of a session" in {
+    Simproc.REPEAT(Simproc.REWRITE(List(fuse))).simp(line(4)).toList
+    assert(Instrumentation.rule("instrumented fuse").isEmpty)
+  }
+
+  it should "count searches, matches and rewrites for each rule" in {
+    val session = new Instrumentation.Session
+    val steps = session.steps("instrumented simproc", Simproc.REPEAT(Simproc.REWRITE(List(fuse))).simp(line(4))).toList
+    assert(steps.size === 3)
+    assert(Instrumentation.session.isEmpty)
+
+    val r = session.rule("instrumented fuse")
+    // one search for each rewrite, and maybe one more which finds nothing
+    assert(r.searches.get >= 3)
+    assert(r.matchesFound.get === 3)
+    assert(r.rewrites.get === 3)
+    assert(r.statesExplored.get > r.matchesFound.get)
+
+    val s = session.simproc("instrumented simproc")
+    assert(s.steps.get === 3)
+
+    val json = session.toJson
+    assert((json / "rules" / "instrumented fuse" / "rewrites").intValue === 3)
+    assert((json / "simprocs" / "instrumented simproc" / "steps").intValue === 3)
+    assert(session.report.contains("instrumented fuse"))
+  }
+
+  it should "keep the counts of sessions on different threads apart" in {
+    val sessions = (1 to 4).map(_ => new Instrumentation.Session)
+    val threads = sessions.zipWithIndex.map { case (session, i) =>
+      new Thread(new Runnable {
+        def run(): Unit = session.steps("instrumented simproc",
+          Simproc.REPEAT(Simproc.REWRITE(List(fuse))).simp(line(i + 2))).toList
+      })
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+
+    sessions.zipWithIndex.foreach { case (session, i) =>
+      assert(session.rule("instrumented fuse").rewrites.get === i + 1)
+      assert(session.simproc("instrumented simproc").steps.get === i + 1)
+    }
+  }
+
+  it should "count deferred layouts against the rule of their step" in {
+    val session = new Instrumentation.Session
+    val (g1, _) = session.steps("instrumented simproc", Simproc.REWRITE(List(fuse)).simp(line(2))).next()
+    val step = DStep.deferred(DSName("s0"), fuse, line(2), g1, session.layoutTimer)
+    assert(session.rule("instrumented fuse").layouts.get === 0)
+    step.graph
+    assert(session.rule("instrumented fuse").layouts.get === 1)
+  }
+}
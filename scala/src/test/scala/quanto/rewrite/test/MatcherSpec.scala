@@ -5,6 +5,9 @@ import quanto.data._
 import org.scalatest._
 import quanto.data.Theory.{EdgeDesc, ValueType}
 import quanto.util.json.Json
+import java.util.concurrent.Executor
+
+import scala.concurrent.ExecutionContext
 
 class MatcherSpec extends FlatSpec {
   val rg = Theory.fromFile("red_green")
@@ -794,4 +797,189 @@ class MatcherSpec extends FlatSpec {
     val matches = Matcher.findMatches(g1, g1)
     assert(matches.nonEmpty)
   }
+
+  it should "only seed candidates with target nodes of the right type and arity" in {
+    val g1 = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}}
+        |  },
+        |  "wire_vertices": ["w0", "w1", "w2"],
+        |  "dir_edges": {
+        |    "e0": {"src": "w0", "tgt": "v0"},
+        |    "e1": {"src": "v0", "tgt": "w1"},
+        |    "e2": {"src": "v0", "tgt": "w2"}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+    val g2 = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}},
+        |    "v1": {"data": {"type": "X"}},
+        |    "v2": {"data": {"type": "Z"}},
+        |    "v3": {"data": {"type": "X"}}
+        |  },
+        |  "wire_vertices": ["w0", "w1", "w2"],
+        |  "dir_edges": {
+        |    "e0": {"src": "w0", "tgt": "v0"},
+        |    "e1": {"src": "v0", "tgt": "w1"},
+        |    "e2": {"src": "v0", "tgt": "w2"},
+        |    "e3": {"src": "v1", "tgt": "w0"},
+        |    "e4": {"src": "w1", "tgt": "v2"},
+        |    "e5": {"src": "w2", "tgt": "v3"}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+
+    val ms = Matcher.initialise(g1, g2, g2.verts)
+    assert(ms.targetIndex.candidates(ms.m.pattern, VName("v0")) === Set(VName("v0")))
+    assert(ms.candidatesPruned === 3)
+
+    val matches = Matcher.findMatches(g1, g2)
+    assert(matches.size === 2)
+    assert(matches.forall { _.isTotal })
+  }
+
+  it should "find the same matches in parallel, in the same order" in {
+    val g = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": ""}},
+        |    "v1": {"data": {"type": "Z", "value": ""}},
+        |    "v2": {"data": {"type": "Z", "value": ""}},
+        |    "v3": {"data": {"type": "Z", "value": ""}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "v1"},
+        |    "e1": {"src": "v1", "tgt": "v2"},
+        |    "e2": {"src": "v2", "tgt": "v3"}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+    val ms = Matcher.initialise(g, g, g.verts)
+    // the ends of the path are the only candidates for v0
+    assert(ParallelMatcher.branches(ms).size === 2)
+
+    val seq = Matcher.findMatches(g, g).map(_.map.v.toMap).toList
+    val par = Matcher.findMatchesParallel(g, g).map(_.map.v.toMap).toList
+    assert(seq.size === 2)
+    assert(par === seq)
+  }
+
+  it should "find a first match in parallel, or none" in {
+    val g1 = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": ""}},
+        |    "v1": {"data": {"type": "X", "value": ""}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "v1"}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+    val g2 = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": ""}},
+        |    "v1": {"data": {"type": "X", "value": ""}},
+        |    "v2": {"data": {"type": "Z", "value": ""}},
+        |    "v3": {"data": {"type": "X", "value": ""}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "v1"},
+        |    "e1": {"src": "v2", "tgt": "v3"}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+
+    val m = Matcher.findFirstMatchParallel(g1, g2)
+    assert(m.isDefined)
+    assert(Matcher.findMatches(g1, g2).exists(_.map.v == m.get.map.v))
+    assert(Matcher.findFirstMatchParallel(g2, g1).isEmpty)
+  }
+
+  it should "stop the other branches once a match is found in parallel" in {
+    val g1 = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": ""}},
+        |    "v1": {"data": {"type": "X", "value": ""}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "v1"}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+    val g2 = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": ""}},
+        |    "v1": {"data": {"type": "X", "value": ""}},
+        |    "v2": {"data": {"type": "Z", "value": ""}},
+        |    "v3": {"data": {"type": "X", "value": ""}},
+        |    "v4": {"data": {"type": "Z", "value": ""}},
+        |    "v5": {"data": {"type": "X", "value": ""}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "v1"},
+        |    "e1": {"src": "v2", "tgt": "v3"},
+        |    "e2": {"src": "v4", "tgt": "v5"}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+
+    // run the branches one after another, so the first one always wins
+    implicit val inOrder: ExecutionContext = ExecutionContext.fromExecutor(new Executor {
+      override def execute(r: Runnable): Unit = r.run()
+    })
+
+    val ms = Matcher.initialise(g1, g2, g2.verts)
+    val branches = ParallelMatcher.branches(ms)
+    assert(branches.size === 3)
+
+    val first = new RewriteCounters("first branch")
+    assert(branches.head.copy(counters = Some(first)).nextMatch().isDefined)
+
+    val all = new RewriteCounters("all branches")
+    assert(ParallelMatcher.findFirstMatch(ms.copy(counters = Some(all))).isDefined)
+    // the first branch searches as before, and the others give up at their first state
+    assert(all.statesExplored.get === first.statesExplored.get + 2)
+  }
+
+  it should "enumerate, count and take matches without a stream" in {
+    val g = Graph.fromJson(Json.parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z", "value": ""}},
+        |    "v1": {"data": {"type": "Z", "value": ""}},
+        |    "v2": {"data": {"type": "Z", "value": ""}},
+        |    "v3": {"data": {"type": "Z", "value": ""}}
+        |  }
+        |}
+      """.stripMargin), thy = rg)
+
+    val all = Matcher.findMatches(g, g).map(_.map.v.toMap).toList
+    assert(all.size === 24)
+    assert(Matcher.matchIterator(g, g).map(_.map.v.toMap).toList === all)
+    assert(Matcher.countMatches(g, g) === 24)
+    assert(Matcher.hasMatch(g, g))
+    assert(Matcher.firstMatch(g, g).map(_.map.v.toMap) === all.headOption)
+    assert(Matcher.takeMatches(g, g, 3).map(_.map.v.toMap) === all.take(3))
+
+    val it = Matcher.matchIterator(g, g)
+    it.next()
+    assert(it.countRemaining() === 23)
+    assert(!it.hasNext)
+    assertThrows[NoSuchElementException] { it.next() }
+  }
 }
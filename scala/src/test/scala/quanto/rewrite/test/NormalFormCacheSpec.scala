@@ -0,0 +1,101 @@
+package quanto.rewrite.test
+
+import java.io.File
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.json.Json
+
+class NormalFormCacheSpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // a line of n Z spiders between two boundaries, with the given prefix on the names of the spiders
+  def line(n: Int, prefix: String = "v"): Graph = {
+    val nodes = (0 until n).map { i => s""""$prefix$i": {"data": {"type": "Z"}}""" }
+    val names = "b0" +: (0 until n).map(prefix + _) :+ "b1"
+    val edges = names.zip(names.tail).zipWithIndex.map { case ((s, t), i) =>
+      s""""e$i": {"src": "$s", "tgt": "$t"}"""
+    }
+    parse(
+      s"""
+         |{
+         |  "wire_vertices": ["b0", "b1"],
+         |  "node_vertices": {${nodes.mkString(", ")}},
+         |  "undir_edges": {${edges.mkString(", ")}}
+         |}
+      """.stripMargin)
+  }
+
+  def nodes(g: Graph): Int = g.verts.count(v => !g.vdata(v).isWireVertex)
+
+  val fuse = Rule(line(2), line(1), description = RuleDesc("fuse"))
+
+  def withCache[T](cache: NormalFormCache)(f: => T): T = {
+    NormalFormCache.global = Some(cache)
+    try f finally NormalFormCache.global = None
+  }
+
+  behavior of "The normal form cache"
+
+  it should "replay a normal form on an isomorphic graph" in {
+    val cache = new NormalFormCache()
+    val simproc = Simproc.REPEAT(Simproc.REWRITE(List(fuse)))
+    withCache(cache) {
+      val first = simproc.simp(line(4)).toList
+      assert(cache.misses === 1 && cache.hits === 0)
+
+      val g = line(4, "x")
+      val second = simproc.simp(g).toList
+      assert(cache.hits === 1)
+      assert(second.size === first.size)
+      // every graph along the way is rebuilt from the stored deltas
+      assert(second.map { case (g1, _) => nodes(g1) } === first.map { case (g1, _) => nodes(g1) })
+      assert(second.forall { case (g1, r1) => r1.rhs.verts.subsetOf(g1.verts) })
+      assert(nodes(second.last._1) === 1)
+      assert(second.last._1.boundary.size === 2)
+
+      // the first rewrite is at a match in the new graph
+      assert(second.head._2.lhs.verts.subsetOf(g.normalise.verts))
+    }
+  }
+
+  it should "not remember a reduction that was not run to the end" in {
+    val cache = new NormalFormCache()
+    val simproc = Simproc.REPEAT(Simproc.REWRITE(List(fuse)))
+    withCache(cache) {
+      simproc.simp(line(4)).take(1).toList
+      assert(cache.size === 0)
+      assert(cache.lookup(simproc.fingerprint.get, line(4)).isEmpty)
+    }
+  }
+
+  it should "distinguish different rules" in {
+    val cache = new NormalFormCache()
+    withCache(cache) {
+      Simproc.REDUCE(List(fuse)).simp(line(3)).toList
+      Simproc.REDUCE(List(fuse.inverse)).simp(line(3)).take(2).toList
+      assert(cache.hits === 0)
+    }
+  }
+
+  it should "save and load its entries" in {
+    val cache = new NormalFormCache()
+    val simproc = Simproc.REDUCE(List(fuse))
+    withCache(cache) {
+      simproc.simp(line(3)).toList
+    }
+    val f = File.createTempFile("normal_forms", ".json")
+    f.deleteOnExit()
+    cache.save(f, rg)
+
+    val loaded = new NormalFormCache()
+    loaded.load(f, rg)
+    assert(loaded.size === 1)
+    val steps = loaded.lookup(simproc.fingerprint.get, line(3, "y"))
+    assert(steps.isDefined)
+    assert(nodes(steps.get.last._1) === 1)
+  }
+}
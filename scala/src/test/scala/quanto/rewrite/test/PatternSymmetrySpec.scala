@@ -0,0 +1,90 @@
+package quanto.rewrite.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.json.Json
+
+class PatternSymmetrySpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // a line of nodes of the given types between two boundaries
+  def line(types: String*): Graph = {
+    val nodes = types.zipWithIndex.map { case (t, i) => s""""v$i": {"data": {"type": "$t"}}""" }
+    val names = "b0" +: types.indices.map("v" + _) :+ "b1"
+    val edges = names.zip(names.tail).zipWithIndex.map { case ((s, t), i) =>
+      s""""e$i": {"src": "$s", "tgt": "$t"}"""
+    }
+    parse(
+      s"""
+         |{
+         |  "wire_vertices": ["b0", "b1"],
+         |  "node_vertices": {${nodes.mkString(", ")}},
+         |  "undir_edges": {${edges.mkString(", ")}}
+         |}
+      """.stripMargin)
+  }
+
+  // n isolated Z nodes
+  def scalars(n: Int): Graph = {
+    val z = NodeV(data = rg.vertexTypes("Z").defaultData, theory = rg)
+    (0 until n).foldLeft(Graph()) { (g, i) => g.addVertex(VName("v" + i), z) }
+  }
+
+  behavior of "Pattern symmetry"
+
+  it should "find the automorphisms of a pattern" in {
+    assert(PatternSymmetry(line("Z", "Z")).size === 2)
+    assert(PatternSymmetry(line("Z", "X")).isTrivial)
+    assert(PatternSymmetry(scalars(4)).size === 24)
+  }
+
+  it should "not list every automorphism of a very symmetric pattern" in {
+    val sym = PatternSymmetry(scalars(10))
+    assert(sym.size === BigInt(3628800))
+    // one generator for each transposition along the chain
+    assert(sym.generators.size === 45)
+  }
+
+  it should "only keep automorphisms which extend to the RHS" in {
+    assert(!PatternSymmetry.forRule(Rule(line("Z", "Z"), line("Z"))).isTrivial)
+    assert(PatternSymmetry.forRule(Rule(line("Z", "Z"), line("Z", "X"))).isTrivial)
+  }
+
+  it should "return each match of a symmetric rule once" in {
+    val tgt = line("X", "Z", "Z", "X")
+    assert(Matcher.countMatches(line("Z", "Z"), tgt) === 2)
+    assert(Matcher.matchIterator(Rule(line("Z", "Z"), line("Z")), tgt).size === 1)
+    assert(Matcher.matchIterator(Rule(line("Z", "Z"), line("Z", "X")), tgt).size === 2)
+
+    val g = scalars(4)
+    assert(Matcher.matchIterator(Rule(g, Graph()), g).size === 1)
+  }
+
+  it should "keep a match whose symmetric boundaries have the same image" in {
+    // both boundaries of the identity are matched on the wire-vertex of the self-loop
+    val loop = parse(
+      """
+        |{
+        |  "node_vertices": {"v0": {"data": {"type": "Z"}}},
+        |  "undir_edges": {"e0": {"src": "v0", "tgt": "v0"}}
+        |}
+      """.stripMargin)
+    val id = Rule(line("Z"), line())
+    assert(!PatternSymmetry.forRule(id).isTrivial)
+    assert(Matcher.countMatches(line("Z"), loop) > 0)
+    assert(Matcher.matchIterator(id, loop).nonEmpty)
+  }
+
+  it should "return every labelled match when asked" in {
+    val g = scalars(4)
+    MatchState.smashSymmetries = false
+    try {
+      assert(Matcher.matchIterator(Rule(g, Graph()), g).size === 24)
+    } finally {
+      MatchState.smashSymmetries = true
+    }
+  }
+}
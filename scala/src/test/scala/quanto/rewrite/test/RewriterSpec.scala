@@ -0,0 +1,162 @@
+package quanto.rewrite.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.Scripting
+import quanto.util.json.Json
+
+class RewriterSpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // a line of n Z spiders between two boundaries
+  def line(n: Int): Graph = {
+    val nodes = (0 until n).map { i => s""""v$i": {"data": {"type": "Z"}}""" }
+    val names = "b0" +: (0 until n).map("v" + _) :+ "b1"
+    val edges = names.zip(names.tail).zipWithIndex.map { case ((s, t), i) =>
+      s""""e$i": {"src": "$s", "tgt": "$t"}"""
+    }
+    parse(
+      s"""
+         |{
+         |  "wire_vertices": ["b0", "b1"],
+         |  "node_vertices": {${nodes.mkString(", ")}},
+         |  "undir_edges": {${edges.mkString(", ")}}
+         |}
+      """.stripMargin)
+  }
+
+  def nodes(g: Graph): Int = g.verts.count(v => !g.vdata(v).isWireVertex)
+
+  val fuse = Rule(line(2), line(1), description = RuleDesc("fuse"))
+
+  behavior of "Batch rewriting"
+
+  it should "only choose independent matches" in {
+    val chosen = new IndependentMatches
+    // every match of fuse in a line of 3 has the middle spider in its interior
+    val ms = Matcher.matchIterator(fuse, line(3)).toList
+    assert(ms.size >= 2)
+    assert(chosen.add(ms.head, fuse))
+    assert(ms.tail.forall(!chosen.add(_, fuse)))
+    assert(chosen.matches.size === 1)
+  }
+
+  it should "rewrite many matches with one pushout" in {
+    val (g1, r1) = Simproc.REWRITE_ALL(List(fuse)).simp(line(8)).next()
+    // each match has two spiders on its LHS, and any maximal set of matches in a line of 8 has at least 3
+    val matched = nodes(r1.lhs) / 2
+    assert(matched >= 3)
+    assert(nodes(r1.rhs) === matched)
+    assert(nodes(g1) === 8 - matched)
+    assert(g1.boundary.size === 2)
+    assert(r1.name === "fuse x" + matched)
+  }
+
+  it should "reduce a graph in fewer steps than rewriting one match at a time" in {
+    val steps = Simproc.REPEAT(Simproc.REWRITE_ALL(List(fuse))).simp(line(8)).toList
+    assert(steps.size <= 4)
+    assert(nodes(steps.last._1) === 1)
+    assert(steps.last._1.boundary.size === 2)
+  }
+
+  it should "rewrite matches of equal targets found separately" in {
+    val ms = Matcher.matchIterator(fuse, line(8)).toList
+    val m1 = ms.head.normalize
+    val m2 = Matcher.matchIterator(fuse, line(8)).map(_.normalize).find { m =>
+      val chosen = new IndependentMatches
+      chosen.add(m1, fuse) && chosen.add(m, fuse)
+    }.get
+    assert(m1.target ne m2.target)
+    val (g1, _) = Rewriter.rewriteAll(Seq((m1, fuse.rhs), (m2, fuse.rhs)), RuleDesc("fuse x2"))
+    assert(nodes(g1) === 6)
+  }
+
+  it should "be available to scripts" in {
+    val (g1, r1) = Scripting.REWRITE_ALL(fuse).simp(line(8)).next()
+    assert(nodes(g1) === 8 - nodes(r1.rhs))
+    assert(r1.name.startsWith("fuse x"))
+  }
+
+  behavior of "Repeated rewriting"
+
+  def run(s: Simproc, g: Graph): (List[(Graph, Rule)], Option[Simproc.Halt]) = {
+    val iter = s.simp(g)
+    val steps = iter.toList
+    (steps, Simproc.haltOf(iter))
+  }
+
+  it should "not look for cycles unless asked to" in {
+    val id = Rule(line(1), line(1), description = RuleDesc("id"))
+    val budget = Simproc.Budget(maxSteps = 5)
+    val (steps, halt) = run(Simproc.REPEAT(Simproc.REWRITE(List(id)), budget), line(2))
+    assert(steps.size === 5)
+    assert(halt === Some(Simproc.StepBudgetHalt(5)))
+  }
+
+  val everyStep = Simproc.Budget(detectCycles = true, cycleCheckInterval = 1)
+
+  it should "stop at a rewrite which leaves the graph unchanged" in {
+    val id = Rule(line(1), line(1), description = RuleDesc("id"))
+    val (steps, halt) = run(Simproc.REPEAT(Simproc.REWRITE(List(id)), everyStep), line(2))
+    assert(steps.isEmpty)
+    assert(halt === Some(Simproc.CycleHalt(0, 1)))
+  }
+
+  it should "stop when rules applied both ways go round in a cycle" in {
+    val (steps, halt) = run(Simproc.REPEAT(Simproc.REWRITE(List(fuse, fuse.inverse)), everyStep), line(2))
+    assert(steps.size === 1)
+    assert(halt === Some(Simproc.CycleHalt(0, 2)))
+  }
+
+  it should "find a cycle at the first check which closes it" in {
+    // steps 0 and 6 are both line(2), and step 3 is line(1)
+    val budget = Simproc.Budget(detectCycles = true, cycleCheckInterval = 3)
+    val (steps, halt) = run(Simproc.REPEAT(Simproc.REWRITE(List(fuse, fuse.inverse)), budget), line(2))
+    assert(steps.size === 5)
+    assert(halt === Some(Simproc.CycleHalt(0, 6)))
+  }
+
+  it should "stop when it runs out of steps" in {
+    val budget = Simproc.Budget(maxSteps = 5, detectCycles = false)
+    val (steps, halt) = run(Simproc.REPEAT(Simproc.REWRITE(List(fuse.inverse)), budget), line(1))
+    assert(steps.size === 5)
+    assert(halt === Some(Simproc.StepBudgetHalt(5)))
+  }
+
+  it should "stop before a graph gets too big" in {
+    val (steps, halt) = run(Simproc.REDUCE(List(fuse.inverse), Simproc.Budget(maxVertices = 12)), line(1))
+    assert(steps.nonEmpty)
+    assert(steps.forall(_._1.verts.size <= 12))
+    assert(halt.exists(_.isInstanceOf[Simproc.VertexBudgetHalt]))
+  }
+
+  it should "not stop a reduction which reaches a fixpoint" in {
+    val (steps, halt) = run(Simproc.REPEAT(Simproc.REWRITE(List(fuse))), line(4))
+    assert(steps.size === 3)
+    assert(halt.isEmpty)
+  }
+
+  it should "keep to the budget when replaying a cached normal form" in {
+    val cache = new NormalFormCache()
+    NormalFormCache.global = Some(cache)
+    try {
+      assert(run(Simproc.REPEAT(Simproc.REWRITE(List(fuse))), line(6))._1.size === 5)
+      val (steps, halt) =
+        run(Simproc.REPEAT(Simproc.REWRITE(List(fuse)), Simproc.Budget(maxSteps = 2)), line(6))
+      assert(cache.hits === 1)
+      assert(steps.size === 2)
+      assert(halt === Some(Simproc.StepBudgetHalt(2)))
+
+      assert(run(Simproc.REDUCE(List(fuse)), line(6))._1.size === 5)
+      val (steps1, halt1) = run(Simproc.REDUCE(List(fuse), Simproc.Budget(maxSteps = 2)), line(6))
+      assert(cache.hits === 2)
+      assert(steps1.size === 2)
+      assert(halt1 === Some(Simproc.StepBudgetHalt(2)))
+    } finally {
+      NormalFormCache.global = None
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package quanto.rewrite.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.json.Json
+
+class RuleIndexSpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // two adjacent nodes of the given types and phases
+  def pair(t1: String, a1: String, t2: String, a2: String): Graph = parse(
+    s"""
+       |{
+       |  "node_vertices": {
+       |    "v0": {"data": {"type": "$t1", "value": "$a1"}},
+       |    "v1": {"data": {"type": "$t2", "value": "$a2"}}
+       |  },
+       |  "undir_edges": {
+       |    "e0": {"src": "v0", "tgt": "v1"}
+       |  }
+       |}
+      """.stripMargin)
+
+  val zx = Rule(pair("Z", "", "X", ""), pair("Z", "", "X", ""), description = RuleDesc("zx"))
+  val zz = Rule(pair("Z", "", "Z", ""), pair("Z", "", "Z", ""), description = RuleDesc("zz"))
+  val zPi = Rule(pair("Z", "pi", "Z", ""), pair("Z", "pi", "Z", ""), description = RuleDesc("zpi"))
+  val zVar = Rule(pair("Z", "a", "Z", ""), pair("Z", "a", "Z", ""), description = RuleDesc("za"))
+  val spider = {
+    val g = parse(
+      """
+        |{
+        |  "wire_vertices": ["b0"],
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "b0"}
+        |  },
+        |  "bang_boxes": {
+        |    "bb0": {"contents": ["b0"]}
+        |  }
+        |}
+      """.stripMargin)
+    Rule(g, g, description = RuleDesc("spider"))
+  }
+
+  val index = new RuleIndex(List(zx, zz, zPi, zVar, spider))
+
+  behavior of "A rule index"
+
+  it should "discard rules whose nodes have no candidates" in {
+    val tgt = pair("Z", "", "Z", "")
+    // constant phases are not compared, so zpi is kept
+    assert(index.possibleRules(tgt).map(_.name) === Seq("zz", "zpi", "za", "spider"))
+  }
+
+  it should "check the types of neighbouring nodes" in {
+    // a Z and an X, but not adjacent
+    val tgt = parse(
+      """
+        |{
+        |  "node_vertices": {
+        |    "v0": {"data": {"type": "Z"}},
+        |    "v1": {"data": {"type": "Z"}},
+        |    "v2": {"data": {"type": "X"}}
+        |  },
+        |  "undir_edges": {
+        |    "e0": {"src": "v0", "tgt": "v1"}
+        |  }
+        |}
+      """.stripMargin)
+    assert(!index.possibleRules(tgt).contains(zx))
+    assert(index.possibleRules(pair("Z", "", "X", "")).contains(zx))
+  }
+
+  it should "only keep rules that have a match" in {
+    val targets = Seq(
+      pair("Z", "", "Z", ""), pair("Z", "", "X", ""), pair("X", "", "X", ""),
+      pair("Z", "pi", "Z", ""), pair("Z", "1/2", "Z", "pi"))
+    for (tgt <- targets; rule <- index.rules) {
+      if (Matcher.findMatches(rule.lhs, tgt).nonEmpty) assert(index.possibleRules(tgt).contains(rule))
+    }
+  }
+
+  it should "find the first matching rule" in {
+    val (rule, _) = index.findFirstMatch(pair("Z", "pi", "Z", "")).get
+    assert(rule === zPi)
+    assert(!index.matchesAny(pair("X", "", "X", "")))
+  }
+}
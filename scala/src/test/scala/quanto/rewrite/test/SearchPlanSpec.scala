@@ -0,0 +1,75 @@
+package quanto.rewrite.test
+
+import org.scalatest._
+import quanto.data._
+import quanto.rewrite._
+import quanto.util.json.Json
+
+class SearchPlanSpec extends FlatSpec {
+  val rg = Theory.fromFile("red_green")
+
+  def parse(s: String): Graph = Graph.fromJson(Json.parse(s), thy = rg)
+
+  // a Z with phase a, connected to an X and to a Z with two boundaries
+  val pattern = parse(
+    """
+      |{
+      |  "wire_vertices": ["b0", "b1"],
+      |  "node_vertices": {
+      |    "a": {"data": {"type": "Z", "value": "a"}},
+      |    "b": {"data": {"type": "Z", "value": ""}},
+      |    "c": {"data": {"type": "X", "value": ""}}
+      |  },
+      |  "undir_edges": {
+      |    "e0": {"src": "a", "tgt": "b"},
+      |    "e1": {"src": "a", "tgt": "c"},
+      |    "e2": {"src": "b", "tgt": "b0"},
+      |    "e3": {"src": "b", "tgt": "b1"}
+      |  }
+      |}
+    """.stripMargin)
+
+  val target = parse(
+    """
+      |{
+      |  "wire_vertices": ["b0", "b1", "b2"],
+      |  "node_vertices": {
+      |    "v0": {"data": {"type": "Z", "value": "pi"}},
+      |    "v1": {"data": {"type": "Z", "value": ""}},
+      |    "v2": {"data": {"type": "X", "value": ""}},
+      |    "v3": {"data": {"type": "X", "value": ""}}
+      |  },
+      |  "undir_edges": {
+      |    "e0": {"src": "v0", "tgt": "v1"},
+      |    "e1": {"src": "v0", "tgt": "v2"},
+      |    "e2": {"src": "v1", "tgt": "b0"},
+      |    "e3": {"src": "v1", "tgt": "b1"},
+      |    "e4": {"src": "v3", "tgt": "b2"}
+      |  }
+      |}
+    """.stripMargin)
+
+  behavior of "A search plan"
+
+  it should "anchor the search at the most selective node" in {
+    val plan = SearchPlan(pattern)
+    // c has the rarest type, and a is its only neighbour
+    assert(Seq("c", "a", "b").map { v => plan.nodeRank(VName(v)) } === Seq(0, 1, 2))
+    assert(plan.nextNode(Set(VName("a"), VName("b"))) === VName("a"))
+    assert(SearchPlan.ByName.nextNode(Set(VName("b"), VName("c"))) === VName("b"))
+  }
+
+  it should "be cached on the rule" in {
+    val rule = Rule(pattern, pattern)
+    assert(SearchPlan.forRule(rule) eq SearchPlan.forRule(rule))
+  }
+
+  it should "find the same matches as the search in name order" in {
+    val ms = Matcher.initialise(pattern, target, target.verts).copy(plan = SearchPlan(pattern))
+    val planned = new MatchIterator(ms).map(_.map.v.toMap).toSet
+    val byName = Matcher.findMatches(pattern, target).map(_.map.v.toMap).toSet
+    // b0 and b1 can be swapped
+    assert(planned.size === 2)
+    assert(planned === byName)
+  }
+}
@@ -180,5 +180,54 @@ class JsonSpec extends FlatSpec {
     assert(upd === pathTestSet)
   }
 
+  behavior of "Compact Json"
+
+  it should "share small objects of plain values" in {
+    val d1 = Json.parse("{\"type\": \"Z\", \"value\": \"\"}")
+    val d2 = JsonObject("type" -> "Z", "value" -> "")
+    assert(d1 eq d2)
+    assert(JsonObject() eq Json.parse("{}"))
+    assert(JsonDouble(1.25) eq JsonDouble(1.25))
+    assert(JsonDouble(-0.0).v.equals(-0.0))
+  }
+
+  it should "keep coordinates and other fields through updates" in {
+    val a = JsonObject("coord" -> JsonArray(1.5, -2.0), "label" -> "x")
+    val a1 = a + ("coord" -> JsonArray(3.0, 4.25))
+    assert(a1 / "coord" === JsonArray(JsonDouble(3.0), JsonDouble(4.25)))
+    assert(a1.mapValue === Map("coord" -> JsonArray(3.0, 4.25), "label" -> JsonString("x")))
+    assert(a1.mapValue - "label" === Map("coord" -> JsonArray(3.0, 4.25)))
+    assert(JsonObject("coord" -> JsonArray(1, 2)) / "coord" === JsonArray(JsonInt(1), JsonInt(2)))
+    assert(Json.parse(a.toString) === a)
+    assert(a.hashCode === JsonObject(a.mapValue.toList: _*).hashCode)
+  }
+
+  it should "grow past the compact size" in {
+    val big = (0 until 20).foldLeft(JsonObject()) { (o, i) => o + (("k" + i) -> JsonInt(i)) }
+    assert(big.size === 20)
+    assert((big / "k17").intValue === 17)
+    assert(Json.parse(big.toString) === big)
+  }
+
+  it should "keep fields in the order of an immutable Map" in {
+    val ops: Seq[Map[String, Json] => Map[String, Json]] = Seq(
+      _ + ("type" -> JsonString("Z")), _ + ("value" -> JsonString("a")), _ + ("label" -> JsonString("l")),
+      _ + ("coord" -> JsonArray(1.0, 2.0)), _ + ("value" -> JsonString("b")), _ + ("colour" -> JsonString("red")),
+      _ + ("size" -> JsonInt(3)), _ - "label", _.filter(_._1 != "type"), _ - "size", _ - "colour",
+      _ + ("shape" -> JsonString("circle")))
+    ops.indices.foreach { n =>
+      val expected = ops.take(n + 1).foldLeft(Map[String, Json]()) { (m, op) => op(m) }
+      val compact = ops.take(n + 1).foldLeft(JsonObject()) { (o, op) => JsonObject(op(o.mapValue)) }
+      assert(compact.keysIterator.toList === expected.keysIterator.toList)
+    }
+  }
 
-}
\ No newline at end of file
+  // these files were written by the JSON writer from before the compact objects
+  it should "write files byte for byte as before" in {
+    for (name <- Seq("plain", "ZW")) {
+      val source = scala.io.Source.fromInputStream(getClass.getResourceAsStream(s"/quanto/data/$name.qtheory"), "UTF-8")
+      val text = try source.mkString finally source.close()
+      assert(Json.parse(text).toString === text.stripLineEnd)
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package quanto.util.test
+
+import org.scalatest._
+import quanto.util._
+import Rational.intToRational
+
+
+class EchelonSolverSpec extends FlatSpec {
+  behavior of "An echelon solver"
+
+  // two free columns followed by one fixed column
+  val solver: EchelonSolver = EchelonSolver.empty
+    .withColumn(isFree = true)
+    .withColumn(isFree = true)
+    .withColumn(isFree = false)
+
+  it should "keep its rows reduced" in {
+    val s = solver.addRow(Array(1, 1, 0), 3).get.addRow(Array(1, -1, 1), 1).get
+    assert(s.numRows === 2)
+    assert((s.pivot(0), s.pivot(1)) === (0, 1))
+    assert(s.coefficient(0, 1) === Rational(0))
+    assert(s.coefficient(0, 2) === Rational(1, 2))
+    assert(s.constant(0) === Rational(2))
+    assert(s.coefficient(1, 2) === Rational(-1, 2))
+    assert(s.constant(1) === Rational(1))
+  }
+
+  it should "accept redundant rows and reject inconsistent ones" in {
+    val s = solver.addRow(Array(1, 1, 0), 3).get
+    assert(s.addRow(Array(2, 2, 0), 6).get.numRows === 1)
+    assert(s.addRow(Array(2, 2, 0), 5).isEmpty)
+    assert(s.addRow(Array(0, 0, 1), 0).isEmpty)
+    assert(s.numRows === 1)
+    assert(s.constant(0) === Rational(3))
+  }
+
+  it should "leave earlier systems unchanged" in {
+    val s = solver.addRow(Array(1, 1, 0), 3).get
+    val s1 = s.withColumn(isFree = true).addRow(Array(0, 1, 0, 1), 1).get
+    val s2 = s.addRow(Array(0, 1, 1), 2).get
+    assert(s1.coefficient(0, 3) === Rational(-1))
+    assert(s2.coefficient(0, 2) === Rational(-1))
+    assert(s.numColumns === 3)
+    assert(s.numRows === 1)
+    assert(s.coefficient(0, 1) === Rational(1))
+    assert(s.constant(0) === Rational(3))
+  }
+}
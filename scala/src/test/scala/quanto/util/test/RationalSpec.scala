@@ -0,0 +1,62 @@
+package quanto.util.test
+
+import java.math.BigInteger
+
+import org.scalatest._
+import quanto.util._
+
+class RationalSpec extends FlatSpec {
+  behavior of "A rational"
+
+  it should "be kept in lowest terms" in {
+    assert(Rational(2, 4) === Rational(1, 2))
+    assert(Rational(3, -6) === Rational(-1, 2))
+    assert(Rational(0, 5) === Rational(0))
+    assert(Rational(2, 4).hashCode === Rational(1, 2).hashCode)
+    assert(Rational(6, 3).isOne === false)
+    assert(Rational(3, 3).isOne)
+  }
+
+  it should "do arithmetic" in {
+    assert(Rational(1, 2) + Rational(1, 3) === Rational(5, 6))
+    assert(Rational(1, 2) - Rational(1, 3) === Rational(1, 6))
+    assert(Rational(2, 3) * Rational(3, 4) === Rational(1, 2))
+    assert(Rational(2, 3) / Rational(4, 3) === Rational(1, 2))
+    assert(Rational(-3, 4).inv === Rational(-4, 3))
+    assert(Rational(7, 4) * 2 === Rational(7, 2))
+  }
+
+  it should "share small values" in {
+    assert(Rational(1, 8) eq (Rational(1, 16) + Rational(1, 16)))
+    assert(Rational(0) eq Rational.Zero)
+  }
+
+  it should "compare by value" in {
+    assert(Rational(1, 3) < Rational(1, 2))
+    assert(Rational(-1, 2) < Rational(-1, 3))
+    assert(Rational(2, 4).compare(Rational(1, 2)) === 0)
+  }
+
+  it should "take remainders between 0 and the modulus" in {
+    assert((Rational(5, 2) mod 2) === Rational(1, 2))
+    assert((Rational(-1, 2) mod 2) === Rational(3, 2))
+    assert((Rational(-2) mod 2) === Rational(0))
+  }
+
+  it should "move to big integers instead of overflowing" in {
+    val big = Rational(Int.MaxValue) * Rational(Int.MaxValue)
+    assert(big === Rational(Int.MaxValue.toLong * Int.MaxValue, 1))
+    val huge = Rational(Long.MaxValue, 1) + Rational(Long.MaxValue, 1)
+    assert(huge.numerator === BigInteger.valueOf(Long.MaxValue).shiftLeft(1))
+    assert(huge > Rational(Long.MaxValue, 1))
+    assert(huge - Rational(Long.MaxValue, 1) === Rational(Long.MaxValue, 1))
+    assert((Rational(1, Long.MaxValue) + Rational(1, Long.MaxValue - 1)).denominator ===
+      BigInteger.valueOf(Long.MaxValue).multiply(BigInteger.valueOf(Long.MaxValue - 1)))
+    assertThrows[ArithmeticException] { huge.n }
+  }
+
+  it should "not divide by zero" in {
+    assertThrows[RationalDivideByZeroException] { Rational(1, 0) }
+    assertThrows[RationalDivideByZeroException] { Rational(0).inv }
+  }
+}